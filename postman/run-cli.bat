@@ -38,17 +38,23 @@ if not exist "recipients.txt" (
     echo.
 )
 
+REM Use the class-data-sharing archive if it was built (mvn -P cds package)
+set JAVA_OPTS=
+if exist "target\app-cds.jsa" (
+    set JAVA_OPTS=-XX:SharedArchiveFile=target\app-cds.jsa
+)
+
 echo Launching CLI application...
 echo.
 
 REM Use custom file paths if provided, otherwise use defaults
 if "%~1"=="" (
-    java -jar target\gmail-bulk-sender-1.0.0.jar
+    java %JAVA_OPTS% -jar target\gmail-bulk-sender-1.0.0.jar
 ) else (
     if "%~2"=="" (
-        java -jar target\gmail-bulk-sender-1.0.0.jar %1
+        java %JAVA_OPTS% -jar target\gmail-bulk-sender-1.0.0.jar %1
     ) else (
-        java -jar target\gmail-bulk-sender-1.0.0.jar %1 %2
+        java %JAVA_OPTS% -jar target\gmail-bulk-sender-1.0.0.jar %1 %2
     )
 )
 
@@ -0,0 +1,209 @@
+package com.bulksender;
+
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of messages in flight and adapts the limit with
+ * additive increase / multiplicative decrease (AIMD).
+ * 
+ * Every completed message is reported with its transmission latency and
+ * whether the relay signalled overload (a 421/451/452 reply or a dropped
+ * connection). The limit grows by one after a full window of healthy
+ * completions while the limit was actually in use, and is halved when the
+ * relay is overloaded or the smoothed latency rises well above the fastest
+ * latency seen recently. At most one decrease happens per window, so a
+ * single burst of errors does not collapse the limit to the minimum.
+ */
+public class AdaptiveConcurrencyLimit {
+    private static final Logger logger = Logger.getLogger(AdaptiveConcurrencyLimit.class.getName());
+    
+    public static final int DEFAULT_MAX_LIMIT = 16;
+    
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.1;
+    // The latency baseline is re-established from the samples of each window this size
+    private static final int BASELINE_WINDOW = 500;
+    
+    private int minLimit;
+    private int maxLimit;
+    
+    private int limit;
+    private int inFlight = 0;
+    private boolean saturated = false;
+    private int healthySinceChange = 0;
+    private int completionsSinceDecrease = Integer.MAX_VALUE;
+    
+    private long baselineNanos = Long.MAX_VALUE;
+    private double smoothedNanos = 0;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    
+    /**
+     * Creates a limit that starts at the minimum and may grow to the maximum.
+     * 
+     * @param minLimit Lowest allowed concurrency (at least 1)
+     * @param maxLimit Highest allowed concurrency
+     */
+    public AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = this.minLimit;
+    }
+    
+    /**
+     * Waits until another message may be put in flight and claims the slot.
+     * 
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            saturated = true;
+            wait();
+        }
+        inFlight++;
+        if (inFlight >= limit) {
+            saturated = true;
+        }
+    }
+    
+    /**
+     * Claims a slot if one is free, without waiting, leaving a number of
+     * slots unclaimed for other callers. Reaching that point counts as using
+     * the whole limit, so the limit can still grow.
+     * 
+     * @param headroom Slots that must stay free after this claim
+     * @return true if a slot was claimed
+     */
+    public synchronized boolean tryAcquire(int headroom) {
+        if (inFlight >= limit - headroom) {
+            saturated = true;
+            return false;
+        }
+        inFlight++;
+        if (inFlight >= limit - headroom) {
+            saturated = true;
+        }
+        return true;
+    }
+    
+    /**
+     * Gives back a slot claimed with acquire() or tryAcquire().
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+    
+    /**
+     * Feeds the outcome of one transmission into the controller.
+     * 
+     * @param latencyNanos Time spent transmitting the message
+     * @param overloaded Whether the relay signalled overload
+     */
+    public synchronized void record(long latencyNanos, boolean overloaded) {
+        if (completionsSinceDecrease < Integer.MAX_VALUE) {
+            completionsSinceDecrease++;
+        }
+        
+        if (!overloaded) {
+            updateBaseline(latencyNanos);
+            smoothedNanos = smoothedNanos == 0 ? latencyNanos
+                    : smoothedNanos + SMOOTHING * (latencyNanos - smoothedNanos);
+        }
+        boolean slow = baselineNanos != Long.MAX_VALUE && smoothedNanos > baselineNanos * LATENCY_TOLERANCE;
+        
+        if (overloaded || slow) {
+            healthySinceChange = 0;
+            if (completionsSinceDecrease >= limit) {
+                int previous = limit;
+                limit = Math.max(minLimit, (int) (limit * BACKOFF_RATIO));
+                completionsSinceDecrease = 0;
+                saturated = false;
+                // Judge the new limit on fresh samples only
+                smoothedNanos = baselineNanos == Long.MAX_VALUE ? 0 : baselineNanos;
+                if (limit != previous) {
+                    logger.fine("Concurrency limit decreased to " + limit +
+                                (overloaded ? " (relay overloaded)" : " (latency rising)"));
+                }
+            }
+            return;
+        }
+        
+        // Only grow if the current limit was actually the bottleneck
+        if (++healthySinceChange >= limit && saturated && limit < maxLimit) {
+            limit++;
+            healthySinceChange = 0;
+            saturated = false;
+            notifyAll();
+            logger.fine("Concurrency limit increased to " + limit);
+        }
+    }
+    
+    private void updateBaseline(long latencyNanos) {
+        baselineNanos = Math.min(baselineNanos, latencyNanos);
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            // Let the baseline follow a relay that has become permanently slower
+            baselineNanos = windowMinNanos;
+            windowMinNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+    
+    /**
+     * Returns whether an SMTP reply code means the relay is overloaded or
+     * throttling, as opposed to a problem with one recipient.
+     * 
+     * @param replyCode SMTP reply code
+     * @return true for 421, 451 and 452
+     */
+    public static boolean isOverloadReply(int replyCode) {
+        return replyCode == 421 || replyCode == 451 || replyCode == 452;
+    }
+    
+    /**
+     * Returns the current concurrency limit.
+     * 
+     * @return Number of messages allowed in flight
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+    
+    /**
+     * Returns the number of messages currently in flight.
+     * 
+     * @return In-flight message count
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+    
+    /**
+     * Changes the bounds while messages are in flight. The current limit is
+     * moved into the new bounds at once; within them it keeps adapting. A
+     * lowered limit lets the messages already in flight finish and admits
+     * no new ones until they are below it.
+     * 
+     * @param minLimit Lowest allowed concurrency (at least 1)
+     * @param maxLimit Highest allowed concurrency
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        limit = Math.min(this.maxLimit, Math.max(this.minLimit, limit));
+        healthySinceChange = 0;
+        saturated = false;
+        notifyAll();
+        logger.info("Concurrency bounds set to " + this.minLimit + "-" + this.maxLimit + ", limit now " + limit);
+    }
+    
+    public synchronized int getMinLimit() {
+        return minLimit;
+    }
+    
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+}
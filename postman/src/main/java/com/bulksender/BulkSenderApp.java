@@ -1,8 +1,28 @@
 package com.bulksender;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
 
 /**
  * Main entry point for the Gmail Bulk Sender Application.
@@ -15,14 +35,34 @@ public class BulkSenderApp {
     // Default file paths
     private static final String DEFAULT_CONFIG_PATH = "config.properties";
     private static final String DEFAULT_RECIPIENTS_PATH = "recipients.txt";
+    private static final String DEFAULT_OUTBOX_PATH = "outbox";
+    private static final String DEFAULT_SUPPRESSION_PATH = "suppression";
+    private static final String DEFAULT_SHARD_PATH = "shards";
+    private static final String DEFAULT_LEDGER_PATH = "sent";
     
     /**
      * Main method to run the bulk email sender application.
      * 
      * @param args Command-line arguments:
      *             --gui or -g: Launch GUI mode
+     *             --enqueue [recipients-file] [outbox-dir]: Queue a campaign and exit
+     *             --drain [config-file] [outbox-dir]: Run the outbox sender until stopped
+     *             --daemon [config-file] [port] [outbox-dir]: Stay resident and accept submissions over HTTP
+     *             --schedule [config-file] [recipients-file]: Deliver at the configured local time per recipient
+     *             --dry-run [config-file] [recipients-file]: Build and encode every message without sending
+     *             --worker [config-file] [recipients-file] [shard-dir] [range-size]: Send a campaign shared with other workers
+     *             --suppress-build list-file [suppression-dir]: Build the suppression index from a text list
+     *             --suppress address [suppression-dir]: Add one address to the suppression list
+     *             --probe [config-file] [samples]: Time connection setup to each relay and suggest limits
+     *             --compile source-file [target-file]: Compile a recipients file for memory-mapped loading
+     *             --outcomes store-dir [campaign] [reply-code] [recipients-file]: Report or export stored outcomes
+     *             --incremental campaign [config-file] [recipients-file] [ledger-dir]: Send only to addresses
+     *             the campaign has not been sent to yet
+     *             --control pid|host:port [setting=value ...] [pause|resume]: Show or change the limits of a
+     *             running sender
+     *             --help or -h: Print setup instructions
      *             [0] - Optional: path to config file (default: config.properties)
-     *             [1] - Optional: path to recipients file (default: recipients.txt)
+     *             [1] - Optional: path to recipients file (default: recipients.txt; .csv/.tsv for personalised mail)
      */
     public static void main(String[] args) {
         // Check for GUI mode
@@ -31,7 +71,80 @@ public class BulkSenderApp {
             return;
         }
         
-        printInstructions();
+        if (args.length > 0 && args[0].equals("--enqueue")) {
+            runEnqueue(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--drain")) {
+            runDrain(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            runDaemon(args);
+            return;
+        }
+        
+        if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h"))) {
+            printInstructions();
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--schedule")) {
+            runScheduled(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--dry-run")) {
+            runDryRun(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--worker")) {
+            runWorker(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--suppress-build")) {
+            runSuppressBuild(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--suppress")) {
+            runSuppress(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--probe")) {
+            runProbe(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--compile")) {
+            runCompile(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--outcomes")) {
+            runOutcomes(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--incremental")) {
+            runIncremental(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--control")) {
+            runControl(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("--cds-training")) {
+            runCdsTraining(args);
+            return;
+        }
         
         // Determine file paths from arguments or use defaults
         String configPath = args.length > 0 ? args[0] : DEFAULT_CONFIG_PATH;
@@ -42,6 +155,12 @@ public class BulkSenderApp {
             logger.info("Loading configuration from: " + configPath);
             EmailConfig config = EmailConfig.loadConfig(configPath);
             
+            // A CSV/TSV recipients file carries merge data for personalised messages
+            if (RecipientTable.isTableFile(recipientsPath)) {
+                runMerged(config, recipientsPath);
+                return;
+            }
+            
             // Step 2: Load recipients
             logger.info("Loading recipients from: " + recipientsPath);
             RecipientManager recipientManager = new RecipientManager();
@@ -64,12 +183,14 @@ public class BulkSenderApp {
             // Step 5: Send bulk emails
             logger.info("Starting bulk email send operation...");
             emailSender.sendBulkEmail(recipientManager, subject, body);
+            emailSender.close();
             
             logger.info("Application completed successfully.");
             
         } catch (IOException e) {
             logger.severe("File I/O error: " + e.getMessage());
             logger.severe("Please ensure the configuration and recipient files exist and are readable.");
+            printInstructions();
             System.exit(1);
         } catch (IllegalArgumentException e) {
             logger.severe("Configuration error: " + e.getMessage());
@@ -81,6 +202,666 @@ public class BulkSenderApp {
         }
     }
     
+    /**
+     * Queues the campaign for every recipient in the outbox and returns
+     * without sending anything. A separate --drain process delivers them.
+     * 
+     * @param args --enqueue [recipients-file] [outbox-dir]
+     */
+    private static void runEnqueue(String[] args) {
+        String recipientsPath = args.length > 1 ? args[1] : DEFAULT_RECIPIENTS_PATH;
+        String outboxPath = args.length > 2 ? args[2] : DEFAULT_OUTBOX_PATH;
+        
+        try (OutboxSpool spool = new OutboxSpool(outboxPath)) {
+            spool.openWriter();
+            Campaign campaign = spool.createCampaign("Test Email from Gmail Bulk Sender", buildEmailBody());
+            
+            long start = System.nanoTime();
+            long count = RecipientManager.streamRecipientsFromFile(recipientsPath,
+                    email -> spool.append(campaign.getId(), email));
+            spool.flush();
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            
+            logger.info("Queued " + count + " message(s) for campaign " + campaign.getId() +
+                        " in " + elapsedMillis + " ms (" + (count * 1000 / elapsedMillis) + " msg/s)");
+        } catch (IOException e) {
+            logger.severe("Outbox error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Sends a recurring campaign to the addresses in the recipients file that
+     * earlier runs of the campaign have not sent to, and adds those that are
+     * sent now to the campaign's ledger.
+     * 
+     * @param args --incremental campaign [config-file] [recipients-file] [ledger-dir]
+     */
+    private static void runIncremental(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --incremental campaign [config-file] [recipients-file] [ledger-dir]");
+            System.exit(1);
+        }
+        String campaign = args[1];
+        String configPath = args.length > 2 ? args[2] : DEFAULT_CONFIG_PATH;
+        String recipientsPath = args.length > 3 ? args[3] : DEFAULT_RECIPIENTS_PATH;
+        String ledgerPath = args.length > 4 ? args[4] : DEFAULT_LEDGER_PATH;
+        
+        if (RecipientTable.isTableFile(recipientsPath)) {
+            logger.severe("Incremental sending needs a plain text or compiled recipients file");
+            System.exit(1);
+        }
+        
+        try {
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            SentLedger ledger = new SentLedger(Paths.get(ledgerPath), campaign);
+            
+            // One streaming pass over the file, keeping only the addresses not in the ledger
+            long start = System.nanoTime();
+            RecipientManager newRecipients = new RecipientManager();
+            long total = RecipientManager.streamRecipientsFromFile(recipientsPath, email -> {
+                if (!ledger.contains(email)) {
+                    newRecipients.addRecipient(email);
+                }
+            });
+            logger.info(newRecipients.getRecipientCount() + " new recipient(s) of " + total + " found in " +
+                        (System.nanoTime() - start) / 1_000_000 + " ms");
+            
+            if (newRecipients.getRecipientCount() > 0) {
+                EmailSender emailSender = new EmailSender();
+                emailSender.initialize(config);
+                emailSender.setSentLedger(ledger);
+                emailSender.sendBulkEmail(newRecipients, "Test Email from Gmail Bulk Sender", buildEmailBody());
+                // Closing the sender finishes the messages in flight, so all of them are recorded
+                emailSender.close();
+            }
+            ledger.close();
+        } catch (IOException e) {
+            logger.severe("Incremental send error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Changes the limits of the senders in a running process over JMX and
+     * prints their state. Settings use the configuration file's keys:
+     * send.rate, min.concurrency, max.concurrency and domain.limit.{domain}
+     * (domain.limit.default for the default, an empty value to remove a limit).
+     * 
+     * @param args --control pid|host:port [setting=value ...] [pause|resume]
+     */
+    private static void runControl(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --control pid|host:port [send.rate=N] [min.concurrency=N] [max.concurrency=N]");
+            System.out.println("                 [domain.limit.DOMAIN=RATE/CONCURRENCY] [domain.limit.default=...] [pause|resume]");
+            System.exit(1);
+        }
+        
+        try (JMXConnector connector = SenderControl.connect(args[1])) {
+            MBeanServerConnection connection = connector.getMBeanServerConnection();
+            Set<ObjectName> names = SenderControl.findSenders(connection);
+            if (names.isEmpty()) {
+                throw new IOException("No sender is running in " + args[1]);
+            }
+            
+            for (ObjectName name : names) {
+                SenderControlMBean control = JMX.newMBeanProxy(connection, name, SenderControlMBean.class);
+                for (int i = 2; i < args.length; i++) {
+                    applyControl(control, args[i]);
+                }
+                System.out.println(name.getKeyProperty("name") + ": rate " +
+                                   (control.getSendRate() > 0 ? control.getSendRate() + "/s" : "unlimited") +
+                                   ", concurrency " + control.getConcurrencyLimit() + " of " +
+                                   control.getMinConcurrency() + "-" + control.getMaxConcurrency() +
+                                   ", in flight " + control.getInFlight() +
+                                   ", queued " + control.getQueuedBulk() + " bulk / " + control.getQueuedPriority() +
+                                   " priority, throttled " + control.getThrottled() +
+                                   (control.isPaused() ? ", paused" : ""));
+                System.out.println("  default domain limit: " +
+                                   (control.getDefaultDomainLimit() != null ? control.getDefaultDomainLimit() : "none"));
+                for (String limit : control.getDomainLimits()) {
+                    System.out.println("  domain limit: " + limit);
+                }
+                for (String stage : control.getPipelineStages()) {
+                    System.out.println("  pipeline " + stage);
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Control error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            logger.severe("Invalid setting: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void applyControl(SenderControlMBean control, String setting) throws InterruptedException {
+        if (setting.equals("pause")) {
+            control.pause();
+            return;
+        }
+        if (setting.equals("resume")) {
+            control.resume();
+            return;
+        }
+        int equals = setting.indexOf('=');
+        if (equals < 0) {
+            throw new IllegalArgumentException("Expected setting=value: " + setting);
+        }
+        String key = setting.substring(0, equals).trim();
+        String value = setting.substring(equals + 1).trim();
+        
+        if (key.equals("send.rate")) {
+            control.setSendRate(Integer.parseInt(value));
+        } else if (key.equals("min.concurrency")) {
+            control.setMinConcurrency(Integer.parseInt(value));
+        } else if (key.equals("max.concurrency")) {
+            control.setMaxConcurrency(Integer.parseInt(value));
+        } else if (key.equals("domain.limit.default")) {
+            control.setDefaultDomainLimit(value);
+        } else if (key.startsWith("domain.limit.") && key.length() > "domain.limit.".length()) {
+            control.setDomainLimit(key.substring("domain.limit.".length()), value);
+        } else {
+            throw new IllegalArgumentException("Unknown setting: " + key);
+        }
+    }
+    
+    /**
+     * Sends a campaign together with other worker processes (on this or other
+     * hosts) that use the same shard directory and recipients file.
+     * 
+     * @param args --worker [config-file] [recipients-file] [shard-dir] [range-size]
+     */
+    private static void runWorker(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        String recipientsPath = args.length > 2 ? args[2] : DEFAULT_RECIPIENTS_PATH;
+        String shardPath = args.length > 3 ? args[3] : DEFAULT_SHARD_PATH;
+        
+        try {
+            int rangeSize = args.length > 4 ? Integer.parseInt(args[4]) : ShardCoordinator.DEFAULT_RANGE_SIZE;
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            EmailSender emailSender = new EmailSender();
+            emailSender.initialize(config);
+            
+            String workerId = InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+            ShardCoordinator coordinator = new ShardCoordinator(Paths.get(shardPath), Paths.get(recipientsPath), workerId);
+            coordinator.prepare(rangeSize);
+            logger.info("Worker " + workerId + " joining campaign in: " + shardPath);
+            
+            ShardWorker worker = new ShardWorker(coordinator, emailSender,
+                    "Test Email from Gmail Bulk Sender", buildEmailBody());
+            Thread workerThread = new Thread(worker, "shard-worker");
+            
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                worker.stop();
+                try {
+                    workerThread.join();
+                    emailSender.close();
+                } catch (Exception e) {
+                    // Exiting anyway
+                }
+            }));
+            
+            workerThread.start();
+            workerThread.join();
+            emailSender.close();
+        } catch (IOException e) {
+            logger.severe("File I/O error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Builds the memory-mapped suppression index from a plain text list.
+     * 
+     * @param args --suppress-build list-file [suppression-dir]
+     */
+    private static void runSuppressBuild(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --suppress-build list-file [suppression-dir]");
+            System.exit(1);
+        }
+        String dir = args.length > 2 ? args[2] : DEFAULT_SUPPRESSION_PATH;
+        
+        try {
+            long start = System.nanoTime();
+            long count = SuppressionList.build(Paths.get(args[1]), Paths.get(dir));
+            logger.info("Built suppression index with " + count + " address(es) in " +
+                        (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            logger.severe("Suppression list error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Compiles a text or CSV recipients file into a binary list that later
+     * runs memory-map instead of parsing.
+     * 
+     * @param args --compile source-file [target-file]
+     */
+    private static void runCompile(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --compile source-file [target-file]");
+            System.exit(1);
+        }
+        Path source = Paths.get(args[1]);
+        Path target = args.length > 2 ? Paths.get(args[2]) : CompiledRecipients.defaultTarget(source);
+        
+        try {
+            long start = System.nanoTime();
+            int count = CompiledRecipients.compile(source, target);
+            long compiledMillis = (System.nanoTime() - start) / 1_000_000;
+            
+            start = System.nanoTime();
+            CompiledRecipients check = CompiledRecipients.open(target);
+            long openMicros = (System.nanoTime() - start) / 1_000;
+            logger.info("Compiled " + count + " recipient(s) into " + target + " (" + check.getFileBytes() / 1024 +
+                        " KB) in " + compiledMillis + " ms; it opens in " + openMicros + " us");
+        } catch (IOException e) {
+            logger.severe("Compile error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Reports on an outcome store. With only the store directory it lists the
+     * campaigns and their reply codes; with a campaign it writes the matching
+     * outcomes to standard output as CSV. Recipients are shown as address
+     * hashes unless the recipients file of the campaign is given.
+     * 
+     * @param args --outcomes store-dir [campaign|last|all] [reply-code|all] [recipients-file]
+     */
+    private static void runOutcomes(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --outcomes store-dir [campaign|last|all] [reply-code|all] [recipients-file]");
+            System.exit(1);
+        }
+        
+        try {
+            OutcomeStore.Reader store = new OutcomeStore.Reader(Paths.get(args[1]));
+            List<OutcomeStore.Reader.CampaignEntry> campaigns = store.getCampaigns();
+            if (args.length == 2) {
+                System.out.println(store.getRecordCount() + " outcome(s) in " + campaigns.size() + " campaign(s)");
+                for (OutcomeStore.Reader.CampaignEntry campaign : campaigns) {
+                    System.out.println("#" + campaign.getId() + "  " + campaign.getName() + "  " +
+                                       campaign.getTotal() + " recipient(s)  " +
+                                       store.countByReplyCode(campaign.getId()));
+                }
+                return;
+            }
+            
+            int campaign;
+            if (args[2].equals("all")) {
+                campaign = OutcomeStore.ANY;
+            } else if (args[2].equals("last")) {
+                if (campaigns.isEmpty()) {
+                    throw new IOException("No campaigns in " + args[1]);
+                }
+                campaign = campaigns.get(campaigns.size() - 1).getId();
+            } else {
+                campaign = Integer.parseInt(args[2].startsWith("#") ? args[2].substring(1) : args[2]);
+            }
+            int replyCode = args.length > 3 && !args[3].equals("all")
+                    ? Integer.parseInt(args[3]) : OutcomeStore.ANY;
+            
+            long start = System.nanoTime();
+            long[] hashes = new long[0];
+            String[] addresses = new String[0];
+            if (args.length > 4) {
+                // Only the matching hashes are resolved, kept sorted for binary search
+                long[][] matching = {new long[1024]};
+                int[] size = {0};
+                store.query(campaign, replyCode, outcome -> {
+                    if (size[0] == matching[0].length) {
+                        matching[0] = Arrays.copyOf(matching[0], size[0] * 2);
+                    }
+                    matching[0][size[0]++] = outcome.getRecipientHash();
+                });
+                hashes = Arrays.stream(matching[0], 0, size[0]).sorted().distinct().toArray();
+                addresses = new String[hashes.length];
+                long[] sorted = hashes;
+                String[] names = addresses;
+                RecipientManager.streamRecipientsFromFile(args[4], email -> {
+                    int index = Arrays.binarySearch(sorted, OutcomeStore.hashOf(email));
+                    if (index >= 0) {
+                        names[index] = email;
+                    }
+                });
+            }
+            
+            long[] resolvedHashes = hashes;
+            String[] resolved = addresses;
+            // Times are UTC; the formatted second is reused, since outcomes arrive many per second
+            DateTimeFormatter seconds = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+            long[] cachedSecond = {Long.MIN_VALUE};
+            String[] cachedTime = new String[1];
+            StringBuilder line = new StringBuilder(128);
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                                                                       1 << 16), false, "UTF-8");
+            out.println("campaign,time,status,reply_code,attempts,latency_ms,recipient");
+            long count = store.query(campaign, replyCode, outcome -> {
+                long millis = outcome.getTimestampMillis();
+                long second = Math.floorDiv(millis, 1000);
+                if (second != cachedSecond[0]) {
+                    cachedSecond[0] = second;
+                    cachedTime[0] = seconds.format(Instant.ofEpochSecond(second));
+                }
+                int fraction = Math.floorMod(millis, 1000);
+                int index = Arrays.binarySearch(resolvedHashes, outcome.getRecipientHash());
+                String address = index >= 0 ? resolved[index] : null;
+                
+                line.setLength(0);
+                line.append(outcome.getCampaign()).append(',').append(cachedTime[0]).append('.')
+                    .append((char) ('0' + fraction / 100)).append((char) ('0' + fraction / 10 % 10))
+                    .append((char) ('0' + fraction % 10)).append("Z,")
+                    .append(outcome.isSent() ? "sent" : "failed").append(',')
+                    .append(outcome.getReplyCode()).append(',').append(outcome.getAttempts()).append(',')
+                    .append(outcome.getLatencyMicros() / 1000).append(',');
+                if (address != null) {
+                    line.append(address);
+                } else {
+                    String hex = Long.toHexString(outcome.getRecipientHash());
+                    for (int i = hex.length(); i < 16; i++) {
+                        line.append('0');
+                    }
+                    line.append(hex);
+                }
+                out.println(line);
+            });
+            out.flush();
+            logger.info(count + " of " + store.getRecordCount() + " outcome(s) matched in " +
+                        (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (NumberFormatException e) {
+            logger.severe("Invalid campaign or reply code: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            logger.severe("Outcome store error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Adds an address to the suppression list. A running sender using the
+     * same directory picks it up within a few seconds.
+     * 
+     * @param args --suppress address [suppression-dir]
+     */
+    private static void runSuppress(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --suppress address [suppression-dir]");
+            System.exit(1);
+        }
+        String dir = args.length > 2 ? args[2] : DEFAULT_SUPPRESSION_PATH;
+        
+        try {
+            SuppressionList.append(Paths.get(dir), args[1]);
+            logger.info("Suppressed: " + args[1]);
+        } catch (IOException e) {
+            logger.severe("Suppression list error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Connects to each configured relay several times, timing connect,
+     * STARTTLS and AUTH, and prints the recommended concurrency and send rate.
+     * 
+     * @param args --probe [config-file] [samples]
+     */
+    private static void runProbe(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        
+        boolean failed = false;
+        try {
+            int samples = args.length > 2 ? Integer.parseInt(args[2]) : SmtpProbe.DEFAULT_SAMPLES;
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            for (String spec : config.getRelays()) {
+                String[] parts = SmtpRelay.parseSpec(spec, config.getSmtpPort());
+                try {
+                    SmtpProbe.Result result = new SmtpProbe(config, parts[0], Integer.parseInt(parts[1])).run(samples);
+                    System.out.print(result.format());
+                } catch (IOException e) {
+                    logger.severe("Probe of " + parts[0] + ":" + parts[1] + " failed: " + e.getMessage());
+                    failed = true;
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("File I/O error: " + e.getMessage());
+            failed = true;
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            failed = true;
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Runs the outbox sender until the process is stopped.
+     * 
+     * @param args --drain [config-file] [outbox-dir]
+     */
+    private static void runDrain(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        String outboxPath = args.length > 2 ? args[2] : DEFAULT_OUTBOX_PATH;
+        
+        try {
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            EmailSender emailSender = new EmailSender();
+            emailSender.initialize(config);
+            
+            OutboxSpool spool = new OutboxSpool(outboxPath);
+            logger.info("Outbox depth: " + spool.getDepth() + " message(s)");
+            
+            OutboxSender sender = new OutboxSender(spool, emailSender);
+            Thread senderThread = new Thread(sender, "outbox-sender");
+            
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                sender.stop();
+                try {
+                    senderThread.join();
+                    spool.close();
+                    emailSender.close();
+                } catch (Exception e) {
+                    // Exiting anyway
+                }
+            }));
+            
+            senderThread.start();
+            senderThread.join();
+        } catch (IOException e) {
+            logger.severe("File I/O error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Starts the resident daemon with its local HTTP submission API and
+     * keeps running until the process is stopped.
+     * 
+     * @param args --daemon [config-file] [port] [outbox-dir]
+     */
+    private static void runDaemon(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        String outboxPath = args.length > 3 ? args[3] : DEFAULT_OUTBOX_PATH;
+        
+        try {
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : BulkSenderDaemon.DEFAULT_PORT;
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            
+            BulkSenderDaemon daemon = new BulkSenderDaemon(config, port, outboxPath);
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+            daemon.start();
+        } catch (IOException e) {
+            logger.severe("File I/O error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Builds and encodes every message of a campaign through the memory
+     * transport without sending anything, and reports the throughput and
+     * how busy each pipeline stage was.
+     * 
+     * @param args --dry-run [config-file] [recipients-file]
+     */
+    private static void runDryRun(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        String recipientsPath = args.length > 2 ? args[2] : DEFAULT_RECIPIENTS_PATH;
+        
+        try {
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            config.setTransportType(EmailConfig.TRANSPORT_MEMORY);
+            // One console line per message would cost more than building the message
+            Logger.getLogger(EmailSender.class.getName()).setLevel(Level.WARNING);
+            
+            EmailSender emailSender = new EmailSender();
+            emailSender.initialize(config);
+            String subject = "Test Email from Gmail Bulk Sender";
+            
+            long start = System.nanoTime();
+            int sent;
+            if (RecipientTable.isTableFile(recipientsPath)) {
+                RecipientTable table = RecipientTable.load(recipientsPath);
+                start = System.nanoTime();
+                sent = emailSender.sendMergedBulkEmail(table, subject, buildEmailBody());
+            } else {
+                RecipientManager recipientManager = new RecipientManager();
+                recipientManager.loadRecipientsFromFile(recipientsPath);
+                start = System.nanoTime();
+                sent = emailSender.sendBatch(recipientManager.getRecipients(), subject, buildEmailBody());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            MemoryMailTransport memory = (MemoryMailTransport) emailSender.getTransport();
+            emailSender.close();
+            
+            logger.info(String.format("Dry run: %d message(s), %.1f MB encoded in %.2f s (%.0f messages/s, %d thread(s))",
+                                      sent, memory.getByteCount() / 1e6, seconds, sent / Math.max(seconds, 1e-9),
+                                      config.getMaxConcurrency()));
+            List<SendPipeline.StageLoad> loads = emailSender.getStageLoads();
+            for (SendPipeline.StageLoad load : loads) {
+                logger.info("Pipeline " + load);
+            }
+            if (!loads.isEmpty()) {
+                logger.info("Pipeline bottleneck: " + SendPipeline.StageLoad.bottleneck(loads).getStage().label());
+            }
+        } catch (IOException e) {
+            logger.severe("File I/O error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Schedules every recipient for delivery at the configured local time in
+     * their own time zone, then waits until all messages have been released.
+     * Each line of the recipients file is "email" or "email,Time/Zone";
+     * addresses without a zone use the system default zone.
+     * 
+     * @param args --schedule [config-file] [recipients-file]
+     */
+    private static void runScheduled(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        String recipientsPath = args.length > 2 ? args[2] : DEFAULT_RECIPIENTS_PATH;
+        
+        try {
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            EmailSender emailSender = new EmailSender();
+            emailSender.initialize(config);
+            
+            SendScheduler scheduler = new SendScheduler(emailSender, config.getSendWindow(),
+                    "Test Email from Gmail Bulk Sender", buildEmailBody());
+            scheduler.start();
+            
+            ZoneId defaultZone = ZoneId.systemDefault();
+            long count = RecipientManager.streamRecipientsFromFile(recipientsPath, line -> {
+                String[] parts = line.split("[,\\s]+", 2);
+                ZoneId zone = defaultZone;
+                if (parts.length > 1) {
+                    try {
+                        zone = ZoneId.of(parts[1].trim());
+                    } catch (DateTimeException e) {
+                        logger.warning("Unknown time zone for " + parts[0] + ": " + parts[1] + ", using " + defaultZone);
+                    }
+                }
+                scheduler.schedule(parts[0], zone);
+            });
+            
+            logger.info("Scheduled " + count + " message(s); " + scheduler.getPendingCount() +
+                        " waiting for their send window");
+            scheduler.awaitCompletion();
+            scheduler.stop();
+            emailSender.close();
+            
+            logger.info("Scheduled send completed. Success: " + scheduler.getSentCount() +
+                        ", Failures: " + scheduler.getFailedCount());
+        } catch (IOException e) {
+            logger.severe("File I/O error: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Configuration error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Exercises the CLI send path without contacting any server. Used by the
+     * Maven "cds" profile as the training run for the class-data-sharing archive.
+     * 
+     * @param args --cds-training [config-file] [recipients-file]
+     */
+    private static void runCdsTraining(String[] args) {
+        String configPath = args.length > 1 ? args[1] : DEFAULT_CONFIG_PATH;
+        String recipientsPath = args.length > 2 ? args[2] : DEFAULT_RECIPIENTS_PATH;
+        
+        try {
+            EmailConfig config = EmailConfig.loadConfig(configPath);
+            RecipientManager recipientManager = new RecipientManager();
+            recipientManager.loadRecipientsFromFile(recipientsPath);
+            recipientManager.addRecipient("training@example.com");
+            
+            EmailSender emailSender = new EmailSender();
+            emailSender.initialize(config);
+            
+            String body = buildEmailBody();
+            for (String recipient : recipientManager.getRecipients()) {
+                emailSender.buildMessage(recipient, "CDS training", body)
+                           .writeTo(OutputStream.nullOutputStream());
+            }
+            
+            // Load the SMTP provider classes that the first real connection needs
+            jakarta.mail.Session.getInstance(config.getProperties()).getTransport("smtp");
+            logger.info("CDS training run completed.");
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "CDS training run failed: " + e.getMessage(), e);
+            System.exit(1);
+        }
+    }
+    
     /**
      * Prints instructions for setting up and using the application.
      */
@@ -97,6 +878,8 @@ public class BulkSenderApp {
         System.out.println();
         System.out.println("  2. recipients.txt - Contains recipient email addresses");
         System.out.println("     Format: One email address per line");
+        System.out.println("     Or recipients.csv / .tsv with a header row (an 'email' column plus any");
+        System.out.println("     merge columns) for personalised mail using {{column}} placeholders");
         System.out.println();
         System.out.println("IMPORTANT SECURITY NOTES:");
         System.out.println("  - Use Gmail App Password, NOT your main Gmail password");
@@ -108,26 +891,59 @@ public class BulkSenderApp {
         System.out.println("USAGE:");
         System.out.println("  java -jar gmail-bulk-sender.jar [config-file] [recipients-file]");
         System.out.println("  Default: config.properties recipients.txt");
+        System.out.println("  java -jar gmail-bulk-sender.jar --enqueue [recipients-file] [outbox-dir]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --drain [config-file] [outbox-dir]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --daemon [config-file] [port] [outbox-dir]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --schedule [config-file] [recipients-file]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --dry-run [config-file] [recipients-file]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --worker [config-file] [recipients-file] [shard-dir] [range-size]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --suppress-build list-file [suppression-dir]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --suppress address [suppression-dir]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --probe [config-file] [samples]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --compile source-file [target-file]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --outcomes store-dir [campaign|last|all] [reply-code|all] [recipients-file]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --incremental campaign [config-file] [recipients-file] [ledger-dir]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --control pid|host:port [send.rate=N] [max.concurrency=N] [domain.limit.DOMAIN=RATE/CONC] [pause|resume]");
+        System.out.println("  java -jar gmail-bulk-sender.jar --gui");
         System.out.println();
         System.out.println("==========================================");
         System.out.println();
     }
     
     /**
-     * Launches the GUI version of the application.
+     * Sends a personalised campaign to every row of a CSV/TSV recipients file.
+     * The subject and body may use {{column}} placeholders.
+     * 
+     * @param config The loaded configuration
+     * @param recipientsPath Path to the CSV or TSV file
+     * @throws IOException If the recipients file cannot be read
      */
-    private static void launchGUI() {
-        try {
-            // Set system look and feel for better appearance
-            javax.swing.UIManager.setLookAndFeel(javax.swing.UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {
-            // Use default look and feel if system L&F fails
+    private static void runMerged(EmailConfig config, String recipientsPath) throws IOException {
+        logger.info("Loading recipients and merge data from: " + recipientsPath);
+        RecipientTable table = RecipientTable.load(recipientsPath);
+        
+        if (table.getRowCount() == 0) {
+            logger.severe("No recipients loaded. Exiting.");
+            return;
         }
         
-        javax.swing.SwingUtilities.invokeLater(() -> {
-            BulkSenderGUI gui = new BulkSenderGUI();
-            gui.setVisible(true);
-        });
+        logger.info("Initializing email sender...");
+        EmailSender emailSender = new EmailSender();
+        emailSender.initialize(config);
+        try {
+            emailSender.sendMergedBulkEmail(table, "Test Email from Gmail Bulk Sender", buildEmailBody());
+        } finally {
+            emailSender.close();
+        }
+        logger.info("Application completed successfully.");
+    }
+    
+    /**
+     * Launches the GUI version of the application.
+     */
+    private static void launchGUI() {
+        // All AWT/Swing setup lives in BulkSenderGUI so the CLI path never loads it
+        BulkSenderGUI.main(new String[0]);
     }
     
     /**
@@ -0,0 +1,419 @@
+package com.bulksender;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resident sender process with a local HTTP submission API.
+ * 
+ * Keeps one initialized EmailSender (and its warm SMTP connections) for the
+ * lifetime of the process. Campaigns are queued in the persistent outbox and
+ * drained by an {@link OutboxSender} through the bulk send lane; single
+ * messages go to the priority lane (see {@link SendLanes}), so they are
+ * not held up behind a large campaign.
+ * 
+ * Endpoints (bound to the loopback interface only):
+ *   POST /campaigns      subject, body, recipients (one per line) or recipientsFile
+ *   GET  /campaigns/{id} progress of one campaign
+ *   POST /messages       to, subject, body
+ *   POST /suppressions   address (added to the suppression list immediately)
+ *   GET  /status         overall counters
+ * 
+ * Request bodies are application/x-www-form-urlencoded; responses are JSON.
+ */
+public class BulkSenderDaemon {
+    private static final Logger logger = Logger.getLogger(BulkSenderDaemon.class.getName());
+    
+    public static final int DEFAULT_PORT = 8025;
+    
+    private final EmailConfig config;
+    private final int port;
+    private final String outboxPath;
+    
+    private EmailSender emailSender;
+    private OutboxSpool spool;
+    private OutboxSender outboxSender;
+    private Thread outboxThread;
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesFailed = new AtomicLong();
+    private final AtomicLong campaignMessagesQueued = new AtomicLong();
+    private long initialOutboxDepth;
+    private long startTime;
+    
+    /**
+     * Creates a daemon for the given configuration.
+     * 
+     * @param config SMTP configuration and credentials
+     * @param port Local port for the HTTP API
+     * @param outboxPath Directory of the persistent outbox
+     */
+    public BulkSenderDaemon(EmailConfig config, int port, String outboxPath) {
+        this.config = config;
+        this.port = port;
+        this.outboxPath = outboxPath;
+    }
+    
+    /**
+     * Initializes the sender, opens the outbox and starts the HTTP server
+     * and sender threads.
+     * 
+     * @throws IOException If the outbox or the HTTP port cannot be opened
+     */
+    public void start() throws IOException {
+        startTime = System.currentTimeMillis();
+        
+        emailSender = new EmailSender();
+        emailSender.initialize(config);
+        
+        spool = new OutboxSpool(outboxPath);
+        spool.openWriter();
+        initialOutboxDepth = spool.getDepth();
+        logger.info("Outbox depth at startup: " + initialOutboxDepth + " message(s)");
+        
+        outboxSender = new OutboxSender(spool, emailSender);
+        outboxThread = new Thread(outboxSender, "outbox-sender");
+        outboxThread.start();
+        
+        // Requests run on their own small pool so queries never share a thread with sending
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "daemon-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(httpExecutor);
+        server.createContext("/campaigns", guarded(this::handleCampaigns));
+        server.createContext("/messages", guarded(this::handleMessages));
+        server.createContext("/suppressions", guarded(this::handleSuppressions));
+        server.createContext("/status", guarded(this::handleStatus));
+        server.start();
+        
+        logger.info("Daemon listening on http://localhost:" + port);
+    }
+    
+    /**
+     * Stops accepting requests, lets the outbox sender finish the messages
+     * in flight, sends the queued single messages and closes the outbox
+     * and SMTP connections.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            httpExecutor.shutdown();
+        }
+        if (outboxSender != null) {
+            outboxSender.stop();
+        }
+        try {
+            if (outboxThread != null) {
+                outboxThread.join();
+            }
+            if (spool != null) {
+                spool.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warning("Error closing outbox: " + e.getMessage());
+        }
+        if (emailSender != null) {
+            emailSender.close();
+        }
+        logger.info("Daemon stopped.");
+    }
+    
+    private void handleCampaigns(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            
+            if (method.equals("GET") && path.startsWith("/campaigns/")) {
+                long campaignId;
+                try {
+                    campaignId = Long.parseLong(path.substring("/campaigns/".length()));
+                } catch (NumberFormatException e) {
+                    sendJson(exchange, 400, error("Invalid campaign id"));
+                    return;
+                }
+                CampaignProgress progress = outboxSender.getAllProgress().get(campaignId);
+                if (progress == null) {
+                    sendJson(exchange, 404, error("Unknown campaign: " + campaignId));
+                } else {
+                    sendJson(exchange, 200, progress.toJson());
+                }
+                return;
+            }
+            
+            if (!method.equals("POST") || !path.equals("/campaigns")) {
+                sendJson(exchange, 405, error("Use POST /campaigns or GET /campaigns/{id}"));
+                return;
+            }
+            
+            Map<String, String> params = readForm(exchange);
+            String subject = params.get("subject");
+            String body = params.get("body");
+            if (isBlank(subject) || isBlank(body)) {
+                sendJson(exchange, 400, error("subject and body are required"));
+                return;
+            }
+            
+            String recipientsFile = params.get("recipientsFile");
+            String recipients = params.get("recipients");
+            if (isBlank(recipientsFile) && isBlank(recipients)) {
+                sendJson(exchange, 400, error("recipients or recipientsFile is required"));
+                return;
+            }
+            if (!isBlank(recipientsFile) && !Files.isReadable(Paths.get(recipientsFile))) {
+                sendJson(exchange, 400, error("Recipient file not found: " + recipientsFile));
+                return;
+            }
+            
+            queueCampaign(exchange, subject, body, recipientsFile, recipients);
+        } catch (IOException e) {
+            sendJson(exchange, 500, error(e.getMessage()));
+        }
+    }
+    
+    /**
+     * Creates the campaign and appends its recipients to the spool.
+     * 
+     * Records that reach the spool are sent even if a later append fails,
+     * so a failed request still counts them and reports how many were
+     * queued rather than just an error.
+     */
+    private void queueCampaign(HttpExchange exchange, String subject, String body,
+                               String recipientsFile, String recipients) throws IOException {
+        Campaign campaign = spool.createCampaign(subject, body);
+        CampaignProgress progress = outboxSender.getProgress(campaign.getId());
+        AtomicLong count = new AtomicLong();
+        
+        try {
+            if (!isBlank(recipientsFile)) {
+                RecipientManager.streamRecipientsFromFile(recipientsFile, email -> {
+                    spool.append(campaign.getId(), email);
+                    count.incrementAndGet();
+                });
+            } else {
+                for (String line : recipients.split("\n")) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        spool.append(campaign.getId(), line);
+                        count.incrementAndGet();
+                    }
+                }
+            }
+            spool.flush();
+        } catch (IOException e) {
+            try {
+                spool.flush();
+            } catch (IOException flushError) {
+                logger.warning("Could not flush campaign " + campaign.getId() + ": " + flushError.getMessage());
+            }
+            progress.addQueued(count.get());
+            campaignMessagesQueued.addAndGet(count.get());
+            logger.log(Level.WARNING, "Campaign " + campaign.getId() + " stopped after " + count.get()
+                    + " recipient(s)", e);
+            sendJson(exchange, 500, "{\"error\":" + jsonString(e.getMessage())
+                    + ",\"campaignId\":" + campaign.getId() + ",\"queued\":" + count.get() + "}");
+            return;
+        }
+        progress.addQueued(count.get());
+        campaignMessagesQueued.addAndGet(count.get());
+        
+        logger.info("Queued campaign " + campaign.getId() + " for " + count.get() + " recipient(s)");
+        sendJson(exchange, 202, "{\"campaignId\":" + campaign.getId() + ",\"queued\":" + count.get() + "}");
+    }
+    
+    private void handleMessages(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendJson(exchange, 405, error("Use POST /messages"));
+            return;
+        }
+        
+        Map<String, String> params = readForm(exchange);
+        String to = params.get("to");
+        String subject = params.get("subject");
+        String body = params.get("body");
+        if (isBlank(to) || isBlank(subject) || isBlank(body)) {
+            sendJson(exchange, 400, error("to, subject and body are required"));
+            return;
+        }
+        
+        String recipient = to.trim();
+        try {
+            emailSender.submitEmail(SendLanes.Lane.PRIORITY, recipient, subject, body, error -> {
+                if (error == null) {
+                    messagesSent.incrementAndGet();
+                } else {
+                    messagesFailed.incrementAndGet();
+                }
+                emailSender.logResult(recipient, error);
+            });
+        } catch (InterruptedException e) {
+            // The priority lane never waits, so this only happens while the daemon is stopping
+            Thread.currentThread().interrupt();
+            sendJson(exchange, 503, error("Interrupted; message not queued"));
+            return;
+        } catch (IllegalStateException e) {
+            sendJson(exchange, 503, error("Shutting down"));
+            return;
+        }
+        int position = emailSender.getSendLanes().getQueuedCount(SendLanes.Lane.PRIORITY);
+        sendJson(exchange, 202, "{\"queued\":true,\"position\":" + position + "}");
+    }
+    
+    private void handleSuppressions(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendJson(exchange, 405, error("Use POST /suppressions"));
+            return;
+        }
+        
+        SuppressionList suppressionList = emailSender.getSuppressionList();
+        if (suppressionList == null) {
+            sendJson(exchange, 409, error("No suppression.dir configured"));
+            return;
+        }
+        
+        String address = readForm(exchange).get("address");
+        if (isBlank(address)) {
+            sendJson(exchange, 400, error("address is required"));
+            return;
+        }
+        
+        suppressionList.add(address);
+        sendJson(exchange, 200, "{\"suppressed\":" + suppressionList.size() + "}");
+    }
+    
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        // Only reads counters; never touches the outbox files or the sender threads
+        long outboxProcessed = outboxSender.getSentCount() + outboxSender.getFailedCount();
+        long outboxPending = Math.max(0, initialOutboxDepth + campaignMessagesQueued.get() - outboxProcessed);
+        
+        String json = "{\"uptimeSeconds\":" + (System.currentTimeMillis() - startTime) / 1000 +
+                      ",\"outboxPending\":" + outboxPending +
+                      ",\"outboxSent\":" + outboxSender.getSentCount() +
+                      ",\"outboxFailed\":" + outboxSender.getFailedCount() +
+                      ",\"messagesPending\":" + emailSender.getSendLanes().getQueuedCount(SendLanes.Lane.PRIORITY) +
+                      ",\"messagesSent\":" + messagesSent.get() +
+                      ",\"messagesFailed\":" + messagesFailed.get() +
+                      ",\"concurrencyLimit\":" + emailSender.getConcurrencyLimit().getLimit() +
+                      ",\"relays\":" + relaysJson() + "}";
+        sendJson(exchange, 200, json);
+    }
+    
+    private String relaysJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (SmtpRelay relay : emailSender.getRelays()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(relay.toJson());
+        }
+        return json.append(']').toString();
+    }
+    
+    /**
+     * Wraps a handler so that an unexpected exception is logged and answered
+     * with 500 instead of closing the connection without a response.
+     */
+    private static HttpHandler guarded(HttpHandler handler) {
+        return exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error handling " + exchange.getRequestMethod() + " " +
+                           exchange.getRequestURI() + ": " + e.getMessage(), e);
+                // Only possible if the handler failed before responding
+                if (exchange.getResponseCode() == -1) {
+                    sendJson(exchange, 500, error("Internal error: " + e));
+                }
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+    
+    private static Map<String, String> readForm(HttpExchange exchange) throws IOException {
+        String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Map<String, String> params = new HashMap<>();
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8),
+                       URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+    
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+    
+    private static String error(String message) {
+        return "{\"error\":" + jsonString(message) + "}";
+    }
+    
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        String text = value == null ? "" : value;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+    
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
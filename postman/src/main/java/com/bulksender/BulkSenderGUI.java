@@ -7,8 +7,6 @@ import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import jakarta.mail.MessagingException;
 
 /**
  * Graphical User Interface for the Gmail Bulk Sender Application.
@@ -37,17 +35,26 @@ public class BulkSenderGUI extends JFrame {
     private JButton sendButton;
     private JButton clearButton;
     private JButton testConnectionButton;
+    private JButton pauseButton;
+    private JButton cancelButton;
     
     // Status area
     private JTextArea statusArea;
     private JProgressBar progressBar;
     private JLabel statusLabel;
     
+    // Live charts of the running send
+    private DashboardPanel dashboardPanel;
+    
     // Application state
     private EmailConfig config;
     private RecipientManager recipientManager;
-    private EmailSender emailSender;
-    private boolean isSending = false;
+    private volatile EmailSender emailSender;
+    private volatile boolean isSending = false;
+    private volatile boolean cancelRequested = false;
+    // Where a cancelled send stopped, to offer continuing the same campaign from there
+    private int resumeFrom = 0;
+    private String resumeCampaign = null;
     
     /**
      * Creates and displays the GUI.
@@ -93,6 +100,10 @@ public class BulkSenderGUI extends JFrame {
         sendButton.setForeground(Color.WHITE);
         clearButton = new JButton("Clear All");
         testConnectionButton = new JButton("Test Connection");
+        pauseButton = new JButton("Pause");
+        pauseButton.setEnabled(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
         
         // Status area components
         statusArea = new JTextArea(10, 50);
@@ -103,6 +114,8 @@ public class BulkSenderGUI extends JFrame {
         progressBar.setStringPainted(true);
         progressBar.setString("Ready");
         statusLabel = new JLabel("Status: Ready");
+        
+        dashboardPanel = new DashboardPanel();
     }
     
     /**
@@ -151,7 +164,11 @@ public class BulkSenderGUI extends JFrame {
         JPanel statusPanel = createStatusPanel();
         mainPanel.add(statusPanel, BorderLayout.SOUTH);
         
-        add(mainPanel);
+        // Send controls and the live dashboard on separate tabs
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Send", mainPanel);
+        tabs.addTab("Dashboard", dashboardPanel);
+        add(tabs);
         
         // Set window size and center
         setSize(1200, 800);
@@ -268,6 +285,8 @@ public class BulkSenderGUI extends JFrame {
         panel.add(testConnectionButton);
         panel.add(Box.createHorizontalStrut(20));
         panel.add(sendButton);
+        panel.add(pauseButton);
+        panel.add(cancelButton);
         panel.add(clearButton);
         
         return panel;
@@ -313,6 +332,10 @@ public class BulkSenderGUI extends JFrame {
         // Send button
         sendButton.addActionListener(e -> sendBulkEmails());
         
+        // Pause/resume and cancel buttons
+        pauseButton.addActionListener(e -> togglePause());
+        cancelButton.addActionListener(e -> cancelSending());
+        
         // Clear button
         clearButton.addActionListener(e -> clearAll());
     }
@@ -417,30 +440,50 @@ public class BulkSenderGUI extends JFrame {
     }
     
     /**
-     * Tests the SMTP connection with current configuration.
+     * Tests the SMTP connection with current configuration by opening real
+     * connections, timing connect, STARTTLS and AUTH, and suggesting limits.
      */
     private void testConnection() {
         if (!validateConfiguration()) {
             return;
         }
         
-        try {
-            createEmailConfig();
-            emailSender = new EmailSender();
-            emailSender.initialize(config);
-            
-            logStatus("✓ Connection test successful! Configuration is valid.");
-            JOptionPane.showMessageDialog(this,
-                "Connection test successful!\nYour configuration is valid.",
-                "Success",
-                JOptionPane.INFORMATION_MESSAGE);
-        } catch (Exception e) {
-            logStatus("✗ Connection test failed: " + e.getMessage());
-            JOptionPane.showMessageDialog(this,
-                "Connection test failed:\n" + e.getMessage(),
-                "Error",
-                JOptionPane.ERROR_MESSAGE);
-        }
+        createEmailConfig();
+        testConnectionButton.setEnabled(false);
+        statusLabel.setText("Status: Testing connection...");
+        logStatus("Testing connection to " + config.getSmtpHost() + ":" + config.getSmtpPort() + "...");
+        
+        // Connecting can take seconds, so keep it off the event dispatch thread
+        EmailConfig probeConfig = config;
+        new Thread(() -> {
+            try {
+                SmtpProbe.Result result = new SmtpProbe(probeConfig, probeConfig.getSmtpHost(),
+                                                        probeConfig.getSmtpPort()).run(SmtpProbe.DEFAULT_SAMPLES);
+                for (String line : result.format().split("\\R")) {
+                    logStatus(line);
+                }
+                logStatus("✓ Connection test successful!");
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "Connection test successful!\n\n" +
+                    "Connection setup: " + String.format("%.0f ms", result.getSetupNanos() / 1e6) + "\n" +
+                    "Recommended parallel connections: " + result.getRecommendedConnections() + "\n" +
+                    "Recommended send rate: " + result.getRecommendedRate() + " messages/s\n\n" +
+                    "See the status log for the timing of each step.",
+                    "Success",
+                    JOptionPane.INFORMATION_MESSAGE));
+            } catch (IOException e) {
+                logStatus("✗ Connection test failed: " + e.getMessage());
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "Connection test failed:\n" + e.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE));
+            } finally {
+                SwingUtilities.invokeLater(() -> {
+                    testConnectionButton.setEnabled(!isSending);
+                    statusLabel.setText(isSending ? "Status: Sending emails..." : "Status: Ready");
+                });
+            }
+        }, "connection-test").start();
     }
     
     /**
@@ -478,11 +521,36 @@ public class BulkSenderGUI extends JFrame {
             return;
         }
         
+        // Offer to continue a cancelled send of the same campaign where it stopped
+        String campaign = recipientsArea.getText().trim() + "\u0000" + subjectField.getText().trim() +
+                          "\u0000" + bodyArea.getText().trim();
+        int from = 0;
+        if (resumeFrom > 0 && campaign.equals(resumeCampaign)) {
+            int choice = JOptionPane.showConfirmDialog(this,
+                "The last send of this campaign was cancelled after " + resumeFrom + " recipient(s).\n" +
+                "Continue from recipient " + (resumeFrom + 1) + "? Choose No to start over.",
+                "Continue Send",
+                JOptionPane.YES_NO_CANCEL_OPTION,
+                JOptionPane.QUESTION_MESSAGE);
+            if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) {
+                return;
+            }
+            from = choice == JOptionPane.YES_OPTION ? resumeFrom : 0;
+        }
+        final int startIndex = from;
+        resumeFrom = 0;
+        resumeCampaign = null;
+        
+        isSending = true;
+        cancelRequested = false;
+        sendButton.setEnabled(false);
+        testConnectionButton.setEnabled(false);
+        pauseButton.setText("Pause");
+        pauseButton.setEnabled(true);
+        cancelButton.setEnabled(true);
+        
         // Start sending in a separate thread to avoid blocking UI
         new Thread(() -> {
-            isSending = true;
-            sendButton.setEnabled(false);
-            testConnectionButton.setEnabled(false);
             progressBar.setIndeterminate(true);
             progressBar.setString("Sending...");
             statusLabel.setText("Status: Sending emails...");
@@ -492,6 +560,9 @@ public class BulkSenderGUI extends JFrame {
                 createEmailConfig();
                 emailSender = new EmailSender();
                 emailSender.initialize(config);
+                // With HTML mode off, the body is converted to plain text once for the whole send
+                emailSender.setHtmlEnabled(htmlModeBox.isSelected());
+                dashboardPanel.attach(emailSender);
                 
                 // Load recipients
                 loadRecipientsFromTextArea();
@@ -500,15 +571,20 @@ public class BulkSenderGUI extends JFrame {
                 String subject = subjectField.getText().trim();
                 String body = bodyArea.getText().trim();
                 
-                if (!htmlModeBox.isSelected()) {
-                    // Convert HTML to plain text if HTML mode is off
-                    body = body.replaceAll("<[^>]+>", "");
-                }
-                
-                logStatus("Starting bulk email send to " + recipientManager.getRecipientCount() + " recipient(s)...");
+                logStatus("Starting bulk email send to " + (recipientManager.getRecipientCount() - startIndex) +
+                          " recipient(s)...");
                 
                 // Custom sender with progress tracking
-                sendEmailsWithProgress(subject, body);
+                sendEmailsWithProgress(subject, body, startIndex);
+                
+                if (cancelRequested) {
+                    int checkpoint = emailSender.getCheckpoint();
+                    logStatus("Send cancelled. Every recipient before #" + (checkpoint + 1) + " was processed.");
+                    SwingUtilities.invokeLater(() -> {
+                        resumeFrom = checkpoint;
+                        resumeCampaign = campaign;
+                    });
+                }
                 
             } catch (Exception e) {
                 logStatus("✗ Fatal error: " + e.getMessage());
@@ -517,61 +593,156 @@ public class BulkSenderGUI extends JFrame {
                     "Error",
                     JOptionPane.ERROR_MESSAGE);
             } finally {
+                if (emailSender != null) {
+                    dashboardPanel.detach();
+                    emailSender.close();
+                }
                 isSending = false;
-                sendButton.setEnabled(true);
-                testConnectionButton.setEnabled(true);
-                progressBar.setIndeterminate(false);
-                progressBar.setValue(100);
-                progressBar.setString("Complete");
-                statusLabel.setText("Status: Ready");
+                SwingUtilities.invokeLater(() -> {
+                    sendButton.setEnabled(true);
+                    testConnectionButton.setEnabled(true);
+                    pauseButton.setText("Pause");
+                    pauseButton.setEnabled(false);
+                    cancelButton.setEnabled(false);
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue(100);
+                    progressBar.setString(cancelRequested ? "Cancelled" : "Complete");
+                    statusLabel.setText("Status: Ready");
+                });
             }
         }).start();
     }
     
     /**
-     * Sends emails with progress tracking.
+     * Sends emails through EmailSender and follows its event stream
+     * to update the progress bar and status log.
      */
-    private void sendEmailsWithProgress(String subject, String body) {
-        List<String> recipients = recipientManager.getRecipients();
-        int total = recipients.size();
-        AtomicInteger successCount = new AtomicInteger(0);
-        AtomicInteger failureCount = new AtomicInteger(0);
-        
-        for (int i = 0; i < recipients.size(); i++) {
-            String recipient = recipients.get(i);
-            try {
-                emailSender.sendPersonalizedEmail(recipient, subject, body);
-                successCount.incrementAndGet();
-                logStatus("✓ [" + (i + 1) + "/" + total + "] Sent to: " + recipient);
-            } catch (MessagingException e) {
-                failureCount.incrementAndGet();
-                logStatus("✗ [" + (i + 1) + "/" + total + "] Failed: " + recipient + " - " + e.getMessage());
-            } catch (Exception e) {
-                failureCount.incrementAndGet();
-                logStatus("✗ [" + (i + 1) + "/" + total + "] Failed: " + recipient + " - " + e.getMessage());
+    private void sendEmailsWithProgress(String subject, String body, int from) {
+        final int total = recipientManager.getRecipientCount() - from;
+        
+        SendEventListener progressListener = new SendEventListener() {
+            private int processed = 0;
+            
+            @Override
+            public void onEvent(SendEvent event) {
+                switch (event.getType()) {
+                    case MESSAGE_SENT:
+                        processed++;
+                        logStatus("✓ [" + processed + "/" + total + "] Sent to: " + event.getRecipient());
+                        updateProgress(processed, total);
+                        break;
+                    case MESSAGE_FAILED:
+                        processed++;
+                        logStatus("✗ [" + processed + "/" + total + "] Failed: " + event.getRecipient() +
+                                  " - " + event.getError());
+                        updateProgress(processed, total);
+                        break;
+                    case RUN_COMPLETED:
+                        showCompletion(event.getSuccessCount(), event.getTotal() - event.getSuccessCount());
+                        break;
+                    default:
+                        break;
+                }
             }
             
-            // Update progress
-            final int progress = (int) ((i + 1) * 100.0 / total);
-            SwingUtilities.invokeLater(() -> {
-                progressBar.setValue(progress);
-                progressBar.setString(progress + "%");
-            });
-        }
-        
-        final int finalSuccess = successCount.get();
-        final int finalFailure = failureCount.get();
+            @Override
+            public void onEventsLost(long count) {
+                processed += count;
+                logStatus("(" + count + " progress update(s) skipped)");
+            }
+        };
         
+        emailSender.addListener(progressListener);
+        emailSender.sendBulkEmail(recipientManager, subject, body, from);
+        emailSender.removeListener(progressListener);
+    }
+    
+    /**
+     * Pauses or resumes the running send. Pausing waits for the messages in
+     * flight, so it runs off the event dispatch thread.
+     */
+    private void togglePause() {
+        EmailSender sender = emailSender;
+        if (!isSending || sender == null) {
+            return;
+        }
+        pauseButton.setEnabled(false);
+        if (sender.isPaused()) {
+            sender.resume();
+            logStatus("Resumed.");
+            pauseButton.setText("Pause");
+            pauseButton.setEnabled(true);
+            statusLabel.setText("Status: Sending emails...");
+            return;
+        }
+        statusLabel.setText("Status: Pausing...");
+        new Thread(() -> {
+            try {
+                sender.pause();
+                logStatus("Paused. Every recipient before #" + (sender.getCheckpoint() + 1) +
+                          " was processed; connections are kept open.");
+                SwingUtilities.invokeLater(() -> {
+                    pauseButton.setText("Resume");
+                    statusLabel.setText("Status: Paused");
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                SwingUtilities.invokeLater(() -> pauseButton.setEnabled(isSending));
+            }
+        }, "send-pause").start();
+    }
+    
+    /**
+     * Cancels the running send after confirmation. Messages in flight finish;
+     * the position reached is kept so the send can be continued later.
+     */
+    private void cancelSending() {
+        EmailSender sender = emailSender;
+        if (!isSending || sender == null) {
+            return;
+        }
+        int confirm = JOptionPane.showConfirmDialog(this,
+            "Stop sending? Messages already on their way will finish, and you can continue\n" +
+            "from where it stopped by sending the same campaign again.",
+            "Confirm Cancel",
+            JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            return;
+        }
+        cancelRequested = true;
+        sender.cancel();
+        pauseButton.setEnabled(false);
+        cancelButton.setEnabled(false);
+        statusLabel.setText("Status: Cancelling...");
+        logStatus("Cancelling; waiting for messages in flight...");
+    }
+    
+    /**
+     * Updates the progress bar on the event dispatch thread.
+     */
+    private void updateProgress(int processed, int total) {
+        final int progress = (int) (processed * 100.0 / total);
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setValue(progress);
+            progressBar.setString(progress + "%");
+        });
+    }
+    
+    /**
+     * Logs the final counts and shows the completion dialog.
+     */
+    private void showCompletion(int successCount, int failureCount) {
         logStatus("========================================");
         logStatus("Bulk email operation completed!");
-        logStatus("Success: " + finalSuccess + " | Failures: " + finalFailure);
+        logStatus("Success: " + successCount + " | Failures: " + failureCount);
         logStatus("========================================");
         
         SwingUtilities.invokeLater(() -> {
             JOptionPane.showMessageDialog(this,
                 "Bulk email operation completed!\n\n" +
-                "Success: " + finalSuccess + "\n" +
-                "Failures: " + finalFailure,
+                "Success: " + successCount + "\n" +
+                "Failures: " + failureCount,
                 "Operation Complete",
                 JOptionPane.INFORMATION_MESSAGE);
         });
@@ -0,0 +1,91 @@
+package com.bulksender;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Holds the content of a single email campaign: an identifier, the subject
+ * line and the body. Campaigns are stored once and referenced by id, so
+ * queued messages do not have to repeat the content for every recipient.
+ */
+public class Campaign {
+    private final long id;
+    private final String subject;
+    private final String body;
+    
+    /**
+     * Creates a campaign with the given content.
+     * 
+     * @param id Unique campaign identifier
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     */
+    public Campaign(long id, String subject, String body) {
+        this.id = id;
+        this.subject = subject;
+        this.body = body;
+    }
+    
+    /**
+     * Writes the campaign content to a properties file.
+     * 
+     * @param path Path of the file to write
+     * @throws IOException If the file cannot be written
+     */
+    public void save(Path path) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("campaign.id", String.valueOf(id));
+        props.setProperty("campaign.subject", subject);
+        props.setProperty("campaign.body", body);
+        
+        try (FileOutputStream fos = new FileOutputStream(path.toFile())) {
+            props.store(fos, "Gmail Bulk Sender campaign");
+        }
+    }
+    
+    /**
+     * Reads campaign content previously written by {@link #save(Path)}.
+     * 
+     * @param path Path of the campaign file
+     * @return The loaded campaign
+     * @throws IOException If the file cannot be read
+     */
+    public static Campaign load(Path path) throws IOException {
+        Properties props = new Properties();
+        try (FileInputStream fis = new FileInputStream(path.toFile())) {
+            props.load(fis);
+        } catch (IllegalArgumentException e) {
+            // A malformed Unicode escape
+            throw new IOException("Damaged campaign file: " + path, e);
+        }
+        
+        String id = props.getProperty("campaign.id");
+        if (id == null) {
+            throw new IOException("Campaign file is missing campaign.id: " + path);
+        }
+        
+        try {
+            return new Campaign(Long.parseLong(id.trim()),
+                                props.getProperty("campaign.subject", ""),
+                                props.getProperty("campaign.body", ""));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid campaign.id in " + path + ": " + id, e);
+        }
+    }
+    
+    // Getters
+    public long getId() {
+        return id;
+    }
+    
+    public String getSubject() {
+        return subject;
+    }
+    
+    public String getBody() {
+        return body;
+    }
+}
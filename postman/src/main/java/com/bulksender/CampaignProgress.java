@@ -0,0 +1,75 @@
+package com.bulksender;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe counters describing how far a campaign has progressed.
+ * Reading the counters never blocks the threads that update them.
+ */
+public class CampaignProgress {
+    private final long campaignId;
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    
+    /**
+     * Creates empty counters for a campaign.
+     * 
+     * @param campaignId The campaign id
+     */
+    public CampaignProgress(long campaignId) {
+        this.campaignId = campaignId;
+    }
+    
+    public void addQueued(long count) {
+        queued.addAndGet(count);
+    }
+    
+    public void recordSent() {
+        sent.incrementAndGet();
+    }
+    
+    public void recordFailed() {
+        failed.incrementAndGet();
+    }
+    
+    // Getters
+    public long getCampaignId() {
+        return campaignId;
+    }
+    
+    public long getQueued() {
+        return queued.get();
+    }
+    
+    public long getSent() {
+        return sent.get();
+    }
+    
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    /**
+     * Returns the number of queued messages not yet sent or failed.
+     * Campaigns queued before a restart only count what this process has seen.
+     * 
+     * @return Remaining message count, never negative
+     */
+    public long getRemaining() {
+        return Math.max(0, queued.get() - sent.get() - failed.get());
+    }
+    
+    /**
+     * Formats the counters as a JSON object.
+     * 
+     * @return JSON representation
+     */
+    public String toJson() {
+        return "{\"campaignId\":" + campaignId +
+               ",\"queued\":" + getQueued() +
+               ",\"sent\":" + getSent() +
+               ",\"failed\":" + getFailed() +
+               ",\"remaining\":" + getRemaining() + "}";
+    }
+}
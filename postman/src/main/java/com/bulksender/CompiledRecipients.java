@@ -0,0 +1,331 @@
+package com.bulksender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.zip.CRC32C;
+
+/**
+ * A recipient list compiled into a binary file that is memory-mapped
+ * instead of parsed, for large lists that are sent to again and again.
+ * 
+ * File layout:
+ * - Header (32 bytes): magic, version, address count, data length and a
+ *   CRC-32C of everything after the header
+ * - Data: every address as UTF-8, back to back, padded to a multiple of 4
+ * - Index: one int per address, the offset in the data where it ends
+ * 
+ * Opening a list maps the file and checks the header and checksum; nothing
+ * is decoded until an address is read. Reading address i takes two index
+ * lookups, so access by index is O(1), and a range of addresses (one
+ * worker's share of a campaign) is just a pair of indexes. The mapping is
+ * read-only, shared with the page cache and with other processes mapping
+ * the same file, and takes no heap.
+ * 
+ * The magic number starts with a byte that is not valid at the start of
+ * UTF-8 text, so a compiled list can be told from a text list by its first
+ * four bytes whatever it is called.
+ */
+public final class CompiledRecipients {
+    /** Extension given to compiled lists by default. */
+    public static final String EXTENSION = ".rcp";
+    
+    // 0x89 "RCP"
+    private static final int MAGIC = 0x89524350;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int indexOffset;
+    
+    private CompiledRecipients(MappedByteBuffer buffer, int count, int indexOffset) {
+        this.buffer = buffer;
+        this.count = count;
+        this.indexOffset = indexOffset;
+    }
+    
+    /**
+     * Returns whether a file is a compiled recipient list.
+     * 
+     * @param path Path to the recipients file
+     * @return true if the file starts with the compiled list's magic number
+     * @throws IOException If the file cannot be read
+     */
+    public static boolean isCompiled(Path path) throws IOException {
+        if (!Files.isRegularFile(path) || Files.size(path) < HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            return channel.read(magic, 0) == Integer.BYTES && magic.getInt(0) == MAGIC;
+        }
+    }
+    
+    /**
+     * Returns the default path of the compiled form of a recipients file:
+     * the same name with its extension replaced by {@link #EXTENSION}.
+     * 
+     * @param source Path to the text or CSV recipients file
+     * @return Path for the compiled list
+     */
+    public static Path defaultTarget(Path source) {
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return source.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+    
+    /**
+     * Compiles a recipients file. A .csv or .tsv file contributes its address
+     * column; any other file is read one address per line with the rules of
+     * {@link RecipientManager}. The list is written to a temporary file and
+     * moved over the target, so a list that is open elsewhere is never seen
+     * half written.
+     * 
+     * @param source Text, CSV or TSV recipients file
+     * @param target Path to write the compiled list to
+     * @return Number of addresses compiled
+     * @throws IOException If the source cannot be read or the list written
+     */
+    public static int compile(Path source, Path target) throws IOException {
+        List<String> addresses;
+        if (RecipientTable.isTableFile(source.toString())) {
+            RecipientTable table = RecipientTable.load(source.toString());
+            addresses = new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    return table.getEmail(index);
+                }
+                
+                @Override
+                public int size() {
+                    return table.getRowCount();
+                }
+            };
+        } else {
+            RecipientManager manager = new RecipientManager();
+            manager.loadRecipientsFromFile(source.toString());
+            addresses = manager.getRecipients();
+        }
+        
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            write(addresses, temp);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return addresses.size();
+    }
+    
+    private static void write(List<String> addresses, Path path) throws IOException {
+        int[] ends = new int[addresses.size()];
+        CRC32C crc = new CRC32C();
+        ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            
+            long dataLength = 0;
+            for (int i = 0; i < ends.length; i++) {
+                byte[] utf8 = addresses.get(i).getBytes(StandardCharsets.UTF_8);
+                dataLength += utf8.length;
+                if (HEADER_SIZE + dataLength + 4L * (ends.length + 1) > Integer.MAX_VALUE) {
+                    throw new IOException("Recipient list is too large to compile (2 GB limit)");
+                }
+                ends[i] = (int) dataLength;
+                for (int written = 0; written < utf8.length; ) {
+                    if (!out.hasRemaining()) {
+                        flush(out, channel, crc);
+                    }
+                    int chunk = Math.min(out.remaining(), utf8.length - written);
+                    out.put(utf8, written, chunk);
+                    written += chunk;
+                }
+            }
+            int padding = (int) (-dataLength & 3);
+            for (int i = 0; i < padding; i++) {
+                if (!out.hasRemaining()) {
+                    flush(out, channel, crc);
+                }
+                out.put((byte) 0);
+            }
+            for (int end : ends) {
+                if (out.remaining() < Integer.BYTES) {
+                    flush(out, channel, crc);
+                }
+                out.putInt(end);
+            }
+            flush(out, channel, crc);
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(ends.length).putLong(dataLength)
+                  .putInt((int) crc.getValue()).putInt(0).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+    
+    private static void flush(ByteBuffer out, FileChannel channel, CRC32C crc) throws IOException {
+        out.flip();
+        crc.update(out.duplicate());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+    
+    /**
+     * Maps a compiled recipient list, checking its header and checksum.
+     * 
+     * @param path Path to the compiled list
+     * @return The mapped list
+     * @throws IOException If the file cannot be read, is not a compiled list,
+     *                     or is truncated or corrupt
+     */
+    public static CompiledRecipients open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Compiled recipient list too large: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a compiled recipient list: " + path);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported compiled recipient list version " + buffer.getInt(4) + ": " + path);
+            }
+            long count = buffer.getLong(8);
+            long dataLength = buffer.getLong(16);
+            long indexOffset = HEADER_SIZE + dataLength + (-dataLength & 3);
+            if (count < 0 || dataLength < 0 || indexOffset + count * Integer.BYTES != size) {
+                throw new IOException("Compiled recipient list is truncated: " + path);
+            }
+            
+            CRC32C crc = new CRC32C();
+            ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_SIZE);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(24)) {
+                throw new IOException("Compiled recipient list is corrupt (checksum mismatch): " + path);
+            }
+            return new CompiledRecipients(buffer, (int) count, (int) indexOffset);
+        }
+    }
+    
+    /**
+     * Returns the number of addresses.
+     * 
+     * @return Address count
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Returns the address at an index.
+     * 
+     * @param index Index of the address
+     * @return The address
+     * @throws IndexOutOfBoundsException If the index is out of range
+     */
+    public String get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + count);
+        }
+        return decode(index);
+    }
+    
+    /**
+     * Returns a read-only list of every address.
+     * 
+     * @return A view over the mapped file
+     */
+    public List<String> view() {
+        return new View(0, count);
+    }
+    
+    /**
+     * Returns a read-only list of a range of the addresses, for example one
+     * worker's share of a campaign.
+     * 
+     * @param from Index of the first address, inclusive
+     * @param to Index after the last address
+     * @return A view over the mapped file
+     * @throws IndexOutOfBoundsException If the range is out of bounds
+     */
+    public List<String> slice(int from, int to) {
+        if (from < 0 || to > count || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + ", size " + count);
+        }
+        return new View(from, to);
+    }
+    
+    /**
+     * Returns the size of the mapped file.
+     * 
+     * @return Size in bytes
+     */
+    public long getFileBytes() {
+        return buffer.capacity();
+    }
+    
+    private String decode(int index) {
+        // Absolute reads only, so any number of threads can decode at once
+        int start = index == 0 ? 0 : buffer.getInt(indexOffset + 4 * (index - 1));
+        int end = buffer.getInt(indexOffset + 4 * index);
+        byte[] utf8 = new byte[end - start];
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = buffer.get(HEADER_SIZE + start + i);
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * A fixed range of the mapped addresses.
+     */
+    private final class View extends AbstractList<String> implements RandomAccess {
+        private final int from;
+        private final int to;
+        
+        View(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + (to - from));
+            }
+            return decode(from + index);
+        }
+        
+        @Override
+        public int size() {
+            return to - from;
+        }
+        
+        @Override
+        public List<String> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || toIndex > to - from || fromIndex > toIndex) {
+                throw new IndexOutOfBoundsException("Range " + fromIndex + "-" + toIndex + ", size " + (to - from));
+            }
+            return new View(from + fromIndex, from + toIndex);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.bulksender;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.border.TitledBorder;
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Live charts of a running send: messages per second, send latency, messages
+ * in flight, queue depth and errors by SMTP reply code.
+ * 
+ * Nothing here runs per message. A {@link SendMetrics} listener counts
+ * outcomes on its own thread, and a Swing timer samples it and the sender's
+ * gauges once per refresh interval on the event dispatch thread, appending
+ * one point to each rolling chart.
+ */
+public class DashboardPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+    private static final int REFRESH_MILLIS = 1000;
+    // Points kept per chart: two minutes at one sample per second
+    private static final int HISTORY = 120;
+    // Samples the latency percentiles are computed over, so a quiet second does not leave a gap
+    private static final int LATENCY_WINDOW = 5;
+    // Samples the reply code breakdown is computed over
+    private static final int ERROR_WINDOW = 60;
+    
+    private final Chart throughputChart = new Chart("Messages / s", "sent", new Color(52, 168, 83),
+                                                    "failed", new Color(234, 67, 53));
+    private final Chart latencyChart = new Chart("Send latency (ms)", "p50", new Color(66, 133, 244),
+                                                 "p99", new Color(251, 188, 5));
+    private final Chart connectionsChart = new Chart("Messages in flight", "in flight", new Color(66, 133, 244),
+                                                     "limit", new Color(150, 150, 150));
+    private final Chart queueChart = new Chart("Waiting messages", "queued", new Color(66, 133, 244),
+                                               "set aside", new Color(251, 188, 5));
+    private final Chart errorChart = new Chart("Error rate (%)", "errors", new Color(234, 67, 53), null, null);
+    private final JLabel summaryLabel = new JLabel(" ");
+    private final JTextArea replyCodeArea = new JTextArea(6, 24);
+    private final Timer timer;
+    
+    // Cumulative snapshots of the last ERROR_WINDOW samples, newest last; touched only on the EDT
+    private final ArrayDeque<SendMetrics.Snapshot> history = new ArrayDeque<>();
+    private volatile Source source;
+    
+    /**
+     * Creates the panel and starts its refresh timer.
+     */
+    public DashboardPanel() {
+        super(new BorderLayout(10, 10));
+        setBorder(new EmptyBorder(10, 10, 10, 10));
+        
+        JPanel charts = new JPanel(new GridLayout(2, 3, 10, 10));
+        charts.add(throughputChart);
+        charts.add(latencyChart);
+        charts.add(errorChart);
+        charts.add(connectionsChart);
+        charts.add(queueChart);
+        
+        replyCodeArea.setEditable(false);
+        replyCodeArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JPanel codes = new JPanel(new BorderLayout());
+        codes.setBorder(new TitledBorder("Errors by reply code (last minute)"));
+        codes.add(new JScrollPane(replyCodeArea), BorderLayout.CENTER);
+        charts.add(codes);
+        
+        summaryLabel.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        add(summaryLabel, BorderLayout.NORTH);
+        add(charts, BorderLayout.CENTER);
+        
+        timer = new Timer(REFRESH_MILLIS, e -> sample());
+        timer.start();
+    }
+    
+    /**
+     * Starts charting a sender's messages. May be called from any thread;
+     * the charts of the previous send are cleared.
+     * 
+     * @param sender An initialized sender
+     */
+    public void attach(EmailSender sender) {
+        detach();
+        SendMetrics metrics = new SendMetrics();
+        sender.addListener(metrics);
+        source = new Source(sender, metrics);
+        SwingUtilities.invokeLater(() -> {
+            history.clear();
+            for (Chart chart : charts()) {
+                chart.clear();
+            }
+            replyCodeArea.setText("");
+        });
+    }
+    
+    /**
+     * Stops charting, keeping the charts of the finished send on screen.
+     * Call before closing the sender.
+     */
+    public void detach() {
+        Source current = source;
+        if (current != null) {
+            current.sender.removeListener(current.metrics);
+            source = null;
+            // One last sample so the final counts show
+            SwingUtilities.invokeLater(() -> sample(current));
+        }
+    }
+    
+    private List<Chart> charts() {
+        List<Chart> charts = new ArrayList<>();
+        charts.add(throughputChart);
+        charts.add(latencyChart);
+        charts.add(errorChart);
+        charts.add(connectionsChart);
+        charts.add(queueChart);
+        return charts;
+    }
+    
+    private void sample() {
+        Source current = source;
+        if (current != null) {
+            sample(current);
+        }
+    }
+    
+    /**
+     * Takes one sample and appends it to the charts. Runs on the EDT.
+     */
+    private void sample(Source current) {
+        SendMetrics.Snapshot now = current.metrics.snapshot();
+        SendMetrics.Snapshot previous = history.peekLast();
+        history.addLast(now);
+        if (history.size() > ERROR_WINDOW) {
+            history.removeFirst();
+        }
+        if (previous == null) {
+            return;
+        }
+        
+        SendMetrics.Snapshot interval = now.since(previous);
+        double seconds = interval.getNanos() / 1e9;
+        double sentRate = interval.getSent() / seconds;
+        double failedRate = interval.getFailed() / seconds;
+        throughputChart.add(sentRate, failedRate);
+        
+        SendMetrics.Snapshot recent = now.since(sampleBack(LATENCY_WINDOW));
+        double p50 = recent.getLatencyMillis(50);
+        double p99 = recent.getLatencyMillis(99);
+        latencyChart.add(p50, p99);
+        
+        long outcomes = interval.getSent() + interval.getFailed();
+        double errorRate = outcomes == 0 ? 0 : 100.0 * interval.getFailed() / outcomes;
+        errorChart.add(errorRate, 0);
+        
+        AdaptiveConcurrencyLimit limit = current.sender.getConcurrencyLimit();
+        int inFlight = limit.getInFlight();
+        connectionsChart.add(inFlight, limit.getLimit());
+        
+        SendLanes lanes = current.sender.getSendLanes();
+        int queued = 0;
+        int setAside = 0;
+        if (lanes != null) {
+            queued = lanes.getQueuedCount(SendLanes.Lane.BULK) + lanes.getQueuedCount(SendLanes.Lane.PRIORITY);
+            setAside = lanes.getSetAsideCount();
+        }
+        queueChart.add(queued, setAside);
+        
+        summaryLabel.setText(String.format(
+                "Sent %,d  Failed %,d  |  %.1f msg/s  p50 %.1f ms  p99 %.1f ms  |  in flight %d/%d  queued %d  set aside %d",
+                now.getSent(), now.getFailed(), sentRate + failedRate, p50, p99, inFlight, limit.getLimit(),
+                queued, setAside));
+        replyCodeArea.setText(describeFailures(now.since(history.peekFirst())));
+    }
+    
+    /**
+     * Returns the snapshot taken the given number of samples ago, or the oldest one kept.
+     */
+    private SendMetrics.Snapshot sampleBack(int samples) {
+        int skip = Math.max(0, history.size() - 1 - samples);
+        for (SendMetrics.Snapshot snapshot : history) {
+            if (skip-- == 0) {
+                return snapshot;
+            }
+        }
+        return history.peekFirst();
+    }
+    
+    private static String describeFailures(SendMetrics.Snapshot window) {
+        long outcomes = window.getSent() + window.getFailed();
+        StringBuilder text = new StringBuilder();
+        for (int code = 0; code < 600; code++) {
+            long count = window.getFailures(code);
+            if (count > 0) {
+                text.append(String.format("%-9s %,8d  %5.1f%%%n", code == 0 ? "no reply" : String.valueOf(code),
+                                          count, 100.0 * count / outcomes));
+            }
+        }
+        if (window.getLost() > 0) {
+            text.append(String.format("(%,d outcome(s) not counted)%n", window.getLost()));
+        }
+        return text.length() == 0 ? "No errors" : text.toString();
+    }
+    
+    /**
+     * The sender being charted and the metrics listener registered with it.
+     */
+    private static final class Source {
+        final EmailSender sender;
+        final SendMetrics metrics;
+        
+        Source(EmailSender sender, SendMetrics metrics) {
+            this.sender = sender;
+            this.metrics = metrics;
+        }
+    }
+    
+    /**
+     * A rolling line chart of up to two series with a shared, automatically
+     * scaled vertical axis. Points are kept in ring buffers of HISTORY values.
+     */
+    private static final class Chart extends JComponent {
+        private static final long serialVersionUID = 1L;
+        
+        private final String title;
+        private final String[] names;
+        private final Color[] colors;
+        private final double[][] values;
+        private int count = 0;
+        private int head = 0;
+        
+        Chart(String title, String firstName, Color firstColor, String secondName, Color secondColor) {
+            this.title = title;
+            int series = secondName == null ? 1 : 2;
+            this.names = series == 1 ? new String[] {firstName} : new String[] {firstName, secondName};
+            this.colors = series == 1 ? new Color[] {firstColor} : new Color[] {firstColor, secondColor};
+            this.values = new double[series][HISTORY];
+            setPreferredSize(new Dimension(320, 180));
+            setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200)));
+            setBackground(Color.WHITE);
+            setOpaque(true);
+        }
+        
+        void add(double first, double second) {
+            values[0][head] = first;
+            if (values.length > 1) {
+                values[1][head] = second;
+            }
+            head = (head + 1) % HISTORY;
+            count = Math.min(count + 1, HISTORY);
+            repaint();
+        }
+        
+        void clear() {
+            count = 0;
+            head = 0;
+            repaint();
+        }
+        
+        private double value(int series, int index) {
+            return values[series][(head - count + index + HISTORY) % HISTORY];
+        }
+        
+        @Override
+        protected void paintComponent(Graphics graphics) {
+            Graphics2D g = (Graphics2D) graphics.create();
+            try {
+                g.setColor(getBackground());
+                g.fillRect(0, 0, getWidth(), getHeight());
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                FontMetrics fm = g.getFontMetrics();
+                
+                double max = 0;
+                for (int s = 0; s < values.length; s++) {
+                    for (int i = 0; i < count; i++) {
+                        max = Math.max(max, value(s, i));
+                    }
+                }
+                max = niceCeiling(max);
+                
+                int left = 8 + fm.stringWidth(formatValue(max));
+                int top = 8 + fm.getHeight();
+                int right = getWidth() - 8;
+                int bottom = getHeight() - 8 - fm.getHeight();
+                int width = Math.max(1, right - left);
+                int height = Math.max(1, bottom - top);
+                
+                g.setColor(Color.DARK_GRAY);
+                g.drawString(title, left, 4 + fm.getAscent());
+                int legendX = right;
+                for (int s = values.length - 1; s >= 0; s--) {
+                    String label = names[s] + (count > 0 ? " " + formatValue(value(s, count - 1)) : "");
+                    legendX -= fm.stringWidth(label);
+                    g.setColor(colors[s]);
+                    g.drawString(label, legendX, 4 + fm.getAscent());
+                    legendX -= 12;
+                }
+                
+                g.setColor(new Color(230, 230, 230));
+                for (int line = 0; line <= 4; line++) {
+                    int y = bottom - height * line / 4;
+                    g.drawLine(left, y, right, y);
+                }
+                g.setColor(Color.GRAY);
+                g.drawString(formatValue(max), 4, top + fm.getAscent() / 2);
+                g.drawString("0", left - 4 - fm.stringWidth("0"), bottom + fm.getAscent() / 2);
+                g.drawString((HISTORY * REFRESH_MILLIS / 1000) + " s", left, bottom + 4 + fm.getAscent());
+                
+                g.setStroke(new BasicStroke(1.5f));
+                int[] xs = new int[count];
+                int[] ys = new int[count];
+                for (int s = 0; s < values.length; s++) {
+                    for (int i = 0; i < count; i++) {
+                        // The newest point is at the right edge
+                        xs[i] = right - (count - 1 - i) * width / (HISTORY - 1);
+                        ys[i] = bottom - (int) Math.round(value(s, i) / max * height);
+                    }
+                    g.setColor(colors[s]);
+                    g.drawPolyline(xs, ys, count);
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+        
+        /**
+         * Rounds an axis maximum up to 1, 2 or 5 times a power of ten.
+         */
+        private static double niceCeiling(double value) {
+            if (value <= 0) {
+                return 1;
+            }
+            double magnitude = Math.pow(10, Math.floor(Math.log10(value)));
+            double scaled = value / magnitude;
+            double nice = scaled <= 1 ? 1 : scaled <= 2 ? 2 : scaled <= 5 ? 5 : 10;
+            return nice * magnitude;
+        }
+        
+        private static String formatValue(double value) {
+            return value >= 100 || value == Math.rint(value)
+                    ? String.format("%,.0f", value) : String.format("%.1f", value);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.bulksender;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-recipient-domain send rate and concurrency limits.
+ * 
+ * Each domain has its own bucket, created on first use, in a
+ * ConcurrentHashMap: lookups take no lock and creating a bucket only locks
+ * one bin of the map, so sender threads working on different domains never
+ * contend. A bucket is two atomic counters updated by compare-and-set:
+ * the number of messages in flight, and the rate limiter's theoretical
+ * arrival time (the GCRA form of a token bucket), which admits a burst of
+ * up to one second's worth of messages and then the configured rate.
+ * SendLanes claims a domain only after it has let go of its dispatch lock,
+ * so admission to one domain never waits for a decision about another.
+ * 
+ * Domains without their own limit use the default limit, if one is set.
+ * A limit is written as "rate" or "rate/concurrency", such as "20/10" for
+ * 20 messages per second with at most 10 in flight; 0 means unlimited.
+ * Limits can be changed while messages are being sent; the buckets of the
+ * affected domains switch to the new limit at once and keep their counts.
+ */
+public class DomainThrottle {
+    private volatile Limit defaultLimit;
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    
+    /**
+     * Creates a throttle from limit specifications.
+     * 
+     * @param defaultSpec Limit for every other domain, or null for none
+     * @param domainSpecs Domain name to its limit
+     * @throws IllegalArgumentException If a specification is invalid
+     */
+    public DomainThrottle(String defaultSpec, Map<String, String> domainSpecs) {
+        this.defaultLimit = defaultSpec != null ? parseLimit(defaultSpec) : null;
+        for (Map.Entry<String, String> entry : domainSpecs.entrySet()) {
+            limits.put(entry.getKey().trim().toLowerCase(Locale.ROOT), parseLimit(entry.getValue()));
+        }
+    }
+    
+    /**
+     * Parses a limit specification.
+     * 
+     * @param spec "rate" or "rate/concurrency"
+     * @return The parsed limit
+     * @throws IllegalArgumentException If the specification is invalid
+     */
+    static Limit parseLimit(String spec) {
+        String[] parts = spec.trim().split("/", -1);
+        if (parts.length > 2) {
+            throw new IllegalArgumentException("Invalid domain limit: " + spec);
+        }
+        try {
+            double rate = Double.parseDouble(parts[0].trim());
+            int concurrency = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+            if (rate < 0 || concurrency < 0 || Double.isNaN(rate) || Double.isInfinite(rate)) {
+                throw new IllegalArgumentException("Invalid domain limit: " + spec);
+            }
+            return new Limit(rate, concurrency);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid domain limit: " + spec);
+        }
+    }
+    
+    /**
+     * Sets or removes the limit of one domain.
+     * 
+     * @param domain The recipient domain
+     * @param spec "rate" or "rate/concurrency", or null or empty to use the default limit again
+     * @throws IllegalArgumentException If the specification is invalid
+     */
+    public void setLimit(String domain, String spec) {
+        String key = domain.trim().toLowerCase(Locale.ROOT);
+        if (spec == null || spec.trim().isEmpty()) {
+            limits.remove(key);
+        } else {
+            limits.put(key, parseLimit(spec));
+        }
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.update(limits.getOrDefault(key, defaultLimit));
+        }
+    }
+    
+    /**
+     * Sets or removes the limit of every domain without a limit of its own.
+     * 
+     * @param spec "rate" or "rate/concurrency", or null or empty for none
+     * @throws IllegalArgumentException If the specification is invalid
+     */
+    public void setDefaultLimit(String spec) {
+        defaultLimit = spec == null || spec.trim().isEmpty() ? null : parseLimit(spec);
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            if (!limits.containsKey(entry.getKey())) {
+                entry.getValue().update(defaultLimit);
+            }
+        }
+    }
+    
+    /**
+     * Returns the default limit.
+     * 
+     * @return "rate/concurrency", or null if there is none
+     */
+    public String getDefaultLimit() {
+        Limit limit = defaultLimit;
+        return limit != null ? limit.toString() : null;
+    }
+    
+    /**
+     * Returns the limits of individual domains.
+     * 
+     * @return Domain name to "rate/concurrency", sorted by domain
+     */
+    public Map<String, String> getLimits() {
+        Map<String, String> specs = new TreeMap<>();
+        for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+            specs.put(entry.getKey(), entry.getValue().toString());
+        }
+        return specs;
+    }
+    
+    /**
+     * Returns the domain part of an address in lower case.
+     * 
+     * @param email The address
+     * @return The domain, or null if the address has none
+     */
+    public static String domainOf(String email) {
+        int at = email.lastIndexOf('@');
+        if (at < 0 || at == email.length() - 1) {
+            return null;
+        }
+        return email.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Claims a send to a domain if its limits allow one now.
+     * 
+     * @param domain The recipient domain, or null
+     * @param now The current System.nanoTime()
+     * @return 0 if the send was claimed, otherwise roughly how many
+     *         nanoseconds to wait before trying again
+     */
+    public long tryAcquire(String domain, long now) {
+        Bucket bucket = bucketFor(domain);
+        return bucket == null ? 0 : bucket.tryAcquire(now);
+    }
+    
+    /**
+     * Claims a send to a domain whether or not its limits allow it, for
+     * messages that must not wait. The send still counts against the limits.
+     * 
+     * @param domain The recipient domain, or null
+     * @param now The current System.nanoTime()
+     */
+    public void acquire(String domain, long now) {
+        Bucket bucket = bucketFor(domain);
+        if (bucket != null) {
+            bucket.acquire(now);
+        }
+    }
+    
+    /**
+     * Ends a send claimed with tryAcquire() or acquire().
+     * 
+     * @param domain The recipient domain, or null
+     */
+    public void release(String domain) {
+        Bucket bucket = domain == null ? null : buckets.get(domain);
+        if (bucket != null) {
+            // A bucket created by a limit set mid-send did not count the sends already running
+            bucket.inFlight.getAndUpdate(n -> n > 0 ? n - 1 : 0);
+        }
+    }
+    
+    /**
+     * Returns the number of messages in flight to a domain.
+     * 
+     * @param domain The recipient domain
+     * @return In-flight count, 0 for a domain not seen yet
+     */
+    public int getInFlight(String domain) {
+        Bucket bucket = buckets.get(domain);
+        return bucket == null ? 0 : bucket.inFlight.get();
+    }
+    
+    private Bucket bucketFor(String domain) {
+        if (domain == null) {
+            return null;
+        }
+        Bucket bucket = buckets.get(domain);
+        if (bucket != null) {
+            return bucket;
+        }
+        Limit limit = limits.getOrDefault(domain, defaultLimit);
+        if (limit == null || (limit.ratePerSecond == 0 && limit.concurrency == 0)) {
+            return null;
+        }
+        return buckets.computeIfAbsent(domain, d -> new Bucket(limit));
+    }
+    
+    /**
+     * A domain's rate and concurrency limit.
+     */
+    static final class Limit {
+        final double ratePerSecond;
+        final int concurrency;
+        
+        Limit(double ratePerSecond, int concurrency) {
+            this.ratePerSecond = ratePerSecond;
+            this.concurrency = concurrency;
+        }
+        
+        @Override
+        public String toString() {
+            String rate = ratePerSecond == Math.rint(ratePerSecond)
+                    ? Long.toString((long) ratePerSecond) : Double.toString(ratePerSecond);
+            return rate + "/" + concurrency;
+        }
+    }
+    
+    /**
+     * One domain's counters.
+     */
+    private static final class Bucket {
+        // How soon to look again at a domain that is at its concurrency limit
+        private static final long CONCURRENCY_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+        
+        // Changed together by update(); a send racing with it may see a mix for one message
+        private volatile long intervalNanos;
+        private volatile long burstNanos;
+        private volatile int maxInFlight;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // When the bucket would be full again at the configured rate
+        private final AtomicLong theoreticalArrival;
+        
+        Bucket(Limit limit) {
+            update(limit);
+            this.theoreticalArrival = new AtomicLong(System.nanoTime());
+        }
+        
+        /**
+         * Switches to another limit; null means unlimited.
+         */
+        void update(Limit limit) {
+            double rate = limit != null ? limit.ratePerSecond : 0;
+            long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            // One second's worth of messages may go out back to back
+            burstNanos = interval * (Math.max(1, (long) rate) - 1);
+            intervalNanos = interval;
+            maxInFlight = limit != null ? limit.concurrency : 0;
+        }
+        
+        long tryAcquire(long now) {
+            int maxInFlight = this.maxInFlight;
+            long intervalNanos = this.intervalNanos;
+            long burstNanos = this.burstNanos;
+            if (maxInFlight > 0) {
+                int current;
+                do {
+                    current = inFlight.get();
+                    if (current >= maxInFlight) {
+                        return CONCURRENCY_RETRY_NANOS;
+                    }
+                } while (!inFlight.compareAndSet(current, current + 1));
+            } else {
+                inFlight.incrementAndGet();
+            }
+            
+            if (intervalNanos > 0) {
+                long arrival;
+                long next;
+                do {
+                    arrival = theoreticalArrival.get();
+                    next = Math.max(arrival - now, 0) + now;
+                    if (next - now > burstNanos) {
+                        inFlight.decrementAndGet();
+                        return next - now - burstNanos;
+                    }
+                } while (!theoreticalArrival.compareAndSet(arrival, next + intervalNanos));
+            }
+            return 0;
+        }
+        
+        void acquire(long now) {
+            long intervalNanos = this.intervalNanos;
+            inFlight.incrementAndGet();
+            if (intervalNanos > 0) {
+                theoreticalArrival.getAndUpdate(arrival -> Math.max(arrival - now, 0) + now + intervalNanos);
+            }
+        }
+    }
+}
@@ -2,6 +2,14 @@ package com.bulksender;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -13,12 +21,55 @@ import java.util.logging.Logger;
 public class EmailConfig {
     private static final Logger logger = Logger.getLogger(EmailConfig.class.getName());
     
+    // Values of the transport property
+    public static final String TRANSPORT_SMTP = "smtp";
+    public static final String TRANSPORT_MEMORY = "memory";
+    public static final String TRANSPORT_FILE = "file";
+    
+    private static final String DOMAIN_LIMIT_PREFIX = "domain.limit.";
+    
     // Default Gmail SMTP settings
     private String smtpHost = "smtp.gmail.com";
     private int smtpPort = 587;
     private String senderEmail;
     private String senderPassword; // Should be Gmail App Password, not main password
     private boolean enableTLS = true;
+    private List<String> relays = new ArrayList<>(); // host[:port][*weight]; empty = smtpHost:smtpPort
+    private int sendRate = 0; // Messages per second, 0 = unlimited
+    private int maxConcurrency = AdaptiveConcurrencyLimit.DEFAULT_MAX_LIMIT; // Upper bound for parallel sends
+    
+    // Priority lane: dispatch weight against the bulk lane and share of capacity kept free for it
+    private int priorityWeight = SendLanes.DEFAULT_PRIORITY_WEIGHT;
+    private double priorityReserve = SendLanes.DEFAULT_PRIORITY_RESERVE;
+    
+    // Per-recipient-domain limits as "rate[/concurrency]"; none when empty
+    private String defaultDomainLimit;
+    private Map<String, String> domainLimits = new LinkedHashMap<>();
+    
+    // Scheduled delivery in the recipient's local time
+    private LocalTime scheduleLocalTime = LocalTime.of(9, 0);
+    private LocalTime scheduleWindowStart = LocalTime.of(8, 0);
+    private LocalTime scheduleWindowEnd = LocalTime.of(20, 0);
+    
+    // Asynchronous per-message outcome log (disabled when no file is set)
+    private String outcomeLogFile;
+    private int outcomeLogQueueSize = OutcomeLog.DEFAULT_QUEUE_SIZE;
+    private OutcomeLog.OverflowPolicy outcomeLogOverflow = OutcomeLog.OverflowPolicy.DROP;
+    
+    // Directory of the suppression list (disabled when not set)
+    private String suppressionDir;
+    private String outcomeStoreDir;
+    
+    // Where messages are delivered: SMTP relays, counted in memory (dry run) or dropped as files
+    private String transportType = TRANSPORT_SMTP;
+    private String fileDropDir = "pickup";
+    private int fileDropSyncBatch = FileDropMailTransport.DEFAULT_SYNC_BATCH;
+    
+    // Send pipeline: threads of the validate, render and encode stages and the queue in front of each
+    private int validateThreads = 1;
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
+    private int encodeThreads = Runtime.getRuntime().availableProcessors();
+    private int pipelineQueueSize = SendPipeline.DEFAULT_QUEUE_SIZE;
     
     /**
      * Default constructor with default Gmail SMTP settings.
@@ -46,6 +97,25 @@ public class EmailConfig {
      * - smtp.host (optional, defaults to smtp.gmail.com)
      * - smtp.port (optional, defaults to 587)
      * - smtp.tls.enable (optional, defaults to true)
+     * - smtp.relays (optional, comma-separated host[:port][*weight] list that replaces smtp.host/smtp.port)
+     * - send.rate (optional, messages per second, defaults to 0 = unlimited)
+     * - send.concurrency.max (optional, upper bound for adaptive parallel sends, defaults to 16)
+     * - priority.weight (optional, priority messages sent per bulk message when both wait, defaults to 4)
+     * - priority.reserve (optional, share of concurrency and send rate kept for priority messages,
+     *   0 to 0.9, defaults to 0.2)
+     * - domain.limit.default (optional, messages per second and concurrency per recipient domain,
+     *   as rate[/concurrency], such as 10/4; unlimited when not set)
+     * - domain.limit.{domain} (optional, the same for one domain, such as domain.limit.gmail.com=20/10)
+     * - schedule.local.time (optional, recipient local delivery time, defaults to 09:00)
+     * - schedule.window.start / schedule.window.end (optional, allowed hours, defaults to 08:00-20:00)
+     * - outcome.log.file (optional, JSON lines file for per-message outcomes)
+     * - outcome.log.queue.size (optional, defaults to 65536)
+     * - outcome.log.overflow (optional, drop, drop-oldest or block, defaults to drop)
+     * - suppression.dir (optional, directory of the suppression list checked before every send)
+     * - outcome.store.dir (optional, directory of the queryable per-message outcome store)
+     * - transport (optional, smtp, memory or file, defaults to smtp)
+     * - transport.file.dir (optional, pickup directory for the file transport, defaults to pickup)
+     * - transport.file.sync.batch (optional, files written per sync by the file transport, defaults to 64)
      * 
      * @param path Path to the configuration file
      * @return EmailConfig instance with loaded values
@@ -88,15 +158,191 @@ public class EmailConfig {
             }
         }
         
+        String relayList = props.getProperty("smtp.relays");
+        if (relayList != null && !relayList.trim().isEmpty()) {
+            for (String spec : relayList.split(",")) {
+                if (spec.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    SmtpRelay.parseSpec(spec, config.smtpPort);
+                    config.relays.add(spec.trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid smtp.relays entry: " + spec.trim());
+                }
+            }
+        }
+        
         String tls = props.getProperty("smtp.tls.enable");
         if (tls != null) {
             config.enableTLS = Boolean.parseBoolean(tls.trim());
         }
         
+        String rate = props.getProperty("send.rate");
+        if (rate != null && !rate.trim().isEmpty()) {
+            try {
+                config.sendRate = Math.max(0, Integer.parseInt(rate.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid send.rate value, using default: unlimited");
+            }
+        }
+        
+        String concurrency = props.getProperty("send.concurrency.max");
+        if (concurrency != null && !concurrency.trim().isEmpty()) {
+            try {
+                config.maxConcurrency = Math.max(1, Integer.parseInt(concurrency.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid send.concurrency.max value, using default: " +
+                               AdaptiveConcurrencyLimit.DEFAULT_MAX_LIMIT);
+            }
+        }
+        
+        String weight = props.getProperty("priority.weight");
+        if (weight != null && !weight.trim().isEmpty()) {
+            try {
+                config.priorityWeight = Math.max(1, Integer.parseInt(weight.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid priority.weight value, using default: " + SendLanes.DEFAULT_PRIORITY_WEIGHT);
+            }
+        }
+        
+        String reserve = props.getProperty("priority.reserve");
+        if (reserve != null && !reserve.trim().isEmpty()) {
+            try {
+                config.priorityReserve = Math.min(0.9, Math.max(0, Double.parseDouble(reserve.trim())));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid priority.reserve value, using default: " + SendLanes.DEFAULT_PRIORITY_RESERVE);
+            }
+        }
+        
+        config.scheduleLocalTime = parseTime(props, "schedule.local.time", config.scheduleLocalTime);
+        config.scheduleWindowStart = parseTime(props, "schedule.window.start", config.scheduleWindowStart);
+        config.scheduleWindowEnd = parseTime(props, "schedule.window.end", config.scheduleWindowEnd);
+        
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith(DOMAIN_LIMIT_PREFIX)) {
+                continue;
+            }
+            String domain = key.substring(DOMAIN_LIMIT_PREFIX.length()).trim().toLowerCase(Locale.ROOT);
+            String spec = props.getProperty(key).trim();
+            if (domain.isEmpty() || spec.isEmpty()) {
+                continue;
+            }
+            try {
+                DomainThrottle.parseLimit(spec);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid " + key + " value: " + spec);
+            }
+            if (domain.equals("default")) {
+                config.defaultDomainLimit = spec;
+            } else {
+                config.domainLimits.put(domain, spec);
+            }
+        }
+        
+        String outcomeLog = props.getProperty("outcome.log.file");
+        if (outcomeLog != null && !outcomeLog.trim().isEmpty()) {
+            config.outcomeLogFile = outcomeLog.trim();
+        }
+        
+        String queueSize = props.getProperty("outcome.log.queue.size");
+        if (queueSize != null && !queueSize.trim().isEmpty()) {
+            try {
+                config.outcomeLogQueueSize = Math.max(1, Integer.parseInt(queueSize.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid outcome.log.queue.size value, using default: " + OutcomeLog.DEFAULT_QUEUE_SIZE);
+            }
+        }
+        
+        String overflow = props.getProperty("outcome.log.overflow");
+        if (overflow != null && !overflow.trim().isEmpty()) {
+            try {
+                config.outcomeLogOverflow = OutcomeLog.OverflowPolicy.parse(overflow);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Invalid outcome.log.overflow value, using default: drop");
+            }
+        }
+        
+        String suppression = props.getProperty("suppression.dir");
+        if (suppression != null && !suppression.trim().isEmpty()) {
+            config.suppressionDir = suppression.trim();
+        }
+        
+        String outcomeStore = props.getProperty("outcome.store.dir");
+        if (outcomeStore != null && !outcomeStore.trim().isEmpty()) {
+            config.outcomeStoreDir = outcomeStore.trim();
+        }
+        
+        String transport = props.getProperty("transport");
+        if (transport != null && !transport.trim().isEmpty()) {
+            config.setTransportType(transport.trim());
+        }
+        
+        String dropDir = props.getProperty("transport.file.dir");
+        if (dropDir != null && !dropDir.trim().isEmpty()) {
+            config.fileDropDir = dropDir.trim();
+        }
+        
+        String syncBatch = props.getProperty("transport.file.sync.batch");
+        if (syncBatch != null && !syncBatch.trim().isEmpty()) {
+            try {
+                config.fileDropSyncBatch = Math.max(1, Integer.parseInt(syncBatch.trim()));
+            } catch (NumberFormatException e) {
+                logger.warning("Invalid transport.file.sync.batch value, using default: " +
+                               FileDropMailTransport.DEFAULT_SYNC_BATCH);
+            }
+        }
+        
+        config.validateThreads = parseCount(props, "pipeline.validate.threads", config.validateThreads);
+        config.renderThreads = parseCount(props, "pipeline.render.threads", config.renderThreads);
+        config.encodeThreads = parseCount(props, "pipeline.encode.threads", config.encodeThreads);
+        config.pipelineQueueSize = parseCount(props, "pipeline.queue.size", config.pipelineQueueSize);
+        
         logger.info("Configuration loaded successfully from: " + path);
         return config;
     }
     
+    /**
+     * Parses an optional positive count property, keeping the default if it is missing or invalid.
+     */
+    private static int parseCount(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid " + key + " value, using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Parses an optional HH:mm time property, keeping the default if it is missing or invalid.
+     */
+    private static LocalTime parseTime(Properties props, String key, LocalTime defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return LocalTime.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            logger.warning("Invalid " + key + " value, using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Returns the delivery window used for scheduled sends.
+     * 
+     * @return SendWindow built from the schedule.* settings
+     */
+    public SendWindow getSendWindow() {
+        return new SendWindow(scheduleLocalTime, scheduleWindowStart, scheduleWindowEnd);
+    }
+    
     /**
      * Returns a configured Properties object suitable for use with JavaMail Session.
      * Configures STARTTLS on port 587 for secure email transmission.
@@ -104,9 +350,21 @@ public class EmailConfig {
      * @return Properties object configured for Gmail SMTP
      */
     public Properties getProperties() {
+        return getProperties(smtpHost, smtpPort);
+    }
+    
+    /**
+     * Returns Session properties for a specific relay, with the same
+     * authentication, TLS and timeout settings as the default relay.
+     * 
+     * @param host SMTP host of the relay
+     * @param port SMTP port of the relay
+     * @return Properties object configured for the relay
+     */
+    public Properties getProperties(String host, int port) {
         Properties props = new Properties();
-        props.put("mail.smtp.host", smtpHost);
-        props.put("mail.smtp.port", String.valueOf(smtpPort));
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.port", String.valueOf(port));
         props.put("mail.smtp.auth", "true");
         
         if (enableTLS) {
@@ -143,6 +401,101 @@ public class EmailConfig {
         return enableTLS;
     }
     
+    /**
+     * Returns the relays to route through, as host:port*weight specifications.
+     * Without smtp.relays this is the single relay smtp.host:smtp.port.
+     * 
+     * @return Relay specifications
+     */
+    public List<String> getRelays() {
+        if (relays.isEmpty()) {
+            return Collections.singletonList(smtpHost + ":" + smtpPort);
+        }
+        return Collections.unmodifiableList(relays);
+    }
+    
+    public int getSendRate() {
+        return sendRate;
+    }
+    
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+    
+    public int getPriorityWeight() {
+        return priorityWeight;
+    }
+    
+    public double getPriorityReserve() {
+        return priorityReserve;
+    }
+    
+    /**
+     * Returns the limit for recipient domains without one of their own.
+     * 
+     * @return "rate[/concurrency]", or null for unlimited
+     */
+    public String getDefaultDomainLimit() {
+        return defaultDomainLimit;
+    }
+    
+    /**
+     * Returns the limits configured for individual recipient domains.
+     * 
+     * @return Lower-case domain to "rate[/concurrency]"
+     */
+    public Map<String, String> getDomainLimits() {
+        return Collections.unmodifiableMap(domainLimits);
+    }
+    
+    public String getOutcomeLogFile() {
+        return outcomeLogFile;
+    }
+    
+    public int getOutcomeLogQueueSize() {
+        return outcomeLogQueueSize;
+    }
+    
+    public OutcomeLog.OverflowPolicy getOutcomeLogOverflow() {
+        return outcomeLogOverflow;
+    }
+    
+    public String getSuppressionDir() {
+        return suppressionDir;
+    }
+    
+    public String getOutcomeStoreDir() {
+        return outcomeStoreDir;
+    }
+    
+    public String getTransportType() {
+        return transportType;
+    }
+    
+    public String getFileDropDir() {
+        return fileDropDir;
+    }
+    
+    public int getFileDropSyncBatch() {
+        return fileDropSyncBatch;
+    }
+    
+    public int getValidateThreads() {
+        return validateThreads;
+    }
+    
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+    
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+    
+    public int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+    
     // Setters
     public void setSmtpHost(String smtpHost) {
         this.smtpHost = smtpHost;
@@ -160,9 +513,31 @@ public class EmailConfig {
         this.senderPassword = senderPassword;
     }
     
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+    
     public void setEnableTLS(boolean enableTLS) {
         this.enableTLS = enableTLS;
     }
+    
+    public void setSendRate(int sendRate) {
+        this.sendRate = sendRate;
+    }
+    
+    /**
+     * Selects the transport: smtp, memory (dry run) or file.
+     * 
+     * @param transportType The transport name, case-insensitive
+     * @throws IllegalArgumentException If the name is not one of the three
+     */
+    public void setTransportType(String transportType) {
+        String type = transportType.toLowerCase(Locale.ROOT);
+        if (!type.equals(TRANSPORT_SMTP) && !type.equals(TRANSPORT_MEMORY) && !type.equals(TRANSPORT_FILE)) {
+            throw new IllegalArgumentException("Unknown transport: " + transportType + " (use smtp, memory or file)");
+        }
+        this.transportType = type;
+    }
 }
 
 
@@ -5,11 +5,25 @@ import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.PasswordAuthentication;
 import jakarta.mail.Session;
-import jakarta.mail.Transport;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.ObjectName;
 
 /**
  * Handles the actual session management and email transmission.
@@ -19,8 +33,31 @@ import java.util.logging.Logger;
 public class EmailSender {
     private static final Logger logger = Logger.getLogger(EmailSender.class.getName());
     
+    // How often idle connections are sent NOOP while paused; servers drop them after a minute or more
+    private static final long KEEPALIVE_SECONDS = 20;
+    
     private Session mailSession;
     private EmailConfig config;
+    private MailTransport transport;
+    private final SendEventRing events = new SendEventRing();
+    private OutcomeLog outcomeLog;
+    // Written from the sending threads
+    private volatile OutcomeStore outcomeStore;
+    // Ledger of a recurring campaign, written from the sending threads
+    private volatile SentLedger sentLedger;
+    private SuppressionList suppressionList;
+    private AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(1, 1);
+    private SendLanes lanes;
+    private SendPipeline pipeline;
+    private DomainThrottle domainThrottle;
+    // Name of this sender's management bean, null while not registered
+    private ObjectName controlName;
+    private boolean htmlEnabled = true;
+    // Prepared body of the campaign being sent; rebuilt only when the body changes
+    private volatile MessageBody preparedBody;
+    // The batch being sent, or the last one
+    private volatile Batch batch;
+    private ScheduledExecutorService keepAliveTimer;
     
     /**
      * Default constructor.
@@ -49,9 +86,81 @@ public class EmailSender {
         };
         
         this.mailSession = Session.getInstance(config.getProperties(), authenticator);
+        
+        closeLanes();
+        if (transport != null) {
+            transport.close();
+        }
+        this.concurrencyLimit = new AdaptiveConcurrencyLimit(1, config.getMaxConcurrency());
+        this.transport = createTransport(config, authenticator);
+        if (!transport.isRemote()) {
+            // No server to overload: run at the configured maximum from the start
+            this.concurrencyLimit = new AdaptiveConcurrencyLimit(config.getMaxConcurrency(),
+                                                                 config.getMaxConcurrency());
+        }
+        // Always present, so that domain limits can be added while sending
+        this.domainThrottle = new DomainThrottle(config.getDefaultDomainLimit(), config.getDomainLimits());
+        this.lanes = new SendLanes(concurrencyLimit, domainThrottle, concurrencyLimit.getMaxLimit(),
+                                   config.getPriorityWeight(), config.getPriorityReserve(), config.getSendRate());
+        this.pipeline = new SendPipeline(lanes, concurrencyLimit, config.getValidateThreads(),
+                                         config.getRenderThreads(), config.getEncodeThreads(),
+                                         config.getPipelineQueueSize());
+        
+        if (outcomeLog != null) {
+            outcomeLog.close();
+            outcomeLog = null;
+        }
+        if (config.getOutcomeLogFile() != null) {
+            try {
+                outcomeLog = new OutcomeLog(config.getOutcomeLogFile(), config.getOutcomeLogQueueSize(),
+                                            config.getOutcomeLogOverflow());
+            } catch (IOException e) {
+                logger.warning("Cannot open outcome log, logging outcomes to the console instead: " + e.getMessage());
+            }
+        }
+        
+        closeOutcomeStore();
+        if (config.getOutcomeStoreDir() != null) {
+            try {
+                outcomeStore = new OutcomeStore(Paths.get(config.getOutcomeStoreDir()));
+            } catch (IOException e) {
+                logger.warning("Cannot open outcome store, outcomes will not be stored: " + e.getMessage());
+            }
+        }
+        
+        closeSuppressionList();
+        if (config.getSuppressionDir() != null) {
+            try {
+                suppressionList = new SuppressionList(Paths.get(config.getSuppressionDir()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open suppression list: " + e.getMessage(), e);
+            }
+        }
+        if (controlName == null) {
+            controlName = SenderControl.register(this);
+        }
         logger.info("Email session initialized for: " + config.getSenderEmail());
     }
     
+    /**
+     * Creates the transport selected by the configuration.
+     */
+    private MailTransport createTransport(EmailConfig config, Authenticator authenticator) {
+        switch (config.getTransportType()) {
+            case EmailConfig.TRANSPORT_MEMORY:
+                logger.info("Dry run: messages are built and encoded but not sent");
+                return new MemoryMailTransport();
+            case EmailConfig.TRANSPORT_FILE:
+                try {
+                    return new FileDropMailTransport(Paths.get(config.getFileDropDir()), config.getFileDropSyncBatch());
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot open pickup directory: " + e.getMessage(), e);
+                }
+            default:
+                return new SmtpMailTransport(new RelayBalancer(config, authenticator), concurrencyLimit);
+        }
+    }
+    
     /**
      * Sends bulk emails to all recipients in the provided RecipientManager.
      * Each email is sent individually with error handling to prevent one failure
@@ -63,40 +172,208 @@ public class EmailSender {
      * @throws IllegalStateException If the session has not been initialized
      */
     public void sendBulkEmail(RecipientManager recipients, String subject, String body) {
+        sendBulkEmail(recipients, subject, body, 0);
+    }
+    
+    /**
+     * Sends bulk emails to the recipients from a position on, for example
+     * the checkpoint of a cancelled send. Recipients before it are skipped.
+     * 
+     * @param recipients The RecipientManager containing the list of recipients
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     * @param from Index of the first recipient to send to
+     * @throws IllegalStateException If the session has not been initialized
+     */
+    public void sendBulkEmail(RecipientManager recipients, String subject, String body, int from) {
         if (mailSession == null || config == null) {
             throw new IllegalStateException("EmailSender must be initialized before sending emails");
         }
         
         List<String> recipientList = recipients.getRecipients();
+        int total = recipientList.size() - Math.max(0, from);
         
-        if (recipientList.isEmpty()) {
+        if (total <= 0) {
             logger.warning("No recipients to send emails to");
             return;
         }
         
-        logger.info("Starting bulk email send to " + recipientList.size() + " recipient(s)");
+        logger.info("Starting bulk email send to " + total + " recipient(s)" +
+                    (from > 0 ? ", from recipient #" + (from + 1) : ""));
+        startRun(total);
         
-        int successCount = 0;
-        int failureCount = 0;
+        Batch result = runBatch(from, recipientList.size(), recipientList::get, sameContent(subject, body));
+        int successCount = result.successCount.get();
+        int processed = result.processedCount.get();
+        completeRun(processed, successCount);
         
-        for (String recipientEmail : recipientList) {
-            try {
-                sendEmail(recipientEmail, subject, body);
-                successCount++;
-                logger.info("✓ Email sent successfully to: " + recipientEmail);
-            } catch (MessagingException e) {
-                failureCount++;
-                logger.severe("✗ Failed to send email to: " + recipientEmail + 
-                             " - Error: " + e.getMessage());
-            } catch (Exception e) {
-                failureCount++;
-                logger.severe("✗ Unexpected error sending to: " + recipientEmail + 
-                             " - Error: " + e.getMessage());
-            }
+        logger.info("Bulk email operation " + (result.cancelled ? "cancelled" : "completed") +
+                   ". Success: " + successCount + ", Failures: " + (processed - successCount) +
+                   (result.cancelled ? ", Not sent: " + (total - processed) : "") +
+                   ", Concurrency limit: " + concurrencyLimit.getLimit());
+        logStageLoads(result);
+    }
+    
+    /**
+     * Sends the same email to each recipient in a batch. Failures are logged
+     * and do not stop the rest of the batch. Messages go through the
+     * {@link SendPipeline} and are sent in parallel up
+     * to the adaptive concurrency limit, which settles near what the relay
+     * can handle (see {@link AdaptiveConcurrencyLimit}), through the bulk
+     * lane, so priority messages submitted meanwhile go out first.
+     * 
+     * @param recipientList The recipients' email addresses
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     * @return Number of emails sent successfully
+     * @throws IllegalStateException If the session has not been initialized
+     */
+    public int sendBatch(List<String> recipientList, String subject, String body) {
+        if (mailSession == null || config == null) {
+            throw new IllegalStateException("EmailSender must be initialized before sending emails");
+        }
+        
+        return runBatch(0, recipientList.size(), recipientList::get,
+                        sameContent(subject, body)).successCount.get();
+    }
+    
+    /**
+     * Sends a personalised email to every row of a recipient table. The
+     * subject and body are templates with {{column}} placeholders; they are
+     * compiled once, and the plain-text alternative is derived from the body
+     * template once, so each recipient only costs rendering and encoding,
+     * which run in the pipeline's render and encode stages.
+     * 
+     * @param table The recipients and their merge data
+     * @param subject The subject template
+     * @param body The body template (HTML unless plain-text mode is set)
+     * @return Number of emails sent successfully
+     * @throws IllegalArgumentException If a template names an unknown column
+     * @throws IllegalStateException If the session has not been initialized
+     */
+    public int sendMergedBulkEmail(RecipientTable table, String subject, String body) {
+        if (mailSession == null || config == null) {
+            throw new IllegalStateException("EmailSender must be initialized before sending emails");
         }
         
-        logger.info("Bulk email operation completed. Success: " + successCount + 
-                   ", Failures: " + failureCount);
+        MergeTemplate subjectTemplate = MergeTemplate.compile(subject, table, false);
+        MergeTemplate htmlTemplate = htmlEnabled ? MergeTemplate.compile(body, table, true) : null;
+        // Values are substituted after conversion, so they appear in the text exactly as in the data
+        MergeTemplate textTemplate = MergeTemplate.compile(HtmlToText.convert(body), table, false);
+        
+        int rows = table.getRowCount();
+        logger.info("Starting personalised send to " + rows + " recipient(s)");
+        startRun(rows);
+        
+        Batch result = runBatch(0, rows, table::getEmail, new Content() {
+            @Override
+            public String subject(int row) {
+                return subjectTemplate.render(table, row);
+            }
+            
+            @Override
+            public MessageBody body(int row) {
+                return MessageBody.rendered(htmlTemplate != null ? htmlTemplate.render(table, row) : null,
+                                            textTemplate.render(table, row));
+            }
+        });
+        
+        int successCount = result.successCount.get();
+        int processed = result.processedCount.get();
+        completeRun(processed, successCount);
+        logger.info("Personalised send " + (result.cancelled ? "cancelled" : "completed") +
+                   ". Success: " + successCount + ", Failures: " + (processed - successCount) +
+                   (result.cancelled ? ", Not sent: " + (rows - processed) : "") +
+                   ", Concurrency limit: " + concurrencyLimit.getLimit());
+        logStageLoads(result);
+        return successCount;
+    }
+    
+    /**
+     * Feeds one message per index through the send pipeline and waits until
+     * all of them have been sent or have failed. They are transmitted in
+     * the bulk lane, in parallel up to the adaptive concurrency limit and
+     * the per-domain limits. Stops early if the batch is cancelled.
+     * 
+     * @param from First index
+     * @param to Index after the last one
+     * @param recipientOf The recipient address of each index
+     * @param content The subject and body of each index
+     * @return The batch with its counts and checkpoint
+     */
+    private Batch runBatch(int from, int to, IntFunction<String> recipientOf, Content content) {
+        SendPipeline current = pipeline;
+        Batch result = new Batch(from, current);
+        batch = result;
+        CountDownLatch done = new CountDownLatch(to - from);
+        try {
+            // Blocks while the pipeline is full, so the batch is fed in as it is sent
+            int next = current.feed(from, to, index -> new Outgoing(result, index, recipientOf.apply(index),
+                                                                    content, done),
+                                    () -> result.cancelled);
+            for (; next < to; next++) {
+                done.countDown();
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("Batch interrupted; messages not yet started were skipped");
+        }
+        result.end = current.snapshot();
+        return result;
+    }
+    
+    /**
+     * Returns the content of a batch that sends the same message to everyone.
+     */
+    private Content sameContent(String subject, String body) {
+        MessageBody prepared = prepareBody(body);
+        return new Content() {
+            @Override
+            public String subject(int index) {
+                return subject;
+            }
+            
+            @Override
+            public MessageBody body(int index) {
+                return prepared;
+            }
+        };
+    }
+    
+    /**
+     * Logs how busy each pipeline stage was during a batch, and the busiest one.
+     */
+    private void logStageLoads(Batch result) {
+        List<SendPipeline.StageLoad> loads = result.getStageLoads();
+        StringBuilder line = new StringBuilder("Pipeline stages - ");
+        for (SendPipeline.StageLoad load : loads) {
+            line.append(load).append("; ");
+        }
+        line.append("bottleneck: ").append(SendPipeline.StageLoad.bottleneck(loads).getStage().label());
+        logger.info(line.toString());
+    }
+    
+    /**
+     * Logs the outcome of one message to the console. When an outcome log is
+     * configured the structured record has already been queued for it, so the
+     * console line is only emitted at FINE level and sending never waits for
+     * the console.
+     * 
+     * @param recipientEmail The recipient's email address
+     * @param error The failure, or null if the message was sent
+     */
+    public void logResult(String recipientEmail, Exception error) {
+        if (outcomeLog != null) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine((error == null ? "✓ Sent to: " : "✗ Failed: ") + recipientEmail);
+            }
+        } else if (error == null) {
+            logger.info("✓ Email sent successfully to: " + recipientEmail);
+        } else {
+            logger.severe("✗ Failed to send email to: " + recipientEmail + 
+                         " - Error: " + error.getMessage());
+        }
     }
     
     /**
@@ -109,22 +386,172 @@ public class EmailSender {
      */
     private void sendEmail(String recipientEmail, String subject, String body) 
             throws MessagingException {
-        MimeMessage message = new MimeMessage(mailSession);
+        sendEmail(recipientEmail, subject, prepareBody(body));
+    }
+    
+    private void sendEmail(String recipientEmail, String subject, MessageBody body) 
+            throws MessagingException {
+        checkSuppressed(recipientEmail);
+        deliver(recipientEmail, buildMessage(recipientEmail, subject, body));
+    }
+    
+    /**
+     * Fails a recipient on the suppression list, recording the outcome.
+     */
+    private void checkSuppressed(String recipientEmail) throws MessagingException {
+        if (suppressionList != null && suppressionList.contains(recipientEmail)) {
+            recordOutcome(SendEvent.Type.MESSAGE_FAILED, recipientEmail, 0, 0, 0, "Suppressed");
+            throw new MessagingException("Address is on the suppression list");
+        }
+    }
+    
+    /**
+     * Delivers a built message through the transport, recording the outcome.
+     */
+    private void deliver(String recipientEmail, MimeMessage message) throws MessagingException {
+        long start = System.nanoTime();
+        int replyCode;
+        try {
+            replyCode = transport.deliver(message);
+        } catch (MessagingException | RuntimeException e) {
+            recordOutcome(SendEvent.Type.MESSAGE_FAILED, recipientEmail, SmtpMailTransport.replyCodeOf(e),
+                          System.nanoTime() - start, transport.getLastAttempts(), e.getMessage());
+            throw e;
+        }
+        recordOutcome(SendEvent.Type.MESSAGE_SENT, recipientEmail, replyCode, System.nanoTime() - start,
+                      transport.getLastAttempts(), null);
+    }
+    
+    /**
+     * Announces a bulk run to the listeners and starts its campaign in the outcome store.
+     */
+    private void startRun(int total) {
+        OutcomeStore store = outcomeStore;
+        if (store != null) {
+            store.startCampaign(total);
+        }
+        events.publishRun(SendEvent.Type.RUN_STARTED, total, 0);
+    }
+    
+    /**
+     * Announces the end of a bulk run and ends its campaign in the outcome store.
+     */
+    private void completeRun(int processed, int successCount) {
+        OutcomeStore store = outcomeStore;
+        if (store != null) {
+            store.endCampaign();
+        }
+        events.publishRun(SendEvent.Type.RUN_COMPLETED, processed, successCount);
+    }
+    
+    /**
+     * Publishes a message outcome to the event ring and, if configured,
+     * writes it to the outcome log and store and records a sent message in
+     * the sent ledger.
+     */
+    private void recordOutcome(SendEvent.Type type, String recipientEmail, int replyCode,
+                               long latencyNanos, int attempts, String error) {
+        SentLedger ledger = sentLedger;
+        if (ledger != null && type == SendEvent.Type.MESSAGE_SENT) {
+            try {
+                ledger.record(recipientEmail);
+            } catch (IOException e) {
+                // Every further message could be sent again by the next run
+                logger.severe("Cannot record " + recipientEmail + " in the sent ledger, cancelling the send: " +
+                              e.getMessage());
+                cancel();
+            }
+        }
+        OutcomeStore store = outcomeStore;
+        if (store != null) {
+            store.record(recipientEmail, type == SendEvent.Type.MESSAGE_SENT, replyCode, latencyNanos, attempts);
+        }
+        events.publishMessage(type, recipientEmail, replyCode, latencyNanos, attempts, error);
+        if (outcomeLog != null) {
+            outcomeLog.record(recipientEmail, type == SendEvent.Type.MESSAGE_SENT, replyCode, latencyNanos, error);
+        }
+    }
+    
+    /**
+     * Builds the MIME message for a single recipient without sending it.
+     * 
+     * @param recipientEmail The recipient's email address
+     * @param subject The email subject line
+     * @param body The email body (HTML unless plain-text mode is set)
+     * @return The message, ready to be transmitted
+     * @throws MessagingException If the message cannot be built
+     */
+    public MimeMessage buildMessage(String recipientEmail, String subject, String body) 
+            throws MessagingException {
+        return buildMessage(recipientEmail, subject, prepareBody(body));
+    }
+    
+    /**
+     * Builds the MIME message for a single recipient from a prepared body.
+     * 
+     * @param recipientEmail The recipient's email address
+     * @param subject The email subject line
+     * @param body The prepared body
+     * @return The message, ready to be transmitted
+     * @throws MessagingException If the message cannot be built
+     */
+    public MimeMessage buildMessage(String recipientEmail, String subject, MessageBody body) 
+            throws MessagingException {
+        return buildMessage(new InternetAddress(recipientEmail), subject, body);
+    }
+    
+    private MimeMessage buildMessage(InternetAddress recipient, String subject, MessageBody body) 
+            throws MessagingException {
+        if (mailSession == null || config == null) {
+            throw new IllegalStateException("EmailSender must be initialized before building emails");
+        }
+        
+        FlightEvents.MessageBuild event = new FlightEvents.MessageBuild();
+        event.begin();
+        
+        MimeMessage message = body.createMessage(mailSession);
         
         // Set sender
         message.setFrom(new InternetAddress(config.getSenderEmail()));
         
         // Set recipient
-        message.setRecipient(Message.RecipientType.TO, new InternetAddress(recipientEmail));
+        message.setRecipient(Message.RecipientType.TO, recipient);
         
         // Set subject
         message.setSubject(subject);
         
-        // Set body with HTML content type
-        message.setContent(body, "text/html; charset=utf-8");
+        message.saveChanges();
         
-        // Send the message
-        Transport.send(message);
+        event.end();
+        if (event.shouldCommit()) {
+            event.domain = DomainThrottle.domainOf(recipient.getAddress());
+            event.commit();
+        }
+        return message;
+    }
+    
+    /**
+     * Returns the prepared body for the given body text, reusing the previous
+     * one when the text has not changed.
+     */
+    private MessageBody prepareBody(String body) {
+        MessageBody prepared = preparedBody;
+        if (prepared == null || !prepared.matches(body, htmlEnabled)) {
+            prepared = htmlEnabled ? MessageBody.html(body) : MessageBody.plainText(body);
+            preparedBody = prepared;
+        }
+        return prepared;
+    }
+    
+    /**
+     * Chooses between HTML messages with a plain-text alternative (the
+     * default) and plain-text-only messages. In plain-text mode, any HTML
+     * markup in the body is converted to text.
+     * 
+     * @param htmlEnabled false to send plain text only
+     */
+    public void setHtmlEnabled(boolean htmlEnabled) {
+        this.htmlEnabled = htmlEnabled;
     }
     
     /**
@@ -140,5 +567,477 @@ public class EmailSender {
             throws MessagingException {
         sendEmail(recipientEmail, subject, body);
     }
+    
+    /**
+     * Queues a single email in a send lane and returns. Messages in the
+     * priority lane overtake any campaign being sent; their body is prepared
+     * separately, so it does not replace the campaign's prepared body.
+     * 
+     * @param lane The lane to send it through
+     * @param recipientEmail The recipient's email address
+     * @param subject The email subject line
+     * @param body The email body (HTML unless plain-text mode is set)
+     * @param onDone Called on a sender thread with null once the message is sent, or with the failure
+     * @throws InterruptedException If interrupted while waiting for room in the bulk lane
+     * @throws IllegalStateException If the session has not been initialized or has been closed
+     */
+    public void submitEmail(SendLanes.Lane lane, String recipientEmail, String subject, String body,
+                            Consumer<Exception> onDone) throws InterruptedException {
+        if (mailSession == null || config == null) {
+            throw new IllegalStateException("EmailSender must be initialized before sending emails");
+        }
+        
+        MessageBody prepared = lane == SendLanes.Lane.BULK ? prepareBody(body)
+                : htmlEnabled ? MessageBody.html(body) : MessageBody.plainText(body);
+        lanes.submit(lane, DomainThrottle.domainOf(recipientEmail), () -> {
+            Exception error = null;
+            try {
+                sendEmail(recipientEmail, subject, prepared);
+            } catch (Exception e) {
+                error = e;
+            }
+            onDone.accept(error);
+        });
+    }
+    
+    /**
+     * Sends a single email through a send lane and waits until it has been sent.
+     * 
+     * @param lane The lane to send it through
+     * @param recipientEmail The recipient's email address
+     * @param subject The email subject line
+     * @param body The email body (HTML unless plain-text mode is set)
+     * @throws MessagingException If there's an error sending the email
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void sendEmail(SendLanes.Lane lane, String recipientEmail, String subject, String body)
+            throws MessagingException, InterruptedException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        submitEmail(lane, recipientEmail, subject, body, error -> {
+            if (error == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+    
+    /**
+     * Pauses the current send: no more bulk messages are started, and this
+     * method returns once the messages in flight have finished. Pooled
+     * connections stay open, kept alive with NOOP, so that resume() carries
+     * on without reconnecting. Priority messages are still sent.
+     * 
+     * @throws InterruptedException If interrupted while waiting for messages in flight
+     */
+    public void pause() throws InterruptedException {
+        SendLanes current = lanes;
+        if (current == null) {
+            return;
+        }
+        current.pauseBulk();
+        synchronized (this) {
+            if (keepAliveTimer == null) {
+                keepAliveTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "smtp-keepalive");
+                    t.setDaemon(true);
+                    return t;
+                });
+                keepAliveTimer.scheduleWithFixedDelay(transport::keepAlive, KEEPALIVE_SECONDS, KEEPALIVE_SECONDS,
+                                                      TimeUnit.SECONDS);
+            }
+        }
+        logger.info("Sending paused; every recipient before #" + (getCheckpoint() + 1) + " has been processed");
+    }
+    
+    /**
+     * Resumes a paused send on the connections kept open while paused.
+     */
+    public void resume() {
+        stopKeepAlive();
+        SendLanes current = lanes;
+        if (current != null && current.isBulkPaused()) {
+            current.resumeBulk();
+            logger.info("Sending resumed");
+        }
+    }
+    
+    /**
+     * Cancels the current send. Messages in flight finish; the rest are not
+     * sent, and the send method returns with the counts so far. Resumes a
+     * paused send first so that it can wind down.
+     */
+    public void cancel() {
+        Batch current = batch;
+        if (current != null) {
+            current.cancelled = true;
+        }
+        resume();
+    }
+    
+    /**
+     * Returns whether sending is paused.
+     * 
+     * @return true between pause() and resume()
+     */
+    public boolean isPaused() {
+        SendLanes current = lanes;
+        return current != null && current.isBulkPaused();
+    }
+    
+    /**
+     * Returns the checkpoint of the current or last send: every recipient
+     * before this index has been sent or has failed. After a cancel, the send
+     * can be continued from here with sendBulkEmail(..., from).
+     * 
+     * @return Recipient index, 0 if nothing has been sent
+     */
+    public int getCheckpoint() {
+        Batch current = batch;
+        return current == null ? 0 : current.getCheckpoint();
+    }
+    
+    private synchronized void stopKeepAlive() {
+        if (keepAliveTimer != null) {
+            keepAliveTimer.shutdownNow();
+            keepAliveTimer = null;
+        }
+    }
+    
+    /**
+     * Returns the send lanes, for their queue lengths.
+     * 
+     * @return The lanes, or null before initialization
+     */
+    public SendLanes getSendLanes() {
+        return lanes;
+    }
+    
+    /**
+     * Returns how busy each stage of the send pipeline has been during the
+     * current send, or during the last one once it has finished.
+     * 
+     * @return One entry per stage in pipeline order, or an empty list before the first send
+     */
+    public List<SendPipeline.StageLoad> getStageLoads() {
+        Batch current = batch;
+        return current == null ? Collections.emptyList() : current.getStageLoads();
+    }
+    
+    /**
+     * Returns the per-domain limits, which may be changed while sending.
+     * 
+     * @return The domain throttle, or null before initialization
+     */
+    public DomainThrottle getDomainThrottle() {
+        return domainThrottle;
+    }
+    
+    /**
+     * Changes the send rate of a running sender. It applies from the next
+     * message; messages already in flight are not affected.
+     * 
+     * @param ratePerSecond Messages per second, 0 for unlimited
+     * @throws IllegalStateException If the sender has not been initialized
+     */
+    public void setSendRate(int ratePerSecond) {
+        if (lanes == null) {
+            throw new IllegalStateException("EmailSender must be initialized first");
+        }
+        lanes.setRate(ratePerSecond);
+        logger.info("Send rate set to " + (ratePerSecond > 0 ? ratePerSecond + "/s" : "unlimited"));
+    }
+    
+    /**
+     * Changes the bounds of the adaptive concurrency limit of a running
+     * sender. A lowered maximum lets the messages in flight finish, starts
+     * no new ones until they are below it, and closes idle connections the
+     * lower limit no longer needs; a raised one starts more send threads.
+     * 
+     * @param minConcurrency Lowest number of messages in flight the limit may back off to
+     * @param maxConcurrency Highest number of messages in flight, and of connections per relay
+     * @throws IllegalStateException If the sender has not been initialized
+     */
+    public void setConcurrency(int minConcurrency, int maxConcurrency) {
+        if (lanes == null) {
+            throw new IllegalStateException("EmailSender must be initialized first");
+        }
+        concurrencyLimit.setBounds(minConcurrency, maxConcurrency);
+        int max = concurrencyLimit.getMaxLimit();
+        lanes.ensureWorkers(max);
+        for (SmtpRelay relay : getRelays()) {
+            relay.getPool().trimIdle(max);
+        }
+    }
+    
+    /**
+     * Returns the adaptive concurrency limit used by sendBatch(). Its current
+     * value is the number of messages the relay is believed to handle in parallel.
+     * 
+     * @return The concurrency controller
+     */
+    public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+    
+    /**
+     * Returns the transport messages are delivered through.
+     * 
+     * @return The transport, or null before initialization
+     */
+    public MailTransport getTransport() {
+        return transport;
+    }
+    
+    /**
+     * Returns the SMTP relays messages are routed through, with their health
+     * and load statistics.
+     * 
+     * @return Relays in configuration order, or an empty list before initialization
+     */
+    public List<SmtpRelay> getRelays() {
+        return transport instanceof SmtpMailTransport
+                ? ((SmtpMailTransport) transport).getRelays() : Collections.emptyList();
+    }
+    
+    /**
+     * Returns the suppression list checked before every send.
+     * 
+     * @return The suppression list, or null if none is configured
+     */
+    public SuppressionList getSuppressionList() {
+        return suppressionList;
+    }
+    
+    /**
+     * Sets the ledger that every message sent from now on is recorded in.
+     * Messages are recorded by the thread that sent them, before the send
+     * counts as done. If the ledger cannot be written, the current send is
+     * cancelled.
+     * 
+     * @param ledger The campaign's ledger, or null to stop recording
+     */
+    public void setSentLedger(SentLedger ledger) {
+        this.sentLedger = ledger;
+    }
+    
+    /**
+     * Registers a listener for per-message outcome and run progress events.
+     * The listener runs on its own thread and never slows down sending.
+     * 
+     * @param listener The listener to add
+     */
+    public void addListener(SendEventListener listener) {
+        events.addListener(listener);
+    }
+    
+    /**
+     * Removes a listener after it has received all events published so far.
+     * 
+     * @param listener The listener to remove
+     */
+    public void removeListener(SendEventListener listener) {
+        events.removeListener(listener);
+    }
+    
+    /**
+     * Sends the messages already queued in the send lanes, then closes all
+     * pooled SMTP connections, stops event listeners once they
+     * have caught up and flushes the outcome log and store. The sender can still be
+     * used afterwards only if it is initialized again.
+     */
+    public void close() {
+        stopKeepAlive();
+        closeLanes();
+        if (transport != null) {
+            transport.close();
+        }
+        events.close();
+        if (outcomeLog != null) {
+            outcomeLog.close();
+            if (outcomeLog.getDroppedCount() > 0) {
+                logger.warning("Outcome log dropped " + outcomeLog.getDroppedCount() + " record(s) under load");
+            }
+            outcomeLog = null;
+        }
+        closeOutcomeStore();
+        closeSuppressionList();
+        if (controlName != null) {
+            SenderControl.unregister(controlName);
+            controlName = null;
+        }
+    }
+    
+    private void closeOutcomeStore() {
+        if (outcomeStore != null) {
+            outcomeStore.close();
+            outcomeStore = null;
+        }
+    }
+    
+    private void closeLanes() {
+        if (pipeline != null) {
+            // First, so that the messages it holds reach the lanes before they close
+            pipeline.close();
+            pipeline = null;
+        }
+        if (lanes != null) {
+            lanes.close();
+            lanes = null;
+        }
+    }
+    
+    private void closeSuppressionList() {
+        if (suppressionList != null) {
+            try {
+                suppressionList.close();
+            } catch (IOException e) {
+                logger.warning("Error closing suppression list: " + e.getMessage());
+            }
+            suppressionList = null;
+        }
+    }
+    
+    /**
+     * Counts and checkpoint of one batch. The checkpoint only moves past
+     * recipients that have finished, so it never skips one that was still
+     * in flight or set aside when the batch stopped.
+     */
+    private static final class Batch {
+        final int from;
+        final AtomicInteger successCount = new AtomicInteger();
+        final AtomicInteger processedCount = new AtomicInteger();
+        volatile boolean cancelled = false;
+        // Finished indexes at or after the checkpoint, relative to from
+        private final BitSet finished = new BitSet();
+        private int checkpoint;
+        // Pipeline totals at the start and, once finished, the end of the batch
+        private final SendPipeline pipeline;
+        private final SendPipeline.Snapshot start;
+        volatile SendPipeline.Snapshot end;
+        
+        Batch(int from, SendPipeline pipeline) {
+            this.from = from;
+            this.checkpoint = from;
+            this.pipeline = pipeline;
+            this.start = pipeline.snapshot();
+        }
+        
+        List<SendPipeline.StageLoad> getStageLoads() {
+            SendPipeline.Snapshot last = end;
+            return (last != null ? last : pipeline.snapshot()).since(start);
+        }
+        
+        synchronized void complete(int index) {
+            processedCount.incrementAndGet();
+            finished.set(index - from);
+            while (finished.get(checkpoint - from)) {
+                checkpoint++;
+            }
+        }
+        
+        synchronized int getCheckpoint() {
+            return checkpoint;
+        }
+    }
+    
+    /**
+     * The subject and body of each message of a batch, produced in the
+     * pipeline's render stage. Called from several threads at once.
+     */
+    private interface Content {
+        String subject(int index);
+        
+        MessageBody body(int index);
+    }
+    
+    /**
+     * One message of a batch in the send pipeline. Every message counts
+     * down the batch's latch exactly once, however it leaves the pipeline.
+     */
+    private final class Outgoing implements SendPipeline.Item {
+        private final Batch batch;
+        private final int index;
+        private final String recipientEmail;
+        private final Content content;
+        private final CountDownLatch done;
+        // Filled in by the stages, each published to the next by the queue between them
+        private InternetAddress recipient;
+        private String subject;
+        private MessageBody body;
+        private MimeMessage message;
+        
+        Outgoing(Batch batch, int index, String recipientEmail, Content content, CountDownLatch done) {
+            this.batch = batch;
+            this.index = index;
+            this.recipientEmail = recipientEmail;
+            this.content = content;
+            this.done = done;
+        }
+        
+        @Override
+        public String getDomain() {
+            return DomainThrottle.domainOf(recipientEmail);
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return batch.cancelled;
+        }
+        
+        @Override
+        public void validate() throws MessagingException {
+            checkSuppressed(recipientEmail);
+            recipient = new InternetAddress(recipientEmail);
+        }
+        
+        @Override
+        public void render() {
+            subject = content.subject(index);
+            body = content.body(index);
+        }
+        
+        @Override
+        public void encode() throws MessagingException {
+            message = buildMessage(recipient, subject, body);
+            MessageBody.preEncode(message);
+        }
+        
+        @Override
+        public void transmit() {
+            try {
+                deliver(recipientEmail, message);
+                logResult(recipientEmail, null);
+                batch.successCount.incrementAndGet();
+            } catch (Exception e) {
+                logResult(recipientEmail, e);
+            } finally {
+                batch.complete(index);
+                done.countDown();
+            }
+        }
+        
+        @Override
+        public void failed(Exception error) {
+            try {
+                logResult(recipientEmail, error);
+                batch.complete(index);
+            } finally {
+                done.countDown();
+            }
+        }
+        
+        @Override
+        public void dropped() {
+            done.countDown();
+        }
+    }
 }
-
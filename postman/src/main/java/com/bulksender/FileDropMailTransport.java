@@ -0,0 +1,238 @@
+package com.bulksender;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Writes each message as an .eml file into a pickup directory, for a local
+ * MTA (or any other process) that collects files from there.
+ * 
+ * A message is first written to a .tmp file. Files are made durable in
+ * batches: once enough have been written (or a second has passed), every
+ * pending file is synced, renamed to .eml and the directory is synced, so
+ * one batch costs a few disk flushes instead of one per message. The
+ * collector only ever sees complete, synced .eml files. After a crash, the
+ * last unsynced batch is left as .tmp files and is not picked up.
+ * 
+ * Acknowledgements are not durable: {@link #deliver} returns 250 once the
+ * .tmp file is written, before its batch is synced. A crash can therefore
+ * lose up to one batch (or one second) of messages that were already
+ * recorded as sent, or acknowledged in the outbox. Use a sync batch of 1
+ * where that window is not acceptable.
+ */
+public class FileDropMailTransport implements MailTransport {
+    private static final Logger logger = Logger.getLogger(FileDropMailTransport.class.getName());
+    
+    public static final int DEFAULT_SYNC_BATCH = 64;
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    
+    private final Path directory;
+    private final int syncBatch;
+    // Unique per process, so several senders can share a directory
+    private final String filePrefix;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final ScheduledExecutorService syncer;
+    
+    private final Object lock = new Object();
+    private List<PendingFile> pending = new ArrayList<>();
+    
+    /**
+     * A written file waiting for its batch to be synced and renamed.
+     */
+    private static class PendingFile {
+        final Path temp;
+        final Path target;
+        final FileChannel channel;
+        
+        PendingFile(Path temp, Path target, FileChannel channel) {
+            this.temp = temp;
+            this.target = target;
+            this.channel = channel;
+        }
+    }
+    
+    /**
+     * Creates the transport, creating the directory if needed.
+     * 
+     * @param directory The pickup directory
+     * @param syncBatch Number of files written before a batch is synced
+     * @throws IOException If the directory cannot be created
+     */
+    public FileDropMailTransport(Path directory, int syncBatch) throws IOException {
+        this.directory = directory;
+        this.syncBatch = Math.max(1, syncBatch);
+        Files.createDirectories(directory);
+        this.filePrefix = System.currentTimeMillis() + "-" + ManagementFactory.getRuntimeMXBean().getName()
+                .replaceAll("[^A-Za-z0-9.-]", "_");
+        
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-drop-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        syncer.scheduleWithFixedDelay(this::syncPending, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS,
+                                      TimeUnit.MILLISECONDS);
+        logger.info("Dropping messages as .eml files into: " + directory.toAbsolutePath());
+    }
+    
+    /**
+     * Writes the message to a .tmp file and publishes it with its batch.
+     * The returned 250 means written, not yet durable; see the class description.
+     * 
+     * @param message The message, with recipients set
+     * @return 250
+     * @throws MessagingException If the message cannot be encoded or written
+     */
+    @Override
+    public int deliver(MimeMessage message) throws MessagingException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        try {
+            message.writeTo(bytes);
+        } catch (IOException e) {
+            throw new MessagingException("Cannot encode message", e);
+        }
+        
+        String name = filePrefix + "-" + sequence.incrementAndGet();
+        Path temp = directory.resolve(name + ".tmp");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new MessagingException("Cannot write " + temp + ": " + e.getMessage(), e);
+        }
+        
+        List<PendingFile> batch = null;
+        synchronized (lock) {
+            pending.add(new PendingFile(temp, directory.resolve(name + ".eml"), channel));
+            if (pending.size() >= syncBatch) {
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+        }
+        if (batch != null) {
+            commit(batch);
+        }
+        return 250;
+    }
+    
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+    
+    /**
+     * Stops the background sync, letting a sync in progress finish, then
+     * syncs and publishes every file written since.
+     */
+    @Override
+    public void close() {
+        // Not shutdownNow(): interrupting a sync closes its channels and strands .tmp files
+        syncer.shutdown();
+        boolean interrupted = false;
+        try {
+            if (!syncer.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warning("Background sync of " + directory + " did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        syncPending();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Returns the number of .eml files published so far.
+     * 
+     * @return Published file count
+     */
+    public long getCommittedCount() {
+        return committed.get();
+    }
+    
+    private void syncPending() {
+        List<PendingFile> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        commit(batch);
+    }
+    
+    private void commit(List<PendingFile> batch) {
+        int failed = 0;
+        List<PendingFile> synced = new ArrayList<>(batch.size());
+        for (PendingFile file : batch) {
+            try {
+                file.channel.force(false);
+                synced.add(file);
+            } catch (IOException e) {
+                failed++;
+                logger.severe("Cannot sync " + file.temp + ": " + e.getMessage());
+            } finally {
+                closeQuietly(file.channel);
+            }
+        }
+        for (PendingFile file : synced) {
+            try {
+                Files.move(file.temp, file.target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                failed++;
+                logger.severe("Cannot publish " + file.target + ": " + e.getMessage());
+            }
+        }
+        syncDirectory();
+        committed.addAndGet(batch.size() - failed);
+        if (failed > 0) {
+            logger.severe(failed + " message(s) were written but not published; they remain as .tmp files");
+        }
+    }
+    
+    /**
+     * Makes the renames durable. Not every platform can sync a directory
+     * (Windows cannot), in which case this does nothing.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            logger.finest("Directory sync not supported: " + e.getMessage());
+        }
+    }
+    
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.fine("Error closing file: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.bulksender;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the phases of a send, so that a recording
+ * can line up GC pauses, lock contention and socket I/O with the message,
+ * relay and SMTP step they held up.
+ * 
+ * Every event is created, begun and ended around the work it measures, and
+ * its fields are only filled in when shouldCommit() says the event is
+ * enabled and over its threshold. An event that stays local to one method
+ * does not escape, so without a recording (or with the event disabled) the
+ * JIT can usually drop the allocation, leaving only a check of a static
+ * flag. The SMTP step events span several protocol callbacks and are kept
+ * in fields, so {@link InstrumentedSmtpTransport} creates them only while
+ * their type is enabled. Stack traces are off, because the phase, relay and
+ * domain already say where the time went.
+ * 
+ * The events are enabled in the bundled campaign.jfc profile:
+ * <pre>
+ * java -XX:StartFlightRecording:settings=campaign.jfc,filename=campaign.jfr ...
+ * </pre>
+ */
+public final class FlightEvents {
+    private static final String CATEGORY = "Bulk Sender";
+    
+    private FlightEvents() {
+    }
+    
+    /**
+     * Building and encoding one message.
+     */
+    @Name("com.bulksender.MessageBuild")
+    @Label("Message Build")
+    @Category({CATEGORY, "Message"})
+    @Description("Creating the MIME message for one recipient")
+    @StackTrace(false)
+    public static final class MessageBuild extends Event {
+        @Label("Domain")
+        String domain;
+    }
+    
+    /**
+     * Fields shared by the SMTP protocol steps.
+     */
+    public abstract static class SmtpPhase extends Event {
+        @Label("Relay")
+        String relay;
+        
+        @Label("Domain")
+        @Description("Recipient domain of the message, empty for connection setup")
+        String domain;
+        
+        @Label("Reply Code")
+        @Description("Last SMTP reply of the step")
+        int replyCode;
+    }
+    
+    /**
+     * Opening an SMTP connection: TCP connect, server greeting and EHLO.
+     */
+    @Name("com.bulksender.SmtpConnect")
+    @Label("SMTP Connect")
+    @Category({CATEGORY, "SMTP"})
+    @Description("TCP connect, server greeting and EHLO")
+    @StackTrace(false)
+    public static final class SmtpConnect extends SmtpPhase {
+    }
+    
+    /**
+     * STARTTLS, the TLS handshake and the EHLO that follows it.
+     */
+    @Name("com.bulksender.SmtpTls")
+    @Label("SMTP STARTTLS")
+    @Category({CATEGORY, "SMTP"})
+    @Description("STARTTLS, the TLS handshake and the EHLO after it")
+    @StackTrace(false)
+    public static final class SmtpTls extends SmtpPhase {
+    }
+    
+    /**
+     * SMTP authentication.
+     */
+    @Name("com.bulksender.SmtpAuth")
+    @Label("SMTP AUTH")
+    @Category({CATEGORY, "SMTP"})
+    @Description("SMTP authentication")
+    @StackTrace(false)
+    public static final class SmtpAuth extends SmtpPhase {
+    }
+    
+    /**
+     * MAIL FROM and RCPT TO for one message.
+     */
+    @Name("com.bulksender.SmtpEnvelope")
+    @Label("SMTP Envelope")
+    @Category({CATEGORY, "SMTP"})
+    @Description("MAIL FROM and RCPT TO for one message")
+    @StackTrace(false)
+    public static final class SmtpEnvelope extends SmtpPhase {
+    }
+    
+    /**
+     * DATA: transmitting the message content until the server accepts it.
+     */
+    @Name("com.bulksender.SmtpData")
+    @Label("SMTP DATA")
+    @Category({CATEGORY, "SMTP"})
+    @Description("Transmitting the message content until the server accepts it")
+    @StackTrace(false)
+    public static final class SmtpData extends SmtpPhase {
+    }
+    
+    /**
+     * A message handed to another relay after a relay refused it or could
+     * not be reached.
+     */
+    @Name("com.bulksender.Retry")
+    @Label("Retry on Another Relay")
+    @Category({CATEGORY, "Message"})
+    @Description("A message moved to another relay after a transient failure")
+    @StackTrace(false)
+    public static final class Retry extends Event {
+        @Label("Failed Relay")
+        String relay;
+        
+        @Label("Domain")
+        String domain;
+        
+        @Label("Reply Code")
+        @Description("Reply that caused the retry, 0 if the relay could not be reached")
+        int replyCode;
+        
+        @Label("Attempt")
+        @Description("Number of relays tried so far")
+        int attempt;
+    }
+    
+    /**
+     * The time a send spent in a send lane before a worker started it.
+     */
+    @Name("com.bulksender.QueueWait")
+    @Label("Send Queue Wait")
+    @Category({CATEGORY, "Message"})
+    @Description("Time a send spent queued before a worker started it")
+    @StackTrace(false)
+    public static final class QueueWait extends Event {
+        @Label("Lane")
+        String lane;
+        
+        @Label("Domain")
+        String domain;
+        
+        @Label("Queued")
+        @Timespan(Timespan.NANOSECONDS)
+        long queuedNanos;
+        
+        @Label("Throttled")
+        @Description("Whether the send was set aside for its domain's limits")
+        boolean throttled;
+    }
+}
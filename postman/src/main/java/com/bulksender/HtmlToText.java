@@ -0,0 +1,564 @@
+package com.bulksender;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts HTML to readable plain text in a single pass over the input,
+ * for the text/plain alternative of a message.
+ * 
+ * - Runs of whitespace collapse to one space, except inside pre
+ * - Paragraphs, headings, lists and tables become separate lines or
+ *   paragraphs; br is a line break
+ * - List items are prefixed with "* " or their number
+ * - Links keep their text followed by the target in parentheses
+ * - Entities are decoded (named ones in common use, and numeric ones)
+ * - Comments and the contents of head, script and style are dropped
+ * 
+ * The input does not have to be well-formed; unknown tags are ignored.
+ */
+public final class HtmlToText {
+    private static final Map<String, Integer> ENTITIES = new HashMap<>();
+    private static final Set<String> PARAGRAPH_TAGS = new HashSet<>(Arrays.asList(
+            "p", "h1", "h2", "h3", "h4", "h5", "h6", "blockquote", "table", "dl", "form", "address", "figure"));
+    private static final Set<String> LINE_TAGS = new HashSet<>(Arrays.asList(
+            "div", "tr", "dt", "dd", "section", "article", "header", "footer", "nav", "main", "aside",
+            "caption", "center", "fieldset", "figcaption", "tbody", "thead", "tfoot"));
+    private static final Set<String> SKIPPED_TAGS = new HashSet<>(Arrays.asList(
+            "head", "script", "style", "title", "template"));
+    
+    // Longest entity name (or numeric reference) looked for before giving up
+    private static final int MAX_ENTITY_LENGTH = 32;
+    
+    static {
+        String[] names = {
+            "amp", "lt", "gt", "quot", "apos", "nbsp", "copy", "reg", "trade", "hellip", "mdash", "ndash",
+            "lsquo", "rsquo", "sbquo", "ldquo", "rdquo", "bdquo", "bull", "middot", "euro", "pound", "yen",
+            "cent", "sect", "para", "deg", "plusmn", "laquo", "raquo", "times", "divide", "iexcl", "iquest",
+            "shy", "zwnj", "zwj", "ensp", "emsp", "thinsp", "larr", "rarr", "uarr", "darr", "frac12",
+            "frac14", "frac34", "micro", "dagger", "Dagger", "permil", "prime", "Prime"
+        };
+        int[] codePoints = {
+            '&', '<', '>', '"', '\'', 0xA0, 0xA9, 0xAE, 0x2122, 0x2026, 0x2014, 0x2013,
+            0x2018, 0x2019, 0x201A, 0x201C, 0x201D, 0x201E, 0x2022, 0xB7, 0x20AC, 0xA3, 0xA5,
+            0xA2, 0xA7, 0xB6, 0xB0, 0xB1, 0xAB, 0xBB, 0xD7, 0xF7, 0xA1, 0xBF,
+            0xAD, 0x200C, 0x200D, 0x2002, 0x2003, 0x2009, 0x2190, 0x2192, 0x2191, 0x2193, 0xBD,
+            0xBC, 0xBE, 0xB5, 0x2020, 0x2021, 0x2030, 0x2032, 0x2033
+        };
+        for (int i = 0; i < names.length; i++) {
+            ENTITIES.put(names[i], codePoints[i]);
+        }
+        // Latin-1 letters with accents, e.g. &eacute; and &Uuml;
+        String letters = "AEIOUaeiou";
+        String[] accents = {"grave", "acute", "circ", "uml"};
+        int[][] upper = {{0xC0, 0xC1, 0xC2, 0xC4}, {0xC8, 0xC9, 0xCA, 0xCB}, {0xCC, 0xCD, 0xCE, 0xCF},
+                         {0xD2, 0xD3, 0xD4, 0xD6}, {0xD9, 0xDA, 0xDB, 0xDC}};
+        for (int l = 0; l < 5; l++) {
+            for (int a = 0; a < accents.length; a++) {
+                ENTITIES.put(letters.charAt(l) + accents[a], upper[l][a]);
+                ENTITIES.put(letters.charAt(l + 5) + accents[a], upper[l][a] + 0x20);
+            }
+        }
+        ENTITIES.put("Ccedil", 0xC7);
+        ENTITIES.put("ccedil", 0xE7);
+        ENTITIES.put("Ntilde", 0xD1);
+        ENTITIES.put("ntilde", 0xF1);
+        ENTITIES.put("szlig", 0xDF);
+        ENTITIES.put("Aring", 0xC5);
+        ENTITIES.put("aring", 0xE5);
+        ENTITIES.put("AElig", 0xC6);
+        ENTITIES.put("aelig", 0xE6);
+        ENTITIES.put("Oslash", 0xD8);
+        ENTITIES.put("oslash", 0xF8);
+    }
+    
+    private final Reader in;
+    private final Appendable out;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+    private int pushedBack = -1;
+    
+    private boolean wroteText = false;
+    private int pendingBreaks = 0;
+    private boolean pendingSpace = false;
+    private String pendingPrefix = null;
+    private int preDepth = 0;
+    // One entry per open list: the next item number, or 0 for an unordered list
+    private final Deque<int[]> lists = new ArrayDeque<>();
+    private String linkHref = null;
+    private StringBuilder linkText = null;
+    
+    private HtmlToText(Reader in, Appendable out) {
+        this.in = in;
+        this.out = out;
+    }
+    
+    /**
+     * Converts an HTML document or fragment to plain text.
+     * 
+     * @param html The HTML
+     * @return The text, with lines separated by '\n'
+     */
+    public static String convert(String html) {
+        StringBuilder text = new StringBuilder(html.length() / 2);
+        try {
+            convert(new StringReader(html), text);
+        } catch (IOException e) {
+            // Neither a StringReader nor a StringBuilder throws
+            throw new IllegalStateException(e);
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Converts HTML read from a stream, writing the text as it goes.
+     * 
+     * @param html Source of the HTML
+     * @param text Destination of the text, with lines separated by '\n'
+     * @throws IOException If reading or writing fails
+     */
+    public static void convert(Reader html, Appendable text) throws IOException {
+        new HtmlToText(html, text).run();
+    }
+    
+    private void run() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<') {
+                readTag();
+            } else if (c == '&') {
+                String decoded = readEntity();
+                for (int i = 0; i < decoded.length(); i++) {
+                    char ch = decoded.charAt(i);
+                    // A non-breaking space is kept even where ordinary whitespace collapses
+                    if (ch == '\u00A0') {
+                        emit(' ');
+                    } else {
+                        character(ch);
+                    }
+                }
+            } else {
+                character((char) c);
+            }
+        }
+    }
+    
+    private void character(char ch) throws IOException {
+        if (preDepth > 0) {
+            if (ch == '\n') {
+                if (wroteText) {
+                    pendingBreaks++;
+                }
+            } else if (ch != '\r') {
+                emit(ch);
+            }
+        } else if (Character.isWhitespace(ch)) {
+            pendingSpace = true;
+        } else {
+            emit(ch);
+        }
+    }
+    
+    private void emit(char ch) throws IOException {
+        if (wroteText) {
+            if (pendingBreaks > 0) {
+                for (int i = 0; i < pendingBreaks; i++) {
+                    out.append('\n');
+                }
+            } else if (pendingSpace) {
+                out.append(' ');
+                if (linkText != null) {
+                    linkText.append(' ');
+                }
+            }
+        }
+        pendingBreaks = 0;
+        pendingSpace = false;
+        if (pendingPrefix != null) {
+            out.append(pendingPrefix);
+            pendingPrefix = null;
+        }
+        out.append(ch);
+        wroteText = true;
+        if (linkText != null) {
+            linkText.append(ch);
+        }
+    }
+    
+    private void emit(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            emit(s.charAt(i));
+        }
+    }
+    
+    /**
+     * Asks for at least this many line breaks before the next text
+     * (1 ends the line, 2 leaves a blank line).
+     */
+    private void breakLines(int count) {
+        if (wroteText) {
+            pendingBreaks = Math.max(pendingBreaks, count);
+        }
+    }
+    
+    private void readTag() throws IOException {
+        int c = read();
+        if (c == '!') {
+            skipDeclaration();
+            return;
+        }
+        boolean closing = c == '/';
+        if (closing) {
+            c = read();
+        }
+        if (c == -1 || !Character.isLetter(c)) {
+            // Not a tag, e.g. "a < b"
+            character('<');
+            if (closing) {
+                character('/');
+            }
+            unread(c);
+            return;
+        }
+        
+        StringBuilder name = new StringBuilder();
+        while (c != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == ':')) {
+            name.append(Character.toLowerCase((char) c));
+            c = read();
+        }
+        StringBuilder attributes = new StringBuilder();
+        char quote = 0;
+        while (c != -1 && (quote != 0 || c != '>')) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = (char) c;
+            }
+            attributes.append((char) c);
+            c = read();
+        }
+        boolean selfClosing = attributes.length() > 0 && attributes.charAt(attributes.length() - 1) == '/';
+        
+        String tag = name.toString();
+        if (closing) {
+            endTag(tag);
+        } else {
+            startTag(tag, attributes.toString());
+            if (SKIPPED_TAGS.contains(tag) && !selfClosing) {
+                skipElement(tag);
+            }
+        }
+    }
+    
+    private void startTag(String tag, String attributes) throws IOException {
+        if (PARAGRAPH_TAGS.contains(tag)) {
+            breakLines(2);
+        } else if (LINE_TAGS.contains(tag)) {
+            breakLines(1);
+        }
+        switch (tag) {
+            case "br":
+                if (wroteText) {
+                    pendingBreaks++;
+                }
+                break;
+            case "hr":
+                breakLines(2);
+                emit("----------");
+                breakLines(2);
+                break;
+            case "pre":
+                breakLines(2);
+                preDepth++;
+                break;
+            case "ul":
+            case "ol":
+                breakLines(lists.isEmpty() ? 2 : 1);
+                lists.push(new int[] {tag.equals("ol") ? 1 : 0});
+                break;
+            case "li":
+                breakLines(1);
+                pendingPrefix = listPrefix();
+                break;
+            case "td":
+            case "th":
+                pendingSpace = true;
+                break;
+            case "a":
+                String href = attribute(attributes, "href");
+                if (href != null && !href.isEmpty() && !href.startsWith("#") &&
+                        !href.regionMatches(true, 0, "javascript:", 0, 11)) {
+                    linkHref = href;
+                    linkText = new StringBuilder();
+                }
+                break;
+            case "img":
+                String alt = attribute(attributes, "alt");
+                if (alt != null && !alt.trim().isEmpty()) {
+                    pendingSpace = true;
+                    emit("[" + alt.trim() + "]");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void endTag(String tag) throws IOException {
+        if (PARAGRAPH_TAGS.contains(tag)) {
+            breakLines(2);
+        } else if (LINE_TAGS.contains(tag)) {
+            breakLines(1);
+        }
+        switch (tag) {
+            case "pre":
+                preDepth = Math.max(0, preDepth - 1);
+                breakLines(2);
+                break;
+            case "ul":
+            case "ol":
+                lists.poll();
+                breakLines(lists.isEmpty() ? 2 : 1);
+                break;
+            case "li":
+                breakLines(1);
+                break;
+            case "a":
+                if (linkHref != null) {
+                    String text = linkText.toString().trim();
+                    String href = linkHref;
+                    linkHref = null;
+                    linkText = null;
+                    // Skip the target when the text already says it, as in <a href="mailto:x">x</a>
+                    if (!href.equals(text) && !href.equalsIgnoreCase("mailto:" + text)) {
+                        if (text.isEmpty()) {
+                            pendingSpace = true;
+                            emit(href);
+                        } else {
+                            pendingSpace = true;
+                            emit("(" + href + ")");
+                        }
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private String listPrefix() {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 1; i < lists.size(); i++) {
+            prefix.append("  ");
+        }
+        int[] list = lists.peek();
+        if (list == null || list[0] == 0) {
+            prefix.append("* ");
+        } else {
+            prefix.append(list[0]++).append(". ");
+        }
+        return prefix.toString();
+    }
+    
+    /**
+     * Skips a comment, doctype or CDATA section after "<!".
+     */
+    private void skipDeclaration() throws IOException {
+        int c = read();
+        if (c == '-') {
+            c = read();
+            if (c == '-') {
+                // Comment: runs to "-->"
+                int dashes = 0;
+                while ((c = read()) != -1) {
+                    if (c == '>' && dashes >= 2) {
+                        return;
+                    }
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+                return;
+            }
+        }
+        while (c != -1 && c != '>') {
+            c = read();
+        }
+    }
+    
+    /**
+     * Skips everything up to and including the end tag of an element whose
+     * contents are not text, such as script.
+     */
+    private void skipElement(String tag) throws IOException {
+        String end = "</" + tag;
+        int matched = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (Character.toLowerCase(c) == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    while (c != -1 && c != '>') {
+                        c = read();
+                    }
+                    return;
+                }
+            } else {
+                matched = c == '<' ? 1 : 0;
+            }
+        }
+    }
+    
+    /**
+     * Reads an entity after '&' and returns its text. Anything that is not a
+     * known entity is returned as written.
+     */
+    private String readEntity() throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c;
+        while ((c = read()) != -1 && name.length() < MAX_ENTITY_LENGTH &&
+                (Character.isLetterOrDigit(c) || (c == '#' && name.length() == 0))) {
+            name.append((char) c);
+        }
+        if (c != ';') {
+            unread(c);
+            return "&" + name;
+        }
+        String decoded = decodeEntity(name.toString());
+        return decoded != null ? decoded : "&" + name + ";";
+    }
+    
+    private static String decodeEntity(String name) {
+        int codePoint;
+        if (name.startsWith("#")) {
+            try {
+                boolean hex = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X');
+                codePoint = hex ? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (codePoint <= 0 || !Character.isValidCodePoint(codePoint)) {
+                return null;
+            }
+        } else {
+            Integer known = ENTITIES.get(name);
+            if (known == null) {
+                known = ENTITIES.get(name.toLowerCase(Locale.ROOT));
+            }
+            if (known == null) {
+                return null;
+            }
+            codePoint = known;
+        }
+        // Invisible characters would only confuse the text part
+        if (codePoint == 0xAD || codePoint == 0x200C || codePoint == 0x200D) {
+            return "";
+        }
+        return new String(Character.toChars(codePoint));
+    }
+    
+    /**
+     * Returns the entity-decoded value of an attribute, or null if absent.
+     */
+    private static String attribute(String attributes, String name) {
+        int length = attributes.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (Character.isWhitespace(attributes.charAt(i)) || attributes.charAt(i) == '/')) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < length && attributes.charAt(i) != '=' && !Character.isWhitespace(attributes.charAt(i))) {
+                i++;
+            }
+            String attributeName = attributes.substring(nameStart, i);
+            while (i < length && Character.isWhitespace(attributes.charAt(i))) {
+                i++;
+            }
+            String value = "";
+            if (i < length && attributes.charAt(i) == '=') {
+                i++;
+                while (i < length && Character.isWhitespace(attributes.charAt(i))) {
+                    i++;
+                }
+                if (i < length && (attributes.charAt(i) == '"' || attributes.charAt(i) == '\'')) {
+                    char quote = attributes.charAt(i++);
+                    int valueStart = i;
+                    while (i < length && attributes.charAt(i) != quote) {
+                        i++;
+                    }
+                    value = attributes.substring(valueStart, i);
+                    i++;
+                } else {
+                    int valueStart = i;
+                    while (i < length && !Character.isWhitespace(attributes.charAt(i))) {
+                        i++;
+                    }
+                    value = attributes.substring(valueStart, i);
+                }
+            }
+            if (attributeName.equalsIgnoreCase(name)) {
+                return decodeEntities(value.trim());
+            }
+            if (attributeName.isEmpty()) {
+                i++;
+            }
+        }
+        return null;
+    }
+    
+    private static String decodeEntities(String value) {
+        int amp = value.indexOf('&');
+        if (amp < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        int i = 0;
+        while (amp >= 0) {
+            sb.append(value, i, amp);
+            int semicolon = value.indexOf(';', amp);
+            String decoded = semicolon > amp && semicolon - amp <= MAX_ENTITY_LENGTH
+                    ? decodeEntity(value.substring(amp + 1, semicolon)) : null;
+            if (decoded != null) {
+                sb.append(decoded);
+                i = semicolon + 1;
+            } else {
+                sb.append('&');
+                i = amp + 1;
+            }
+            amp = value.indexOf('&', i);
+        }
+        sb.append(value, i, value.length());
+        return sb.toString();
+    }
+    
+    private int read() throws IOException {
+        if (pushedBack != -1) {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+    
+    private void unread(int c) {
+        pushedBack = c;
+    }
+}
@@ -0,0 +1,200 @@
+package com.bulksender;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.NoSuchProviderException;
+import jakarta.mail.Provider;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+import jdk.jfr.EventType;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+
+/**
+ * The Angus SMTP transport with a {@link FlightEvents} event around each
+ * step of the protocol. {@link #install(Session)} makes a session use it
+ * for "smtp".
+ * 
+ * Connection setup happens inside protocolConnect(), which only exposes
+ * ehlo() and startTLS() as hooks, so it is split at those: the connect
+ * event ends with the first EHLO, the STARTTLS event runs from STARTTLS to
+ * the EHLO after it, and whatever follows the last EHLO is authentication.
+ */
+public class InstrumentedSmtpTransport extends SMTPTransport {
+    private static final Provider PROVIDER = new Provider(Provider.Type.TRANSPORT, "smtp",
+            InstrumentedSmtpTransport.class.getName(), "com.bulksender", null);
+    // Checked before an event is created: events kept in fields escape, so the JIT cannot drop them
+    private static final EventType CONNECT = EventType.getEventType(FlightEvents.SmtpConnect.class);
+    private static final EventType TLS = EventType.getEventType(FlightEvents.SmtpTls.class);
+    private static final EventType AUTH = EventType.getEventType(FlightEvents.SmtpAuth.class);
+    private static final EventType ENVELOPE = EventType.getEventType(FlightEvents.SmtpEnvelope.class);
+    private static final EventType DATA = EventType.getEventType(FlightEvents.SmtpData.class);
+    
+    private String relay;
+    // Recipients of the message being sent, null during connection setup
+    private Address[] recipients;
+    // Events of the steps in progress; only touched under the transport's lock
+    private FlightEvents.SmtpConnect connectEvent;
+    private FlightEvents.SmtpTls tlsEvent;
+    private FlightEvents.SmtpAuth authEvent;
+    private FlightEvents.SmtpEnvelope envelopeEvent;
+    private FlightEvents.SmtpData dataEvent;
+    
+    /**
+     * Constructor called by Session.getTransport().
+     * 
+     * @param session The session
+     * @param urlname The URL name of the service, or null
+     */
+    public InstrumentedSmtpTransport(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+    
+    /**
+     * Makes a session create instrumented transports for "smtp".
+     * 
+     * @param session The session
+     * @return The same session
+     */
+    public static Session install(Session session) {
+        try {
+            session.setProvider(PROVIDER);
+        } catch (NoSuchProviderException e) {
+            // Only thrown for a null provider
+            throw new IllegalStateException(e);
+        }
+        return session;
+    }
+    
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException {
+        relay = host + ":" + (port > 0 ? port : session.getProperty("mail.smtp.port"));
+        recipients = null;
+        connectEvent = begin(CONNECT, FlightEvents.SmtpConnect::new);
+        boolean declined = false;
+        try {
+            boolean connected = super.protocolConnect(host, port, user, password);
+            // Without a password it returns at once, and Transport asks the authenticator and calls again
+            declined = !connected;
+            return connected;
+        } finally {
+            // Connect and STARTTLS are only still open if they failed; AUTH ends here
+            if (!declined) {
+                commit(connectEvent);
+                commit(tlsEvent);
+                if (authEvent != null && Boolean.parseBoolean(session.getProperty("mail.smtp.auth"))
+                        && supportsExtension("AUTH")) {
+                    commit(authEvent);
+                }
+            }
+            connectEvent = null;
+            tlsEvent = null;
+            authEvent = null;
+        }
+    }
+    
+    @Override
+    protected boolean ehlo(String localHost) throws MessagingException {
+        boolean accepted = false;
+        try {
+            accepted = super.ehlo(localHost);
+            return accepted;
+        } finally {
+            // This EHLO ends the connect or STARTTLS step
+            commit(connectEvent);
+            connectEvent = null;
+            commit(tlsEvent);
+            tlsEvent = null;
+            if (accepted) {
+                authEvent = begin(AUTH, FlightEvents.SmtpAuth::new);
+            }
+        }
+    }
+    
+    @Override
+    protected void startTLS() throws MessagingException {
+        authEvent = null;
+        tlsEvent = begin(TLS, FlightEvents.SmtpTls::new);
+        super.startTLS();
+    }
+    
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        recipients = addresses;
+        try {
+            super.sendMessage(message, addresses);
+        } finally {
+            commit(envelopeEvent);
+            envelopeEvent = null;
+            commit(dataEvent);
+            dataEvent = null;
+        }
+    }
+    
+    @Override
+    protected void mailFrom() throws MessagingException {
+        envelopeEvent = begin(ENVELOPE, FlightEvents.SmtpEnvelope::new);
+        super.mailFrom();
+    }
+    
+    @Override
+    protected void rcptTo() throws MessagingException {
+        try {
+            super.rcptTo();
+        } finally {
+            commit(envelopeEvent);
+            envelopeEvent = null;
+        }
+    }
+    
+    @Override
+    protected OutputStream data() throws MessagingException {
+        dataEvent = begin(DATA, FlightEvents.SmtpData::new);
+        return super.data();
+    }
+    
+    @Override
+    protected void finishData() throws IOException, MessagingException {
+        try {
+            super.finishData();
+        } finally {
+            commit(dataEvent);
+            dataEvent = null;
+        }
+    }
+    
+    /**
+     * Creates and begins a step's event if its type is enabled.
+     * 
+     * @return The event, or null if it is disabled
+     */
+    private static <T extends FlightEvents.SmtpPhase> T begin(EventType type, Supplier<T> factory) {
+        if (!type.isEnabled()) {
+            return null;
+        }
+        T event = factory.get();
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Ends a step's event and commits it if it is enabled.
+     */
+    private void commit(FlightEvents.SmtpPhase event) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.relay = relay;
+                if (recipients != null && recipients.length > 0) {
+                    event.domain = DomainThrottle.domainOf(recipients[0].toString());
+                }
+                event.replyCode = getLastReturnCode();
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.bulksender;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Delivers messages built by {@link EmailSender}. The sender checks the
+ * suppression list, builds each message and records its outcome; the
+ * transport only decides where the message goes.
+ * 
+ * Implementations, chosen with the transport property:
+ * - smtp: the configured SMTP relays ({@link SmtpMailTransport}, the default)
+ * - memory: counts messages without sending them ({@link MemoryMailTransport})
+ * - file: writes .eml files to a pickup directory ({@link FileDropMailTransport})
+ * 
+ * Implementations must be safe to call from several send threads at once.
+ */
+public interface MailTransport {
+    
+    /**
+     * Delivers one message to its recipients.
+     * 
+     * @param message The message, with recipients set
+     * @return The reply code of the delivery, or 0 if the transport has none
+     * @throws MessagingException If the message was not delivered
+     */
+    int deliver(MimeMessage message) throws MessagingException;
+    
+    /**
+     * Returns the number of delivery attempts made for the last message
+     * delivered on the calling thread, whether or not it succeeded.
+     * 
+     * @return Attempt count; transports that never retry always make one
+     */
+    default int getLastAttempts() {
+        return 1;
+    }
+    
+    /**
+     * Returns whether delivery is limited by a remote server, so that the
+     * adaptive concurrency limit should probe for its capacity. Local
+     * transports run at the configured maximum concurrency instead.
+     * 
+     * @return true for transports that talk to a server
+     */
+    boolean isRemote();
+    
+    /**
+     * Keeps idle connections from timing out while sending is paused.
+     * Called every few seconds; transports without connections ignore it.
+     */
+    default void keepAlive() {
+        // No connections to keep open
+    }
+    
+    /**
+     * Finishes outstanding work and releases resources.
+     */
+    void close();
+}
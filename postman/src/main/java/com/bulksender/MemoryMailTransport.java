@@ -0,0 +1,66 @@
+package com.bulksender;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Discards messages after fully encoding them, counting messages and bytes.
+ * Used for dry runs and benchmarks: a campaign runs at full speed and
+ * measures the cost of rendering and encoding, without any network.
+ */
+public class MemoryMailTransport implements MailTransport {
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    
+    @Override
+    public int deliver(MimeMessage message) throws MessagingException {
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            // Encode the whole message exactly as it would go on the wire
+            message.writeTo(out);
+        } catch (IOException e) {
+            throw new MessagingException("Cannot encode message", e);
+        }
+        messages.increment();
+        bytes.add(out.count);
+        return 250;
+    }
+    
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+    
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+    
+    public long getMessageCount() {
+        return messages.sum();
+    }
+    
+    public long getByteCount() {
+        return bytes.sum();
+    }
+    
+    /**
+     * Counts bytes written and drops them.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+        
+        @Override
+        public void write(int b) {
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
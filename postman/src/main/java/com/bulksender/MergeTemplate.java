@@ -0,0 +1,151 @@
+package com.bulksender;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A subject or body with {{column}} placeholders, compiled once against a
+ * {@link RecipientTable} and then rendered for each row by copying literal
+ * text and appending the row's values straight from the table.
+ * 
+ * For HTML templates, values are escaped so that merge data such as
+ * "Smith & Sons" cannot break the markup.
+ */
+public class MergeTemplate {
+    private final String[] literals;
+    private final int[] columns;
+    private final boolean escapeHtml;
+    private final int sizeHint;
+    
+    private MergeTemplate(String[] literals, int[] columns, boolean escapeHtml, int sizeHint) {
+        this.literals = literals;
+        this.columns = columns;
+        this.escapeHtml = escapeHtml;
+        this.sizeHint = sizeHint;
+    }
+    
+    /**
+     * Compiles a template. Placeholder names are matched to column names
+     * exactly, or else ignoring case; surrounding spaces are ignored. Text
+     * between "{{" and "}}" is only a placeholder if it is a single line.
+     * 
+     * @param template The template text
+     * @param table The table the template will be rendered from
+     * @param escapeHtml Whether values are HTML-escaped
+     * @return The compiled template
+     * @throws IllegalArgumentException If a placeholder names an unknown column
+     */
+    public static MergeTemplate compile(String template, RecipientTable table, boolean escapeHtml) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> columns = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            int open = template.indexOf("{{", i);
+            int close = open < 0 ? -1 : template.indexOf("}}", open + 2);
+            if (open < 0 || close < 0) {
+                literal.append(template, i, template.length());
+                break;
+            }
+            String name = template.substring(open + 2, close);
+            if (name.indexOf('\n') >= 0 || name.indexOf('{') >= 0) {
+                // Not a placeholder; keep the braces as text
+                literal.append(template, i, open + 2);
+                i = open + 2;
+                continue;
+            }
+            name = name.trim().replaceAll("\\s+", " ");
+            int column = table.getColumnIndex(name);
+            if (column < 0) {
+                throw new IllegalArgumentException("Unknown column in template: {{" + name + "}}. Columns are: " +
+                                                   table.getColumnNames());
+            }
+            literal.append(template, i, open);
+            literals.add(literal.toString());
+            columns.add(column);
+            literal.setLength(0);
+            i = close + 2;
+        }
+        literals.add(literal.toString());
+        
+        int[] columnArray = new int[columns.size()];
+        for (int c = 0; c < columnArray.length; c++) {
+            columnArray[c] = columns.get(c);
+        }
+        return new MergeTemplate(literals.toArray(new String[0]), columnArray, escapeHtml,
+                                 template.length() + 32 * columnArray.length);
+    }
+    
+    /**
+     * Returns whether the template contains any placeholders.
+     * 
+     * @return true if rendering depends on the row
+     */
+    public boolean hasPlaceholders() {
+        return columns.length > 0;
+    }
+    
+    /**
+     * Renders the template for one row.
+     * 
+     * @param table The table the template was compiled against
+     * @param row Row index in the table
+     * @return The rendered text
+     */
+    public String render(RecipientTable table, int row) {
+        StringBuilder out = new StringBuilder(sizeHint);
+        render(table, row, out);
+        return out.toString();
+    }
+    
+    /**
+     * Renders the template for one row into a buffer.
+     * 
+     * @param table The table the template was compiled against
+     * @param row Row index in the table
+     * @param out The buffer to append to
+     */
+    public void render(RecipientTable table, int row, StringBuilder out) {
+        for (int i = 0; i < columns.length; i++) {
+            out.append(literals[i]);
+            int start = out.length();
+            table.appendTo(row, columns[i], out);
+            if (escapeHtml) {
+                escape(out, start);
+            }
+        }
+        out.append(literals[columns.length]);
+    }
+    
+    /**
+     * HTML-escapes the end of the buffer from the given position, in place.
+     */
+    private static void escape(StringBuilder out, int start) {
+        int i = start;
+        while (i < out.length()) {
+            String replacement;
+            switch (out.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&#39;";
+                    break;
+                default:
+                    i++;
+                    continue;
+            }
+            out.replace(i, i + 1, replacement);
+            i += replacement.length();
+        }
+    }
+}
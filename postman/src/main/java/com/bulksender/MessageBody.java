@@ -0,0 +1,270 @@
+package com.bulksender;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Enumeration;
+
+/**
+ * The body of a campaign's messages, converted and encoded once and then
+ * attached to every message.
+ * 
+ * An HTML body becomes multipart/alternative with a text/plain part
+ * generated by {@link HtmlToText} and the text/html part, both
+ * quoted-printable encoded. The complete encoded body, boundaries included,
+ * is built once; every message created by {@link #createMessage} shares
+ * those bytes and writes them out as they are, so nothing is converted,
+ * encoded or parsed again per recipient. A plain-text-only body is a single
+ * text/plain part. Instances are immutable and may be shared between threads.
+ */
+public final class MessageBody {
+    private static final String TEXT_TYPE = "text/plain; charset=utf-8";
+    private static final String HTML_TYPE = "text/html; charset=utf-8";
+    private static final String ENCODING = "quoted-printable";
+    
+    private final String source;
+    private final boolean html;
+    private final String text;
+    private final String contentType;
+    private final String transferEncoding;
+    private final byte[] encodedBody;
+    
+    private MessageBody(String source, boolean html, String text, String contentType, String transferEncoding,
+                        byte[] encodedBody) {
+        this.source = source;
+        this.html = html;
+        this.text = text;
+        this.contentType = contentType;
+        this.transferEncoding = transferEncoding;
+        this.encodedBody = encodedBody;
+    }
+    
+    /**
+     * Prepares an HTML body with a plain-text alternative.
+     * 
+     * @param html The HTML body
+     * @return The prepared body
+     */
+    public static MessageBody html(String html) {
+        return build(html, html, HtmlToText.convert(html));
+    }
+    
+    /**
+     * Prepares a plain-text-only body. HTML markup in it is converted to text
+     * the same way as for the alternative part.
+     * 
+     * @param body The body, which may contain HTML markup
+     * @return The prepared body
+     */
+    public static MessageBody plainText(String body) {
+        return build(body, null, HtmlToText.convert(body));
+    }
+    
+    /**
+     * Wraps a body rendered for one recipient, whose text alternative has
+     * already been produced. It is encoded here and not cached.
+     * 
+     * @param html The HTML body, or null to send plain text only
+     * @param text The plain-text body
+     * @return The prepared body
+     */
+    public static MessageBody rendered(String html, String text) {
+        return build(null, html, text);
+    }
+    
+    private static MessageBody build(String source, String html, String text) {
+        if (html == null) {
+            return new MessageBody(source, false, text, TEXT_TYPE, ENCODING, encode(text));
+        }
+        try {
+            MimeMultipart alternative = new MimeMultipart("alternative");
+            // Least preferred first, as RFC 2046 requires
+            alternative.addBodyPart(part(TEXT_TYPE, encode(text)));
+            alternative.addBodyPart(part(HTML_TYPE, encode(html)));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(html.length() + text.length() + 512);
+            alternative.writeTo(bytes);
+            // Both parts are quoted-printable, so every line of the whole body is 7-bit
+            return new MessageBody(source, true, text, alternative.getContentType(), "7bit", bytes.toByteArray());
+        } catch (MessagingException | IOException e) {
+            // Built in memory from parts that are already encoded
+            throw new IllegalStateException("Cannot build message body", e);
+        }
+    }
+    
+    /**
+     * Returns the plain-text version of the body.
+     * 
+     * @return The converted text
+     */
+    public String getText() {
+        return text;
+    }
+    
+    /**
+     * Returns whether this body was prepared from the given source in the given mode.
+     * 
+     * @param body The body text passed by the caller
+     * @param html Whether an HTML body was requested
+     * @return true if this instance can be reused for it
+     */
+    public boolean matches(String body, boolean html) {
+        // Sends of one campaign pass the same String instance, which equals() checks first
+        return source != null && this.html == html && source.equals(body);
+    }
+    
+    /**
+     * Creates a message with this body. The caller adds the sender,
+     * recipients and subject.
+     * 
+     * @param session The mail session
+     * @return The new message
+     * @throws MessagingException If the content headers cannot be set
+     */
+    public MimeMessage createMessage(Session session) throws MessagingException {
+        return new PreparedMessage(session, contentType, transferEncoding, encodedBody);
+    }
+    
+    /**
+     * Encodes a message created by {@link #createMessage} in full, headers
+     * included, so that transmitting it only copies bytes. Setting a header
+     * afterwards discards the encoding. Other messages are left as they are.
+     * 
+     * @param message The message, with sender, recipients and subject set
+     * @throws MessagingException If the headers cannot be encoded
+     */
+    public static void preEncode(MimeMessage message) throws MessagingException {
+        if (message instanceof PreparedMessage) {
+            ((PreparedMessage) message).encode();
+        }
+    }
+    
+    private static MimeBodyPart part(String contentType, byte[] encoded) throws MessagingException {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", contentType);
+        headers.setHeader("Content-Transfer-Encoding", ENCODING);
+        return new MimeBodyPart(headers, encoded);
+    }
+    
+    private static byte[] encode(String content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length() + content.length() / 8);
+        try (OutputStream out = MimeUtility.encode(bytes, ENCODING)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | MessagingException e) {
+            // Encoding into memory cannot fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * A message whose content is an already encoded body. Jakarta Mail looks
+     * its stream provider up through ServiceLoader whenever it creates a body
+     * part or writes one out, which cost more than the rest of building a
+     * message. So the content headers are set here, the body is never parsed
+     * into parts, and writeTo copies the header lines and the body itself.
+     */
+    private static final class PreparedMessage extends MimeMessage {
+        // The whole message as writeTo writes it, after encode(); dropped when a header changes
+        private byte[] encoded;
+        
+        PreparedMessage(Session session, String contentType, String transferEncoding, byte[] body)
+                throws MessagingException {
+            super(session);
+            // Shared between messages and never modified
+            this.content = body;
+            setHeader("Content-Type", contentType);
+            setHeader("Content-Transfer-Encoding", transferEncoding);
+        }
+        
+        /**
+         * Sets the headers saveChanges() adds, leaving out the content header
+         * update, which would parse a multipart body back into parts.
+         */
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            setHeader("MIME-Version", "1.0");
+            if (getHeader("Date") == null) {
+                setSentDate(new Date());
+            }
+            updateMessageID();
+        }
+        
+        void encode() throws MessagingException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length + 1024);
+            try {
+                writeTo(bytes, null);
+            } catch (IOException e) {
+                // Writing into memory cannot fail
+                throw new IllegalStateException(e);
+            }
+            encoded = bytes.toByteArray();
+        }
+        
+        @Override
+        public void setHeader(String name, String value) throws MessagingException {
+            encoded = null;
+            super.setHeader(name, value);
+        }
+        
+        @Override
+        public void addHeader(String name, String value) throws MessagingException {
+            encoded = null;
+            super.addHeader(name, value);
+        }
+        
+        @Override
+        public void removeHeader(String name) throws MessagingException {
+            encoded = null;
+            super.removeHeader(name);
+        }
+        
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            if (encoded != null && !hasAny(ignoreList)) {
+                os.write(encoded);
+                os.flush();
+                return;
+            }
+            if (!saved) {
+                saveChanges();
+            }
+            StringBuilder head = new StringBuilder(512);
+            Enumeration<String> lines = getNonMatchingHeaderLines(ignoreList);
+            while (lines.hasMoreElements()) {
+                head.append(lines.nextElement()).append("\r\n");
+            }
+            head.append("\r\n");
+            // Header values are already MIME-encoded unless the session allows UTF-8 headers
+            boolean allowUtf8 = Boolean.parseBoolean(session.getProperty("mail.mime.allowutf8"));
+            Charset charset = allowUtf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+            os.write(head.toString().getBytes(charset));
+            os.write(content);
+            os.flush();
+        }
+        
+        /**
+         * Returns whether the message has any of the headers writeTo is to
+         * leave out, such as Bcc for SMTP, which the encoding includes.
+         */
+        private boolean hasAny(String[] names) throws MessagingException {
+            if (names != null) {
+                for (String name : names) {
+                    if (getHeader(name) != null) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.bulksender;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-running sender that drains an {@link OutboxSpool} through the bulk
+ * send lane, at the rate the lanes allow it. Up to {@link #WINDOW_SIZE}
+ * messages are in flight at once, so the drain runs at the lanes'
+ * concurrency limit over pooled connections. Messages are acknowledged in
+ * outbox order once they and every message before them have been handed
+ * to the SMTP server (or have failed permanently), so a restarted sender
+ * resumes where the previous one stopped, resending at most the messages
+ * that were in flight.
+ */
+public class OutboxSender implements Runnable {
+    private static final Logger logger = Logger.getLogger(OutboxSender.class.getName());
+    
+    /** Most messages read from the outbox and not yet acknowledged. */
+    public static final int WINDOW_SIZE = 256;
+    
+    // How long to wait before polling again when the outbox is empty
+    private static final long IDLE_POLL_MILLIS = 500;
+    
+    private final OutboxSpool spool;
+    private final EmailSender emailSender;
+    private final Map<Long, Campaign> campaigns = new HashMap<>();
+    // Campaigns whose file could not be loaded; their messages fail without being sent
+    private final Set<Long> brokenCampaigns = new HashSet<>();
+    private final Map<Long, CampaignProgress> progress = new ConcurrentHashMap<>();
+    // Messages submitted and not yet acknowledged, in outbox order; only used by the drain thread
+    private final ArrayDeque<InFlight> window = new ArrayDeque<>();
+    // Notified by send threads whenever a message finishes
+    private final Object finished = new Object();
+    
+    private volatile boolean running = true;
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    
+    /**
+     * A message handed to the send lanes.
+     */
+    private static final class InFlight {
+        final OutboxSpool.Entry entry;
+        volatile boolean done = false;
+        
+        InFlight(OutboxSpool.Entry entry) {
+            this.entry = entry;
+        }
+    }
+    
+    /**
+     * Creates a sender for the given outbox.
+     * 
+     * @param spool The outbox to drain
+     * @param emailSender An initialized EmailSender, whose send lanes apply the configured send rate
+     */
+    public OutboxSender(OutboxSpool spool, EmailSender emailSender) {
+        this.spool = spool;
+        this.emailSender = emailSender;
+    }
+    
+    /**
+     * Drains the outbox until {@link #stop()} is called.
+     */
+    @Override
+    public void run() {
+        logger.info("Outbox sender started");
+        
+        try {
+            while (running) {
+                acknowledgeFinished();
+                if (window.size() >= WINDOW_SIZE) {
+                    awaitOldest(IDLE_POLL_MILLIS);
+                    continue;
+                }
+                
+                OutboxSpool.Entry entry = spool.poll();
+                if (entry == null) {
+                    if (window.isEmpty()) {
+                        Thread.sleep(IDLE_POLL_MILLIS);
+                    } else {
+                        awaitOldest(IDLE_POLL_MILLIS);
+                    }
+                    continue;
+                }
+                
+                if (!submit(entry)) {
+                    break;
+                }
+            }
+            
+            // Let the messages in flight finish so that they are acknowledged
+            while (!window.isEmpty()) {
+                awaitOldest(IDLE_POLL_MILLIS);
+                acknowledgeFinished();
+            }
+        } catch (InterruptedException e) {
+            // Unfinished messages stay unacknowledged and are sent again by the next run
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The spool itself cannot be read or acknowledged
+            logger.log(Level.SEVERE, "Outbox read error: " + e.getMessage(), e);
+        }
+        
+        logger.info("Outbox sender stopped. Sent: " + sentCount + ", Failures: " + failedCount);
+    }
+    
+    /**
+     * Requests the sender to stop reading the outbox. It returns from
+     * {@link #run()} once the messages in flight have finished.
+     */
+    public void stop() {
+        running = false;
+    }
+    
+    public long getSentCount() {
+        return sentCount.get();
+    }
+    
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+    
+    /**
+     * Returns the progress counters for a campaign, creating them if needed.
+     * Safe to call from any thread while the sender is running.
+     * 
+     * @param campaignId The campaign id
+     * @return The campaign's progress counters
+     */
+    public CampaignProgress getProgress(long campaignId) {
+        return progress.computeIfAbsent(campaignId, CampaignProgress::new);
+    }
+    
+    /**
+     * Returns the progress counters of every campaign seen by this sender.
+     * 
+     * @return Campaign id to progress counters
+     */
+    public Map<Long, CampaignProgress> getAllProgress() {
+        return progress;
+    }
+    
+    /**
+     * Hands a message to the bulk lane, blocking while the lane is full.
+     * 
+     * @return false if the sender has been closed and the drain must stop
+     */
+    private boolean submit(OutboxSpool.Entry entry) throws InterruptedException {
+        InFlight message = new InFlight(entry);
+        window.addLast(message);
+        
+        Campaign campaign;
+        try {
+            campaign = campaignOf(entry);
+        } catch (IOException e) {
+            // Only this campaign's messages are affected; the rest of the outbox goes on
+            finish(message, e);
+            return true;
+        }
+        
+        try {
+            emailSender.submitEmail(SendLanes.Lane.BULK, entry.getRecipient(), campaign.getSubject(),
+                                    campaign.getBody(), error -> finish(message, error));
+            return true;
+        } catch (IllegalStateException e) {
+            // Not sent; left unacknowledged for the next run
+            window.removeLast();
+            logger.warning("Outbox sender stopping: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Records the outcome of a message and marks it for acknowledgement.
+     * Called on a send thread, or on the drain thread for a message that
+     * was never submitted.
+     */
+    private void finish(InFlight message, Exception error) {
+        OutboxSpool.Entry entry = message.entry;
+        CampaignProgress campaignProgress = getProgress(entry.getCampaignId());
+        if (error == null) {
+            sentCount.incrementAndGet();
+            campaignProgress.recordSent();
+        } else {
+            failedCount.incrementAndGet();
+            campaignProgress.recordFailed();
+        }
+        emailSender.logResult(entry.getRecipient(), error);
+        synchronized (finished) {
+            message.done = true;
+            finished.notifyAll();
+        }
+    }
+    
+    /**
+     * Acknowledges the finished messages at the head of the window, up to
+     * the first one still in flight.
+     */
+    private void acknowledgeFinished() throws IOException {
+        OutboxSpool.Entry last = null;
+        while (!window.isEmpty() && window.peekFirst().done) {
+            last = window.pollFirst().entry;
+        }
+        if (last != null) {
+            spool.acknowledge(last);
+        }
+    }
+    
+    /**
+     * Waits until the oldest message in flight has finished, or for at most a timeout.
+     */
+    private void awaitOldest(long timeoutMillis) throws InterruptedException {
+        InFlight oldest = window.peekFirst();
+        if (oldest == null) {
+            return;
+        }
+        synchronized (finished) {
+            if (!oldest.done) {
+                finished.wait(timeoutMillis);
+            }
+        }
+    }
+    
+    /**
+     * Returns the campaign of an entry, loading it on first use.
+     * 
+     * @throws IOException If the campaign file is missing or damaged
+     */
+    private Campaign campaignOf(OutboxSpool.Entry entry) throws IOException {
+        long campaignId = entry.getCampaignId();
+        Campaign campaign = campaigns.get(campaignId);
+        if (campaign != null) {
+            return campaign;
+        }
+        if (brokenCampaigns.contains(campaignId)) {
+            throw new IOException("Campaign " + campaignId + " cannot be loaded");
+        }
+        try {
+            campaign = spool.loadCampaign(campaignId);
+        } catch (IOException e) {
+            brokenCampaigns.add(campaignId);
+            logger.severe("Cannot load campaign " + campaignId + ", its messages will fail: " + e.getMessage());
+            throw e;
+        }
+        campaigns.put(campaignId, campaign);
+        return campaign;
+    }
+}
@@ -0,0 +1,491 @@
+package com.bulksender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Persistent, disk-backed outbox of messages waiting to be sent.
+ * 
+ * Messages are appended sequentially to fixed-size segment files and read
+ * back through memory-mapped buffers. Each message is a small record that
+ * references its campaign by id, so the subject and body are stored only once.
+ * Progress is tracked by a single acknowledged offset, which means the queue
+ * survives restarts: a new reader resumes from the last acknowledged message.
+ * 
+ * Record layout: [int payloadLength][long campaignId][UTF-8 recipient bytes]
+ * 
+ * One process may write at a time (guarded by a file lock); a reader in
+ * another process picks up new records as the segment files grow.
+ */
+public class OutboxSpool implements Closeable {
+    private static final Logger logger = Logger.getLogger(OutboxSpool.class.getName());
+    
+    /** Maximum size of a single segment file. Offsets are derived from it. */
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ACK_FILE = "outbox.ack";
+    private static final String LOCK_FILE = "outbox.lock";
+    private static final String CAMPAIGN_DIR = "campaigns";
+    private static final int HEADER_SIZE = 4;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final int ACK_SYNC_INTERVAL = 1000;
+    
+    private final Path directory;
+    private final FileChannel ackChannel;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(8);
+    private long ackedOffset;
+    private int unsyncedAcks = 0;
+    
+    // Writer state (only set after openWriter())
+    private FileChannel lockChannel;
+    private FileLock writerLock;
+    private FileChannel writeChannel;
+    private ByteBuffer writeBuffer;
+    private long writeSegment;
+    private long writePosition;
+    
+    // Reader state
+    private FileChannel readChannel;
+    private MappedByteBuffer readMap;
+    private long readSegment;
+    private int readPosition;
+    
+    /**
+     * A single queued message read back from the outbox.
+     */
+    public static class Entry {
+        private final long campaignId;
+        private final String recipient;
+        private final long offset;
+        private final long nextOffset;
+        
+        Entry(long campaignId, String recipient, long offset, long nextOffset) {
+            this.campaignId = campaignId;
+            this.recipient = recipient;
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+        }
+        
+        public long getCampaignId() {
+            return campaignId;
+        }
+        
+        public String getRecipient() {
+            return recipient;
+        }
+        
+        public long getOffset() {
+            return offset;
+        }
+        
+        public long getNextOffset() {
+            return nextOffset;
+        }
+    }
+    
+    /**
+     * Opens (or creates) an outbox in the given directory for reading.
+     * Call {@link #openWriter()} before appending messages.
+     * 
+     * @param directory Directory holding the segment files
+     * @throws IOException If the directory cannot be created or read
+     */
+    public OutboxSpool(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory.resolve(CAMPAIGN_DIR));
+        
+        this.ackChannel = FileChannel.open(this.directory.resolve(ACK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.ackedOffset = readAckedOffset();
+        this.readSegment = ackedOffset / SEGMENT_SIZE;
+        this.readPosition = (int) (ackedOffset % SEGMENT_SIZE);
+        
+        logger.info("Outbox opened at " + this.directory.toAbsolutePath() +
+                    " (acknowledged offset: " + ackedOffset + ")");
+    }
+    
+    /**
+     * Acquires the writer lock and positions the writer at the end of the newest
+     * segment. A partially written record left by a crash is truncated.
+     * Blocks while another process holds the writer lock.
+     * 
+     * @throws IOException If the lock or segment files cannot be opened
+     */
+    public synchronized void openWriter() throws IOException {
+        if (writeChannel != null) {
+            return;
+        }
+        
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        writerLock = lockChannel.lock();
+        
+        List<Long> segments = listSegments();
+        writeSegment = segments.isEmpty() ? ackedOffset / SEGMENT_SIZE : segments.get(segments.size() - 1);
+        writeChannel = FileChannel.open(segmentPath(writeSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        writePosition = findValidEnd(writeChannel);
+        if (writeChannel.size() > writePosition) {
+            logger.warning("Truncating incomplete record in segment " + writeSegment +
+                           " at position " + writePosition);
+            writeChannel.truncate(writePosition);
+        }
+        writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    }
+    
+    /**
+     * Stores campaign content so that queued records can reference it by id.
+     * 
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     * @return The stored campaign
+     * @throws IOException If the campaign file cannot be written
+     */
+    public synchronized Campaign createCampaign(String subject, String body) throws IOException {
+        long id = System.currentTimeMillis();
+        while (Files.exists(campaignPath(id))) {
+            id++;
+        }
+        Campaign campaign = new Campaign(id, subject, body);
+        campaign.save(campaignPath(id));
+        return campaign;
+    }
+    
+    /**
+     * Loads a campaign previously stored with {@link #createCampaign(String, String)}.
+     * 
+     * @param campaignId The campaign id
+     * @return The campaign content
+     * @throws IOException If the campaign file cannot be read
+     */
+    public Campaign loadCampaign(long campaignId) throws IOException {
+        return Campaign.load(campaignPath(campaignId));
+    }
+    
+    /**
+     * Appends a message to the outbox. Records are buffered and written in
+     * large batches; call {@link #flush()} to make them durable.
+     * 
+     * @param campaignId The campaign the message belongs to
+     * @param recipient The recipient's email address
+     * @throws IOException If the segment file cannot be written
+     */
+    public synchronized void append(long campaignId, String recipient) throws IOException {
+        if (writeChannel == null) {
+            throw new IllegalStateException("openWriter() must be called before appending");
+        }
+        
+        byte[] address = recipient.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 8 + address.length;
+        int recordLength = HEADER_SIZE + payloadLength;
+        
+        if (recordLength > WRITE_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Recipient address is too long: " + address.length + " bytes");
+        }
+        
+        if (writePosition + writeBuffer.position() + recordLength > SEGMENT_SIZE) {
+            rollSegment();
+        }
+        if (writeBuffer.remaining() < recordLength) {
+            writeBufferedRecords();
+        }
+        
+        writeBuffer.putInt(payloadLength);
+        writeBuffer.putLong(campaignId);
+        writeBuffer.put(address);
+    }
+    
+    /**
+     * Writes all buffered records and forces them to disk.
+     * 
+     * @throws IOException If the segment file cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (writeChannel == null) {
+            return;
+        }
+        writeBufferedRecords();
+        writeChannel.force(false);
+    }
+    
+    /**
+     * Returns the next unread message, or null if the outbox is currently drained.
+     * Reading does not acknowledge the message; see {@link #acknowledge(Entry)}.
+     * 
+     * @return The next message or null
+     * @throws IOException If a segment file cannot be read
+     */
+    public synchronized Entry poll() throws IOException {
+        while (true) {
+            if (readMap == null && !mapReadSegment()) {
+                return null;
+            }
+            
+            if (readPosition + HEADER_SIZE <= readMap.limit()) {
+                int payloadLength = readMap.getInt(readPosition);
+                if (payloadLength < 8 || payloadLength > SEGMENT_SIZE) {
+                    throw new IOException("Corrupt outbox record in segment " + readSegment +
+                                          " at position " + readPosition);
+                }
+                if (readPosition + HEADER_SIZE + payloadLength <= readMap.limit()) {
+                    return readEntry(payloadLength);
+                }
+            }
+            
+            // No complete record in the mapped region: remap if the file grew
+            long size = readChannel.size();
+            if (size > readMap.limit()) {
+                remapReadSegment(size);
+                continue;
+            }
+            
+            // The writer moves on to a new segment only after finishing this one
+            if (Files.exists(segmentPath(readSegment + 1)) && readChannel.size() == readMap.limit()) {
+                closeReadSegment();
+                readSegment++;
+                readPosition = 0;
+                continue;
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Marks a message and every message before it as processed. The offset is
+     * persisted so that a restarted reader resumes after it, and segments that
+     * are fully acknowledged are deleted.
+     * 
+     * @param entry The last processed message
+     * @throws IOException If the acknowledgement cannot be written
+     */
+    public synchronized void acknowledge(Entry entry) throws IOException {
+        long previousSegment = ackedOffset / SEGMENT_SIZE;
+        ackedOffset = entry.getNextOffset();
+        
+        ackBuffer.clear();
+        ackBuffer.putLong(ackedOffset);
+        ackBuffer.flip();
+        ackChannel.write(ackBuffer, 0);
+        
+        if (++unsyncedAcks >= ACK_SYNC_INTERVAL) {
+            ackChannel.force(false);
+            unsyncedAcks = 0;
+        }
+        
+        long currentSegment = ackedOffset / SEGMENT_SIZE;
+        if (currentSegment > previousSegment) {
+            for (Long segment : listSegments()) {
+                if (segment < currentSegment) {
+                    Files.deleteIfExists(segmentPath(segment));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Counts the messages that have been queued but not yet acknowledged.
+     * Walks the record headers on disk, so the result is accurate across
+     * restarts and across processes.
+     * 
+     * @return Number of pending messages
+     * @throws IOException If a segment file cannot be read
+     */
+    public synchronized long getDepth() throws IOException {
+        if (writeChannel != null) {
+            writeBufferedRecords();
+        }
+        
+        long depth = 0;
+        long ackSegment = ackedOffset / SEGMENT_SIZE;
+        for (Long segment : listSegments()) {
+            if (segment < ackSegment) {
+                continue;
+            }
+            int start = segment == ackSegment ? (int) (ackedOffset % SEGMENT_SIZE) : 0;
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int position = start;
+                while (position + HEADER_SIZE <= map.limit()) {
+                    int payloadLength = map.getInt(position);
+                    if (payloadLength < 8 || position + HEADER_SIZE + payloadLength > map.limit()) {
+                        break;
+                    }
+                    position += HEADER_SIZE + payloadLength;
+                    depth++;
+                }
+            }
+        }
+        return depth;
+    }
+    
+    /**
+     * Returns the acknowledged offset.
+     * 
+     * @return Offset of the first unprocessed record
+     */
+    public synchronized long getAckedOffset() {
+        return ackedOffset;
+    }
+    
+    /**
+     * Flushes pending writes and acknowledgements and releases all files.
+     * 
+     * @throws IOException If the outbox cannot be flushed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (writeChannel != null) {
+                flush();
+                writeChannel.close();
+                writeChannel = null;
+            }
+            ackChannel.force(false);
+            ackChannel.close();
+            closeReadSegment();
+        } finally {
+            if (writerLock != null) {
+                writerLock.release();
+                lockChannel.close();
+                writerLock = null;
+            }
+        }
+    }
+    
+    private void writeBufferedRecords() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            writePosition += writeChannel.write(writeBuffer, writePosition);
+        }
+        writeBuffer.clear();
+    }
+    
+    private void rollSegment() throws IOException {
+        writeBufferedRecords();
+        writeChannel.force(false);
+        writeChannel.close();
+        
+        writeSegment++;
+        writePosition = 0;
+        writeChannel = FileChannel.open(segmentPath(writeSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    private Entry readEntry(int payloadLength) {
+        long campaignId = readMap.getLong(readPosition + HEADER_SIZE);
+        byte[] address = new byte[payloadLength - 8];
+        ByteBuffer view = readMap.duplicate();
+        view.position(readPosition + HEADER_SIZE + 8);
+        view.get(address);
+        
+        long offset = readSegment * SEGMENT_SIZE + readPosition;
+        readPosition += HEADER_SIZE + payloadLength;
+        return new Entry(campaignId, new String(address, StandardCharsets.UTF_8),
+                         offset, readSegment * SEGMENT_SIZE + readPosition);
+    }
+    
+    private boolean mapReadSegment() throws IOException {
+        Path path = segmentPath(readSegment);
+        if (!Files.exists(path)) {
+            // The acknowledged segment may not exist yet, or an older one was removed
+            List<Long> segments = listSegments();
+            Long next = null;
+            for (Long segment : segments) {
+                if (segment > readSegment) {
+                    next = segment;
+                    break;
+                }
+            }
+            if (next == null) {
+                return false;
+            }
+            readSegment = next;
+            readPosition = 0;
+            path = segmentPath(readSegment);
+        }
+        readChannel = FileChannel.open(path, StandardOpenOption.READ);
+        remapReadSegment(readChannel.size());
+        return true;
+    }
+    
+    private void remapReadSegment(long size) throws IOException {
+        readMap = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    
+    private void closeReadSegment() throws IOException {
+        readMap = null;
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+    }
+    
+    private long findValidEnd(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int position = 0;
+        while (position + HEADER_SIZE <= map.limit()) {
+            int payloadLength = map.getInt(position);
+            if (payloadLength < 8 || position + HEADER_SIZE + payloadLength > map.limit()) {
+                break;
+            }
+            position += HEADER_SIZE + payloadLength;
+        }
+        return position;
+    }
+    
+    private long readAckedOffset() throws IOException {
+        if (ackChannel.size() < 8) {
+            return 0;
+        }
+        ackBuffer.clear();
+        while (ackBuffer.hasRemaining() && ackChannel.read(ackBuffer, ackBuffer.position()) > 0) {
+            // keep reading until 8 bytes are in
+        }
+        ackBuffer.flip();
+        return ackBuffer.getLong();
+    }
+    
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring unexpected file in outbox: " + name);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%012d%s", segment, SEGMENT_SUFFIX));
+    }
+    
+    private Path campaignPath(long campaignId) {
+        return directory.resolve(CAMPAIGN_DIR).resolve(campaignId + ".properties");
+    }
+}
@@ -0,0 +1,300 @@
+package com.bulksender;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous, batched log of per-message send outcomes.
+ * 
+ * Send threads only hand a small record to a bounded queue; a background
+ * writer formats the records as JSON lines and writes them in batches.
+ * When the queue is full, the configured {@link OverflowPolicy} decides
+ * what happens instead of letting the send threads wait on disk I/O.
+ * 
+ * Each line looks like:
+ * {"ts":1700000000000,"recipient":"a@example.com","status":"sent","code":250,"latencyMicros":1234}
+ */
+public class OutcomeLog {
+    private static final Logger logger = Logger.getLogger(OutcomeLog.class.getName());
+    
+    public static final int DEFAULT_QUEUE_SIZE = 65536;
+    private static final int MAX_BATCH = 4096;
+    private static final long POLL_MILLIS = 200;
+    
+    /**
+     * What to do with a new record when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the new record and count it. Sending never waits. */
+        DROP,
+        /** Discard the oldest queued record to make room. Sending never waits. */
+        DROP_OLDEST,
+        /** Wait for room in the queue. No records are lost, but sending slows to disk speed. */
+        BLOCK;
+        
+        /**
+         * Parses a policy name such as "drop", "drop-oldest" or "block".
+         * 
+         * @param value The policy name
+         * @return The matching policy
+         * @throws IllegalArgumentException If the name is unknown
+         */
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+    
+    /**
+     * One queued outcome record.
+     */
+    private static class Outcome {
+        final long timestampMillis;
+        final String recipient;
+        final boolean sent;
+        final int replyCode;
+        final long latencyNanos;
+        final String error;
+        
+        Outcome(long timestampMillis, String recipient, boolean sent, int replyCode,
+                long latencyNanos, String error) {
+            this.timestampMillis = timestampMillis;
+            this.recipient = recipient;
+            this.sent = sent;
+            this.replyCode = replyCode;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+    }
+    
+    private final Path path;
+    private final OverflowPolicy policy;
+    private final BlockingQueue<Outcome> queue;
+    private final BufferedWriter writer;
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile boolean writerAlive = true;
+    private long reportedDropped = 0;
+    
+    /**
+     * Opens (appending to) the outcome log file and starts the writer thread.
+     * 
+     * @param filePath Path of the JSON lines file
+     * @param queueSize Capacity of the handoff queue
+     * @param policy Behaviour when the queue is full
+     * @throws IOException If the file cannot be opened
+     */
+    public OutcomeLog(String filePath, int queueSize, OverflowPolicy policy) throws IOException {
+        this.path = Paths.get(filePath);
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        
+        this.writerThread = new Thread(this::writeLoop, "outcome-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        logger.info("Writing send outcomes to: " + path.toAbsolutePath() + " (overflow policy: " + policy + ")");
+    }
+    
+    /**
+     * Records one outcome. Never blocks unless the policy is BLOCK, and not
+     * even then once the writer has stopped: after a write failure or
+     * {@link #close()} records are dropped and counted instead.
+     * 
+     * @param recipient The recipient's email address
+     * @param sent Whether the message was accepted
+     * @param replyCode SMTP reply code, or 0
+     * @param latencyNanos Time spent sending the message
+     * @param error Error description for failures, otherwise null
+     */
+    public void record(String recipient, boolean sent, int replyCode, long latencyNanos, String error) {
+        if (!writerAlive) {
+            dropped.incrementAndGet();
+            return;
+        }
+        Outcome outcome = new Outcome(System.currentTimeMillis(), recipient, sent, replyCode, latencyNanos, error);
+        if (queue.offer(outcome)) {
+            discardIfOrphaned(outcome);
+            return;
+        }
+        
+        switch (policy) {
+            case BLOCK:
+                try {
+                    // Wait in slices so a writer that dies meanwhile cannot park us forever
+                    while (!queue.offer(outcome, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (!writerAlive) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                    }
+                    discardIfOrphaned(outcome);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(outcome)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                dropped.incrementAndGet();
+                break;
+        }
+    }
+    
+    /**
+     * Counts a record as dropped if the writer stopped while it was being
+     * queued, so that nothing is left behind in a queue no one drains.
+     */
+    private void discardIfOrphaned(Outcome outcome) {
+        if (!writerAlive && queue.remove(outcome)) {
+            dropped.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Returns the number of records discarded because the queue was full
+     * or the writer had stopped.
+     * 
+     * @return Dropped record count
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    /**
+     * Returns the number of records written to the file.
+     * 
+     * @return Written record count
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+    
+    /**
+     * Writes all queued records and closes the file.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void writeLoop() {
+        List<Outcome> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder sb = new StringBuilder(256 * 1024);
+        
+        try {
+            while (running || !queue.isEmpty()) {
+                Outcome first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Outcome outcome : batch) {
+                        format(outcome, sb);
+                    }
+                }
+                appendDroppedNotice(sb);
+                
+                if (sb.length() > 0) {
+                    writer.write(sb.toString());
+                    writer.flush();
+                    written.addAndGet(batch.size());
+                    sb.setLength(0);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.severe("Outcome log write failed, no further outcomes will be written: " + e.getMessage());
+        } finally {
+            writerAlive = false;
+            while (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warning("Error closing outcome log: " + e.getMessage());
+            }
+        }
+    }
+    
+    private void appendDroppedNotice(StringBuilder sb) {
+        long total = dropped.get();
+        if (total > reportedDropped) {
+            sb.append("{\"ts\":").append(System.currentTimeMillis())
+              .append(",\"status\":\"dropped\",\"count\":").append(total - reportedDropped).append("}\n");
+            reportedDropped = total;
+        }
+    }
+    
+    private static void format(Outcome outcome, StringBuilder sb) {
+        sb.append("{\"ts\":").append(outcome.timestampMillis)
+          .append(",\"recipient\":");
+        appendJsonString(outcome.recipient, sb);
+        sb.append(",\"status\":\"").append(outcome.sent ? "sent" : "failed").append('"')
+          .append(",\"code\":").append(outcome.replyCode)
+          .append(",\"latencyMicros\":").append(outcome.latencyNanos / 1000);
+        if (outcome.error != null) {
+            sb.append(",\"error\":");
+            appendJsonString(outcome.error, sb);
+        }
+        sb.append("}\n");
+    }
+    
+    private static void appendJsonString(String value, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
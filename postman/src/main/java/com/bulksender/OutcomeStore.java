@@ -0,0 +1,841 @@
+package com.bulksender;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Embedded store of per-message delivery outcomes, for reports such as
+ * "which addresses failed with 550 in last Tuesday's campaign".
+ * 
+ * The sender calls it from its sending threads, so every outcome is stored
+ * however busy the run is. Each message is one fixed-width 32-byte record
+ * appended to the current segment file: recipient hash, timestamp,
+ * campaign, latency, reply code, attempt count and status. Records are
+ * buffered and written about once a second while messages are sent, at the
+ * end of every run and on close. Every bulk run is a campaign, numbered
+ * from 1 and listed in the campaigns file; messages sent outside a run are
+ * filed under {@link #NO_CAMPAIGN}.
+ * 
+ * A segment is sealed after {@link #SEGMENT_RECORDS} records, or when the
+ * store is closed, by writing a secondary index next to it: for every
+ * campaign and every reply code, the sorted positions of its records.
+ * A full segment is sealed on a background thread while the senders go on
+ * appending to the next one; a seal cut short by a crash is redone when the
+ * store is next opened.
+ * A query for a campaign and a reply code intersects two of these lists per
+ * segment and reads only the matching records, so reports over tens of
+ * millions of records take milliseconds. The unsealed tail segment is
+ * scanned. {@link Reader} maps segments read-only and can be used by any
+ * process while one writer appends.
+ * 
+ * Addresses are stored as 64-bit hashes (see {@link SuppressionList}), not
+ * in clear; a report resolves them against the recipients list.
+ */
+public class OutcomeStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(OutcomeStore.class.getName());
+    
+    /** Campaign of messages sent outside a bulk run. */
+    public static final int NO_CAMPAIGN = 0;
+    /** Matches any campaign or reply code in a query. */
+    public static final int ANY = -1;
+    public static final int SEGMENT_RECORDS = 1 << 20;
+    
+    // "OUTD" and "OUTI"
+    private static final int DATA_MAGIC = 0x4F555444;
+    private static final int INDEX_MAGIC = 0x4F555449;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 32;
+    private static final int WRITE_BUFFER_RECORDS = 2048;
+    private static final long FLUSH_MILLIS = 1000;
+    private static final String CAMPAIGNS_FILE = "campaigns";
+    private static final String LOCK_FILE = "lock";
+    private static final DateTimeFormatter CAMPAIGN_NAME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * WRITE_BUFFER_RECORDS);
+    private final int recordsPerSegment;
+    private final ExecutorService sealer;
+    private FileChannel segment;
+    private int segmentNumber;
+    // Records in the current segment, including buffered ones
+    private int segmentRecords;
+    private long lastFlushMillis = System.currentTimeMillis();
+    private int campaign = NO_CAMPAIGN;
+    private int lastCampaign;
+    private long lostCount = 0;
+    private boolean writeFailed;
+    
+    /**
+     * Opens a store for appending, creating the directory if needed, and
+     * continues the last segment if it was not sealed.
+     * 
+     * @param directory The store directory
+     * @throws IOException If the store cannot be opened or another process is writing to it
+     */
+    public OutcomeStore(Path directory) throws IOException {
+        this(directory, SEGMENT_RECORDS);
+    }
+    
+    /**
+     * Opens a store that seals a segment after the given number of records.
+     * 
+     * @param directory The store directory
+     * @param recordsPerSegment Records per segment
+     * @throws IOException If the store cannot be opened or another process is writing to it
+     */
+    OutcomeStore(Path directory, int recordsPerSegment) throws IOException {
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        Files.createDirectories(directory);
+        
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Outcome store is in use by another sender: " + directory);
+        }
+        lock = acquired;
+        
+        try {
+            for (Reader.CampaignEntry entry : readCampaigns(directory)) {
+                lastCampaign = Math.max(lastCampaign, entry.getId());
+            }
+            List<Integer> segments = listSegments(directory);
+            int last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+            for (int number : segments) {
+                if (number != last && !Files.exists(indexPath(directory, number))) {
+                    // A full segment whose seal was cut short
+                    writeIndex(dataPath(directory, number), indexPath(directory, number));
+                }
+            }
+            if (last > 0 && !Files.exists(indexPath(directory, last))) {
+                openSegment(last);
+            } else {
+                openSegment(last + 1);
+            }
+        } catch (IOException e) {
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+        sealer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "outcome-store-sealer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Makes the given segment the current one. The previous one is left
+     * untouched if the new one cannot be opened.
+     */
+    private void openSegment(int number) throws IOException {
+        FileChannel channel = FileChannel.open(dataPath(directory, number), StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int records;
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(DATA_MAGIC).putInt(VERSION).putLong(0).flip();
+                channel.write(header, 0);
+                size = HEADER_SIZE;
+            }
+            // A record cut short by a crash is dropped
+            records = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+            channel.truncate(HEADER_SIZE + (long) records * RECORD_SIZE);
+            channel.position(HEADER_SIZE + (long) records * RECORD_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        segment = channel;
+        segmentNumber = number;
+        segmentRecords = records;
+    }
+    
+    /**
+     * Starts a campaign: the messages recorded until endCampaign() belong to it.
+     * 
+     * @param total The number of recipients the run was started with
+     */
+    public synchronized void startCampaign(int total) {
+        long now = System.currentTimeMillis();
+        try {
+            flush();
+            campaign = ++lastCampaign;
+            String line = campaign + "\t" + now + "\t" + total + "\t" +
+                          CAMPAIGN_NAME.format(Instant.ofEpochMilli(now)) + "\n";
+            Files.write(directory.resolve(CAMPAIGNS_FILE), line.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+    
+    /**
+     * Ends the current campaign and writes its records.
+     */
+    public synchronized void endCampaign() {
+        try {
+            flush();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+        campaign = NO_CAMPAIGN;
+    }
+    
+    /**
+     * Stores the outcome of one message in the current campaign.
+     * 
+     * @param recipient The recipient's email address
+     * @param sent true if the message was sent, false if it failed
+     * @param replyCode The SMTP reply code, 0 if there was none
+     * @param latencyNanos How long the delivery took
+     * @param attempts The number of delivery attempts
+     */
+    public synchronized void record(String recipient, boolean sent, int replyCode, long latencyNanos,
+                                    int attempts) {
+        long now = System.currentTimeMillis();
+        try {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.putLong(SuppressionList.hash(recipient))
+                  .putLong(now)
+                  .putInt(campaign)
+                  .putInt((int) Math.min(Integer.MAX_VALUE, latencyNanos / 1000))
+                  .putShort((short) replyCode)
+                  .putShort((short) Math.min(Short.MAX_VALUE, attempts))
+                  .put((byte) (sent ? 1 : 0))
+                  .put((byte) 0).putShort((short) 0);
+            if (++segmentRecords >= recordsPerSegment) {
+                flush();
+                startNextSegment();
+            } else if (now - lastFlushMillis >= FLUSH_MILLIS) {
+                flush();
+            }
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+    
+    /**
+     * Hands the full segment to the sealer and continues in a new one, so
+     * that senders never wait for an index to be built.
+     */
+    private void startNextSegment() throws IOException {
+        FileChannel full = segment;
+        int number = segmentNumber;
+        int records = segmentRecords;
+        openSegment(number + 1);
+        sealer.execute(() -> {
+            try {
+                seal(full, number, records);
+            } catch (IOException e) {
+                logger.warning("Cannot seal outcome segment " + number + ", it is sealed on the next open: " +
+                               e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Typically a full disk: drops what is buffered rather than fail the send.
+     * A record the failed write left half-written is cut off, so that the
+     * records appended after it stay aligned.
+     */
+    private void writeFailed(IOException e) {
+        buffer.clear();
+        long written = segmentRecords;
+        try {
+            written = (segment.position() - HEADER_SIZE) / RECORD_SIZE;
+            segment.truncate(HEADER_SIZE + written * RECORD_SIZE);
+            segment.position(HEADER_SIZE + written * RECORD_SIZE);
+        } catch (IOException truncateError) {
+            logger.fine("Cannot truncate outcome segment: " + truncateError.getMessage());
+        }
+        lostCount += segmentRecords - written;
+        segmentRecords = (int) written;
+        if (!writeFailed) {
+            logger.warning("Cannot write outcome store, outcomes are being lost: " + e.getMessage());
+            writeFailed = true;
+        }
+    }
+    
+    /**
+     * Writes buffered records to the current segment.
+     * 
+     * @throws IOException If the segment cannot be written
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        buffer.clear();
+        lastFlushMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * Closes a segment and writes its index. An empty segment is deleted
+     * instead.
+     */
+    private void seal(FileChannel channel, int number, int records) throws IOException {
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Path data = dataPath(directory, number);
+        if (records == 0) {
+            Files.delete(data);
+            return;
+        }
+        writeIndex(data, indexPath(directory, number));
+    }
+    
+    /**
+     * Builds the campaign and reply code postings of a segment.
+     */
+    private static void writeIndex(Path data, Path index) throws IOException {
+        Map<Integer, IntList> byCampaign = new TreeMap<>();
+        Map<Integer, IntList> byCode = new TreeMap<>();
+        int records;
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            records = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+            for (int i = 0; i < records; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                byCampaign.computeIfAbsent(map.getInt(offset + 16), k -> new IntList()).add(i);
+                byCode.computeIfAbsent((int) map.getShort(offset + 24), k -> new IntList()).add(i);
+            }
+        }
+        
+        int keys = byCampaign.size() + byCode.size();
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + keys * 12 + records * 2 * Integer.BYTES);
+        out.putInt(INDEX_MAGIC).putInt(VERSION).putInt(byCampaign.size()).putInt(byCode.size());
+        int start = 0;
+        for (Map<Integer, IntList> postings : Arrays.asList(byCampaign, byCode)) {
+            for (Map.Entry<Integer, IntList> entry : postings.entrySet()) {
+                out.putInt(entry.getKey()).putInt(start).putInt(entry.getValue().size);
+                start += entry.getValue().size;
+            }
+        }
+        for (Map<Integer, IntList> postings : Arrays.asList(byCampaign, byCode)) {
+            for (IntList list : postings.values()) {
+                for (int i = 0; i < list.size; i++) {
+                    out.putInt(list.values[i]);
+                }
+            }
+        }
+        out.flip();
+        
+        Path temp = index.resolveSibling(index.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Returns the number of outcomes the store could not write.
+     * 
+     * @return Lost outcome count
+     */
+    public synchronized long getLostCount() {
+        return lostCount;
+    }
+    
+    /**
+     * Writes the remaining records, seals the current segment and releases
+     * the store. Call after the sender has finished sending.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+        try {
+            seal(segment, segmentNumber, segmentRecords);
+        } catch (IOException e) {
+            logger.warning("Error closing outcome store: " + e.getMessage());
+        } finally {
+            awaitSealer();
+            try {
+                lock.release();
+                lockChannel.close();
+            } catch (IOException e) {
+                logger.fine("Error releasing outcome store lock: " + e.getMessage());
+            }
+        }
+        if (lostCount > 0) {
+            logger.warning("Outcome store could not write " + lostCount + " outcome(s)");
+        }
+    }
+    
+    /**
+     * Waits for the segments handed to the sealer, so that the next writer
+     * does not find them half sealed.
+     */
+    private void awaitSealer() {
+        sealer.shutdown();
+        try {
+            if (!sealer.awaitTermination(60, TimeUnit.SECONDS)) {
+                logger.warning("Outcome segments are still being sealed in " + directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static Path dataPath(Path directory, int number) {
+        return directory.resolve(String.format("segment-%08d.out", number));
+    }
+    
+    private static Path indexPath(Path directory, int number) {
+        return directory.resolve(String.format("segment-%08d.idx", number));
+    }
+    
+    private static List<Integer> listSegments(Path directory) throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.out")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(name.substring("segment-".length(), name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    logger.fine("Ignoring unexpected file in outcome store: " + name);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+    
+    private static List<Reader.CampaignEntry> readCampaigns(Path directory) throws IOException {
+        List<Reader.CampaignEntry> campaigns = new ArrayList<>();
+        Path file = directory.resolve(CAMPAIGNS_FILE);
+        if (!Files.exists(file)) {
+            return campaigns;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", 4);
+            if (fields.length == 4) {
+                try {
+                    campaigns.add(new Reader.CampaignEntry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                                                           Integer.parseInt(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                    logger.fine("Ignoring damaged campaign entry: " + line);
+                }
+            }
+        }
+        return campaigns;
+    }
+    
+    /**
+     * Growable array of ints.
+     */
+    private static final class IntList {
+        int[] values = new int[16];
+        int size;
+        
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+    
+    /**
+     * Read-only view of a store at the moment it was opened. Sealed segments
+     * are queried through their indexes, the tail segment by a scan.
+     * Safe to use while a writer appends, and from several threads.
+     */
+    public static class Reader {
+        private final List<Reader.CampaignEntry> campaigns;
+        private final List<Segment> segments = new ArrayList<>();
+        
+        /**
+         * Opens the segments of a store.
+         * 
+         * @param directory The store directory
+         * @throws IOException If the store cannot be read or a file is damaged
+         */
+        public Reader(Path directory) throws IOException {
+            if (!Files.isDirectory(directory)) {
+                throw new IOException("Outcome store not found: " + directory);
+            }
+            campaigns = readCampaigns(directory);
+            for (int number : listSegments(directory)) {
+                Path index = indexPath(directory, number);
+                segments.add(new Segment(dataPath(directory, number), Files.exists(index) ? index : null));
+            }
+        }
+        
+        /**
+         * Returns the campaigns in the order they started.
+         * 
+         * @return Campaign entries
+         */
+        public List<Reader.CampaignEntry> getCampaigns() {
+            return Collections.unmodifiableList(campaigns);
+        }
+        
+        /**
+         * Returns the number of records in the store.
+         * 
+         * @return Record count
+         */
+        public long getRecordCount() {
+            long count = 0;
+            for (Segment segment : segments) {
+                count += segment.records;
+            }
+            return count;
+        }
+        
+        /**
+         * Streams the records of a campaign, a reply code, or both, in the
+         * order they were written.
+         * 
+         * @param campaign Campaign id, or {@link #ANY}
+         * @param replyCode SMTP reply code (0 for failures without a reply), or {@link #ANY}
+         * @param consumer Receives each matching record; the record object is reused
+         * @return Number of matching records
+         * @throws IOException If the consumer fails
+         */
+        public long query(int campaign, int replyCode, OutcomeConsumer consumer) throws IOException {
+            Outcome outcome = new Outcome();
+            long count = 0;
+            for (Segment segment : segments) {
+                int[] matches = segment.match(campaign, replyCode);
+                if (matches != null) {
+                    for (int record : matches) {
+                        consumer.accept(outcome.at(segment.data, record));
+                    }
+                    count += matches.length;
+                } else {
+                    for (int record = 0; record < segment.records; record++) {
+                        outcome.at(segment.data, record);
+                        if ((campaign == ANY || outcome.getCampaign() == campaign)
+                                && (replyCode == ANY || outcome.getReplyCode() == replyCode)) {
+                            consumer.accept(outcome);
+                            count++;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+        
+        /**
+         * Counts the records of a campaign by reply code.
+         * 
+         * @param campaign Campaign id, or {@link #ANY}
+         * @return Reply code to record count, in code order
+         */
+        public Map<Integer, Long> countByReplyCode(int campaign) {
+            Map<Integer, Long> counts = new TreeMap<>();
+            Outcome outcome = new Outcome();
+            for (Segment segment : segments) {
+                if (segment.codes != null) {
+                    for (Map.Entry<Integer, int[]> code : segment.codes.entrySet()) {
+                        long matches = campaign == ANY ? code.getValue()[1]
+                                : segment.match(campaign, code.getKey()).length;
+                        if (matches > 0) {
+                            counts.merge(code.getKey(), matches, Long::sum);
+                        }
+                    }
+                } else {
+                    for (int record = 0; record < segment.records; record++) {
+                        outcome.at(segment.data, record);
+                        if (campaign == ANY || outcome.getCampaign() == campaign) {
+                            counts.merge(outcome.getReplyCode(), 1L, Long::sum);
+                        }
+                    }
+                }
+            }
+            return counts;
+        }
+        
+        /**
+         * One campaign: a bulk run.
+         */
+        public static final class CampaignEntry {
+            private final int id;
+            private final long startedMillis;
+            private final int total;
+            private final String name;
+            
+            CampaignEntry(int id, long startedMillis, int total, String name) {
+                this.id = id;
+                this.startedMillis = startedMillis;
+                this.total = total;
+                this.name = name;
+            }
+            
+            public int getId() {
+                return id;
+            }
+            
+            public long getStartedMillis() {
+                return startedMillis;
+            }
+            
+            /**
+             * Returns the number of recipients the run was started with.
+             * 
+             * @return Recipient count
+             */
+            public int getTotal() {
+                return total;
+            }
+            
+            /**
+             * Returns the campaign's name, its local start time.
+             * 
+             * @return The name
+             */
+            public String getName() {
+                return name;
+            }
+        }
+    }
+    
+    /**
+     * One mapped segment and, if sealed, its postings.
+     */
+    private static final class Segment {
+        final ByteBuffer data;
+        final int records;
+        // Key to {start, length} in the postings; null for the unsealed tail
+        final Map<Integer, int[]> campaigns;
+        final Map<Integer, int[]> codes;
+        final ByteBuffer postings;
+        
+        Segment(Path dataPath, Path indexPath) throws IOException {
+            try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    // Just created by the writer
+                    data = ByteBuffer.allocate(0);
+                    records = 0;
+                } else {
+                    records = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) records * RECORD_SIZE);
+                    if (data.getInt(0) != DATA_MAGIC || data.getInt(4) != VERSION) {
+                        throw new IOException("Not an outcome segment: " + dataPath);
+                    }
+                }
+            }
+            if (indexPath == null) {
+                campaigns = null;
+                codes = null;
+                postings = null;
+                return;
+            }
+            
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (channel.size() < HEADER_SIZE || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+                    throw new IOException("Not an outcome index: " + indexPath);
+                }
+                int campaignKeys = index.getInt(8);
+                int codeKeys = index.getInt(12);
+                int postingsStart = HEADER_SIZE + (campaignKeys + codeKeys) * 12;
+                if (postingsStart + (long) records * 2 * Integer.BYTES != channel.size()) {
+                    throw new IOException("Outcome index is damaged: " + indexPath);
+                }
+                campaigns = readKeys(index, HEADER_SIZE, campaignKeys);
+                codes = readKeys(index, HEADER_SIZE + campaignKeys * 12, codeKeys);
+                index.position(postingsStart);
+                postings = index.slice();
+            }
+        }
+        
+        private static Map<Integer, int[]> readKeys(ByteBuffer index, int offset, int count) {
+            Map<Integer, int[]> keys = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int entry = offset + i * 12;
+                keys.put(index.getInt(entry), new int[] {index.getInt(entry + 4), index.getInt(entry + 8)});
+            }
+            return keys;
+        }
+        
+        /**
+         * Returns the matching record positions from the postings, or null if
+         * the segment has no index and must be scanned.
+         */
+        int[] match(int campaign, int replyCode) {
+            if (postings == null) {
+                return null;
+            }
+            if (campaign == ANY && replyCode == ANY) {
+                int[] all = new int[records];
+                for (int i = 0; i < records; i++) {
+                    all[i] = i;
+                }
+                return all;
+            }
+            int[] byCampaign = campaign == ANY ? null : campaigns.get(campaign);
+            int[] byCode = replyCode == ANY ? null : codes.get(replyCode);
+            if ((campaign != ANY && byCampaign == null) || (replyCode != ANY && byCode == null)) {
+                return new int[0];
+            }
+            if (byCode == null) {
+                return read(byCampaign);
+            }
+            if (byCampaign == null) {
+                return read(byCode);
+            }
+            
+            // Both lists are sorted: walk them together
+            int[] result = new int[Math.min(byCampaign[1], byCode[1])];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < byCampaign[1] && j < byCode[1]) {
+                int a = postings.getInt((byCampaign[0] + i) * Integer.BYTES);
+                int b = postings.getInt((byCode[0] + j) * Integer.BYTES);
+                if (a == b) {
+                    result[count++] = a;
+                    i++;
+                    j++;
+                } else if (a < b) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        
+        private int[] read(int[] range) {
+            int[] result = new int[range[1]];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = postings.getInt((range[0] + i) * Integer.BYTES);
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * One stored outcome. Objects passed to an {@link OutcomeConsumer} are
+     * reused for the next record; copy any field that must outlive the call.
+     */
+    public static final class Outcome {
+        private ByteBuffer data;
+        private int offset;
+        
+        Outcome at(ByteBuffer data, int record) {
+            this.data = data;
+            this.offset = HEADER_SIZE + record * RECORD_SIZE;
+            return this;
+        }
+        
+        /**
+         * Returns the recipient's address hash, as computed by
+         * {@link OutcomeStore#hashOf(String)}.
+         * 
+         * @return 64-bit hash
+         */
+        public long getRecipientHash() {
+            return data.getLong(offset);
+        }
+        
+        public long getTimestampMillis() {
+            return data.getLong(offset + 8);
+        }
+        
+        public int getCampaign() {
+            return data.getInt(offset + 16);
+        }
+        
+        public long getLatencyMicros() {
+            return data.getInt(offset + 20);
+        }
+        
+        /**
+         * Returns the SMTP reply code, or 0 if the failure had none.
+         * 
+         * @return SMTP reply code
+         */
+        public int getReplyCode() {
+            return data.getShort(offset + 24);
+        }
+        
+        /**
+         * Returns the number of relays the message was offered to; 0 if it
+         * was never sent, for example because the address is suppressed.
+         * 
+         * @return Attempt count
+         */
+        public int getAttempts() {
+            return data.getShort(offset + 26);
+        }
+        
+        public boolean isSent() {
+            return data.get(offset + 28) == 1;
+        }
+    }
+    
+    /**
+     * Callback used by {@link Reader#query(int, int, OutcomeConsumer)}.
+     */
+    public interface OutcomeConsumer {
+        void accept(Outcome outcome) throws IOException;
+    }
+    
+    /**
+     * Returns the hash a recipient address is stored under.
+     * 
+     * @param address The address
+     * @return 64-bit hash
+     */
+    public static long hashOf(String address) {
+        return SuppressionList.hash(address);
+    }
+}
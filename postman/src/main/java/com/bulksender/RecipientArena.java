@@ -0,0 +1,179 @@
+package com.bulksender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Recipient addresses packed as UTF-8 into one byte array, with an int
+ * array holding where each address ends.
+ * 
+ * An address costs its UTF-8 length plus four bytes, against roughly 50
+ * bytes of object headers, references and padding for a String in an
+ * ArrayList. Addresses are only turned into Strings when they are read.
+ * 
+ * {@link #view()} and {@link #slice(int, int)} return read-only lists over
+ * the addresses added so far without copying them. A view keeps referring
+ * to the arrays it was created from and appends only write past its end,
+ * so it never changes and can be handed to other threads. Adding addresses
+ * is not thread-safe.
+ */
+public class RecipientArena {
+    private static final int INITIAL_BYTES = 4096;
+    private static final int INITIAL_COUNT = 128;
+    // Arrays slightly smaller than this are the largest every JVM allocates
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+    
+    private byte[] data = new byte[INITIAL_BYTES];
+    private int[] ends = new int[INITIAL_COUNT];
+    private int byteCount = 0;
+    private int size = 0;
+    
+    /**
+     * Adds an address.
+     * 
+     * @param email The address
+     */
+    public void add(String email) {
+        byte[] utf8 = email.getBytes(StandardCharsets.UTF_8);
+        add(utf8, 0, utf8.length);
+    }
+    
+    /**
+     * Adds an address that is already UTF-8 encoded.
+     * 
+     * @param utf8 Buffer holding the address
+     * @param offset Start of the address in the buffer
+     * @param length Length of the address in bytes
+     * @throws IllegalStateException If the arena would grow past 2 GB
+     */
+    public void add(byte[] utf8, int offset, int length) {
+        if (byteCount + (long) length > data.length) {
+            data = Arrays.copyOf(data, grow(data.length, byteCount + (long) length, "2 GB of addresses"));
+        }
+        if (size == ends.length) {
+            ends = Arrays.copyOf(ends, grow(ends.length, size + 1L, "2^31 addresses"));
+        }
+        System.arraycopy(utf8, offset, data, byteCount, length);
+        byteCount += length;
+        ends[size++] = byteCount;
+    }
+    
+    private static int grow(int current, long needed, String limit) {
+        long grown = Math.max((long) current * 2, needed);
+        if (needed > MAX_ARRAY) {
+            throw new IllegalStateException("Recipient list holds more than " + limit);
+        }
+        return (int) Math.min(grown, MAX_ARRAY);
+    }
+    
+    /**
+     * Returns the number of addresses.
+     * 
+     * @return Address count
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the address at an index.
+     * 
+     * @param index Index of the address
+     * @return The address
+     * @throws IndexOutOfBoundsException If the index is out of range
+     */
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return decode(data, ends, index);
+    }
+    
+    /**
+     * Returns a read-only list of every address added so far.
+     * 
+     * @return A view sharing this arena's storage
+     */
+    public List<String> view() {
+        return new View(data, ends, 0, size);
+    }
+    
+    /**
+     * Returns a read-only list of a range of the addresses added so far, for
+     * example one worker's share of a campaign.
+     * 
+     * @param from Index of the first address, inclusive
+     * @param to Index after the last address
+     * @return A view sharing this arena's storage
+     * @throws IndexOutOfBoundsException If the range is out of bounds
+     */
+    public List<String> slice(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + ", size " + size);
+        }
+        return new View(data, ends, from, to);
+    }
+    
+    /**
+     * Releases the spare capacity left after loading.
+     */
+    public void trim() {
+        data = Arrays.copyOf(data, byteCount);
+        ends = Arrays.copyOf(ends, size);
+    }
+    
+    /**
+     * Returns the heap used by the arena's arrays.
+     * 
+     * @return Size in bytes
+     */
+    public long estimateBytes() {
+        return data.length + 4L * ends.length;
+    }
+    
+    private static String decode(byte[] data, int[] ends, int index) {
+        int start = index == 0 ? 0 : ends[index - 1];
+        return new String(data, start, ends[index] - start, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * A fixed range of addresses over the arrays of the moment it was created.
+     */
+    private static final class View extends AbstractList<String> implements RandomAccess {
+        private final byte[] data;
+        private final int[] ends;
+        private final int from;
+        private final int to;
+        
+        View(byte[] data, int[] ends, int from, int to) {
+            this.data = data;
+            this.ends = ends;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + (to - from));
+            }
+            return decode(data, ends, from + index);
+        }
+        
+        @Override
+        public int size() {
+            return to - from;
+        }
+        
+        @Override
+        public List<String> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || toIndex > to - from || fromIndex > toIndex) {
+                throw new IndexOutOfBoundsException("Range " + fromIndex + "-" + toIndex + ", size " + (to - from));
+            }
+            return new View(data, ends, from + fromIndex, from + toIndex);
+        }
+    }
+}
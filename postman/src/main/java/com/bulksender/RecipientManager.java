@@ -1,36 +1,45 @@
 package com.bulksender;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Manages the list of recipients loaded from an external data source.
  * Supports loading recipient email addresses from a plain text file
  * where each line contains one email address.
+ * 
+ * Loaded addresses are kept packed in a {@link RecipientArena}, so even a
+ * list of millions of recipients takes little more heap than the file. A
+ * list compiled with {@link CompiledRecipients#compile(Path, Path)} is
+ * memory-mapped instead of read, which takes no heap and is near instant.
  */
 public class RecipientManager {
     private static final Logger logger = Logger.getLogger(RecipientManager.class.getName());
     
-    private List<String> recipients;
+    private RecipientArena recipients;
+    // Set while the recipients are a mapped compiled list
+    private CompiledRecipients compiled;
     
     /**
      * Default constructor initializes an empty recipient list.
      */
     public RecipientManager() {
-        this.recipients = new ArrayList<>();
+        this.recipients = new RecipientArena();
     }
     
     /**
      * Loads recipient email addresses from a plain text file.
      * Each line in the file should contain one email address.
      * Empty lines and lines starting with '#' are ignored.
+     * A compiled recipient list is recognised by its content and mapped.
      * 
      * @param filePath Path to the file containing recipient email addresses
      * @throws IOException If the file cannot be read
@@ -42,27 +51,141 @@ public class RecipientManager {
             throw new IOException("Recipient file not found: " + filePath);
         }
         
-        try (Stream<String> lines = Files.lines(path)) {
-            recipients = lines
-                .map(String::trim)
-                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
-                .collect(Collectors.toList());
+        if (CompiledRecipients.isCompiled(path)) {
+            CompiledRecipients mapped = CompiledRecipients.open(path);
+            recipients = new RecipientArena();
+            compiled = mapped;
+            logger.info("Mapped " + mapped.size() + " recipient(s) from compiled list: " + filePath + " (" +
+                        mapped.getFileBytes() / 1024 + " KB)");
+            return;
         }
         
-        if (recipients.isEmpty()) {
+        RecipientArena loaded = new RecipientArena();
+        try (InputStream in = Files.newInputStream(path)) {
+            readLines(in, loaded);
+        }
+        loaded.trim();
+        recipients = loaded;
+        compiled = null;
+        
+        if (recipients.size() == 0) {
             logger.warning("No valid recipients found in file: " + filePath);
         } else {
-            logger.info("Loaded " + recipients.size() + " recipient(s) from: " + filePath);
+            logger.info("Loaded " + recipients.size() + " recipient(s) from: " + filePath + " (" +
+                        recipients.estimateBytes() / 1024 + " KB)");
         }
     }
     
     /**
-     * Returns the list of loaded recipients.
+     * Copies every address line into the arena as UTF-8 bytes, without
+     * decoding it. Trimming bytes up to ' ' matches String.trim(), because
+     * UTF-8 never uses those values inside a multi-byte character.
+     */
+    private static void readLines(InputStream in, RecipientArena arena) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    addLine(line, lineLength, arena);
+                    lineLength = 0;
+                } else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+        addLine(line, lineLength, arena);
+    }
+    
+    private static void addLine(byte[] line, int length, RecipientArena arena) {
+        int start = 0;
+        int end = length;
+        while (start < end && (line[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        if (start < end && line[start] != '#') {
+            arena.add(line, start, end - start);
+        }
+    }
+    
+    /**
+     * Streams recipient email addresses from a plain text file without keeping
+     * them in memory. Uses the same rules as {@link #loadRecipientsFromFile(String)}:
+     * empty lines and lines starting with '#' are skipped, and a compiled
+     * list is read from its mapping.
+     * 
+     * @param filePath Path to the file containing recipient email addresses
+     * @param consumer Receives each recipient address in file order
+     * @return Number of recipients passed to the consumer
+     * @throws IOException If the file cannot be read or the consumer fails
+     */
+    public static long streamRecipientsFromFile(String filePath, RecipientConsumer consumer) throws IOException {
+        Path path = Paths.get(filePath);
+        
+        if (!Files.exists(path)) {
+            throw new IOException("Recipient file not found: " + filePath);
+        }
+        
+        if (CompiledRecipients.isCompiled(path)) {
+            List<String> mapped = CompiledRecipients.open(path).view();
+            for (String email : mapped) {
+                consumer.accept(email);
+            }
+            return mapped.size();
+        }
+        
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    consumer.accept(line);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Callback used by {@link #streamRecipientsFromFile(String, RecipientConsumer)}.
+     */
+    public interface RecipientConsumer {
+        void accept(String email) throws IOException;
+    }
+    
+    /**
+     * Returns the list of loaded recipients. The list is a read-only view of
+     * the recipients at the time of the call; it is not copied, and later
+     * changes to this manager do not affect it.
      * 
      * @return List of recipient email addresses
      */
     public List<String> getRecipients() {
-        return new ArrayList<>(recipients); // Return a copy to prevent external modification
+        return compiled != null ? compiled.view() : recipients.view();
+    }
+    
+    /**
+     * Returns a range of the loaded recipients, for example one parallel
+     * worker's share, as a read-only view like {@link #getRecipients()}.
+     * 
+     * @param from Index of the first recipient, inclusive
+     * @param to Index after the last recipient
+     * @return List of recipient email addresses
+     * @throws IndexOutOfBoundsException If the range is out of bounds
+     */
+    public List<String> getRecipients(int from, int to) {
+        return compiled != null ? compiled.slice(from, to) : recipients.slice(from, to);
     }
     
     /**
@@ -72,6 +195,13 @@ public class RecipientManager {
      */
     public void addRecipient(String email) {
         if (email != null && !email.trim().isEmpty()) {
+            if (compiled != null) {
+                // The mapped file is read-only, so carry on in a heap copy
+                for (String mapped : compiled.view()) {
+                    recipients.add(mapped);
+                }
+                compiled = null;
+            }
             recipients.add(email.trim());
         }
     }
@@ -82,14 +212,16 @@ public class RecipientManager {
      * @return Number of recipients
      */
     public int getRecipientCount() {
-        return recipients.size();
+        return compiled != null ? compiled.size() : recipients.size();
     }
     
     /**
      * Clears all recipients from the list.
      */
     public void clear() {
-        recipients.clear();
+        // A new arena, so that lists returned earlier keep their contents
+        recipients = new RecipientArena();
+        compiled = null;
     }
 }
 
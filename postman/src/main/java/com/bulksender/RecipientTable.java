@@ -0,0 +1,590 @@
+package com.bulksender;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Recipients with personalisation data, loaded from a CSV or TSV file with
+ * a header row and kept in column-oriented form.
+ * 
+ * Each column picks the most compact storage for its values as the file is
+ * read, and switches if later values do not fit:
+ * - Integers (such as ids or ages) as zigzag-encoded numbers
+ * - Repeated values (such as country or plan) as codes into a dictionary
+ * - Everything else (such as addresses and names) as UTF-8 bytes with offsets
+ * Numbers and codes are packed into 1, 2, 4 or 8 bytes per row, whichever the
+ * largest value needs. A row costs a few bytes per column, so millions of
+ * rows with dozens of columns fit in a modest heap.
+ * 
+ * The recipient address is taken from the column named "email" (or
+ * "e-mail"/"address"), or the first column if there is none.
+ */
+public class RecipientTable {
+    private static final Logger logger = Logger.getLogger(RecipientTable.class.getName());
+    
+    private final String[] columnNames;
+    private final Column[] columns;
+    private final int emailColumn;
+    private int rowCount = 0;
+    
+    private RecipientTable(String[] columnNames) {
+        this.columnNames = columnNames;
+        this.columns = new Column[columnNames.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column();
+        }
+        int email = 0;
+        for (int i = 0; i < columnNames.length; i++) {
+            String name = columnNames[i].toLowerCase(Locale.ROOT);
+            if (name.equals("email") || name.equals("e-mail") || name.equals("address")) {
+                email = i;
+                break;
+            }
+        }
+        this.emailColumn = email;
+    }
+    
+    /**
+     * Returns whether a recipients file should be read as a table rather than
+     * one address per line, judging by its extension.
+     * 
+     * @param filePath Path to the recipients file
+     * @return true for .csv and .tsv files
+     */
+    public static boolean isTableFile(String filePath) {
+        String lower = filePath.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".csv") || lower.endsWith(".tsv");
+    }
+    
+    /**
+     * Reads a CSV or TSV file. The first row holds the column names. Fields
+     * may be quoted with double quotes (a doubled quote inside is a literal
+     * quote) and quoted fields may span lines. The delimiter is a tab for .tsv
+     * files; otherwise whichever of comma, semicolon or tab occurs most in the
+     * header. Empty lines, lines starting with '#' and rows without an address
+     * are skipped.
+     * 
+     * @param filePath Path to the file
+     * @return The loaded table
+     * @throws IOException If the file cannot be read or has no header
+     */
+    public static RecipientTable load(String filePath) throws IOException {
+        Path path = Paths.get(filePath);
+        
+        if (!Files.exists(path)) {
+            throw new IOException("Recipient file not found: " + filePath);
+        }
+        
+        RecipientTable table;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            reader.mark(1 << 16);
+            String firstLine = reader.readLine();
+            if (firstLine == null) {
+                throw new IOException("Recipient file is empty: " + filePath);
+            }
+            reader.reset();
+            char delimiter = filePath.toLowerCase(Locale.ROOT).endsWith(".tsv") ? '\t' : detectDelimiter(firstLine);
+            
+            CsvReader csv = new CsvReader(reader, delimiter);
+            List<String> header = csv.readRow();
+            for (int i = 0; i < header.size(); i++) {
+                header.set(i, header.get(i).trim());
+            }
+            // A byte order mark written by some spreadsheet programs is not part of the first name
+            if (header.size() > 0 && header.get(0).startsWith("\uFEFF")) {
+                header.set(0, header.get(0).substring(1));
+            }
+            table = new RecipientTable(header.toArray(new String[0]));
+            
+            long skipped = 0;
+            List<String> row;
+            while ((row = csv.readRow()) != null) {
+                if (row.get(0).startsWith("#") || (row.size() == 1 && row.get(0).isEmpty())) {
+                    continue;
+                }
+                if (!table.addRow(row)) {
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                logger.warning("Skipped " + skipped + " row(s) without a recipient address in: " + filePath);
+            }
+        }
+        
+        for (Column column : table.columns) {
+            column.trim();
+        }
+        logger.info("Loaded " + table.rowCount + " recipient(s) with " + table.columnNames.length +
+                    " column(s) from: " + filePath + " (about " + (table.estimateBytes() >> 10) + " KB)");
+        return table;
+    }
+    
+    private static char detectDelimiter(String header) {
+        int commas = 0;
+        int semicolons = 0;
+        int tabs = 0;
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            if (c == ',') {
+                commas++;
+            } else if (c == ';') {
+                semicolons++;
+            } else if (c == '\t') {
+                tabs++;
+            }
+        }
+        if (tabs > commas && tabs >= semicolons) {
+            return '\t';
+        }
+        return semicolons > commas ? ';' : ',';
+    }
+    
+    private boolean addRow(List<String> row) {
+        if (emailColumn >= row.size() || row.get(emailColumn).trim().isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            String value = i < row.size() ? row.get(i) : "";
+            columns[i].add(i == emailColumn ? value.trim() : value);
+        }
+        rowCount++;
+        return true;
+    }
+    
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    /**
+     * Returns the column names from the header row.
+     * 
+     * @return Unmodifiable list of column names
+     */
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(Arrays.asList(columnNames));
+    }
+    
+    /**
+     * Finds a column by name, exactly or else ignoring case.
+     * 
+     * @param name The column name
+     * @return The column index, or -1 if there is no such column
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equals(name)) {
+                return i;
+            }
+        }
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the recipient address of a row.
+     * 
+     * @param row Row index
+     * @return The email address
+     */
+    public String getEmail(int row) {
+        return get(row, emailColumn);
+    }
+    
+    /**
+     * Returns one value as a string.
+     * 
+     * @param row Row index
+     * @param column Column index
+     * @return The value, or an empty string if the row had none
+     */
+    public String get(int row, int column) {
+        StringBuilder sb = new StringBuilder();
+        appendTo(row, column, sb);
+        return sb.toString();
+    }
+    
+    /**
+     * Appends one value to a buffer without creating intermediate strings
+     * where the storage allows it.
+     * 
+     * @param row Row index
+     * @param column Column index
+     * @param out The buffer to append to
+     */
+    public void appendTo(int row, int column, StringBuilder out) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        }
+        columns[column].appendTo(row, out);
+    }
+    
+    /**
+     * Returns the approximate heap used by the stored values.
+     * 
+     * @return Size in bytes
+     */
+    public long estimateBytes() {
+        long total = 0;
+        for (Column column : columns) {
+            total += column.estimateBytes();
+        }
+        return total;
+    }
+    
+    /**
+     * Unsigned integers packed into 1, 2, 4 or 8 bytes each; the width grows
+     * when a larger value is added.
+     */
+    static final class PackedLongs {
+        private byte[] data = new byte[64];
+        private int width = 1;
+        private int size = 0;
+        
+        void add(long value) {
+            int needed = widthFor(value);
+            if (needed > width) {
+                widen(needed);
+            }
+            int offset = size * width;
+            if (offset + width > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, offset + width));
+            }
+            for (int i = 0; i < width; i++) {
+                data[offset + i] = (byte) (value >>> (i * 8));
+            }
+            size++;
+        }
+        
+        long get(int index) {
+            int offset = index * width;
+            long value = 0;
+            for (int i = 0; i < width; i++) {
+                value |= (data[offset + i] & 0xFFL) << (i * 8);
+            }
+            return value;
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        void trim() {
+            data = Arrays.copyOf(data, size * width);
+        }
+        
+        long estimateBytes() {
+            return data.length;
+        }
+        
+        private static int widthFor(long value) {
+            if ((value & ~0xFFL) == 0) {
+                return 1;
+            } else if ((value & ~0xFFFFL) == 0) {
+                return 2;
+            } else if ((value & ~0xFFFFFFFFL) == 0) {
+                return 4;
+            }
+            return 8;
+        }
+        
+        private void widen(int newWidth) {
+            byte[] wider = new byte[Math.max(64, size * newWidth * 2)];
+            for (int index = 0; index < size; index++) {
+                long value = get(index);
+                for (int i = 0; i < newWidth; i++) {
+                    wider[index * newWidth + i] = (byte) (value >>> (i * 8));
+                }
+            }
+            data = wider;
+            width = newWidth;
+        }
+    }
+    
+    /**
+     * One column's values in whichever storage currently fits them.
+     */
+    static final class Column {
+        private static final int INTEGER = 0;
+        private static final int DICTIONARY = 1;
+        private static final int RAW = 2;
+        
+        // A column with more distinct values than this is stored raw
+        private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+        // Once this many rows are in, a dictionary holding more than half as many values is not paying off
+        private static final int DICTIONARY_CHECK_ROWS = 4096;
+        
+        private int mode = INTEGER;
+        // INTEGER: zigzag value + 1 (0 = empty); DICTIONARY: codes; RAW: end offset of each value
+        private PackedLongs values = new PackedLongs();
+        private Map<String, Integer> dictionary;
+        private List<String> entries;
+        private byte[] bytes;
+        private int byteCount;
+        
+        void add(String value) {
+            if (mode == INTEGER) {
+                if (value.isEmpty()) {
+                    values.add(0);
+                    return;
+                }
+                if (isCanonicalLong(value)) {
+                    long number = Long.parseLong(value);
+                    values.add(((number << 1) ^ (number >> 63)) + 1);
+                    return;
+                }
+                convert(DICTIONARY);
+            }
+            if (mode == DICTIONARY) {
+                Integer code = dictionary.get(value);
+                if (code == null) {
+                    code = entries.size();
+                    dictionary.put(value, code);
+                    entries.add(value);
+                }
+                values.add(code);
+                int rows = values.size();
+                if (entries.size() > MAX_DICTIONARY_SIZE ||
+                        (rows >= DICTIONARY_CHECK_ROWS && entries.size() > rows / 2)) {
+                    convert(RAW);
+                }
+                return;
+            }
+            appendRaw(value);
+        }
+        
+        void appendTo(int row, StringBuilder out) {
+            if (mode == INTEGER) {
+                long stored = values.get(row);
+                if (stored != 0) {
+                    long zigzag = stored - 1;
+                    out.append((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+            } else if (mode == DICTIONARY) {
+                out.append(entries.get((int) values.get(row)));
+            } else {
+                int start = row == 0 ? 0 : (int) values.get(row - 1);
+                int end = (int) values.get(row);
+                appendUtf8(start, end, out);
+            }
+        }
+        
+        void trim() {
+            values.trim();
+            if (mode == DICTIONARY) {
+                // Lookups are no longer needed once loading is done
+                dictionary = null;
+                entries = Arrays.asList(entries.toArray(new String[0]));
+            } else if (mode == RAW) {
+                bytes = Arrays.copyOf(bytes, byteCount);
+            }
+        }
+        
+        long estimateBytes() {
+            long total = values.estimateBytes();
+            if (entries != null) {
+                for (String entry : entries) {
+                    total += 40 + 2L * entry.length();
+                }
+            }
+            if (bytes != null) {
+                total += bytes.length;
+            }
+            return total;
+        }
+        
+        private void appendRaw(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            if (byteCount + utf8.length > bytes.length) {
+                long grown = Math.max((long) bytes.length * 2, (long) byteCount + utf8.length);
+                if (grown > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Column holds more than 2 GB of text");
+                }
+                bytes = Arrays.copyOf(bytes, (int) grown);
+            }
+            System.arraycopy(utf8, 0, bytes, byteCount, utf8.length);
+            byteCount += utf8.length;
+            values.add(byteCount);
+        }
+        
+        private void appendUtf8(int start, int end, StringBuilder out) {
+            for (int i = start; i < end; i++) {
+                if (bytes[i] < 0) {
+                    // Not plain ASCII; let the decoder handle the rest
+                    out.append(new String(bytes, i, end - i, StandardCharsets.UTF_8));
+                    return;
+                }
+                out.append((char) bytes[i]);
+            }
+        }
+        
+        /**
+         * Moves the values stored so far to a less compact but more general storage.
+         */
+        private void convert(int newMode) {
+            int rows = values.size();
+            String[] existing = new String[rows];
+            StringBuilder sb = new StringBuilder();
+            for (int row = 0; row < rows; row++) {
+                sb.setLength(0);
+                appendTo(row, sb);
+                existing[row] = sb.toString();
+            }
+            
+            mode = newMode;
+            values = new PackedLongs();
+            if (newMode == DICTIONARY) {
+                dictionary = new HashMap<>();
+                entries = new ArrayList<>();
+            } else {
+                bytes = new byte[Math.max(1024, rows * 16)];
+                byteCount = 0;
+            }
+            for (String value : existing) {
+                if (newMode == DICTIONARY) {
+                    Integer code = dictionary.get(value);
+                    if (code == null) {
+                        code = entries.size();
+                        dictionary.put(value, code);
+                        entries.add(value);
+                    }
+                    values.add(code);
+                } else {
+                    appendRaw(value);
+                }
+            }
+            if (newMode == RAW) {
+                dictionary = null;
+                entries = null;
+            }
+        }
+        
+        /**
+         * Accepts only integers that print back exactly as written, so values
+         * like "007" or "+1" keep their text.
+         */
+        private static boolean isCanonicalLong(String s) {
+            int length = s.length();
+            int start = s.charAt(0) == '-' ? 1 : 0;
+            // Up to 18 digits always fits in a long
+            if (length == start || length - start > 18) {
+                return false;
+            }
+            if (s.charAt(start) == '0' && (length - start > 1 || start == 1)) {
+                return false;
+            }
+            for (int i = start; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Streaming reader for delimiter-separated rows with quoted fields.
+     */
+    static final class CsvReader {
+        private final Reader reader;
+        private final char delimiter;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int limit = 0;
+        private final StringBuilder field = new StringBuilder();
+        
+        CsvReader(Reader reader, char delimiter) {
+            this.reader = reader;
+            this.delimiter = delimiter;
+        }
+        
+        /**
+         * Reads the next row.
+         * 
+         * @return The row's fields (unquoted fields trimmed), or null at the end of the input
+         */
+        List<String> readRow() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            List<String> row = new ArrayList<>();
+            while (true) {
+                field.setLength(0);
+                boolean quoted = false;
+                // Leading blanks before an opening quote are ignored
+                while (c == ' ') {
+                    c = read();
+                }
+                if (c == '"') {
+                    quoted = true;
+                    while (true) {
+                        c = read();
+                        if (c == -1) {
+                            break;
+                        }
+                        if (c == '"') {
+                            c = read();
+                            if (c != '"') {
+                                break;
+                            }
+                        }
+                        field.append((char) c);
+                    }
+                    // Anything between the closing quote and the delimiter is kept
+                    while (c != -1 && c != delimiter && c != '\n' && c != '\r') {
+                        field.append((char) c);
+                        c = read();
+                    }
+                } else {
+                    while (c != -1 && c != delimiter && c != '\n' && c != '\r') {
+                        field.append((char) c);
+                        c = read();
+                    }
+                }
+                row.add(quoted ? field.toString() : field.toString().trim());
+                
+                if (c == delimiter) {
+                    c = read();
+                    continue;
+                }
+                if (c == '\r') {
+                    c = read();
+                    if (c != '\n' && c != -1) {
+                        position--;
+                    }
+                }
+                return row;
+            }
+        }
+        
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.bulksender;
+
+import jakarta.mail.Authenticator;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Routes messages across one or more SMTP relays.
+ * 
+ * Each send goes to the healthy relay with the lowest score, where the score
+ * combines the relay's smoothed transmission latency, the number of messages
+ * currently outstanding on it and its configured weight. A relay that fails
+ * to connect several times in a row (or fails a health probe) is ejected and
+ * receives no traffic until a background probe succeeds; the probe interval
+ * backs off while the relay stays down.
+ * 
+ * If every relay is ejected, the one whose ejection is oldest is still used,
+ * so a single-relay setup behaves as it did before.
+ */
+public class RelayBalancer {
+    private static final Logger logger = Logger.getLogger(RelayBalancer.class.getName());
+    
+    private static final int EJECT_AFTER_FAILURES = 3;
+    private static final long HEALTH_CHECK_SECONDS = 15;
+    private static final long MIN_EJECTION_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final long MAX_EJECTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    
+    private final List<SmtpRelay> relays;
+    private final ScheduledExecutorService healthChecker;
+    
+    /**
+     * Creates a relay, session and connection pool for every configured relay
+     * and starts the health checks (only when there is more than one relay).
+     * 
+     * @param config Configuration with the relay list, credentials and TLS settings
+     * @param authenticator Authenticator shared by all relays
+     */
+    public RelayBalancer(EmailConfig config, Authenticator authenticator) {
+        List<SmtpRelay> list = new ArrayList<>();
+        for (String spec : config.getRelays()) {
+            String[] parts = SmtpRelay.parseSpec(spec, config.getSmtpPort());
+            String host = parts[0];
+            int port = Integer.parseInt(parts[1]);
+            Session session = InstrumentedSmtpTransport.install(
+                    Session.getInstance(config.getProperties(host, port), authenticator));
+            list.add(new SmtpRelay(host, port, Integer.parseInt(parts[2]), session));
+        }
+        this.relays = Collections.unmodifiableList(list);
+        
+        if (relays.size() > 1) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "relay-health-check");
+                t.setDaemon(true);
+                return t;
+            });
+            healthChecker.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_SECONDS,
+                                                 HEALTH_CHECK_SECONDS, TimeUnit.SECONDS);
+            logger.info("Routing across " + relays.size() + " SMTP relays: " + relays);
+        } else {
+            healthChecker = null;
+        }
+    }
+    
+    /**
+     * Picks the relay for the next send.
+     * 
+     * @param exclude Relays already tried for this message, or null
+     * @return The chosen relay, or null if every relay has been tried
+     */
+    public SmtpRelay choose(Set<SmtpRelay> exclude) {
+        SmtpRelay best = null;
+        double bestScore = Double.MAX_VALUE;
+        SmtpRelay fallback = null;
+        
+        for (SmtpRelay relay : relays) {
+            if (exclude != null && exclude.contains(relay)) {
+                continue;
+            }
+            if (relay.ejected) {
+                if (fallback == null || relay.ejectedUntilMillis < fallback.ejectedUntilMillis) {
+                    fallback = relay;
+                }
+                continue;
+            }
+            double score = relay.score();
+            if (score < bestScore) {
+                best = relay;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+    
+    /**
+     * Records a completed transmission.
+     * 
+     * @param relay The relay used
+     * @param latencyNanos Transmission latency
+     */
+    public void recordSuccess(SmtpRelay relay, long latencyNanos) {
+        relay.recordLatency(latencyNanos);
+        relay.consecutiveFailures.set(0);
+        relay.lastSuccessMillis = System.currentTimeMillis();
+        if (relay.ejected) {
+            reinstate(relay);
+        }
+    }
+    
+    /**
+     * Records a connection failure or overload reply; ejects the relay after
+     * several in a row.
+     * 
+     * @param relay The relay used
+     */
+    public void recordFailure(SmtpRelay relay) {
+        if (relay.consecutiveFailures.incrementAndGet() >= EJECT_AFTER_FAILURES && relays.size() > 1) {
+            eject(relay);
+        }
+    }
+    
+    /**
+     * Returns all relays in configuration order.
+     * 
+     * @return Unmodifiable relay list
+     */
+    public List<SmtpRelay> getRelays() {
+        return relays;
+    }
+    
+    /**
+     * Stops the health checks and closes every relay's connections.
+     */
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        for (SmtpRelay relay : relays) {
+            relay.getPool().close();
+        }
+    }
+    
+    private synchronized void eject(SmtpRelay relay) {
+        long backoff = relay.ejected
+                ? Math.min(MAX_EJECTION_MILLIS, relay.ejectionBackoffMillis * 2) : MIN_EJECTION_MILLIS;
+        relay.ejectionBackoffMillis = backoff;
+        relay.ejectedUntilMillis = System.currentTimeMillis() + backoff;
+        if (!relay.ejected) {
+            relay.ejected = true;
+            logger.warning("Ejected SMTP relay " + relay + " after repeated failures");
+        }
+        // Idle connections to a failing relay are not worth keeping
+        relay.getPool().evictIdle();
+    }
+    
+    private synchronized void reinstate(SmtpRelay relay) {
+        if (relay.ejected) {
+            relay.ejected = false;
+            relay.ejectionBackoffMillis = 0;
+            relay.consecutiveFailures.set(0);
+            logger.info("SMTP relay " + relay + " is healthy again");
+        }
+    }
+    
+    /**
+     * Probes ejected relays whose backoff has expired, and healthy relays that
+     * have not completed a send recently.
+     */
+    private void checkHealth() {
+        long now = System.currentTimeMillis();
+        for (SmtpRelay relay : relays) {
+            boolean due = relay.ejected
+                    ? now >= relay.ejectedUntilMillis
+                    : now - relay.lastSuccessMillis >= TimeUnit.SECONDS.toMillis(HEALTH_CHECK_SECONDS);
+            if (!due) {
+                continue;
+            }
+            if (probe(relay)) {
+                relay.lastSuccessMillis = now;
+                reinstate(relay);
+            } else {
+                eject(relay);
+            }
+        }
+    }
+    
+    /**
+     * Opens and closes a connection (including STARTTLS and AUTH) to the relay.
+     */
+    private boolean probe(SmtpRelay relay) {
+        Transport transport = null;
+        try {
+            transport = relay.getSession().getTransport("smtp");
+            transport.connect();
+            return true;
+        } catch (MessagingException e) {
+            logger.fine("Health probe of " + relay + " failed: " + e.getMessage());
+            return false;
+        } finally {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    logger.fine("Error closing probe connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
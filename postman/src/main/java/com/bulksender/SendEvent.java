@@ -0,0 +1,105 @@
+package com.bulksender;
+
+/**
+ * One entry of the send event stream published by {@link EmailSender}.
+ * 
+ * Instances are pre-allocated slots that are overwritten as new events are
+ * published, so a listener must copy any field it wants to keep instead of
+ * holding on to the event itself.
+ */
+public class SendEvent {
+    
+    /**
+     * Kinds of events in the stream.
+     */
+    public enum Type {
+        /** A bulk run is starting; {@link #getTotal()} is the number of recipients. */
+        RUN_STARTED,
+        /** A message was accepted by the SMTP server. */
+        MESSAGE_SENT,
+        /** A message could not be sent; {@link #getError()} describes why. */
+        MESSAGE_FAILED,
+        /** A bulk run has finished; {@link #getSuccessCount()} of {@link #getTotal()} were sent. */
+        RUN_COMPLETED
+    }
+    
+    Type type;
+    long sequence;
+    long timestampMillis;
+    String recipient;
+    int replyCode;
+    long latencyNanos;
+    int attempts;
+    String error;
+    int total;
+    int successCount;
+    
+    /**
+     * Copies all fields from another event into this one.
+     * 
+     * @param other The event to copy
+     */
+    void copyFrom(SendEvent other) {
+        this.type = other.type;
+        this.sequence = other.sequence;
+        this.timestampMillis = other.timestampMillis;
+        this.recipient = other.recipient;
+        this.replyCode = other.replyCode;
+        this.latencyNanos = other.latencyNanos;
+        this.attempts = other.attempts;
+        this.error = other.error;
+        this.total = other.total;
+        this.successCount = other.successCount;
+    }
+    
+    // Getters
+    public Type getType() {
+        return type;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+    
+    public String getRecipient() {
+        return recipient;
+    }
+    
+    /**
+     * Returns the SMTP reply code of the final command, or 0 if none was received.
+     * 
+     * @return SMTP reply code
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+    
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+    
+    /**
+     * Returns the number of delivery attempts, or 0 if the message was never sent.
+     * 
+     * @return Attempt count
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+    
+    public String getError() {
+        return error;
+    }
+    
+    public int getTotal() {
+        return total;
+    }
+    
+    public int getSuccessCount() {
+        return successCount;
+    }
+}
@@ -0,0 +1,26 @@
+package com.bulksender;
+
+/**
+ * Receives events from a {@link SendEventRing}. Each listener is called on its
+ * own thread, so a slow listener never holds up sending or other listeners.
+ */
+public interface SendEventListener {
+    
+    /**
+     * Called for each event in publication order. The event object is reused
+     * for the next call; copy any field that must outlive this call.
+     * 
+     * @param event The event
+     */
+    void onEvent(SendEvent event);
+    
+    /**
+     * Called when this listener fell so far behind that events were overwritten
+     * before it could read them.
+     * 
+     * @param count Number of events skipped
+     */
+    default void onEventsLost(long count) {
+        // Ignored by default
+    }
+}
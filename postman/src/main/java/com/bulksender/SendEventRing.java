@@ -0,0 +1,234 @@
+package com.bulksender;
+
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-allocated ring buffer of {@link SendEvent}s with asynchronous listeners.
+ * 
+ * Publishers claim a sequence number, fill the slot in place and mark it
+ * published, so publishing never allocates and never waits. Each listener
+ * runs on its own thread and follows the sequence at its own pace. A listener
+ * that falls more than one ring behind loses the overwritten events (they are
+ * counted and reported) instead of slowing down the send threads.
+ */
+public class SendEventRing {
+    private static final Logger logger = Logger.getLogger(SendEventRing.class.getName());
+    
+    public static final int DEFAULT_CAPACITY = 4096;
+    
+    // How long an idle listener parks between checks for new events
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long LONG_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int IDLE_SPINS = 100;
+    private static final int LONG_IDLE_CHECKS = 1000;
+    
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    
+    /**
+     * A ring slot: the event plus a version used to detect torn or overwritten reads.
+     * The version is the event's sequence once published, and -1 while being written.
+     */
+    private static class Slot {
+        final SendEvent event = new SendEvent();
+        volatile long version = -1;
+    }
+    
+    /**
+     * Creates a ring with the default capacity.
+     */
+    public SendEventRing() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a ring with the given capacity, rounded up to a power of two.
+     * 
+     * @param capacity Number of pre-allocated event slots
+     */
+    public SendEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Publishes the outcome of one message. Safe to call from any number of threads.
+     * 
+     * @param type MESSAGE_SENT or MESSAGE_FAILED
+     * @param recipient The recipient's email address
+     * @param replyCode SMTP reply code, or 0 if none was received
+     * @param latencyNanos Time spent sending the message
+     * @param attempts Number of delivery attempts, 0 if the message was never sent
+     * @param error Error description for failures, otherwise null
+     */
+    public void publishMessage(SendEvent.Type type, String recipient, int replyCode,
+                               long latencyNanos, int attempts, String error) {
+        publish(type, recipient, replyCode, latencyNanos, attempts, error, 0, 0);
+    }
+    
+    /**
+     * Publishes the start or end of a bulk run.
+     * 
+     * @param type RUN_STARTED or RUN_COMPLETED
+     * @param total Number of recipients in the run
+     * @param successCount Number of messages sent successfully (0 when starting)
+     */
+    public void publishRun(SendEvent.Type type, int total, int successCount) {
+        publish(type, null, 0, 0, 0, null, total, successCount);
+    }
+    
+    private void publish(SendEvent.Type type, String recipient, int replyCode,
+                         long latencyNanos, int attempts, String error, int total, int successCount) {
+        long sequence = nextSequence.getAndIncrement();
+        Slot slot = slots[(int) (sequence & mask)];
+        
+        slot.version = -1;
+        VarHandle.storeStoreFence();
+        SendEvent event = slot.event;
+        event.type = type;
+        event.sequence = sequence;
+        event.timestampMillis = System.currentTimeMillis();
+        event.recipient = recipient;
+        event.replyCode = replyCode;
+        event.latencyNanos = latencyNanos;
+        event.attempts = attempts;
+        event.error = error;
+        event.total = total;
+        event.successCount = successCount;
+        slot.version = sequence;
+    }
+    
+    /**
+     * Registers a listener and starts its consumer thread. The listener sees
+     * events published from now on.
+     * 
+     * @param listener The listener to add
+     */
+    public void addListener(SendEventListener listener) {
+        Consumer consumer = new Consumer(listener, nextSequence.get());
+        consumers.add(consumer);
+        consumer.thread.start();
+    }
+    
+    /**
+     * Stops the consumer thread of a listener after it has caught up.
+     * 
+     * @param listener The listener to remove
+     */
+    public void removeListener(SendEventListener listener) {
+        for (Consumer consumer : consumers) {
+            if (consumer.listener == listener) {
+                consumers.remove(consumer);
+                consumer.stop();
+            }
+        }
+    }
+    
+    /**
+     * Lets every listener catch up with the events published so far, then
+     * stops all consumer threads.
+     */
+    public void close() {
+        for (Consumer consumer : consumers) {
+            consumer.stop();
+        }
+        consumers.clear();
+    }
+    
+    /**
+     * Returns the number of events published so far.
+     * 
+     * @return Published event count
+     */
+    public long getPublishedCount() {
+        return nextSequence.get();
+    }
+    
+    /**
+     * Follows the ring on behalf of one listener.
+     */
+    private class Consumer implements Runnable {
+        final SendEventListener listener;
+        final Thread thread;
+        final SendEvent snapshot = new SendEvent();
+        long next;
+        volatile boolean stopping = false;
+        
+        Consumer(SendEventListener listener, long start) {
+            this.listener = listener;
+            this.next = start;
+            this.thread = new Thread(this, "send-events-" + listener.getClass().getSimpleName());
+            this.thread.setDaemon(true);
+        }
+        
+        void stop() {
+            stopping = true;
+            LockSupport.unpark(thread);
+            if (Thread.currentThread() != thread) {
+                try {
+                    thread.join(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                Slot slot = slots[(int) (next & mask)];
+                long version = slot.version;
+                
+                if (version == next) {
+                    snapshot.copyFrom(slot.event);
+                    VarHandle.loadLoadFence();
+                    if (slot.version == next) {
+                        deliver();
+                        next++;
+                        idle = 0;
+                        continue;
+                    }
+                }
+                
+                if (version > next || (version == -1 && nextSequence.get() - next > slots.length)) {
+                    // Overwritten while we were behind: skip to the oldest event still in the ring
+                    long resumeAt = Math.max(next + 1, nextSequence.get() - slots.length + 1);
+                    listener.onEventsLost(resumeAt - next);
+                    next = resumeAt;
+                    continue;
+                }
+                
+                if (next >= nextSequence.get() && stopping) {
+                    return;
+                }
+                if (++idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(idle < LONG_IDLE_CHECKS ? IDLE_PARK_NANOS : LONG_IDLE_PARK_NANOS);
+                }
+            }
+        }
+        
+        private void deliver() {
+            try {
+                listener.onEvent(snapshot);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Send event listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+}
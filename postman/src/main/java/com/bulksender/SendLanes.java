@@ -0,0 +1,708 @@
+package com.bulksender;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Send queues for transactional and bulk mail, drained by a fixed set of
+ * worker threads.
+ * 
+ * When both lanes have work, workers alternate between them by smooth
+ * weighted round robin, so with the default weight of 4 the priority lane
+ * gets four messages out for each bulk one. Either lane may use all the
+ * capacity the other leaves idle, except that the bulk lane never takes the
+ * last few slots of the {@link AdaptiveConcurrencyLimit} nor more than its
+ * share of the configured send rate. A password reset submitted during a
+ * full-speed campaign therefore finds a free connection and goes out
+ * within one message's transmission time.
+ * 
+ * With a {@link DomainThrottle}, a bulk message whose recipient domain is
+ * at its rate or concurrency limit is set aside until the domain is
+ * expected to have room again, and the messages behind it go ahead, so one
+ * throttled domain does not hold up the others. Priority messages are
+ * never set aside, but they count against their domain's limits. A worker
+ * picks its next task under the lock that guards the lanes and claims the
+ * task's domain only after letting go of it, so admission checks for
+ * different domains run in parallel. A refused task is set aside, and its
+ * domain is skipped by later picks until it is expected to have room. When
+ * the set-aside tasks reach their limit, tasks for blocked domains stay in
+ * the queue and the scan continues past them.
+ * 
+ * The bulk lane holds only a few tasks per worker; submitting to it blocks
+ * while it is full, so a campaign is fed in as fast as it is sent. The
+ * priority lane is unbounded.
+ * 
+ * The bulk lane can be paused: workers start no more bulk tasks, queued
+ * ones stay queued, and priority messages still go out.
+ */
+public class SendLanes {
+    private static final Logger logger = Logger.getLogger(SendLanes.class.getName());
+    
+    public static final int DEFAULT_PRIORITY_WEIGHT = 4;
+    public static final double DEFAULT_PRIORITY_RESERVE = 0.2;
+    public static final long CLOSE_TIMEOUT_MILLIS = 30_000;
+    
+    // Upper bound on a worker's wait, so it notices a raised concurrency limit
+    private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int BULK_TASKS_PER_WORKER = 2;
+    // Look-ahead past throttled domains; beyond this many, blocked tasks are skipped in the queue instead
+    private static final int SET_ASIDE_PER_WORKER = 64;
+    
+    /**
+     * The lanes, in the order ties are broken.
+     */
+    public enum Lane {
+        PRIORITY,
+        BULK
+    }
+    
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final DomainThrottle domainThrottle;
+    private final double priorityReserve;
+    private int bulkCapacity;
+    private int setAsideCapacity;
+    private final int[] weights = new int[Lane.values().length];
+    private final int[] credits = new int[Lane.values().length];
+    // Pacing: every dispatch against the overall rate, bulk ones also against the bulk lane's share
+    private int ratePerSecond;
+    private long nanosPerMessage;
+    private long nanosPerBulkMessage;
+    private long nextDispatchNanos;
+    private long nextBulkDispatchNanos;
+    private final int[] running = new int[Lane.values().length];
+    private final long[] dispatched = new long[Lane.values().length];
+    // One queue per lane, indexed by ordinal
+    private final List<ArrayDeque<Task>> queues = new ArrayList<>();
+    // Bulk tasks waiting for their domain, soonest first
+    private final PriorityQueue<Task> setAside = new PriorityQueue<>();
+    // Domains that refused a task, to when they are expected to have room
+    private final Map<String, Long> blockedUntil = new HashMap<>();
+    private long taskSequence = 0;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition bulkSpace = lock.newCondition();
+    private final Condition bulkStopped = lock.newCondition();
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean closed = false;
+    private boolean bulkPaused = false;
+    
+    /**
+     * Creates the lanes and starts their worker threads.
+     * 
+     * @param concurrencyLimit Bounds the number of tasks running at once
+     * @param domainThrottle Per-domain limits, or null for none
+     * @param threads Number of worker threads, normally the limit's maximum
+     * @param priorityWeight Priority messages dispatched per bulk message while both lanes are busy
+     * @param priorityReserve Share of the concurrency limit and send rate kept free for the
+     *                        priority lane, from 0 to below 1
+     * @param ratePerSecond Messages per second over both lanes, 0 for unlimited
+     */
+    public SendLanes(AdaptiveConcurrencyLimit concurrencyLimit, DomainThrottle domainThrottle, int threads,
+                     int priorityWeight, double priorityReserve, int ratePerSecond) {
+        this.concurrencyLimit = concurrencyLimit;
+        this.domainThrottle = domainThrottle;
+        this.priorityReserve = priorityReserve;
+        for (Lane lane : Lane.values()) {
+            queues.add(new ArrayDeque<>());
+        }
+        weights[Lane.PRIORITY.ordinal()] = Math.max(1, priorityWeight);
+        weights[Lane.BULK.ordinal()] = 1;
+        this.nextDispatchNanos = System.nanoTime();
+        this.nextBulkDispatchNanos = nextDispatchNanos;
+        setRate(ratePerSecond);
+        ensureWorkers(threads);
+    }
+    
+    /**
+     * Changes the send rate. Workers waiting for the old rate's next slot
+     * are woken, so the new rate applies from the next dispatch.
+     * 
+     * @param ratePerSecond Messages per second over both lanes, 0 for unlimited
+     */
+    public void setRate(int ratePerSecond) {
+        lock.lock();
+        try {
+            this.ratePerSecond = Math.max(0, ratePerSecond);
+            nanosPerMessage = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+            nanosPerBulkMessage = ratePerSecond > 0 ? (long) (nanosPerMessage / (1 - priorityReserve)) : 0;
+            // A slot booked at a slower rate must not hold up the faster one
+            long now = System.nanoTime();
+            if (nextDispatchNanos - (now + nanosPerMessage) > 0) {
+                nextDispatchNanos = now + nanosPerMessage;
+            }
+            if (nextBulkDispatchNanos - (now + nanosPerBulkMessage) > 0) {
+                nextBulkDispatchNanos = now + nanosPerBulkMessage;
+            }
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the send rate.
+     * 
+     * @return Messages per second, 0 for unlimited
+     */
+    public int getRate() {
+        lock.lock();
+        try {
+            return ratePerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Starts more worker threads if there are fewer than a number, for a
+     * concurrency limit raised beyond the threads it was created with.
+     * Workers are never stopped; the concurrency limit keeps surplus ones idle.
+     * 
+     * @param threads Number of worker threads needed
+     */
+    public void ensureWorkers(int threads) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            while (workers.size() < Math.max(1, threads)) {
+                Thread worker = new Thread(this::work, "smtp-sender-" + (workers.size() + 1));
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+            bulkCapacity = workers.size() * BULK_TASKS_PER_WORKER;
+            setAsideCapacity = workers.size() * SET_ASIDE_PER_WORKER;
+            bulkSpace.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Queues a task. The task must not throw; it runs on a worker thread
+     * holding one slot of the concurrency limit.
+     * 
+     * @param lane The lane to queue it in
+     * @param domain The recipient domain the per-domain limits apply to, or null
+     * @param task The send to run
+     * @throws InterruptedException If interrupted while waiting for room in the bulk lane
+     * @throws IllegalStateException If the lanes have been closed
+     */
+    public void submit(Lane lane, String domain, Runnable task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Task> queue = queues.get(lane.ordinal());
+            while (lane == Lane.BULK && queue.size() >= bulkCapacity && !closed) {
+                bulkSpace.await();
+            }
+            if (closed) {
+                throw new IllegalStateException("Send lanes are closed");
+            }
+            queue.add(new Task(lane, domain, task, taskSequence++));
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of tasks waiting in a lane.
+     * 
+     * @param lane The lane
+     * @return Queued task count
+     */
+    public int getQueuedCount(Lane lane) {
+        lock.lock();
+        try {
+            return queues.get(lane.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of bulk tasks set aside because their domain was at its limit.
+     * 
+     * @return Set-aside task count
+     */
+    public int getSetAsideCount() {
+        lock.lock();
+        try {
+            return setAside.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns how many tasks the bulk lane holds before submitting to it blocks.
+     * 
+     * @return Bulk lane capacity
+     */
+    public int getBulkCapacity() {
+        lock.lock();
+        try {
+            return bulkCapacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of a lane's tasks running right now.
+     * 
+     * @param lane The lane
+     * @return Running task count
+     */
+    public int getRunningCount(Lane lane) {
+        lock.lock();
+        try {
+            return running[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of tasks a lane has dispatched so far.
+     * 
+     * @param lane The lane
+     * @return Dispatched task count
+     */
+    public long getDispatchedCount(Lane lane) {
+        lock.lock();
+        try {
+            return dispatched[lane.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Stops starting bulk tasks and waits for the running ones to finish.
+     * 
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void pauseBulk() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            bulkPaused = true;
+            while (running[Lane.BULK.ordinal()] > 0) {
+                bulkStopped.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Lets the workers start bulk tasks again.
+     */
+    public void resumeBulk() {
+        lock.lock();
+        try {
+            bulkPaused = false;
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns whether the bulk lane is paused.
+     * 
+     * @return true between pauseBulk() and resumeBulk()
+     */
+    public boolean isBulkPaused() {
+        lock.lock();
+        try {
+            return bulkPaused;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Stops accepting tasks and waits for the workers to finish the tasks
+     * already queued, for at most {@link #CLOSE_TIMEOUT_MILLIS}. A paused
+     * bulk lane is resumed so that its tasks run.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            bulkPaused = false;
+            workAvailable.signalAll();
+            bulkSpace.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        
+        List<Thread> stopping;
+        lock.lock();
+        try {
+            stopping = new ArrayList<>(workers);
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        try {
+            for (Thread worker : stopping) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    worker.join(remaining);
+                }
+                if (worker.isAlive()) {
+                    logger.warning("Send lanes closed with messages still in progress");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void work() {
+        while (true) {
+            Task task;
+            lock.lock();
+            try {
+                while ((task = dispatch()) == null) {
+                    if (closed && isEmpty()) {
+                        return;
+                    }
+                    workAvailable.awaitNanos(waitNanos());
+                }
+                running[task.lane.ordinal()]++;
+                dispatched[task.lane.ordinal()]++;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            
+            if (!admit(task)) {
+                continue;
+            }
+            recordQueueWait(task);
+            try {
+                task.send.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Send task failed: " + e.getMessage(), e);
+            } finally {
+                if (domainThrottle != null) {
+                    domainThrottle.release(task.domain);
+                }
+                concurrencyLimit.release();
+                lock.lock();
+                try {
+                    if (--running[task.lane.ordinal()] == 0 && task.lane == Lane.BULK) {
+                        bulkStopped.signalAll();
+                    }
+                    // A slot is free again; another worker may be able to dispatch
+                    workAvailable.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Claims the task's domain. Called without the lock, after the task has
+     * been dispatched. A bulk task whose domain is at its limit gives back
+     * its slot and its dispatch and is set aside.
+     * 
+     * @return true if the task may run
+     */
+    private boolean admit(Task task) {
+        if (domainThrottle == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (task.lane == Lane.PRIORITY) {
+            domainThrottle.acquire(task.domain, now);
+            return true;
+        }
+        long wait = domainThrottle.tryAcquire(task.domain, now);
+        if (wait == 0) {
+            return true;
+        }
+        
+        concurrencyLimit.release();
+        lock.lock();
+        try {
+            task.readyAt = now + wait;
+            task.throttled = true;
+            blockedUntil.merge(task.domain, task.readyAt, (a, b) -> a - b > 0 ? a : b);
+            if (setAside.size() < setAsideCapacity) {
+                setAside.add(task);
+            } else {
+                // Back where it was; later picks skip it until its domain has room
+                queues.get(Lane.BULK.ordinal()).addFirst(task);
+            }
+            dispatched[Lane.BULK.ordinal()]--;
+            if (--running[Lane.BULK.ordinal()] == 0) {
+                bulkStopped.signalAll();
+            }
+            // The send never started, so it does not use up a slot of the send rate
+            if (nanosPerMessage > 0) {
+                nextDispatchNanos -= nanosPerMessage;
+                nextBulkDispatchNanos -= nanosPerBulkMessage;
+            }
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+    
+    /**
+     * Emits a Flight Recorder event for the time a task spent queued.
+     */
+    private static void recordQueueWait(Task task) {
+        FlightEvents.QueueWait event = new FlightEvents.QueueWait();
+        if (event.shouldCommit()) {
+            event.lane = task.lane.name();
+            event.domain = task.domain;
+            event.queuedNanos = System.nanoTime() - task.queuedAt;
+            event.throttled = task.throttled;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Picks the lane to run next, claims a concurrency slot for it and takes
+     * its next task. Called with the lock held.
+     * 
+     * @return The task, or null if no queued task may start now
+     */
+    private Task dispatch() {
+        long now = System.nanoTime();
+        int totalWeight = 0;
+        Lane best = null;
+        for (Lane lane : Lane.values()) {
+            int i = lane.ordinal();
+            if (isReady(lane, now)) {
+                totalWeight += weights[i];
+                credits[i] += weights[i];
+                if (best == null || credits[i] > credits[best.ordinal()]) {
+                    best = lane;
+                }
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        
+        // The preferred lane first; the other may still go if it is held back
+        // by the reserve or by throttled domains
+        Task task = claim(best, now);
+        for (Lane lane : Lane.values()) {
+            if (task == null && lane != best && isReady(lane, now)) {
+                task = claim(lane, now);
+            }
+        }
+        if (task == null) {
+            // Nothing started, so take back this round's credits
+            for (Lane lane : Lane.values()) {
+                int i = lane.ordinal();
+                if (isReady(lane, now)) {
+                    credits[i] -= weights[i];
+                }
+            }
+            return null;
+        }
+        
+        credits[task.lane.ordinal()] -= totalWeight;
+        if (nanosPerMessage > 0) {
+            nextDispatchNanos = Math.max(nextDispatchNanos, now - nanosPerMessage) + nanosPerMessage;
+            if (task.lane == Lane.BULK) {
+                nextBulkDispatchNanos = Math.max(nextBulkDispatchNanos, now - nanosPerBulkMessage) +
+                                        nanosPerBulkMessage;
+            }
+        }
+        return task;
+    }
+    
+    /**
+     * Claims a concurrency slot for a lane and takes a task from it.
+     * 
+     * @return The task, or null (with no slot held) if none may start
+     */
+    private Task claim(Lane lane, long now) {
+        if (!tryClaim(lane)) {
+            return null;
+        }
+        Task task = lane == Lane.BULK ? takeBulk(now) : queues.get(lane.ordinal()).poll();
+        if (task == null) {
+            concurrencyLimit.release();
+            return null;
+        }
+        return task;
+    }
+    
+    /**
+     * Takes the next bulk task whose domain is not known to be at its
+     * limit: a set-aside one that is due, or else the first such task in
+     * the queue. Queued tasks for blocked domains are moved aside on the
+     * way while there is room, and otherwise skipped. The domain itself is
+     * claimed later, by {@link #admit}.
+     */
+    private Task takeBulk(long now) {
+        ArrayDeque<Task> queue = queues.get(Lane.BULK.ordinal());
+        if (domainThrottle == null) {
+            return poll(queue);
+        }
+        
+        Task task;
+        while ((task = setAside.peek()) != null && task.readyAt - now <= 0) {
+            setAside.poll();
+            long until = blockedUntil(task.domain, now);
+            if (until == 0) {
+                return task;
+            }
+            // Another task of the same domain was refused since this one was set aside
+            task.readyAt = until;
+            setAside.add(task);
+        }
+        
+        for (Iterator<Task> it = queue.iterator(); it.hasNext(); ) {
+            task = it.next();
+            long until = blockedUntil(task.domain, now);
+            if (until == 0) {
+                it.remove();
+                bulkSpace.signal();
+                return task;
+            }
+            if (setAside.size() < setAsideCapacity) {
+                it.remove();
+                bulkSpace.signal();
+                task.readyAt = until;
+                task.throttled = true;
+                setAside.add(task);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns when a domain that refused a task is expected to have room,
+     * or 0 if it is not known to be at its limit.
+     */
+    private long blockedUntil(String domain, long now) {
+        Long until = domain == null ? null : blockedUntil.get(domain);
+        if (until == null) {
+            return 0;
+        }
+        if (until - now <= 0) {
+            blockedUntil.remove(domain);
+            return 0;
+        }
+        return until;
+    }
+    
+    private Task poll(ArrayDeque<Task> bulkQueue) {
+        Task task = bulkQueue.poll();
+        if (task != null) {
+            bulkSpace.signal();
+        }
+        return task;
+    }
+    
+    /**
+     * Returns whether a lane has a task that the send rate allows to start now.
+     */
+    private boolean isReady(Lane lane, long now) {
+        if (now - nextDispatchNanos < 0) {
+            return false;
+        }
+        if (lane == Lane.PRIORITY) {
+            return !queues.get(lane.ordinal()).isEmpty();
+        }
+        if (bulkPaused || now - nextBulkDispatchNanos < 0) {
+            return false;
+        }
+        Task due = setAside.peek();
+        return !queues.get(lane.ordinal()).isEmpty() || (due != null && due.readyAt - now <= 0);
+    }
+    
+    private boolean tryClaim(Lane lane) {
+        if (lane == Lane.PRIORITY) {
+            return concurrencyLimit.tryAcquire(0);
+        }
+        // The bulk lane always keeps at least one slot of its own
+        int limit = concurrencyLimit.getLimit();
+        return concurrencyLimit.tryAcquire(Math.min(limit - 1, (int) Math.round(limit * priorityReserve)));
+    }
+    
+    private boolean isEmpty() {
+        for (ArrayDeque<Task> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return setAside.isEmpty();
+    }
+    
+    /**
+     * How long a worker with nothing to dispatch waits before looking again.
+     * Called with the lock held.
+     */
+    private long waitNanos() {
+        long now = System.nanoTime();
+        long next;
+        if (!queues.get(Lane.PRIORITY.ordinal()).isEmpty()) {
+            next = nextDispatchNanos;
+        } else {
+            next = Math.max(nextDispatchNanos, nextBulkDispatchNanos);
+            if (!setAside.isEmpty()) {
+                // Queued bulk tasks are either throttled too or waiting for a slot
+                next = Math.max(next, setAside.peek().readyAt);
+            }
+        }
+        // Otherwise the wait is for a free slot, and finishing tasks signal that
+        return next - now > 0 ? Math.min(RECHECK_NANOS, next - now) : RECHECK_NANOS;
+    }
+    
+    /**
+     * A queued send.
+     */
+    private static final class Task implements Comparable<Task> {
+        final Lane lane;
+        final String domain;
+        final Runnable send;
+        final long sequence;
+        final long queuedAt = System.nanoTime();
+        // When a set-aside task's domain is expected to have room
+        long readyAt;
+        // Whether the task was ever set aside
+        boolean throttled;
+        
+        Task(Lane lane, String domain, Runnable send, long sequence) {
+            this.lane = lane;
+            this.domain = domain;
+            this.send = send;
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public int compareTo(Task other) {
+            int byTime = Long.compare(readyAt - other.readyAt, 0);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
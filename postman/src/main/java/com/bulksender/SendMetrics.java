@@ -0,0 +1,208 @@
+package com.bulksender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running totals of message outcomes, for sampling by a dashboard.
+ * 
+ * As a {@link SendEventListener} it is fed on its own consumer thread, so
+ * counting adds nothing to the send threads. Each event costs a few
+ * uncontended atomic increments: the sent or failed count, a latency
+ * histogram bucket and, for failures, a per-reply-code count. Readers take
+ * a {@link Snapshot} of the totals and subtract an earlier one to get rates
+ * and latency percentiles over the interval between them.
+ * 
+ * Latencies are kept in a log-linear histogram: eight buckets per power of
+ * two of microseconds, so a percentile is within 12.5% of the true value.
+ */
+public class SendMetrics implements SendEventListener {
+    // Values below this many microseconds get a bucket each
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^40 microseconds, about 12 days
+    private static final int MAX_EXPONENT = 40;
+    private static final int LATENCY_BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 4) * SUB_BUCKETS;
+    // SMTP reply codes are three digits; 0 stands for no reply at all
+    private static final int REPLY_CODES = 600;
+    
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+    private final AtomicLongArray failuresByCode = new AtomicLongArray(REPLY_CODES);
+    
+    @Override
+    public void onEvent(SendEvent event) {
+        switch (event.getType()) {
+            case MESSAGE_SENT:
+                sent.incrementAndGet();
+                latencies.incrementAndGet(bucketOf(event.getLatencyNanos()));
+                break;
+            case MESSAGE_FAILED:
+                failed.incrementAndGet();
+                int code = event.getReplyCode();
+                failuresByCode.incrementAndGet(code > 0 && code < REPLY_CODES ? code : 0);
+                // Suppressed addresses fail before anything is sent
+                if (event.getLatencyNanos() > 0) {
+                    latencies.incrementAndGet(bucketOf(event.getLatencyNanos()));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    @Override
+    public void onEventsLost(long count) {
+        lost.addAndGet(count);
+    }
+    
+    /**
+     * Copies the current totals.
+     * 
+     * @return A snapshot taken now
+     */
+    public Snapshot snapshot() {
+        long[] latencyCounts = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < latencyCounts.length; i++) {
+            latencyCounts[i] = latencies.get(i);
+        }
+        long[] codeCounts = new long[REPLY_CODES];
+        for (int i = 0; i < codeCounts.length; i++) {
+            codeCounts[i] = failuresByCode.get(i);
+        }
+        return new Snapshot(System.nanoTime(), sent.get(), failed.get(), lost.get(), latencyCounts, codeCounts);
+    }
+    
+    static int bucketOf(long latencyNanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return LATENCY_BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+    
+    /**
+     * Returns the upper bound of a latency bucket.
+     */
+    static long bucketLimitMicros(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (((long) SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+    
+    /**
+     * Totals at one moment. Subtract an earlier snapshot with
+     * {@link #since(Snapshot)} to get the figures for an interval.
+     */
+    public static final class Snapshot {
+        private final long nanoTime;
+        private final long sent;
+        private final long failed;
+        private final long lost;
+        private final long[] latencies;
+        private final long[] failuresByCode;
+        
+        private Snapshot(long nanoTime, long sent, long failed, long lost, long[] latencies,
+                         long[] failuresByCode) {
+            this.nanoTime = nanoTime;
+            this.sent = sent;
+            this.failed = failed;
+            this.lost = lost;
+            this.latencies = latencies;
+            this.failuresByCode = failuresByCode;
+        }
+        
+        /**
+         * Returns the difference between this snapshot and an earlier one.
+         * 
+         * @param earlier A snapshot of the same metrics taken before this one
+         * @return The counts for the interval between the two
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] latencyDelta = new long[latencies.length];
+            for (int i = 0; i < latencyDelta.length; i++) {
+                latencyDelta[i] = latencies[i] - earlier.latencies[i];
+            }
+            long[] codeDelta = new long[failuresByCode.length];
+            for (int i = 0; i < codeDelta.length; i++) {
+                codeDelta[i] = failuresByCode[i] - earlier.failuresByCode[i];
+            }
+            return new Snapshot(nanoTime - earlier.nanoTime, sent - earlier.sent, failed - earlier.failed,
+                                lost - earlier.lost, latencyDelta, codeDelta);
+        }
+        
+        /**
+         * Returns the length of the interval for a snapshot made by since(),
+         * or the System.nanoTime() it was taken at otherwise.
+         * 
+         * @return Nanoseconds
+         */
+        public long getNanos() {
+            return nanoTime;
+        }
+        
+        public long getSent() {
+            return sent;
+        }
+        
+        public long getFailed() {
+            return failed;
+        }
+        
+        /**
+         * Returns the number of events missed because the listener fell behind.
+         * 
+         * @return Lost event count
+         */
+        public long getLost() {
+            return lost;
+        }
+        
+        /**
+         * Returns the number of failures with a reply code.
+         * 
+         * @param replyCode SMTP reply code, or 0 for failures without a reply
+         * @return Failure count
+         */
+        public long getFailures(int replyCode) {
+            return replyCode >= 0 && replyCode < failuresByCode.length ? failuresByCode[replyCode] : 0;
+        }
+        
+        /**
+         * Returns a send latency percentile.
+         * 
+         * @param percentile Between 0 and 100
+         * @return Latency in milliseconds, or 0 if no latencies were recorded
+         */
+        public double getLatencyMillis(double percentile) {
+            long total = 0;
+            for (long count : latencies) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                seen += latencies[i];
+                if (seen >= rank) {
+                    return bucketLimitMicros(i) / 1000.0;
+                }
+            }
+            return bucketLimitMicros(latencies.length - 1) / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package com.bulksender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The stages a bulk message goes through, each on its own threads and
+ * connected by bounded queues:
+ * - source: the calling thread, reading recipients in order
+ * - validate: suppression list and address checks
+ * - render: the subject and body for the recipient
+ * - encode: the MIME message, encoded in full
+ * - transmit: the {@link SendLanes} workers, under the concurrency, rate
+ *   and domain limits
+ * 
+ * Rendering and encoding for the next messages thus run while earlier
+ * ones wait on the relay. A stage that cannot keep up fills the queue in
+ * front of it, and the stages before it block on the full queue, down to
+ * the source: at most a queue's worth of messages is held per stage, and a
+ * paused bulk lane stops the whole pipeline.
+ * 
+ * Every stage counts the time its threads spend working and the time they
+ * spend blocked on the next stage's queue. A {@link Snapshot} of those
+ * totals, subtracted from an earlier one, gives each stage's occupancy
+ * over the interval; the busiest stage is the bottleneck.
+ */
+public class SendPipeline {
+    private static final Logger logger = Logger.getLogger(SendPipeline.class.getName());
+    
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final long CLOSE_TIMEOUT_MILLIS = 30_000;
+    
+    // Upper bound on an idle worker's wait, so it notices the pipeline closing
+    private static final long POLL_MILLIS = 100;
+    // Most items a worker takes from its queue at once
+    private static final int TAKE_BATCH = 16;
+    
+    /**
+     * The stages, in the order messages go through them.
+     */
+    public enum Stage {
+        SOURCE,
+        VALIDATE,
+        RENDER,
+        ENCODE,
+        TRANSMIT;
+        
+        /**
+         * Returns the stage name as shown in logs.
+         * 
+         * @return The lower-case name
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+    
+    /**
+     * One message on its way through the pipeline. Each stage calls its
+     * method on one of its threads, after the previous stage's method has
+     * returned; if one throws, the message leaves the pipeline through
+     * {@link #failed}.
+     */
+    public interface Item {
+        
+        /**
+         * Returns the recipient domain the per-domain limits apply to.
+         * 
+         * @return The domain, or null
+         */
+        String getDomain();
+        
+        /**
+         * Returns whether the message should go no further; it is then
+         * passed to {@link #dropped} at the next stage.
+         * 
+         * @return true once its send has been cancelled
+         */
+        boolean isCancelled();
+        
+        void validate() throws Exception;
+        
+        void render() throws Exception;
+        
+        void encode() throws Exception;
+        
+        /**
+         * Sends the message and handles its outcome. Must not throw.
+         */
+        void transmit();
+        
+        /**
+         * Called instead of the remaining stages when a stage failed.
+         * 
+         * @param error What the stage threw
+         */
+        void failed(Exception error);
+        
+        /**
+         * Called instead of the remaining stages when the message was cancelled.
+         */
+        void dropped();
+    }
+    
+    private final SendLanes lanes;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final WorkerStage[] workerStages;
+    private final LongAdder[] items = new LongAdder[Stage.values().length];
+    private final LongAdder[] busyNanos = new LongAdder[Stage.values().length];
+    private final LongAdder[] blockedNanos = new LongAdder[Stage.values().length];
+    private volatile boolean closed = false;
+    
+    /**
+     * Creates the pipeline and starts its stage threads. Messages leave it
+     * through the bulk lane.
+     * 
+     * @param lanes The lanes that transmit the messages
+     * @param concurrencyLimit The limit the lanes run under, for the transmit stage's parallelism
+     * @param validateThreads Threads of the validate stage
+     * @param renderThreads Threads of the render stage
+     * @param encodeThreads Threads of the encode stage
+     * @param queueSize Capacity of the queue in front of each of those stages
+     */
+    public SendPipeline(SendLanes lanes, AdaptiveConcurrencyLimit concurrencyLimit, int validateThreads,
+                        int renderThreads, int encodeThreads, int queueSize) {
+        this.lanes = lanes;
+        this.concurrencyLimit = concurrencyLimit;
+        for (Stage stage : Stage.values()) {
+            items[stage.ordinal()] = new LongAdder();
+            busyNanos[stage.ordinal()] = new LongAdder();
+            blockedNanos[stage.ordinal()] = new LongAdder();
+        }
+        workerStages = new WorkerStage[] {
+            new WorkerStage(Stage.VALIDATE, validateThreads, queueSize),
+            new WorkerStage(Stage.RENDER, renderThreads, queueSize),
+            new WorkerStage(Stage.ENCODE, encodeThreads, queueSize)
+        };
+        for (int i = 0; i < workerStages.length; i++) {
+            workerStages[i].start(i + 1 < workerStages.length ? workerStages[i + 1] : null);
+        }
+    }
+    
+    /**
+     * Runs the source stage on the calling thread: creates the item of each
+     * index in turn and queues it for validation, blocking while the queue
+     * is full. Returns once every item has been queued, not sent.
+     * 
+     * @param from First index
+     * @param to Index after the last one
+     * @param source Creates the item of an index
+     * @param stop Checked before each index; feeding stops once it returns true
+     * @return The index after the last one queued
+     * @throws InterruptedException If interrupted while waiting for room
+     * @throws IllegalStateException If the pipeline has been closed
+     */
+    public int feed(int from, int to, IntFunction<? extends Item> source, BooleanSupplier stop)
+            throws InterruptedException {
+        int sourceStage = Stage.SOURCE.ordinal();
+        WorkerStage first = workerStages[0];
+        int next = from;
+        long mark = System.nanoTime();
+        for (; next < to && !stop.getAsBoolean(); next++) {
+            if (closed) {
+                throw new IllegalStateException("Send pipeline is closed");
+            }
+            Item item = source.apply(next);
+            long ready = System.nanoTime();
+            busyNanos[sourceStage].add(ready - mark);
+            items[sourceStage].increment();
+            first.queue.put(item);
+            if (closed && first.queue.remove(item)) {
+                // Closed while waiting for room, after the stage's threads had stopped
+                item.dropped();
+                throw new IllegalStateException("Send pipeline is closed");
+            }
+            mark = System.nanoTime();
+            blockedNanos[sourceStage].add(mark - ready);
+        }
+        return next;
+    }
+    
+    /**
+     * Hands an encoded item to the bulk lane, timing its transmission.
+     */
+    private void transmit(Item item) throws InterruptedException {
+        int transmit = Stage.TRANSMIT.ordinal();
+        lanes.submit(SendLanes.Lane.BULK, item.getDomain(), () -> {
+            if (item.isCancelled()) {
+                item.dropped();
+                return;
+            }
+            // Counted first: the batch may finish, and be measured, as soon as transmit() returns
+            items[transmit].increment();
+            long start = System.nanoTime();
+            try {
+                item.transmit();
+            } finally {
+                busyNanos[transmit].add(System.nanoTime() - start);
+            }
+        });
+    }
+    
+    /**
+     * Copies the stages' current totals.
+     * 
+     * @return A snapshot taken now
+     */
+    public Snapshot snapshot() {
+        int stages = Stage.values().length;
+        Snapshot snapshot = new Snapshot(System.nanoTime(), stages);
+        for (int i = 0; i < stages; i++) {
+            snapshot.items[i] = items[i].sum();
+            snapshot.busyNanos[i] = busyNanos[i].sum();
+            snapshot.blockedNanos[i] = blockedNanos[i].sum();
+        }
+        snapshot.threads[Stage.SOURCE.ordinal()] = 1;
+        for (WorkerStage stage : workerStages) {
+            int i = stage.stage.ordinal();
+            snapshot.threads[i] = stage.workers.size();
+            snapshot.queued[i] = stage.queue.size();
+            snapshot.capacity[i] = stage.queue.size() + stage.queue.remainingCapacity();
+        }
+        int transmit = Stage.TRANSMIT.ordinal();
+        snapshot.threads[transmit] = concurrencyLimit.getLimit();
+        snapshot.queued[transmit] = lanes.getQueuedCount(SendLanes.Lane.BULK);
+        snapshot.capacity[transmit] = lanes.getBulkCapacity();
+        return snapshot;
+    }
+    
+    /**
+     * Stops accepting items, lets the stages pass on the items already
+     * queued and waits for their threads to finish, for at most
+     * {@link #CLOSE_TIMEOUT_MILLIS}. Close it before the lanes, which then
+     * send what it passed on; a paused bulk lane is resumed so that the
+     * stages can empty.
+     */
+    public void close() {
+        closed = true;
+        if (lanes.isBulkPaused()) {
+            lanes.resumeBulk();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        try {
+            // In stage order, so that each stage's input has ended before it is waited for
+            for (WorkerStage stage : workerStages) {
+                stage.inputEnded = true;
+                for (Thread worker : stage.workers) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining > 0) {
+                        worker.join(remaining);
+                    }
+                    if (worker.isAlive()) {
+                        logger.warning("Send pipeline closed with messages still in its " + stage.stage.label() +
+                                       " stage");
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // Anything fed in while the stages were stopping is not sent
+        for (WorkerStage stage : workerStages) {
+            Item item;
+            while ((item = stage.queue.poll()) != null) {
+                item.dropped();
+            }
+        }
+    }
+    
+    /**
+     * A stage run by its own threads, taking items from its queue.
+     */
+    private final class WorkerStage {
+        final Stage stage;
+        final BlockingQueue<Item> queue;
+        final List<Thread> workers = new ArrayList<>();
+        // Set once nothing more will be put in the queue; workers then exit when it is empty
+        volatile boolean inputEnded = false;
+        private final int threads;
+        
+        WorkerStage(Stage stage, int threads, int queueSize) {
+            this.stage = stage;
+            this.threads = Math.max(1, threads);
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        }
+        
+        void start(WorkerStage next) {
+            for (int i = 0; i < threads; i++) {
+                Thread worker = new Thread(() -> work(next), "send-" + stage.label() + "-" + (i + 1));
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+        
+        private void work(WorkerStage next) {
+            int i = stage.ordinal();
+            List<Item> taken = new ArrayList<>(TAKE_BATCH);
+            try {
+                while (true) {
+                    Item first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (inputEnded && queue.isEmpty()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    // Whatever else is waiting comes along without another wakeup
+                    taken.add(first);
+                    queue.drainTo(taken, TAKE_BATCH - 1);
+                    
+                    for (Item item : taken) {
+                        long start = System.nanoTime();
+                        boolean passed = run(item);
+                        long done = System.nanoTime();
+                        busyNanos[i].add(done - start);
+                        items[i].increment();
+                        if (passed) {
+                            pass(item, next);
+                            blockedNanos[i].add(System.nanoTime() - done);
+                        }
+                    }
+                    taken.clear();
+                }
+            } catch (InterruptedException e) {
+                // Only the JVM shutting down interrupts these daemon threads
+            }
+        }
+        
+        /**
+         * Runs this stage's step of an item.
+         * 
+         * @return true if the item goes on to the next stage
+         */
+        private boolean run(Item item) {
+            try {
+                if (item.isCancelled()) {
+                    item.dropped();
+                    return false;
+                }
+                switch (stage) {
+                    case VALIDATE:
+                        item.validate();
+                        break;
+                    case RENDER:
+                        item.render();
+                        break;
+                    default:
+                        item.encode();
+                        break;
+                }
+                return true;
+            } catch (Exception e) {
+                fail(item, e);
+                return false;
+            }
+        }
+        
+        private void pass(Item item, WorkerStage next) throws InterruptedException {
+            if (next != null) {
+                next.queue.put(item);
+                return;
+            }
+            try {
+                transmit(item);
+            } catch (IllegalStateException e) {
+                // The lanes were closed before the pipeline
+                fail(item, e);
+            }
+        }
+        
+        private void fail(Item item, Exception error) {
+            try {
+                item.failed(error);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Send pipeline item failed: " + e.getMessage(), e);
+            }
+        }
+    }
+    
+    /**
+     * The stages' totals at one moment.
+     */
+    public static final class Snapshot {
+        private final long takenAt;
+        private final long[] items;
+        private final long[] busyNanos;
+        private final long[] blockedNanos;
+        private final int[] threads;
+        private final int[] queued;
+        private final int[] capacity;
+        
+        private Snapshot(long takenAt, int stages) {
+            this.takenAt = takenAt;
+            this.items = new long[stages];
+            this.busyNanos = new long[stages];
+            this.blockedNanos = new long[stages];
+            this.threads = new int[stages];
+            this.queued = new int[stages];
+            this.capacity = new int[stages];
+        }
+        
+        /**
+         * Returns each stage's occupancy between an earlier snapshot and this one.
+         * 
+         * @param earlier The snapshot at the start of the interval
+         * @return One entry per stage, in stage order
+         */
+        public List<StageLoad> since(Snapshot earlier) {
+            double seconds = Math.max(1, takenAt - earlier.takenAt) / 1e9;
+            List<StageLoad> loads = new ArrayList<>();
+            for (Stage stage : Stage.values()) {
+                int i = stage.ordinal();
+                double threadSeconds = seconds * Math.max(1, threads[i]);
+                loads.add(new StageLoad(stage, threads[i], items[i] - earlier.items[i],
+                                        Math.min(1, (busyNanos[i] - earlier.busyNanos[i]) / 1e9 / threadSeconds),
+                                        Math.min(1, (blockedNanos[i] - earlier.blockedNanos[i]) / 1e9 / threadSeconds),
+                                        queued[i], capacity[i]));
+            }
+            return loads;
+        }
+    }
+    
+    /**
+     * One stage's occupancy over an interval. Its threads' time splits into
+     * busy, blocked on the next stage's full queue, and idle waiting for
+     * input. The bottleneck is busy nearly all the time, the stages before
+     * it are mostly blocked and the ones after it mostly idle. A stage that
+     * is mostly idle behind a full queue is held back by something other
+     * than work, such as the send rate or domain limits in transmit.
+     */
+    public static final class StageLoad {
+        private final Stage stage;
+        private final int threads;
+        private final long items;
+        private final double busy;
+        private final double blocked;
+        private final int queued;
+        private final int capacity;
+        
+        StageLoad(Stage stage, int threads, long items, double busy, double blocked, int queued, int capacity) {
+            this.stage = stage;
+            this.threads = threads;
+            this.items = items;
+            this.busy = busy;
+            this.blocked = blocked;
+            this.queued = queued;
+            this.capacity = capacity;
+        }
+        
+        public Stage getStage() {
+            return stage;
+        }
+        
+        /**
+         * Returns the stage's parallelism: its threads, or for transmit the
+         * concurrency limit when the snapshot was taken.
+         * 
+         * @return Thread count
+         */
+        public int getThreads() {
+            return threads;
+        }
+        
+        public long getItems() {
+            return items;
+        }
+        
+        /**
+         * Returns the share of the stage's thread time spent working.
+         * 
+         * @return 0 to 1
+         */
+        public double getBusy() {
+            return busy;
+        }
+        
+        /**
+         * Returns the share of the stage's thread time spent waiting for
+         * room in the next stage's queue.
+         * 
+         * @return 0 to 1
+         */
+        public double getBlocked() {
+            return blocked;
+        }
+        
+        /**
+         * Returns the number of items waiting in front of the stage.
+         * 
+         * @return Queued items; always 0 for the source
+         */
+        public int getQueued() {
+            return queued;
+        }
+        
+        public int getCapacity() {
+            return capacity;
+        }
+        
+        /**
+         * Returns the stage holding the pipeline back: the busiest one of
+         * those that spend more time working than blocked on the next
+         * stage, since a stage mostly blocked is waiting for a slower one.
+         * 
+         * @param loads Loads of every stage over the same interval
+         * @return The bottleneck stage's load
+         */
+        public static StageLoad bottleneck(List<StageLoad> loads) {
+            StageLoad busiest = null;
+            StageLoad busiestFree = null;
+            for (StageLoad load : loads) {
+                if (busiest == null || load.busy > busiest.busy) {
+                    busiest = load;
+                }
+                if (load.busy >= load.blocked && (busiestFree == null || load.busy > busiestFree.busy)) {
+                    busiestFree = load;
+                }
+            }
+            return busiestFree != null ? busiestFree : busiest;
+        }
+        
+        @Override
+        public String toString() {
+            return stage.label() + ": " + threads + (threads == 1 ? " thread, " : " threads, ") +
+                   Math.round(busy * 100) + "% busy, " + Math.round(blocked * 100) + "% blocked, " +
+                   (stage == Stage.SOURCE ? "" : "queue " + queued + "/" + capacity + ", ") + items + " messages";
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.bulksender;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Schedules per-recipient delivery times for one campaign and releases due
+ * messages to an {@link EmailSender} in batches.
+ * 
+ * Pending sends are held in a {@link TimingWheel}, so scheduling millions of
+ * recipients costs O(1) each. A ticker thread advances the wheel once per tick
+ * and hands due recipients to a separate sender thread; while nothing is
+ * pending the ticker waits without waking up.
+ * 
+ * Release is not the same as delivery: under send-rate limits a large cohort
+ * can still be queued when its window closes. The sender thread therefore
+ * checks the window again just before each batch and puts recipients whose
+ * allowed hours have ended back on the wheel for their next window.
+ */
+public class SendScheduler {
+    private static final Logger logger = Logger.getLogger(SendScheduler.class.getName());
+    
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    
+    private final EmailSender emailSender;
+    private final SendWindow window;
+    private final String subject;
+    private final String body;
+    private final int batchSize;
+    
+    private final Object lock = new Object();
+    private final TimingWheel<Pending> wheel;
+    private final BlockingQueue<List<Pending>> batches = new LinkedBlockingQueue<>();
+    private List<Pending> currentBatch = new ArrayList<>();
+    
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+    private volatile boolean running = false;
+    private Thread tickerThread;
+    private Thread senderThread;
+    
+    /**
+     * Creates a scheduler for one campaign.
+     * 
+     * @param emailSender An initialized EmailSender
+     * @param window Allowed delivery hours in recipients' local time
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     */
+    public SendScheduler(EmailSender emailSender, SendWindow window, String subject, String body) {
+        this(emailSender, window, subject, body, DEFAULT_TICK_MILLIS, DEFAULT_BATCH_SIZE);
+    }
+    
+    /**
+     * Creates a scheduler with explicit tick length and batch size.
+     * 
+     * @param emailSender An initialized EmailSender
+     * @param window Allowed delivery hours in recipients' local time
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     * @param tickMillis Timer resolution in milliseconds
+     * @param batchSize Maximum recipients handed to the sender at once
+     */
+    public SendScheduler(EmailSender emailSender, SendWindow window, String subject, String body,
+                         long tickMillis, int batchSize) {
+        this.emailSender = emailSender;
+        this.window = window;
+        this.subject = subject;
+        this.body = body;
+        this.batchSize = batchSize;
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+    }
+    
+    /**
+     * Starts the ticker and sender threads.
+     */
+    public void start() {
+        running = true;
+        tickerThread = new Thread(this::tick, "scheduler-ticker");
+        senderThread = new Thread(this::sendBatches, "scheduler-sender");
+        tickerThread.start();
+        senderThread.start();
+    }
+    
+    /**
+     * Schedules a recipient for delivery at the window's preferred local time.
+     * 
+     * @param recipient The recipient's email address
+     * @param zone The recipient's time zone
+     * @return The instant the message will be released
+     */
+    public Instant schedule(String recipient, ZoneId zone) {
+        scheduledCount.incrementAndGet();
+        return enqueue(new Pending(recipient, zone), Instant.now());
+    }
+    
+    /**
+     * Blocks until every scheduled message has been sent or has failed.
+     * 
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        while (processedCount.get() < scheduledCount.get()) {
+            Thread.sleep(wheel.getTickMillis());
+        }
+    }
+    
+    /**
+     * Stops both threads. Messages still in the wheel are not sent.
+     */
+    public void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (senderThread != null) {
+            senderThread.interrupt();
+        }
+    }
+    
+    /**
+     * Returns the number of messages waiting for their send time.
+     * 
+     * @return Pending message count
+     */
+    public long getPendingCount() {
+        synchronized (lock) {
+            return wheel.size();
+        }
+    }
+    
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+    
+    public long getSentCount() {
+        return sentCount.get();
+    }
+    
+    public long getFailedCount() {
+        return processedCount.get() - sentCount.get();
+    }
+    
+    /**
+     * Returns the number of times a released message was put back on the
+     * wheel because its window had closed before it could be sent.
+     * 
+     * @return Deferred message count
+     */
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+    
+    private Instant enqueue(Pending pending, Instant now) {
+        Instant due = window.nextSendTime(pending.zone, now);
+        synchronized (lock) {
+            if (!wheel.add(pending, due.toEpochMilli())) {
+                release(pending);
+            }
+            lock.notifyAll();
+        }
+        return due;
+    }
+    
+    private void tick() {
+        long tickMillis = wheel.getTickMillis();
+        try {
+            synchronized (lock) {
+                while (running) {
+                    // Idle: sleep until something is scheduled
+                    while (running && wheel.size() == 0 && currentBatch.isEmpty()) {
+                        lock.wait();
+                    }
+                    
+                    long now = System.currentTimeMillis();
+                    int released = wheel.advanceTo(now, this::release);
+                    flushBatch();
+                    if (released > 0) {
+                        logger.fine("Released " + released + " scheduled message(s)");
+                    }
+                    
+                    lock.wait(tickMillis - now % tickMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void release(Pending pending) {
+        currentBatch.add(pending);
+        if (currentBatch.size() >= batchSize) {
+            flushBatch();
+        }
+    }
+    
+    private void flushBatch() {
+        if (!currentBatch.isEmpty()) {
+            batches.add(currentBatch);
+            currentBatch = new ArrayList<>(batchSize);
+        }
+    }
+    
+    private void sendBatches() {
+        while (running) {
+            List<Pending> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            
+            // The batch may have waited behind earlier ones past its window
+            Instant now = Instant.now();
+            List<String> recipients = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                if (window.isOpen(pending.zone, now)) {
+                    recipients.add(pending.recipient);
+                } else {
+                    deferredCount.incrementAndGet();
+                    enqueue(pending, now);
+                }
+            }
+            if (recipients.size() < batch.size()) {
+                logger.fine("Deferred " + (batch.size() - recipients.size())
+                        + " message(s) to their next send window");
+            }
+            if (recipients.isEmpty()) {
+                continue;
+            }
+            
+            int sent = emailSender.sendBatch(recipients, subject, body);
+            sentCount.addAndGet(sent);
+            processedCount.addAndGet(recipients.size());
+        }
+    }
+    
+    /**
+     * A recipient waiting on the wheel, with the time zone its window is
+     * evaluated in.
+     */
+    private static class Pending {
+        final String recipient;
+        final ZoneId zone;
+        
+        Pending(String recipient, ZoneId zone) {
+            this.recipient = recipient;
+            this.zone = zone;
+        }
+    }
+}
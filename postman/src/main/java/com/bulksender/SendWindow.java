@@ -0,0 +1,90 @@
+package com.bulksender;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * Describes when messages may be delivered in a recipient's local time:
+ * a preferred time of day and a window of allowed hours.
+ */
+public class SendWindow {
+    private final LocalTime preferredTime;
+    private final LocalTime windowStart;
+    private final LocalTime windowEnd;
+    
+    /**
+     * Creates a send window.
+     * 
+     * @param preferredTime Local time of day to deliver at (for example 09:00)
+     * @param windowStart Start of the allowed hours, inclusive
+     * @param windowEnd End of the allowed hours, exclusive
+     */
+    public SendWindow(LocalTime preferredTime, LocalTime windowStart, LocalTime windowEnd) {
+        if (!windowStart.isBefore(windowEnd)) {
+            throw new IllegalArgumentException("Send window start must be before its end");
+        }
+        this.preferredTime = preferredTime;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+    }
+    
+    /**
+     * Computes the next delivery time for a recipient in the given time zone.
+     * The preferred time is used when it is still ahead today; if it has passed
+     * but the allowed hours are still open, the message is due immediately;
+     * otherwise it is delivered at the preferred time on the next day.
+     * A preferred time outside the window is moved to the window start.
+     * 
+     * @param zone The recipient's time zone
+     * @param now The current instant
+     * @return The instant the message should be released
+     */
+    public Instant nextSendTime(ZoneId zone, Instant now) {
+        LocalTime target = preferredTime;
+        if (target.isBefore(windowStart) || !target.isBefore(windowEnd)) {
+            target = windowStart;
+        }
+        
+        ZonedDateTime local = now.atZone(zone);
+        LocalDate today = local.toLocalDate();
+        ZonedDateTime todayTarget = ZonedDateTime.of(today, target, zone);
+        
+        if (local.isBefore(todayTarget)) {
+            return todayTarget.toInstant();
+        }
+        
+        if (isOpen(zone, now)) {
+            return now;
+        }
+        
+        return ZonedDateTime.of(today.plusDays(1), target, zone).toInstant();
+    }
+    
+    /**
+     * Checks whether the allowed hours are open for a recipient right now.
+     * 
+     * @param zone The recipient's time zone
+     * @param now The current instant
+     * @return True if a message may be delivered at this instant
+     */
+    public boolean isOpen(ZoneId zone, Instant now) {
+        LocalTime localTime = now.atZone(zone).toLocalTime();
+        return !localTime.isBefore(windowStart) && localTime.isBefore(windowEnd);
+    }
+    
+    // Getters
+    public LocalTime getPreferredTime() {
+        return preferredTime;
+    }
+    
+    public LocalTime getWindowStart() {
+        return windowStart;
+    }
+    
+    public LocalTime getWindowEnd() {
+        return windowEnd;
+    }
+}
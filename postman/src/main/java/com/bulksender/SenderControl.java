@@ -0,0 +1,244 @@
+package com.bulksender;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * The {@link SenderControlMBean} of one {@link EmailSender}, and the client
+ * side used by --control to reach it in another process.
+ * 
+ * The bean holds no state of its own: every call goes to the sender's
+ * current send lanes, concurrency limit and domain throttle, so it keeps
+ * working when the sender is initialized again. Each sender in a process
+ * is registered under its own name, numbered from 1.
+ */
+public class SenderControl implements SenderControlMBean {
+    private static final Logger logger = Logger.getLogger(SenderControl.class.getName());
+    
+    /** Pattern matching the names of every sender's bean. */
+    public static final String NAME_PATTERN = "com.bulksender:type=EmailSender,*";
+    
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    
+    private final EmailSender sender;
+    
+    SenderControl(EmailSender sender) {
+        this.sender = sender;
+    }
+    
+    /**
+     * Registers a sender's bean with the platform MBean server.
+     * 
+     * @param sender The sender to control
+     * @return The name it was registered under, or null if registration failed
+     */
+    static ObjectName register(EmailSender sender) {
+        try {
+            ObjectName name = new ObjectName("com.bulksender:type=EmailSender,name=" + nextId.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new SenderControl(sender), name);
+            return name;
+        } catch (JMException e) {
+            logger.warning("Cannot register sender management bean: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Removes a bean registered with {@link #register(EmailSender)}.
+     * 
+     * @param name The name it was registered under
+     */
+    static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            logger.fine("Sender management bean already gone: " + e.getMessage());
+        }
+    }
+    
+    @Override
+    public int getSendRate() {
+        SendLanes lanes = sender.getSendLanes();
+        return lanes != null ? lanes.getRate() : 0;
+    }
+    
+    @Override
+    public void setSendRate(int ratePerSecond) {
+        sender.setSendRate(ratePerSecond);
+    }
+    
+    @Override
+    public int getMinConcurrency() {
+        return sender.getConcurrencyLimit().getMinLimit();
+    }
+    
+    @Override
+    public void setMinConcurrency(int minConcurrency) {
+        sender.setConcurrency(minConcurrency, Math.max(minConcurrency, getMaxConcurrency()));
+    }
+    
+    @Override
+    public int getMaxConcurrency() {
+        return sender.getConcurrencyLimit().getMaxLimit();
+    }
+    
+    @Override
+    public void setMaxConcurrency(int maxConcurrency) {
+        sender.setConcurrency(Math.min(getMinConcurrency(), maxConcurrency), maxConcurrency);
+    }
+    
+    @Override
+    public int getConcurrencyLimit() {
+        return sender.getConcurrencyLimit().getLimit();
+    }
+    
+    @Override
+    public int getInFlight() {
+        return sender.getConcurrencyLimit().getInFlight();
+    }
+    
+    @Override
+    public int getQueuedBulk() {
+        SendLanes lanes = sender.getSendLanes();
+        return lanes != null ? lanes.getQueuedCount(SendLanes.Lane.BULK) : 0;
+    }
+    
+    @Override
+    public int getQueuedPriority() {
+        SendLanes lanes = sender.getSendLanes();
+        return lanes != null ? lanes.getQueuedCount(SendLanes.Lane.PRIORITY) : 0;
+    }
+    
+    @Override
+    public int getThrottled() {
+        SendLanes lanes = sender.getSendLanes();
+        return lanes != null ? lanes.getSetAsideCount() : 0;
+    }
+    
+    @Override
+    public String getDefaultDomainLimit() {
+        DomainThrottle throttle = sender.getDomainThrottle();
+        return throttle != null ? throttle.getDefaultLimit() : null;
+    }
+    
+    @Override
+    public void setDefaultDomainLimit(String limit) {
+        throttle().setDefaultLimit(limit);
+        logger.info("Default domain limit set to " + (limit == null || limit.trim().isEmpty() ? "none" : limit));
+    }
+    
+    @Override
+    public String[] getDomainLimits() {
+        DomainThrottle throttle = sender.getDomainThrottle();
+        List<String> entries = new ArrayList<>();
+        if (throttle != null) {
+            for (Map.Entry<String, String> entry : throttle.getLimits().entrySet()) {
+                entries.add(entry.getKey() + "=" + entry.getValue());
+            }
+        }
+        return entries.toArray(new String[0]);
+    }
+    
+    @Override
+    public void setDomainLimit(String domain, String limit) {
+        throttle().setLimit(domain, limit);
+        logger.info("Domain limit for " + domain + " set to " +
+                    (limit == null || limit.trim().isEmpty() ? "the default" : limit));
+    }
+    
+    @Override
+    public String[] getPipelineStages() {
+        List<SendPipeline.StageLoad> loads = sender.getStageLoads();
+        List<String> lines = new ArrayList<>();
+        for (SendPipeline.StageLoad load : loads) {
+            lines.add(load.toString());
+        }
+        if (!loads.isEmpty()) {
+            lines.add("bottleneck: " + SendPipeline.StageLoad.bottleneck(loads).getStage().label());
+        }
+        return lines.toArray(new String[0]);
+    }
+    
+    @Override
+    public boolean isPaused() {
+        return sender.isPaused();
+    }
+    
+    @Override
+    public void pause() throws InterruptedException {
+        sender.pause();
+    }
+    
+    @Override
+    public void resume() {
+        sender.resume();
+    }
+    
+    private DomainThrottle throttle() {
+        DomainThrottle throttle = sender.getDomainThrottle();
+        if (throttle == null) {
+            throw new IllegalStateException("EmailSender must be initialized first");
+        }
+        return throttle;
+    }
+    
+    /**
+     * Connects to the platform MBean server of a sender process.
+     * 
+     * @param target The process id of a sender on this machine, or host:port
+     *               of a process started with com.sun.management.jmxremote.port
+     * @return An open connector; close it when done
+     * @throws IOException If the process cannot be reached
+     */
+    public static JMXConnector connect(String target) throws IOException {
+        String url;
+        if (target.chars().allMatch(Character::isDigit)) {
+            // A local process: have it start its local management agent and ask for the address
+            VirtualMachine vm;
+            try {
+                vm = VirtualMachine.attach(target);
+            } catch (AttachNotSupportedException e) {
+                throw new IOException("Cannot attach to process " + target + ": " + e.getMessage(), e);
+            }
+            try {
+                url = vm.startLocalManagementAgent();
+            } finally {
+                vm.detach();
+            }
+        } else {
+            url = "service:jmx:rmi:///jndi/rmi://" + target + "/jmxrmi";
+        }
+        return JMXConnectorFactory.connect(new JMXServiceURL(url));
+    }
+    
+    /**
+     * Returns the names of the senders registered in a process.
+     * 
+     * @param connection Connection to the process's MBean server
+     * @return Bean names in name order; empty if the process has no sender
+     * @throws IOException If the process cannot be queried
+     */
+    public static Set<ObjectName> findSenders(MBeanServerConnection connection) throws IOException {
+        try {
+            return new TreeSet<>(connection.queryNames(new ObjectName(NAME_PATTERN), null));
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
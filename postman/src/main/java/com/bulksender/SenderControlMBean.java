@@ -0,0 +1,113 @@
+package com.bulksender;
+
+/**
+ * Management interface of a running {@link EmailSender}, registered with the
+ * platform MBean server as com.bulksender:type=EmailSender. Changes apply to
+ * the messages dispatched after them, within the send lanes' scheduling
+ * tick; messages already in flight finish as they are.
+ * 
+ * Use it from JConsole or VisualVM, or with the --control command line client.
+ */
+public interface SenderControlMBean {
+    
+    /**
+     * Returns the send rate.
+     * 
+     * @return Messages per second, 0 for unlimited
+     */
+    int getSendRate();
+    
+    /**
+     * Sets the send rate.
+     * 
+     * @param ratePerSecond Messages per second, 0 for unlimited
+     */
+    void setSendRate(int ratePerSecond);
+    
+    /**
+     * Returns the lowest concurrency the adaptive limit may back off to.
+     * 
+     * @return Minimum messages in flight
+     */
+    int getMinConcurrency();
+    
+    void setMinConcurrency(int minConcurrency);
+    
+    /**
+     * Returns the highest concurrency the adaptive limit may grow to, which
+     * also caps the connections kept per relay.
+     * 
+     * @return Maximum messages in flight
+     */
+    int getMaxConcurrency();
+    
+    void setMaxConcurrency(int maxConcurrency);
+    
+    /**
+     * Returns the concurrency limit the adaptive controller is at now.
+     * 
+     * @return Messages allowed in flight
+     */
+    int getConcurrencyLimit();
+    
+    int getInFlight();
+    
+    int getQueuedBulk();
+    
+    int getQueuedPriority();
+    
+    /**
+     * Returns the number of bulk messages held back for their domain's limits.
+     * 
+     * @return Set-aside message count
+     */
+    int getThrottled();
+    
+    /**
+     * Returns the limit of domains without one of their own.
+     * 
+     * @return "rate/concurrency", or null for none
+     */
+    String getDefaultDomainLimit();
+    
+    /**
+     * Sets the limit of domains without one of their own.
+     * 
+     * @param limit "rate" or "rate/concurrency", or empty for none
+     */
+    void setDefaultDomainLimit(String limit);
+    
+    /**
+     * Returns the limits of individual domains.
+     * 
+     * @return Entries of the form "domain=rate/concurrency"
+     */
+    String[] getDomainLimits();
+    
+    /**
+     * Sets or removes the limit of one domain.
+     * 
+     * @param domain The recipient domain
+     * @param limit "rate" or "rate/concurrency", or empty to use the default limit
+     */
+    void setDomainLimit(String domain, String limit);
+    
+    /**
+     * Returns how busy each stage of the send pipeline has been during the
+     * current send, or the last one.
+     * 
+     * @return One line per stage in pipeline order, then the bottleneck
+     */
+    String[] getPipelineStages();
+    
+    boolean isPaused();
+    
+    /**
+     * Stops starting bulk messages and waits for the running ones to finish.
+     * 
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void pause() throws InterruptedException;
+    
+    void resume();
+}
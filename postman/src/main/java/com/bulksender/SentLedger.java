@@ -0,0 +1,418 @@
+package com.bulksender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * The addresses a recurring campaign has already been sent to, so that a
+ * daily run against a growing recipients file only mails the new ones.
+ * 
+ * Each campaign has two files in the ledger directory:
+ * - {campaign}-NNNNNNNN.sent: a header followed by the sorted 64-bit hashes
+ *   of every address sent to (see {@link SuppressionList}), memory-mapped
+ * - {campaign}.journal: the hashes of addresses sent to since the last
+ *   merge, 8 bytes each, appended while a run is in progress
+ * 
+ * A lookup goes through a table of where each 16-bit hash prefix starts in
+ * the sorted file, built in one pass when the ledger is opened, and then
+ * binary-searches the few hundred entries that share the prefix. Checking a
+ * recipients file of millions of addresses is one streaming pass that
+ * touches a handful of mapped pages per address.
+ * 
+ * The sender records every message that was sent from its sending threads
+ * (see {@link EmailSender#setSentLedger}), so no success is missed however
+ * busy the run is; failed messages are not recorded, so they are tried
+ * again by the next run. If the journal cannot be written, recording fails,
+ * the sender cancels the run and closing the ledger fails too.
+ * 
+ * Closing the ledger merges the journal into the next generation of the
+ * sorted file in one sequential pass. A journal left behind by a run that
+ * did not finish is merged when the ledger is next opened, so nothing that
+ * was written to it is sent twice.
+ */
+public class SentLedger implements Closeable {
+    private static final Logger logger = Logger.getLogger(SentLedger.class.getName());
+    
+    private static final String LEDGER_SUFFIX = ".sent";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final Pattern CAMPAIGN_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+    
+    // Header: magic "SENT", format version, entry count
+    private static final int MAGIC = 0x53454E54;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int PREFIX_BITS = 16;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int JOURNAL_BUFFER_HASHES = 4096;
+    private static final long FLUSH_MILLIS = 1000;
+    
+    private final Path directory;
+    private final String campaign;
+    private final FileChannel journal;
+    private final FileLock lock;
+    private final ByteBuffer journalBuffer = ByteBuffer.allocateDirect(JOURNAL_BUFFER_HASHES * Long.BYTES);
+    private long generation;
+    private ByteBuffer index;
+    private long count;
+    // starts[p] is the position of the first hash whose prefix is >= p
+    private int[] starts;
+    private long recordedCount = 0;
+    private long lastFlushMillis = System.currentTimeMillis();
+    // The first journal write that failed; nothing is recorded after it
+    private IOException writeError;
+    
+    /**
+     * Opens (or creates) the ledger of a campaign and merges any journal left
+     * by a run that did not finish.
+     * 
+     * @param directory Directory holding the ledgers of all campaigns
+     * @param campaign Campaign name: letters, digits, '.', '_' and '-'
+     * @throws IllegalArgumentException If the campaign name is not allowed
+     * @throws IOException If the files cannot be opened, the ledger is damaged,
+     *                     or another run of the campaign is in progress
+     */
+    public SentLedger(Path directory, String campaign) throws IOException {
+        if (!CAMPAIGN_NAME.matcher(campaign).matches()) {
+            throw new IllegalArgumentException("Invalid campaign name: " + campaign +
+                                               " (use letters, digits, '.', '_' and '-')");
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.campaign = campaign;
+        
+        journal = FileChannel.open(directory.resolve(campaign + JOURNAL_SUFFIX), StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = journal.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            journal.close();
+            throw new IOException("Campaign " + campaign + " is already being sent by another run");
+        }
+        lock = acquired;
+        
+        try {
+            generation = latestGeneration();
+            if (generation < 0) {
+                index = null;
+                count = 0;
+                starts = new int[(1 << PREFIX_BITS) + 1];
+            } else {
+                mapIndex(ledgerPath(generation));
+            }
+            if (journal.size() >= Long.BYTES) {
+                logger.info("Recovering " + journal.size() / Long.BYTES + " address(es) recorded by an unfinished run");
+                merge();
+            } else {
+                journal.truncate(0);
+            }
+        } catch (IOException e) {
+            lock.release();
+            journal.close();
+            throw e;
+        }
+        logger.info("Sent ledger for campaign " + campaign + ": " + count + " address(es) already sent to");
+    }
+    
+    /**
+     * Checks whether an address was sent to by an earlier run.
+     * 
+     * @param address The recipient's email address
+     * @return true if the address is in the ledger
+     */
+    public boolean contains(String address) {
+        long hash = SuppressionList.hash(address);
+        int prefix = prefix(hash);
+        int low = starts[prefix];
+        int high = starts[prefix + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = get(mid);
+            if (value < hash) {
+                low = mid + 1;
+            } else if (value > hash) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the number of addresses in the ledger, not counting those
+     * recorded by the current run.
+     * 
+     * @return Address count
+     */
+    public long size() {
+        return count;
+    }
+    
+    /**
+     * Returns the number of addresses recorded by the current run.
+     * 
+     * @return Recorded address count
+     */
+    public synchronized long getRecordedCount() {
+        return recordedCount;
+    }
+    
+    /**
+     * Records an address that was sent to. The journal is written at least
+     * once a second, so a run that does not finish loses no more than that.
+     * 
+     * @param address The recipient's email address
+     * @throws IOException If the journal cannot be written, now or earlier in the run
+     */
+    public synchronized void record(String address) throws IOException {
+        if (writeError != null) {
+            throw new IOException("Sent ledger journal is not being written", writeError);
+        }
+        try {
+            if (!journalBuffer.hasRemaining()) {
+                flush();
+            }
+            journalBuffer.putLong(SuppressionList.hash(address));
+            recordedCount++;
+            if (System.currentTimeMillis() - lastFlushMillis >= FLUSH_MILLIS) {
+                flush();
+            }
+        } catch (IOException e) {
+            writeError = e;
+            throw e;
+        }
+    }
+    
+    /**
+     * Writes the recorded addresses, merges them into the ledger and releases
+     * the campaign. Call after the sender has finished sending.
+     * 
+     * @throws IOException If the ledger cannot be written, or a journal write
+     *                     failed during the run; what the journal holds is
+     *                     kept and merged on the next run
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (writeError == null) {
+                flush();
+            }
+            merge();
+            logger.info("Sent ledger for campaign " + campaign + " now holds " + count + " address(es)");
+        } finally {
+            lock.release();
+            journal.close();
+        }
+        if (writeError != null) {
+            throw new IOException("Sent ledger journal could not be written during the run; " +
+                                  "some addresses sent by it were not recorded", writeError);
+        }
+    }
+    
+    private void flush() throws IOException {
+        journalBuffer.flip();
+        while (journalBuffer.hasRemaining()) {
+            journal.write(journalBuffer, journal.size());
+        }
+        journalBuffer.clear();
+        lastFlushMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * Merges the journal into the next ledger generation, maps it and
+     * empties the journal.
+     */
+    private void merge() throws IOException {
+        int n = (int) Math.min(journal.size() / Long.BYTES, Integer.MAX_VALUE - 8);
+        if (n == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(n * Long.BYTES);
+        while (bytes.hasRemaining() && journal.read(bytes, bytes.position()) >= 0) {
+            // Keep reading until the buffer is full
+        }
+        long[] added = new long[n];
+        bytes.flip().asLongBuffer().get(added);
+        Arrays.sort(added);
+        
+        // Single sequential merge of the old ledger and the sorted journal hashes
+        long nextGeneration = generation + 1;
+        Path nextPath = ledgerPath(nextGeneration);
+        Path temp = nextPath.resolveSibling(nextPath.getFileName() + ".tmp");
+        try (LedgerWriter writer = new LedgerWriter(temp)) {
+            long i = 0;
+            int j = 0;
+            while (i < count || j < n) {
+                if (j >= n || (i < count && get((int) i) <= added[j])) {
+                    writer.write(get((int) i++));
+                } else {
+                    writer.write(added[j++]);
+                }
+            }
+        }
+        Files.move(temp, nextPath, StandardCopyOption.ATOMIC_MOVE);
+        
+        mapIndex(nextPath);
+        generation = nextGeneration;
+        journal.truncate(0);
+        journal.force(true);
+        deleteOlderGenerations();
+    }
+    
+    /**
+     * Returns the top bits of a hash, offset so that they increase in the
+     * signed order the hashes are sorted in.
+     */
+    private static int prefix(long hash) {
+        return (int) (hash >> (Long.SIZE - PREFIX_BITS)) + (1 << (PREFIX_BITS - 1));
+    }
+    
+    private long get(int i) {
+        return index.getLong(HEADER_SIZE + i * Long.BYTES);
+    }
+    
+    private Path ledgerPath(long generation) {
+        return directory.resolve(String.format("%s-%08d%s", campaign, generation, LEDGER_SUFFIX));
+    }
+    
+    /**
+     * Returns the highest ledger generation of the campaign, or -1 if there is none.
+     */
+    private long latestGeneration() throws IOException {
+        long latest = -1;
+        String prefix = campaign + "-";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LEDGER_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String number = name.startsWith(prefix)
+                        ? name.substring(prefix.length(), name.length() - LEDGER_SUFFIX.length()) : "";
+                if (number.length() == 8 && number.chars().allMatch(Character::isDigit)) {
+                    latest = Math.max(latest, Long.parseLong(number));
+                }
+            }
+        }
+        return latest;
+    }
+    
+    /**
+     * Deletes ledger generations older than the current one. Files that are
+     * still mapped (on Windows) are left for a later run.
+     */
+    private void deleteOlderGenerations() {
+        for (long g = generation - 1; g >= 0; g--) {
+            Path old = ledgerPath(g);
+            if (!Files.exists(old)) {
+                break;
+            }
+            try {
+                Files.delete(old);
+            } catch (IOException e) {
+                logger.fine("Old sent ledger still in use: " + old);
+            }
+        }
+    }
+    
+    /**
+     * Maps a ledger file and builds its prefix table.
+     */
+    private void mapIndex(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        long entries;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Sent ledger too large: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a sent ledger: " + path);
+            }
+            entries = buffer.getLong(8);
+            if (HEADER_SIZE + entries * Long.BYTES != size) {
+                throw new IOException("Sent ledger is truncated: " + path);
+            }
+        }
+        
+        int[] table = new int[(1 << PREFIX_BITS) + 1];
+        int prefix = 0;
+        for (int i = 0; i < entries; i++) {
+            int next = prefix(buffer.getLong(HEADER_SIZE + i * Long.BYTES));
+            while (prefix <= next) {
+                table[prefix++] = i;
+            }
+        }
+        while (prefix < table.length) {
+            table[prefix++] = (int) entries;
+        }
+        
+        index = buffer;
+        count = entries;
+        starts = table;
+    }
+    
+    /**
+     * Writes sorted hashes to a new ledger file, skipping duplicates, and
+     * fills in the header count when closed.
+     */
+    private static class LedgerWriter implements Closeable {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        long count = 0;
+        long last;
+        
+        LedgerWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0);
+        }
+        
+        void write(long hash) throws IOException {
+            if (count > 0 && hash == last) {
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.putLong(hash);
+            last = hash;
+            count++;
+        }
+        
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, count);
+                channel.write(header, 8);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
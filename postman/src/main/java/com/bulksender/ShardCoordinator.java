@@ -0,0 +1,418 @@
+package com.bulksender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Splits one recipients file into fixed-size ranges that several worker
+ * processes, possibly on different hosts, claim through lease files in a
+ * shared directory.
+ * 
+ * Files in the shard directory:
+ * - manifest: range size and the byte offset where each range starts (or,
+ *   for a compiled recipient list, its first index), written once by
+ *   whichever worker gets there first (identical for every worker)
+ * - lease-N: owner, last renewal time and resume position of range N. Created
+ *   with an exclusive create, so only one worker can claim a free range
+ * - done-N: range N has been sent completely
+ * 
+ * An owner renews its lease every few seconds and saves how far it has got
+ * after every batch. A lease that has not been renewed for
+ * {@link #LEASE_MILLIS} is taken over: the new owner atomically renames the
+ * stale lease out of the way (only one rename can succeed), and resumes from
+ * its saved position. A batch that was in progress when the owner died is
+ * sent again, so delivery is at least once. Hosts' clocks must agree to
+ * within a few seconds.
+ */
+public class ShardCoordinator {
+    private static final Logger logger = Logger.getLogger(ShardCoordinator.class.getName());
+    
+    public static final int DEFAULT_RANGE_SIZE = 1000;
+    public static final long LEASE_MILLIS = 30_000;
+    public static final long RENEW_MILLIS = 10_000;
+    
+    private static final String MANIFEST_FILE = "manifest";
+    
+    private final Path directory;
+    private final Path recipientsPath;
+    private final String workerId;
+    private int rangeSize;
+    private long[] rangeOffsets;
+    // Set when the recipients file is a compiled list
+    private CompiledRecipients compiled;
+    
+    /**
+     * Creates a coordinator for one worker.
+     * 
+     * @param directory Shared shard directory
+     * @param recipientsPath Recipients file (the same content on every host)
+     * @param workerId Unique id of this worker, such as host name and process id
+     */
+    public ShardCoordinator(Path directory, Path recipientsPath, String workerId) {
+        this.directory = directory;
+        this.recipientsPath = recipientsPath;
+        this.workerId = workerId;
+    }
+    
+    /**
+     * Loads the manifest, building it first if this worker is the first one.
+     * 
+     * @param requestedRangeSize Recipients per range; ignored if a manifest already exists
+     * @throws IOException If the recipients file or the manifest cannot be read or written
+     */
+    public void prepare(int requestedRangeSize) throws IOException {
+        Files.createDirectories(directory);
+        Path manifest = directory.resolve(MANIFEST_FILE);
+        if (CompiledRecipients.isCompiled(recipientsPath)) {
+            compiled = CompiledRecipients.open(recipientsPath);
+        }
+        
+        if (!Files.exists(manifest)) {
+            long[] offsets = scanRangeOffsets(requestedRangeSize);
+            StringBuilder sb = new StringBuilder();
+            sb.append("rangeSize=").append(requestedRangeSize).append('\n');
+            for (long offset : offsets) {
+                sb.append(offset).append('\n');
+            }
+            Path temp = directory.resolve(MANIFEST_FILE + "." + sanitize(workerId) + ".tmp");
+            Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            // Every worker computes the same manifest, so whichever rename lands last is fine
+            Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        rangeSize = Integer.parseInt(lines.get(0).substring("rangeSize=".length()));
+        rangeOffsets = new long[lines.size() - 1];
+        for (int i = 1; i < lines.size(); i++) {
+            rangeOffsets[i - 1] = Long.parseLong(lines.get(i).trim());
+        }
+        logger.info("Campaign has " + rangeOffsets.length + " range(s) of " + rangeSize + " recipient(s)");
+    }
+    
+    /**
+     * Returns the number of ranges in the campaign.
+     * 
+     * @return Range count
+     */
+    public int getRangeCount() {
+        return rangeOffsets.length;
+    }
+    
+    /**
+     * Returns whether every range has been sent.
+     * 
+     * @return true when a done marker exists for every range
+     */
+    public boolean isComplete() {
+        for (int range = 0; range < rangeOffsets.length; range++) {
+            if (!Files.exists(donePath(range))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Claims the first range that is neither done nor held by a live lease.
+     * 
+     * @return The claimed lease, or null if every unfinished range is held by another worker
+     * @throws IOException If the shard directory cannot be accessed
+     */
+    public Lease claimNext() throws IOException {
+        for (int range = 0; range < rangeOffsets.length; range++) {
+            if (Files.exists(donePath(range))) {
+                continue;
+            }
+            Lease lease = tryClaim(range);
+            if (lease != null) {
+                return lease;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Reads the recipients of one range.
+     * 
+     * @param range The range number
+     * @return The range's recipients in file order
+     * @throws IOException If the recipients file cannot be read
+     */
+    public List<String> readRange(int range) throws IOException {
+        if (compiled != null) {
+            int from = (int) rangeOffsets[range];
+            return compiled.slice(from, Math.min(from + rangeSize, compiled.size()));
+        }
+        
+        List<String> recipients = new ArrayList<>(rangeSize);
+        try (FileChannel channel = FileChannel.open(recipientsPath, StandardOpenOption.READ)) {
+            channel.position(rangeOffsets[range]);
+            Reader reader = new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8);
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            while (recipients.size() < rangeSize && (line = lines.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    recipients.add(line);
+                }
+            }
+        }
+        return recipients;
+    }
+    
+    private Lease tryClaim(int range) throws IOException {
+        Path leasePath = leasePath(range);
+        long resumeAt = 0;
+        
+        if (Files.exists(leasePath)) {
+            Properties current = readLease(leasePath);
+            boolean expired = current != null ? isExpired(current)
+                    // Unreadable: left empty by a worker that died while claiming, or being written right now
+                    : System.currentTimeMillis() - Files.getLastModifiedTime(leasePath).toMillis() > LEASE_MILLIS;
+            if (!expired) {
+                return null;
+            }
+            
+            // Move the stale lease aside; only one worker's rename can succeed
+            Path stale = directory.resolve("lease-" + range + ".stale." + sanitize(workerId));
+            try {
+                Files.move(leasePath, stale, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            Properties moved = readLease(stale);
+            Files.deleteIfExists(stale);
+            if (moved != null) {
+                resumeAt = Long.parseLong(moved.getProperty("next", "0"));
+                logger.info("Taking over expired lease on range " + range + " from " +
+                            moved.getProperty("worker") + ", resuming at " + resumeAt);
+            }
+        }
+        
+        try {
+            Files.createFile(leasePath);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        }
+        Lease lease = new Lease(range, resumeAt);
+        lease.write(System.currentTimeMillis());
+        return lease;
+    }
+    
+    private static Properties readLease(Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            Properties props = new Properties();
+            props.load(in);
+            // A lease being created or rewritten right now may be empty or partial
+            if (props.getProperty("renewed") == null || props.getProperty("next") == null) {
+                return null;
+            }
+            Long.parseLong(props.getProperty("renewed"));
+            Long.parseLong(props.getProperty("next"));
+            return props;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    private static boolean isExpired(Properties lease) {
+        return System.currentTimeMillis() - Long.parseLong(lease.getProperty("renewed")) > LEASE_MILLIS;
+    }
+    
+    /**
+     * Finds the byte offset at which every range starts, applying the same
+     * line rules as {@link RecipientManager}. A compiled list needs no scan:
+     * range N starts at index N * size.
+     */
+    private long[] scanRangeOffsets(int size) throws IOException {
+        if (compiled != null) {
+            long[] result = new long[(int) (((long) compiled.size() + size - 1) / size)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (long) i * size;
+            }
+            return result;
+        }
+        
+        List<Long> offsets = new ArrayList<>();
+        long count = 0;
+        long offset = 0;
+        long lineStart = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(recipientsPath), 1 << 16)) {
+            int b;
+            while (true) {
+                b = in.read();
+                if (b == '\n' || b == -1) {
+                    String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+                    if (!text.isEmpty() && !text.startsWith("#")) {
+                        if (count % size == 0) {
+                            offsets.add(lineStart);
+                        }
+                        count++;
+                    }
+                    line.reset();
+                    if (b == -1) {
+                        break;
+                    }
+                    offset++;
+                    lineStart = offset;
+                } else {
+                    line.write(b);
+                    offset++;
+                }
+            }
+        }
+        
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+    
+    private Path leasePath(int range) {
+        return directory.resolve("lease-" + range);
+    }
+    
+    private Path donePath(int range) {
+        return directory.resolve("done-" + range);
+    }
+    
+    private static String sanitize(String id) {
+        return id.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+    
+    /**
+     * A claimed range. Renew it regularly; once it is lost, stop sending it.
+     */
+    public class Lease {
+        private final int range;
+        private long next;
+        private volatile boolean lost = false;
+        
+        Lease(int range, long next) {
+            this.range = range;
+            this.next = next;
+        }
+        
+        public int getRange() {
+            return range;
+        }
+        
+        /**
+         * Returns the index within the range of the next recipient to send.
+         * 
+         * @return Resume position
+         */
+        public synchronized long getNext() {
+            return next;
+        }
+        
+        public boolean isLost() {
+            return lost;
+        }
+        
+        /**
+         * Records progress and saves it to the lease file, which also renews the lease.
+         * 
+         * @param next Index within the range of the next recipient to send
+         */
+        public synchronized void checkpoint(long next) {
+            this.next = next;
+            renew();
+        }
+        
+        /**
+         * Extends the lease and saves the current progress.
+         * 
+         * @return false if another worker has taken the lease over
+         */
+        public synchronized boolean renew() {
+            if (lost) {
+                return false;
+            }
+            Properties current = readLease(leasePath(range));
+            if (current != null && !workerId.equals(current.getProperty("worker"))) {
+                lost = true;
+                logger.warning("Lost lease on range " + range + " to " + current.getProperty("worker"));
+                return false;
+            }
+            try {
+                write(System.currentTimeMillis());
+                return true;
+            } catch (NoSuchFileException e) {
+                lost = true;
+                logger.warning("Lost lease on range " + range);
+                return false;
+            } catch (IOException e) {
+                // Try again at the next renewal; the lease is still valid for a while
+                logger.warning("Could not renew lease on range " + range + ": " + e.getMessage());
+                return true;
+            }
+        }
+        
+        /**
+         * Gives the range up without finishing it: saves the progress and
+         * marks the lease expired so another worker resumes it right away.
+         */
+        public synchronized void release() {
+            if (lost) {
+                return;
+            }
+            try {
+                write(0);
+            } catch (IOException e) {
+                logger.warning("Could not release lease on range " + range + ": " + e.getMessage());
+            }
+            lost = true;
+        }
+        
+        /**
+         * Marks the range as done and releases the lease.
+         * 
+         * @throws IOException If the marker cannot be written
+         */
+        public synchronized void complete() throws IOException {
+            try {
+                Files.createFile(donePath(range));
+            } catch (FileAlreadyExistsException e) {
+                // Already marked
+            }
+            Files.deleteIfExists(leasePath(range));
+        }
+        
+        private void write(long renewed) throws IOException {
+            String content = "worker=" + workerId + "\nrenewed=" + renewed +
+                             "\nnext=" + next + "\n";
+            // The lease file must already exist: renewing never recreates a lease taken over by someone else
+            try (FileChannel channel = FileChannel.open(leasePath(range), StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+                ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+        }
+    }
+}
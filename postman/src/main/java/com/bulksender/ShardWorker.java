@@ -0,0 +1,133 @@
+package com.bulksender;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One of several cooperating sender processes for a sharded campaign.
+ * Repeatedly claims a range through the {@link ShardCoordinator}, sends it
+ * in small batches while a background thread renews the lease, and marks it
+ * done. When all unfinished ranges are held by other workers it waits, so it
+ * can take over the ranges of a worker that dies.
+ */
+public class ShardWorker implements Runnable {
+    private static final Logger logger = Logger.getLogger(ShardWorker.class.getName());
+    
+    // Progress is checkpointed after every batch of this many recipients
+    private static final int BATCH_SIZE = 50;
+    
+    private final ShardCoordinator coordinator;
+    private final EmailSender emailSender;
+    private final String subject;
+    private final String body;
+    private final ScheduledExecutorService renewer;
+    
+    private volatile boolean running = true;
+    private long sentCount = 0;
+    private long failedCount = 0;
+    private int rangesCompleted = 0;
+    
+    /**
+     * Creates a worker.
+     * 
+     * @param coordinator A prepared shard coordinator
+     * @param emailSender An initialized EmailSender
+     * @param subject The email subject line
+     * @param body The email body (supports HTML content)
+     */
+    public ShardWorker(ShardCoordinator coordinator, EmailSender emailSender, String subject, String body) {
+        this.coordinator = coordinator;
+        this.emailSender = emailSender;
+        this.subject = subject;
+        this.body = body;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-lease-renewer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Works until every range of the campaign is done or {@link #stop()} is called.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running && !coordinator.isComplete()) {
+                ShardCoordinator.Lease lease = coordinator.claimNext();
+                if (lease == null) {
+                    // Everything left is held by others; check again in case one of them dies
+                    Thread.sleep(ShardCoordinator.RENEW_MILLIS);
+                    continue;
+                }
+                sendRange(lease);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Shard directory error: " + e.getMessage(), e);
+        } finally {
+            renewer.shutdownNow();
+        }
+        
+        logger.info("Shard worker finished. Ranges: " + rangesCompleted + ", Sent: " + sentCount +
+                    ", Failures: " + failedCount);
+    }
+    
+    /**
+     * Requests the worker to stop after the current batch. Its lease expires
+     * and another worker resumes the range from the last checkpoint.
+     */
+    public void stop() {
+        running = false;
+    }
+    
+    public long getSentCount() {
+        return sentCount;
+    }
+    
+    public long getFailedCount() {
+        return failedCount;
+    }
+    
+    private void sendRange(ShardCoordinator.Lease lease) throws IOException {
+        List<String> recipients = coordinator.readRange(lease.getRange());
+        logger.info("Claimed range " + lease.getRange() + " (" + recipients.size() + " recipient(s), starting at " +
+                    lease.getNext() + ")");
+        
+        ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(lease::renew, ShardCoordinator.RENEW_MILLIS,
+                ShardCoordinator.RENEW_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            int position = (int) lease.getNext();
+            while (position < recipients.size()) {
+                if (lease.isLost()) {
+                    return;
+                }
+                if (!running) {
+                    lease.release();
+                    return;
+                }
+                List<String> batch = recipients.subList(position, Math.min(position + BATCH_SIZE, recipients.size()));
+                int sent = emailSender.sendBatch(batch, subject, body);
+                sentCount += sent;
+                failedCount += batch.size() - sent;
+                position += batch.size();
+                lease.checkpoint(position);
+            }
+        } finally {
+            renewal.cancel(false);
+        }
+        
+        // Save the final position before completing, in case completion fails
+        if (lease.renew()) {
+            lease.complete();
+            rangesCompleted++;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.bulksender;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.MimeMessage;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+
+/**
+ * Delivers messages over pooled SMTP connections to the relays of a
+ * {@link RelayBalancer}, feeding transmission latency and overload replies
+ * to the adaptive concurrency limit.
+ */
+public class SmtpMailTransport implements MailTransport {
+    // Relays offered the calling thread's last message
+    private static final ThreadLocal<int[]> lastAttempts = ThreadLocal.withInitial(() -> new int[1]);
+    
+    private final RelayBalancer relays;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    
+    /**
+     * Creates the transport.
+     * 
+     * @param relays The relays to route through
+     * @param concurrencyLimit The limit to report latency and overload to
+     */
+    public SmtpMailTransport(RelayBalancer relays, AdaptiveConcurrencyLimit concurrencyLimit) {
+        this.relays = relays;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+    
+    /**
+     * Sends over a pooled connection to the best relay. The message is moved
+     * to another relay only if the relay certainly did not accept it.
+     */
+    @Override
+    public int deliver(MimeMessage message) throws MessagingException {
+        long start = System.nanoTime();
+        Set<SmtpRelay> tried = null;
+        MessagingException lastFailure = null;
+        SmtpRelay relay;
+        int[] attempts = lastAttempts.get();
+        attempts[0] = 0;
+        
+        while ((relay = relays.choose(tried)) != null) {
+            attempts[0]++;
+            relay.begin();
+            TransportPool.PooledTransport pooled;
+            try {
+                pooled = relay.getPool().borrow();
+            } catch (MessagingException e) {
+                // Nothing was sent, so another relay may take the message
+                relay.end();
+                relays.recordFailure(relay);
+                lastFailure = e;
+                if (AdaptiveConcurrencyLimit.isOverloadReply(replyCodeOf(e))) {
+                    concurrencyLimit.record(System.nanoTime() - start, true);
+                }
+                tried = addTried(tried, relay);
+                recordRetry(relay, message, replyCodeOf(e), tried.size());
+                continue;
+            } catch (RuntimeException e) {
+                // Such as a pool closed by a concurrent shutdown
+                relay.end();
+                throw e;
+            }
+            
+            // Only the transmission itself feeds the controllers, not connection setup
+            long transmitStart = System.nanoTime();
+            try {
+                pooled.transport.sendMessage(message, message.getAllRecipients());
+            } catch (SendFailedException e) {
+                relay.end();
+                int replyCode = replyCodeOf(e);
+                boolean overloaded = AdaptiveConcurrencyLimit.isOverloadReply(replyCode);
+                concurrencyLimit.record(System.nanoTime() - transmitStart, overloaded);
+                if (replyCode == 421) {
+                    // The server is closing the connection
+                    relay.getPool().discard(pooled);
+                } else {
+                    // The server rejected the address; the connection itself is still usable
+                    relay.getPool().release(pooled);
+                }
+                
+                if (replyCode >= 400 && replyCode < 500) {
+                    // A transient refusal means the message was not accepted: try another relay
+                    if (overloaded) {
+                        relays.recordFailure(relay);
+                    }
+                    lastFailure = e;
+                    tried = addTried(tried, relay);
+                    recordRetry(relay, message, replyCode, tried.size());
+                    continue;
+                }
+                throw e;
+            } catch (MessagingException | RuntimeException e) {
+                // The connection broke mid-transaction. The relay may already have accepted
+                // the message, so it is not retried elsewhere to avoid a duplicate.
+                relay.end();
+                relay.getPool().discard(pooled);
+                relays.recordFailure(relay);
+                concurrencyLimit.record(System.nanoTime() - transmitStart, true);
+                throw e;
+            }
+            
+            long transmitNanos = System.nanoTime() - transmitStart;
+            int replyCode = pooled.transport instanceof SMTPTransport
+                    ? ((SMTPTransport) pooled.transport).getLastReturnCode() : 0;
+            relay.end();
+            relays.recordSuccess(relay, transmitNanos);
+            concurrencyLimit.record(relays.getRelays().size() > 1
+                                    ? relay.normalizeLatency(transmitNanos) : transmitNanos, false);
+            relay.getPool().release(pooled);
+            return replyCode;
+        }
+        
+        throw lastFailure != null ? lastFailure : new MessagingException("No SMTP relay configured");
+    }
+    
+    /**
+     * Returns the number of relays the calling thread's last message was
+     * offered to, including the one that accepted or finally refused it.
+     */
+    @Override
+    public int getLastAttempts() {
+        return lastAttempts.get()[0];
+    }
+    
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+    
+    /**
+     * Sends NOOP on every relay's idle connections.
+     */
+    @Override
+    public void keepAlive() {
+        for (SmtpRelay relay : relays.getRelays()) {
+            relay.getPool().keepAlive();
+        }
+    }
+    
+    /**
+     * Stops the relay health checks and closes every connection.
+     */
+    @Override
+    public void close() {
+        relays.close();
+    }
+    
+    /**
+     * Returns the relays with their health and load statistics.
+     * 
+     * @return Relays in configuration order
+     */
+    public List<SmtpRelay> getRelays() {
+        return relays.getRelays();
+    }
+    
+    /**
+     * Emits a Flight Recorder event for a message that a relay did not take
+     * and that goes on to the next relay, if any is left.
+     */
+    private static void recordRetry(SmtpRelay relay, MimeMessage message, int replyCode, int attempt)
+            throws MessagingException {
+        FlightEvents.Retry event = new FlightEvents.Retry();
+        if (event.shouldCommit()) {
+            Address[] recipients = message.getAllRecipients();
+            event.relay = relay.toString();
+            event.domain = recipients != null && recipients.length > 0
+                    ? DomainThrottle.domainOf(recipients[0].toString()) : null;
+            event.replyCode = replyCode;
+            event.attempt = attempt;
+            event.commit();
+        }
+    }
+    
+    private static Set<SmtpRelay> addTried(Set<SmtpRelay> tried, SmtpRelay relay) {
+        Set<SmtpRelay> set = tried != null ? tried : new HashSet<>();
+        set.add(relay);
+        return set;
+    }
+    
+    /**
+     * Extracts the SMTP reply code carried by a send failure, if any.
+     * 
+     * @param e The failure
+     * @return SMTP reply code, or 0 if the failure did not come from an SMTP reply
+     */
+    static int replyCodeOf(Exception e) {
+        Exception current = e;
+        while (current != null) {
+            if (current instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) current).getReturnCode();
+            }
+            if (current instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) current).getReturnCode();
+            }
+            current = current instanceof MessagingException
+                    ? ((MessagingException) current).getNextException() : null;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,442 @@
+package com.bulksender;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Measures how long an SMTP relay takes for each step of opening an
+ * authenticated connection, and recommends a connection count and send
+ * rate for it.
+ * 
+ * Each sample opens a new connection and times connecting (up to the 220
+ * greeting), EHLO, STARTTLS including the TLS handshake and the second
+ * EHLO, and AUTH. It then times MAIL FROM and RSET as the round trip of an
+ * ordinary command, and quits without sending anything. The SMTP dialogue
+ * is spoken directly over a socket so that each step can be timed on its
+ * own, with the same TLS and timeout settings the sender uses.
+ * 
+ * A message costs about four command round trips on an open connection
+ * (MAIL FROM, RCPT TO, DATA and the end of the data), which gives the rate
+ * one connection can sustain. The time the server takes to accept the
+ * message data is not measured, so this overestimates a relay that is slow
+ * to accept messages; the adaptive concurrency limit corrects for that while
+ * sending. The recommendations size the connection pool for the configured
+ * send.rate, or the send rate for the configured send.concurrency.max,
+ * keeping 20% headroom.
+ */
+public class SmtpProbe {
+    public static final int DEFAULT_SAMPLES = 5;
+    
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final int ROUND_TRIPS_PER_MESSAGE = 4;
+    private static final double HEADROOM = 0.8;
+    // More parallel connections than this to one relay tend to be refused or throttled
+    private static final int MAX_RECOMMENDED_CONNECTIONS = 20;
+    
+    /**
+     * The timed steps of a probe.
+     */
+    public enum Step {
+        CONNECT("Connect + greeting"),
+        EHLO("EHLO"),
+        STARTTLS("STARTTLS + handshake"),
+        AUTH("AUTH"),
+        ROUND_TRIP("Command round trip");
+        
+        private final String label;
+        
+        Step(String label) {
+            this.label = label;
+        }
+        
+        public String getLabel() {
+            return label;
+        }
+    }
+    
+    private final EmailConfig config;
+    private final String host;
+    private final int port;
+    
+    /**
+     * Creates a probe of one relay.
+     * 
+     * @param config Credentials, TLS setting and sending limits
+     * @param host SMTP host
+     * @param port SMTP port
+     */
+    public SmtpProbe(EmailConfig config, String host, int port) {
+        this.config = config;
+        this.host = host;
+        this.port = port;
+    }
+    
+    /**
+     * Probes the relay with a number of fresh connections.
+     * 
+     * @param samples Number of connections to open, one after the other
+     * @return The timings and recommendations
+     * @throws IOException If a connection cannot be made or the server
+     *         rejects a step, such as AUTH with wrong credentials
+     */
+    public Result run(int samples) throws IOException {
+        int count = Math.max(1, samples);
+        long[][] nanos = new long[Step.values().length][count];
+        List<String> extensions = new ArrayList<>();
+        String localHost = localHostName();
+        for (int i = 0; i < count; i++) {
+            sample(nanos, i, localHost, i == 0 ? extensions : null);
+        }
+        return new Result(host, port, nanos, extensions, config.getSendRate(), config.getMaxConcurrency());
+    }
+    
+    /**
+     * Opens one connection, timing each step into column i of nanos.
+     */
+    private void sample(long[][] nanos, int i, String localHost, List<String> extensions) throws IOException {
+        Socket socket = new Socket();
+        try {
+            long start = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            Dialogue smtp = new Dialogue(socket);
+            smtp.expect(null, 220, "Greeting");
+            nanos[Step.CONNECT.ordinal()][i] = System.nanoTime() - start;
+            
+            start = System.nanoTime();
+            Reply ehlo = smtp.expect("EHLO " + localHost, 250, "EHLO");
+            nanos[Step.EHLO.ordinal()][i] = System.nanoTime() - start;
+            
+            if (config.isEnableTLS()) {
+                if (!ehlo.hasExtension("STARTTLS")) {
+                    throw new IOException("Server does not offer STARTTLS, which smtp.tls.enable requires");
+                }
+                start = System.nanoTime();
+                smtp.expect("STARTTLS", 220, "STARTTLS");
+                SSLSocket tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, host, port, true);
+                tls.setUseClientMode(true);
+                tls.startHandshake();
+                socket = tls;
+                smtp = new Dialogue(tls);
+                ehlo = smtp.expect("EHLO " + localHost, 250, "EHLO after STARTTLS");
+                nanos[Step.STARTTLS.ordinal()][i] = System.nanoTime() - start;
+            }
+            if (extensions != null) {
+                extensions.addAll(ehlo.extensions());
+            }
+            
+            String mechanisms = ehlo.extensionArgument("AUTH");
+            if (mechanisms != null) {
+                start = System.nanoTime();
+                authenticate(smtp, mechanisms);
+                nanos[Step.AUTH.ordinal()][i] = System.nanoTime() - start;
+            }
+            
+            start = System.nanoTime();
+            smtp.expect("MAIL FROM:<" + config.getSenderEmail() + ">", 250, "MAIL FROM");
+            smtp.expect("RSET", 250, "RSET");
+            nanos[Step.ROUND_TRIP.ordinal()][i] = (System.nanoTime() - start) / 2;
+            
+            smtp.send("QUIT");
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to say to this server
+            }
+        }
+    }
+    
+    private void authenticate(Dialogue smtp, String mechanisms) throws IOException {
+        String user = config.getSenderEmail();
+        String password = config.getSenderPassword();
+        List<String> offered = Arrays.asList(mechanisms.toUpperCase(Locale.ROOT).split("\\s+"));
+        if (offered.contains("PLAIN")) {
+            smtp.expect("AUTH PLAIN " + base64("\0" + user + "\0" + password), 235, "AUTH PLAIN");
+        } else if (offered.contains("LOGIN")) {
+            smtp.expect("AUTH LOGIN", 334, "AUTH LOGIN");
+            smtp.expect(base64(user), 334, "AUTH LOGIN user name");
+            smtp.expect(base64(password), 235, "AUTH LOGIN");
+        } else {
+            throw new IOException("Server offers no supported AUTH mechanism: " + mechanisms);
+        }
+    }
+    
+    private static String base64(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+    
+    /**
+     * One multi-line SMTP reply.
+     */
+    private static final class Reply {
+        final int code;
+        final List<String> lines;
+        
+        Reply(int code, List<String> lines) {
+            this.code = code;
+            this.lines = lines;
+        }
+        
+        /**
+         * Returns the EHLO keywords after the greeting line.
+         */
+        List<String> extensions() {
+            List<String> result = new ArrayList<>();
+            for (int i = 1; i < lines.size(); i++) {
+                result.add(lines.get(i));
+            }
+            return result;
+        }
+        
+        boolean hasExtension(String keyword) {
+            return extensionArgument(keyword) != null;
+        }
+        
+        /**
+         * Returns the text after an EHLO keyword, "" if it has none, or null if it is absent.
+         */
+        String extensionArgument(String keyword) {
+            for (String extension : extensions()) {
+                String[] parts = extension.split("[ =]", 2);
+                if (parts[0].equalsIgnoreCase(keyword)) {
+                    return parts.length > 1 ? parts[1].trim() : "";
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        public String toString() {
+            return code + " " + String.join(" ", lines);
+        }
+    }
+    
+    /**
+     * Commands and replies over one socket.
+     */
+    private static final class Dialogue {
+        private final InputStream in;
+        private final OutputStream out;
+        
+        Dialogue(Socket socket) throws IOException {
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+        
+        void send(String command) throws IOException {
+            out.write((command + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        
+        /**
+         * Sends a command (or nothing, for the greeting) and checks the reply code.
+         */
+        Reply expect(String command, int code, String step) throws IOException {
+            if (command != null) {
+                send(command);
+            }
+            Reply reply = read();
+            if (reply.code != code) {
+                throw new IOException(step + " failed: " + reply);
+            }
+            return reply;
+        }
+        
+        Reply read() throws IOException {
+            List<String> lines = new ArrayList<>();
+            while (true) {
+                String line = readLine();
+                if (line.length() < 3) {
+                    throw new IOException("Malformed SMTP reply: " + line);
+                }
+                lines.add(line.length() > 4 ? line.substring(4) : "");
+                if (line.length() == 3 || line.charAt(3) != '-') {
+                    try {
+                        return new Reply(Integer.parseInt(line.substring(0, 3)), lines);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed SMTP reply: " + line);
+                    }
+                }
+            }
+        }
+        
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed by server");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+    }
+    
+    /**
+     * Timings of a probe and the settings they suggest.
+     */
+    public static final class Result {
+        private final String host;
+        private final int port;
+        private final long[][] nanos;
+        private final List<String> extensions;
+        private final int recommendedConnections;
+        private final int recommendedRate;
+        
+        Result(String host, int port, long[][] nanos, List<String> extensions, int configuredRate,
+               int configuredConcurrency) {
+            this.host = host;
+            this.port = port;
+            this.nanos = nanos;
+            this.extensions = extensions;
+            for (long[] step : nanos) {
+                Arrays.sort(step);
+            }
+            
+            double perConnectionRate = TimeUnit.SECONDS.toNanos(1)
+                    / (double) Math.max(1, ROUND_TRIPS_PER_MESSAGE * medianNanos(Step.ROUND_TRIP));
+            if (configuredRate > 0) {
+                this.recommendedConnections = clamp((int) Math.ceil(configuredRate / (perConnectionRate * HEADROOM)));
+                this.recommendedRate = (int) Math.min(configuredRate,
+                                                      recommendedConnections * perConnectionRate * HEADROOM);
+            } else {
+                this.recommendedConnections = clamp(configuredConcurrency);
+                this.recommendedRate = (int) (recommendedConnections * perConnectionRate * HEADROOM);
+            }
+        }
+        
+        private static int clamp(int connections) {
+            return Math.max(1, Math.min(MAX_RECOMMENDED_CONNECTIONS, connections));
+        }
+        
+        /**
+         * Returns whether a step was performed; STARTTLS and AUTH are skipped
+         * when TLS is off or the server offers no authentication.
+         * 
+         * @param step The step
+         * @return true if it was timed
+         */
+        public boolean wasTimed(Step step) {
+            return nanos[step.ordinal()][nanos[step.ordinal()].length - 1] > 0;
+        }
+        
+        /**
+         * Returns the median time of a step over all samples.
+         * 
+         * @param step The step
+         * @return Nanoseconds
+         */
+        public long medianNanos(Step step) {
+            long[] sorted = nanos[step.ordinal()];
+            return sorted[sorted.length / 2];
+        }
+        
+        public long minNanos(Step step) {
+            return nanos[step.ordinal()][0];
+        }
+        
+        public long maxNanos(Step step) {
+            long[] sorted = nanos[step.ordinal()];
+            return sorted[sorted.length - 1];
+        }
+        
+        public int getSamples() {
+            return nanos[0].length;
+        }
+        
+        public List<String> getExtensions() {
+            return extensions;
+        }
+        
+        /**
+         * Returns the median time to open an authenticated connection.
+         * 
+         * @return Nanoseconds, the sum of the median of each setup step
+         */
+        public long getSetupNanos() {
+            long setup = 0;
+            for (Step step : Step.values()) {
+                if (step != Step.ROUND_TRIP) {
+                    setup += medianNanos(step);
+                }
+            }
+            return setup;
+        }
+        
+        /**
+         * Returns the recommended send.concurrency.max for this relay.
+         * 
+         * @return Number of parallel connections
+         */
+        public int getRecommendedConnections() {
+            return recommendedConnections;
+        }
+        
+        /**
+         * Returns the recommended send.rate for this relay.
+         * 
+         * @return Messages per second
+         */
+        public int getRecommendedRate() {
+            return recommendedRate;
+        }
+        
+        /**
+         * Formats the timings and recommendations as a report.
+         * 
+         * @return Multi-line text
+         */
+        public String format() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("SMTP probe of %s:%d (%d connection(s))%n", host, port, getSamples()));
+            text.append(String.format("  %-22s %9s %9s %9s%n", "Step", "min ms", "median ms", "max ms"));
+            for (Step step : Step.values()) {
+                if (!wasTimed(step)) {
+                    text.append(String.format("  %-22s %9s%n", step.getLabel(), "skipped"));
+                    continue;
+                }
+                text.append(String.format("  %-22s %9.1f %9.1f %9.1f%n", step.getLabel(), millis(minNanos(step)),
+                                          millis(medianNanos(step)), millis(maxNanos(step))));
+            }
+            text.append(String.format("  %-22s %9s %9.1f%n", "Connection setup", "", millis(getSetupNanos())));
+            text.append(String.format("  Server extensions: %s%n", String.join(", ", extensions)));
+            text.append(String.format("Recommended: send.concurrency.max=%d, send.rate=%d%n",
+                                      recommendedConnections, recommendedRate));
+            text.append(String.format("  (from command round trips; time to accept message data is not measured)%n"));
+            return text.toString();
+        }
+        
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
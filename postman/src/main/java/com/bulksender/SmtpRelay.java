@@ -0,0 +1,170 @@
+package com.bulksender;
+
+import jakarta.mail.Session;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One SMTP relay a message can be routed through, with its own connection
+ * pool and the health and load statistics the {@link RelayBalancer} uses.
+ * 
+ * Relays are written as host[:port][*weight], for example
+ * "smtp1.example.com:587*3". A relay with weight 3 takes about three times
+ * the load of a relay with weight 1 at the same latency.
+ */
+public class SmtpRelay {
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final long REFERENCE_LATENCY_NANOS = 1_000_000;
+    
+    private final String host;
+    private final int port;
+    private final int weight;
+    private final Session session;
+    private final TransportPool pool;
+    
+    private final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile double latencyNanos = 0;
+    private volatile long minLatencyNanos = Long.MAX_VALUE;
+    volatile boolean ejected = false;
+    volatile long ejectedUntilMillis = 0;
+    volatile long ejectionBackoffMillis = 0;
+    volatile long lastSuccessMillis = System.currentTimeMillis();
+    
+    /**
+     * Creates a relay with its own session and connection pool.
+     * 
+     * @param host SMTP host name
+     * @param port SMTP port
+     * @param weight Relative share of the load (at least 1)
+     * @param session Mail session configured for this host and port
+     */
+    public SmtpRelay(String host, int port, int weight, Session session) {
+        this.host = host;
+        this.port = port;
+        this.weight = Math.max(1, weight);
+        this.session = session;
+        this.pool = new TransportPool(session);
+    }
+    
+    /**
+     * Parses a relay specification of the form host[:port][*weight].
+     * 
+     * @param spec The relay specification
+     * @param defaultPort Port to use if none is given
+     * @return {host, port, weight} as strings
+     * @throws IllegalArgumentException If the port or weight is not a number
+     */
+    public static String[] parseSpec(String spec, int defaultPort) {
+        String hostPort = spec.trim();
+        String weight = "1";
+        int star = hostPort.indexOf('*');
+        if (star >= 0) {
+            weight = hostPort.substring(star + 1).trim();
+            hostPort = hostPort.substring(0, star).trim();
+        }
+        String host = hostPort;
+        String port = String.valueOf(defaultPort);
+        int colon = hostPort.lastIndexOf(':');
+        if (colon >= 0) {
+            host = hostPort.substring(0, colon).trim();
+            port = hostPort.substring(colon + 1).trim();
+        }
+        if (host.isEmpty()) {
+            throw new IllegalArgumentException("Missing host in relay: " + spec);
+        }
+        Integer.parseInt(port);
+        Integer.parseInt(weight);
+        return new String[] {host, port, weight};
+    }
+    
+    /**
+     * Marks a message as in flight on this relay.
+     */
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+    
+    /**
+     * Marks a message as no longer in flight on this relay.
+     */
+    void end() {
+        outstanding.decrementAndGet();
+    }
+    
+    /**
+     * Folds one transmission latency into the smoothed latency.
+     */
+    void recordLatency(long nanos) {
+        double current = latencyNanos;
+        latencyNanos = current == 0 ? nanos : current + LATENCY_SMOOTHING * (nanos - current);
+        if (nanos < minLatencyNanos) {
+            minLatencyNanos = Math.max(1, nanos);
+        }
+    }
+    
+    /**
+     * Expresses a latency relative to this relay's fastest transmission, as if
+     * that were 1 ms. Lets one concurrency controller judge several relays of
+     * different speeds without mistaking the slower relay for congestion.
+     */
+    long normalizeLatency(long nanos) {
+        long min = minLatencyNanos;
+        return min == Long.MAX_VALUE ? REFERENCE_LATENCY_NANOS
+                : (long) ((double) nanos / min * REFERENCE_LATENCY_NANOS);
+    }
+    
+    /**
+     * Returns the balancing score; lower is better. Relays that have not
+     * sent anything yet score lowest so that they are tried.
+     */
+    double score() {
+        return (latencyNanos + 1) * (outstanding.get() + 1) / weight;
+    }
+    
+    public String getHost() {
+        return host;
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    public int getWeight() {
+        return weight;
+    }
+    
+    Session getSession() {
+        return session;
+    }
+    
+    TransportPool getPool() {
+        return pool;
+    }
+    
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+    
+    public long getLatencyMicros() {
+        return (long) (latencyNanos / 1000);
+    }
+    
+    public boolean isHealthy() {
+        return !ejected;
+    }
+    
+    /**
+     * Returns the relay's status as a JSON object.
+     * 
+     * @return JSON string
+     */
+    public String toJson() {
+        return "{\"relay\":\"" + this + "\",\"healthy\":" + isHealthy() +
+               ",\"outstanding\":" + getOutstanding() + ",\"latencyMicros\":" + getLatencyMicros() + "}";
+    }
+    
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,539 @@
+package com.bulksender;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Memory-mapped list of addresses that must never be sent to (unsubscribes, bounces).
+ * 
+ * The list lives in a directory with two kinds of files:
+ * - suppression-NNNNNNNN.idx: a header followed by the sorted 64-bit hashes of all
+ *   normalized addresses, memory-mapped and binary-searched, so lookups are
+ *   O(log n) and the list is never loaded onto the heap
+ * - suppression.log: addresses added since the last compaction, one per line.
+ *   It may be appended to by this process or by another one (see
+ *   {@link #append(Path, String)}); new lines are picked up every few seconds
+ * 
+ * A maintenance thread merges the journal into the next index generation in
+ * one sequential pass and swaps it in once enough entries have accumulated,
+ * or at least once an hour. A new generation is written to a temporary file
+ * and renamed into place, so a crash never leaves a partial index behind;
+ * a process that finds a newer generation than the one it maps (compacted
+ * by another process) maps it before reading the journal again. Older
+ * generations are deleted once they are no longer mapped (a mapped file
+ * cannot be deleted on Windows).
+ * 
+ * Addresses are compared case-insensitively. With 64-bit hashes the chance
+ * of an address being suppressed by a collision is negligible even for
+ * hundreds of millions of entries.
+ */
+public class SuppressionList implements Closeable {
+    private static final Logger logger = Logger.getLogger(SuppressionList.class.getName());
+    
+    private static final String INDEX_PREFIX = "suppression-";
+    private static final String INDEX_SUFFIX = ".idx";
+    public static final String JOURNAL_FILE = "suppression.log";
+    
+    // Header: magic "SUPP", format version, entry count
+    private static final int MAGIC = 0x53555050;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    
+    private static final int COMPACT_THRESHOLD = 100_000;
+    private static final long REFRESH_SECONDS = 5;
+    private static final long COMPACT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    
+    private final Path directory;
+    private final FileChannel journal;
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService maintenance;
+    private volatile Index index;
+    private long generation;
+    private long journalReadOffset = 0;
+    private long lastCompaction = System.currentTimeMillis();
+    
+    /**
+     * A mapped index file. Absolute reads on the buffer are safe from any thread.
+     */
+    private static class Index {
+        final ByteBuffer buffer;
+        final long count;
+        
+        Index(ByteBuffer buffer, long count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+        
+        boolean contains(long hash) {
+            long low = 0;
+            long high = count - 1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                long value = get(mid);
+                if (value < hash) {
+                    low = mid + 1;
+                } else if (value > hash) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        long get(long i) {
+            return buffer.getLong(HEADER_SIZE + (int) (i * Long.BYTES));
+        }
+    }
+    
+    /**
+     * Opens (or creates) the suppression list in the given directory, maps the
+     * index, reads the journal and starts the maintenance thread.
+     * 
+     * @param directory Directory holding the index and journal files
+     * @throws IOException If the files cannot be opened or the index is invalid
+     */
+    public SuppressionList(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.journal = FileChannel.open(directory.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.generation = latestGeneration(directory);
+        this.index = generation < 0 ? new Index(null, 0) : mapIndex(indexPath(directory, generation));
+        deleteOlderGenerations();
+        refresh();
+        
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "suppression-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+        
+        logger.info("Suppression list loaded: " + size() + " address(es) from " + directory.toAbsolutePath());
+    }
+    
+    /**
+     * Checks whether an address is suppressed. Never blocks.
+     * 
+     * @param address The recipient's email address
+     * @return true if the address must not be sent to
+     */
+    public boolean contains(String address) {
+        long hash = hash(address);
+        return pending.contains(hash) || index.contains(hash);
+    }
+    
+    /**
+     * Adds an address to the list. It is suppressed immediately and written
+     * to the journal so it survives a restart.
+     * 
+     * @param address The address to suppress
+     * @throws IOException If the journal cannot be written
+     */
+    public synchronized void add(String address) throws IOException {
+        String normalized = normalize(address);
+        if (normalized.isEmpty()) {
+            return;
+        }
+        ByteBuffer line = ByteBuffer.wrap((normalized + "\n").getBytes(StandardCharsets.UTF_8));
+        FileLock lock = journal.lock();
+        try {
+            long position = journal.size();
+            while (line.hasRemaining()) {
+                position += journal.write(line, position);
+            }
+        } finally {
+            lock.release();
+        }
+        pending.add(hash(normalized));
+    }
+    
+    /**
+     * Returns the number of suppressed addresses (entries in the index plus
+     * journal entries not yet compacted).
+     * 
+     * @return Approximate suppressed address count
+     */
+    public long size() {
+        return index.count + pending.size();
+    }
+    
+    /**
+     * Reads journal lines appended since the last call, including lines
+     * written by other processes.
+     * 
+     * @throws IOException If the journal cannot be read
+     */
+    public synchronized void refresh() throws IOException {
+        FileLock lock = journal.lock();
+        try {
+            readJournal();
+        } finally {
+            lock.release();
+        }
+    }
+    
+    /**
+     * Merges the journal into a new index file, swaps it in and empties the
+     * journal. Lookups continue against the old index until the swap.
+     * 
+     * @throws IOException If the new index cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        FileLock lock = journal.lock();
+        try {
+            readJournal();
+            if (pending.isEmpty()) {
+                lastCompaction = System.currentTimeMillis();
+                return;
+            }
+            
+            long[] added = new long[pending.size()];
+            int n = 0;
+            for (Long hash : pending) {
+                if (n < added.length) {
+                    added[n++] = hash;
+                }
+            }
+            Arrays.sort(added, 0, n);
+            
+            // Single sequential merge of the old index and the sorted journal hashes
+            long nextGeneration = generation + 1;
+            Path nextPath = indexPath(directory, nextGeneration);
+            Path temp = tempPath(nextPath);
+            Index old = index;
+            try {
+                try (IndexWriter writer = new IndexWriter(temp)) {
+                    long i = 0;
+                    int j = 0;
+                    while (i < old.count || j < n) {
+                        long next;
+                        if (j >= n || (i < old.count && old.get(i) <= added[j])) {
+                            next = old.get(i++);
+                        } else {
+                            next = added[j++];
+                        }
+                        writer.write(next);
+                    }
+                }
+                Files.move(temp, nextPath, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            
+            index = mapIndex(nextPath);
+            generation = nextGeneration;
+            journal.truncate(0);
+            journal.force(true);
+            journalReadOffset = 0;
+            pending.clear();
+            lastCompaction = System.currentTimeMillis();
+            logger.info("Suppression list compacted: " + index.count + " address(es)");
+        } finally {
+            lock.release();
+        }
+        deleteOlderGenerations();
+    }
+    
+    /**
+     * Stops the maintenance thread and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            journal.close();
+        }
+    }
+    
+    /**
+     * Builds a suppression index from a plain text list (one address per
+     * line, # comments allowed), replacing any existing index and journal.
+     * 
+     * @param listPath Text file of addresses
+     * @param directory Directory to write the index into
+     * @return Number of distinct addresses in the index
+     * @throws IOException If the list cannot be read or the index written
+     */
+    public static long build(Path listPath, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        long[] hashes = new long[1024];
+        int count = 0;
+        
+        try (BufferedReader reader = Files.newBufferedReader(listPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = hash(line);
+            }
+        }
+        Arrays.sort(hashes, 0, count);
+        
+        long written;
+        Path target = indexPath(directory, latestGeneration(directory) + 1);
+        Path temp = tempPath(target);
+        try {
+            try (IndexWriter writer = new IndexWriter(temp)) {
+                for (int i = 0; i < count; i++) {
+                    writer.write(hashes[i]);
+                }
+                written = writer.count;
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Files.deleteIfExists(directory.resolve(JOURNAL_FILE));
+        return written;
+    }
+    
+    /**
+     * Appends an address to the journal of a suppression list that may be open
+     * in another process (for example a running daemon), which picks it up
+     * within a few seconds.
+     * 
+     * @param directory Directory of the suppression list
+     * @param address The address to suppress
+     * @throws IOException If the journal cannot be written
+     */
+    public static void append(Path directory, String address) throws IOException {
+        Files.createDirectories(directory);
+        byte[] line = (normalize(address) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            FileLock lock = channel.lock();
+            try {
+                channel.write(ByteBuffer.wrap(line));
+                channel.force(false);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+    
+    private void maintain() {
+        try {
+            refresh();
+            long sinceCompaction = System.currentTimeMillis() - lastCompaction;
+            if (pending.size() >= COMPACT_THRESHOLD
+                    || (!pending.isEmpty() && sinceCompaction >= COMPACT_INTERVAL_MILLIS)) {
+                compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Suppression list maintenance failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Reads complete journal lines after the last read position. Caller holds the journal lock.
+     * 
+     * If another process has compacted since the last read, its index already
+     * holds everything the journal held, so the new generation is mapped and
+     * the journal is read again from the start. Comparing generations rather
+     * than the journal size also catches a journal that has regrown past the
+     * old read position.
+     */
+    private void readJournal() throws IOException {
+        long latest = latestGeneration(directory);
+        if (latest > generation) {
+            index = mapIndex(indexPath(directory, latest));
+            generation = latest;
+            journalReadOffset = 0;
+            pending.clear();
+            logger.info("Suppression list reloaded generation " + latest + ": " + index.count + " address(es)");
+        }
+        
+        long size = journal.size();
+        if (size < journalReadOffset) {
+            // Truncated without a new generation, for example by build()
+            journalReadOffset = 0;
+        }
+        if (size == journalReadOffset) {
+            return;
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size - journalReadOffset, Integer.MAX_VALUE - 8));
+        journal.read(buffer, journalReadOffset);
+        byte[] bytes = buffer.array();
+        int length = buffer.position();
+        
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                String address = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8).trim();
+                if (!address.isEmpty() && !address.startsWith("#")) {
+                    pending.add(hash(address));
+                }
+                lineStart = i + 1;
+            }
+        }
+        // A trailing partial line is read again next time
+        journalReadOffset += lineStart;
+    }
+    
+    private static Path indexPath(Path directory, long generation) {
+        return directory.resolve(String.format("%s%08d%s", INDEX_PREFIX, generation, INDEX_SUFFIX));
+    }
+    
+    private static Path tempPath(Path indexPath) {
+        return indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+    }
+    
+    /**
+     * Returns the highest index generation in the directory, or -1 if there is none.
+     */
+    private static long latestGeneration(Path directory) throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, INDEX_PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    latest = Math.max(latest, Long.parseLong(
+                            name.substring(INDEX_PREFIX.length(), name.length() - INDEX_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return latest;
+    }
+    
+    /**
+     * Deletes index generations older than the current one. Files that are still
+     * mapped (on Windows) are left for a later attempt.
+     */
+    private void deleteOlderGenerations() {
+        for (long g = generation - 1; g >= 0; g--) {
+            Path old = indexPath(directory, g);
+            if (!Files.exists(old)) {
+                break;
+            }
+            try {
+                Files.delete(old);
+            } catch (IOException e) {
+                logger.fine("Old suppression index still in use: " + old);
+            }
+        }
+    }
+    
+    private static Index mapIndex(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Suppression index too large: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a suppression index: " + path);
+            }
+            long count = buffer.getLong(8);
+            if (HEADER_SIZE + count * Long.BYTES != size) {
+                throw new IOException("Suppression index is truncated: " + path);
+            }
+            return new Index(buffer, count);
+        }
+    }
+    
+    /**
+     * Writes sorted hashes to a new index file, skipping duplicates, and fills
+     * in the header count when closed.
+     */
+    private static class IndexWriter implements Closeable {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        long count = 0;
+        long last;
+        
+        IndexWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0);
+        }
+        
+        void write(long hash) throws IOException {
+            if (count > 0 && hash == last) {
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.putLong(hash);
+            last = hash;
+            count++;
+        }
+        
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, count);
+                channel.write(header, 8);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+    
+    private static String normalize(String address) {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * 64-bit FNV-1a hash of the normalized address with a final avalanche step.
+     */
+    static long hash(String address) {
+        String normalized = normalize(address);
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            h ^= normalized.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,212 @@
+package com.bulksender;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel for very large numbers of timers.
+ * 
+ * Time is divided into ticks. Level 0 has one slot per tick; each higher
+ * level has slots that span a whole turn of the level below. A timer is put
+ * into the lowest level whose range covers it, and is moved down (cascaded)
+ * when the lower level reaches its slot. Adding a timer and releasing a due
+ * timer are both O(1), independent of how many timers are pending.
+ * 
+ * Slots store their entries in parallel arrays rather than linked nodes,
+ * so millions of pending timers cost little more than the payload references.
+ * 
+ * Not thread-safe; callers synchronize externally.
+ * 
+ * @param <T> Payload type released when a timer is due
+ */
+public class TimingWheel<T> {
+    private static final int[] LEVEL_BITS = {8, 6, 6, 6};
+    
+    private final long tickMillis;
+    private final Slot[][] levels;
+    private final long maxTicks;
+    private long currentTick;
+    private long size = 0;
+    
+    /**
+     * Entries of one slot: payloads and the absolute tick they expire at.
+     */
+    private static class Slot {
+        Object[] payloads = new Object[0];
+        long[] ticks = new long[0];
+        int count = 0;
+        
+        void add(Object payload, long tick) {
+            if (count == payloads.length) {
+                int capacity = Math.max(8, count * 2);
+                payloads = Arrays.copyOf(payloads, capacity);
+                ticks = Arrays.copyOf(ticks, capacity);
+            }
+            payloads[count] = payload;
+            ticks[count] = tick;
+            count++;
+        }
+        
+        void clear() {
+            // Drop large arrays so a burst does not pin memory until the next turn
+            if (payloads.length > 1024) {
+                payloads = new Object[0];
+                ticks = new long[0];
+            } else {
+                Arrays.fill(payloads, 0, count, null);
+            }
+            count = 0;
+        }
+    }
+    
+    /**
+     * Creates a wheel starting at the given time.
+     * 
+     * @param tickMillis Resolution of the wheel in milliseconds
+     * @param startMillis Current time in epoch milliseconds
+     */
+    public TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.levels = new Slot[LEVEL_BITS.length][];
+        
+        long range = 1;
+        for (int level = 0; level < LEVEL_BITS.length; level++) {
+            levels[level] = new Slot[1 << LEVEL_BITS[level]];
+            for (int i = 0; i < levels[level].length; i++) {
+                levels[level][i] = new Slot();
+            }
+            range <<= LEVEL_BITS[level];
+        }
+        this.maxTicks = range;
+    }
+    
+    /**
+     * Schedules a payload to be released at the given time.
+     * 
+     * @param payload The payload to release
+     * @param dueMillis Release time in epoch milliseconds
+     * @return false if the time is already due (the payload is not stored)
+     * @throws IllegalArgumentException If the time is beyond the wheel's range
+     */
+    public boolean add(T payload, long dueMillis) {
+        long tick = dueMillis / tickMillis;
+        if (tick <= currentTick) {
+            return false;
+        }
+        if (tick - currentTick >= maxTicks) {
+            throw new IllegalArgumentException("Due time is too far in the future: " + dueMillis);
+        }
+        place(payload, tick);
+        size++;
+        return true;
+    }
+    
+    /**
+     * Advances the wheel to the given time and passes every payload that
+     * became due to the consumer, in due-time order (per tick).
+     * 
+     * @param nowMillis Current time in epoch milliseconds
+     * @param due Receives released payloads
+     * @return Number of payloads released
+     */
+    @SuppressWarnings("unchecked")
+    public int advanceTo(long nowMillis, Consumer<T> due) {
+        long targetTick = nowMillis / tickMillis;
+        int released = 0;
+        
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade(1);
+            
+            Slot slot = levels[0][(int) (currentTick & (levels[0].length - 1))];
+            for (int i = 0; i < slot.count; i++) {
+                due.accept((T) slot.payloads[i]);
+            }
+            released += slot.count;
+            size -= slot.count;
+            slot.clear();
+            
+            if (size == 0) {
+                // Nothing left: jump straight to the target instead of walking empty ticks
+                currentTick = targetTick;
+            }
+        }
+        return released;
+    }
+    
+    /**
+     * Returns the number of pending payloads.
+     * 
+     * @return Pending payload count
+     */
+    public long size() {
+        return size;
+    }
+    
+    /**
+     * Returns the wheel's current time.
+     * 
+     * @return Current time in epoch milliseconds, rounded down to a tick
+     */
+    public long getCurrentMillis() {
+        return currentTick * tickMillis;
+    }
+    
+    /**
+     * Returns the tick resolution.
+     * 
+     * @return Tick length in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+    
+    private void place(Object payload, long tick) {
+        long delta = tick - currentTick;
+        int shift = 0;
+        for (int level = 0; level < LEVEL_BITS.length; level++) {
+            int bits = LEVEL_BITS[level];
+            if (delta < (1L << (shift + bits)) || level == LEVEL_BITS.length - 1) {
+                Slot[] slots = levels[level];
+                slots[(int) ((tick >>> shift) & (slots.length - 1))].add(payload, tick);
+                return;
+            }
+            shift += bits;
+        }
+    }
+    
+    /**
+     * Moves the entries of the slot that just became current at the given
+     * level (and, first, at the levels above it) down the hierarchy.
+     */
+    private void cascade(int level) {
+        if (level >= LEVEL_BITS.length) {
+            return;
+        }
+        int shift = 0;
+        for (int i = 0; i < level; i++) {
+            shift += LEVEL_BITS[i];
+        }
+        if ((currentTick & ((1L << shift) - 1)) != 0) {
+            return;
+        }
+        
+        cascade(level + 1);
+        
+        Slot[] slots = levels[level];
+        Slot slot = slots[(int) ((currentTick >>> shift) & (slots.length - 1))];
+        if (slot.count == 0) {
+            return;
+        }
+        Object[] payloads = slot.payloads;
+        long[] ticks = slot.ticks;
+        int count = slot.count;
+        slot.payloads = new Object[0];
+        slot.ticks = new long[0];
+        slot.count = 0;
+        for (int i = 0; i < count; i++) {
+            place(payloads[i], ticks[i]);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.bulksender;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Keeps authenticated SMTP connections open between messages so that each
+ * send does not pay for a new TCP connect, STARTTLS handshake and AUTH.
+ * Connections are borrowed for one message and returned afterwards; idle
+ * connections are checked before reuse because servers drop them after a while.
+ */
+public class TransportPool {
+    private static final Logger logger = Logger.getLogger(TransportPool.class.getName());
+    
+    // Connections idle longer than this are verified (NOOP) before reuse
+    private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+    
+    // Set -Dbulksender.startup.timing=true to log the time from JVM start to the first connection
+    private static final boolean STARTUP_TIMING = Boolean.getBoolean("bulksender.startup.timing");
+    private static final AtomicBoolean firstConnect = new AtomicBoolean(true);
+    
+    private final Session session;
+    private final ConcurrentLinkedDeque<PooledTransport> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+    
+    /**
+     * A connection together with the time it was last used.
+     */
+    static class PooledTransport {
+        final Transport transport;
+        long lastUsed;
+        
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+    
+    /**
+     * Creates an empty pool for the given session.
+     * 
+     * @param session The mail session used to create connections
+     */
+    public TransportPool(Session session) {
+        this.session = session;
+    }
+    
+    /**
+     * Returns a connected transport, reusing an idle one when possible.
+     * 
+     * @return A connected transport; give it back with release() or discard()
+     * @throws MessagingException If a new connection cannot be established
+     */
+    PooledTransport borrow() throws MessagingException {
+        if (closed) {
+            throw new IllegalStateException("Transport pool is closed");
+        }
+        
+        PooledTransport pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            boolean stale = System.nanoTime() - pooled.lastUsed > IDLE_CHECK_NANOS;
+            if (!stale || pooled.transport.isConnected()) {
+                return pooled;
+            }
+            close(pooled);
+        }
+        
+        Transport transport = session.getTransport("smtp");
+        transport.connect();
+        logger.fine("Opened new SMTP connection");
+        
+        if (STARTUP_TIMING && firstConnect.compareAndSet(true, false)) {
+            long uptime = java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime();
+            logger.info("First SMTP connection established " + uptime + " ms after JVM start");
+        }
+        return new PooledTransport(transport);
+    }
+    
+    /**
+     * Returns a healthy connection to the pool for reuse.
+     * 
+     * @param pooled The connection obtained from borrow()
+     */
+    void release(PooledTransport pooled) {
+        pooled.lastUsed = System.nanoTime();
+        if (closed) {
+            close(pooled);
+            return;
+        }
+        // Most recently used first, so surplus connections age out at the tail
+        idle.offerFirst(pooled);
+    }
+    
+    /**
+     * Closes a connection that may be broken instead of returning it.
+     * 
+     * @param pooled The connection obtained from borrow()
+     */
+    void discard(PooledTransport pooled) {
+        close(pooled);
+    }
+    
+    /**
+     * Returns the number of idle connections currently held.
+     * 
+     * @return Idle connection count
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+    
+    /**
+     * Sends NOOP on each idle connection so that the server does not drop
+     * it, and closes the ones that no longer answer. Connections are taken
+     * out of the pool while they are checked, so a send never shares one
+     * with the check.
+     */
+    public void keepAlive() {
+        int count = idle.size();
+        PooledTransport pooled;
+        for (int i = 0; i < count && (pooled = idle.pollLast()) != null; i++) {
+            // isConnected() sends NOOP and closes the connection if it gets no reply
+            if (!closed && pooled.transport.isConnected()) {
+                pooled.lastUsed = System.nanoTime();
+                idle.offerFirst(pooled);
+            } else {
+                close(pooled);
+            }
+        }
+    }
+    
+    /**
+     * Closes the least recently used idle connections beyond a number, for
+     * example after the concurrency limit was lowered.
+     * 
+     * @param keep Number of idle connections to keep
+     */
+    public void trimIdle(int keep) {
+        PooledTransport pooled;
+        while (idle.size() > keep && (pooled = idle.pollLast()) != null) {
+            close(pooled);
+        }
+    }
+    
+    /**
+     * Closes all idle connections but keeps the pool usable.
+     */
+    public void evictIdle() {
+        PooledTransport pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            close(pooled);
+        }
+    }
+    
+    /**
+     * Closes all idle connections. Connections still borrowed are closed
+     * when they are released.
+     */
+    public void close() {
+        closed = true;
+        PooledTransport pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            close(pooled);
+        }
+    }
+    
+    private void close(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            logger.fine("Error closing SMTP connection: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompiledRecipientsTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void readsBackEveryAddressOfATextList() throws Exception {
+        Path source = write("list.txt", "# customers\nalice@example.com\n\nbob@example.com\njosé@exämple.com\n");
+        Path target = CompiledRecipients.defaultTarget(source);
+        assertEquals("list.rcp", target.getFileName().toString());
+        
+        assertEquals(3, CompiledRecipients.compile(source, target));
+        assertTrue(CompiledRecipients.isCompiled(target));
+        assertFalse(CompiledRecipients.isCompiled(source));
+        
+        CompiledRecipients list = CompiledRecipients.open(target);
+        assertEquals(3, list.size());
+        assertEquals(Arrays.asList("alice@example.com", "bob@example.com", "josé@exämple.com"), list.view());
+        assertEquals(Arrays.asList("bob@example.com"), list.slice(1, 2));
+        assertEquals("josé@exämple.com", list.get(2));
+    }
+    
+    @Test
+    void takesTheAddressColumnOfACsvFile() throws Exception {
+        Path source = write("people.csv", "name,email\nAlice,alice@example.com\nBob,bob@example.com\n");
+        Path target = directory.resolve("people.rcp");
+        assertEquals(2, CompiledRecipients.compile(source, target));
+        List<String> addresses = CompiledRecipients.open(target).view();
+        assertEquals(Arrays.asList("alice@example.com", "bob@example.com"), addresses);
+    }
+    
+    @Test
+    void rejectsTruncatedAndCorruptFiles() throws Exception {
+        Path target = directory.resolve("list.rcp");
+        CompiledRecipients.compile(write("list.txt", "alice@example.com\nbob@example.com\n"), target);
+        byte[] bytes = Files.readAllBytes(target);
+        
+        Files.write(target, Arrays.copyOf(bytes, bytes.length - 1));
+        IOException truncated = assertThrows(IOException.class, () -> CompiledRecipients.open(target));
+        assertTrue(truncated.getMessage().contains("truncated"));
+        
+        byte[] flipped = bytes.clone();
+        flipped[40] ^= 1;
+        Files.write(target, flipped);
+        IOException corrupt = assertThrows(IOException.class, () -> CompiledRecipients.open(target));
+        assertTrue(corrupt.getMessage().contains("checksum"));
+    }
+    
+    @Test
+    void aFailedCompileLeavesThePreviousListInPlace() throws Exception {
+        Path target = directory.resolve("list.rcp");
+        CompiledRecipients.compile(write("list.txt", "alice@example.com\n"), target);
+        // A compile that died before its rename
+        Files.write(directory.resolve("list.rcp.tmp"), new byte[] {1, 2, 3});
+        
+        assertThrows(IOException.class,
+                () -> CompiledRecipients.compile(directory.resolve("missing.txt"), target));
+        assertEquals(Arrays.asList("alice@example.com"), CompiledRecipients.open(target).view());
+        
+        // The next compile replaces the leftover temporary file and the list
+        CompiledRecipients.compile(write("list.txt", "bob@example.com\n"), target);
+        assertEquals(Arrays.asList("bob@example.com"), CompiledRecipients.open(target).view());
+        assertFalse(Files.exists(directory.resolve("list.rcp.tmp")));
+    }
+    
+    private Path write(String name, String content) throws IOException {
+        Path file = directory.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
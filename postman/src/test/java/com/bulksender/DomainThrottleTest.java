@@ -0,0 +1,118 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class DomainThrottleTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    @Test
+    void admitsOneSecondsBurstThenTheRate() {
+        DomainThrottle throttle = new DomainThrottle(null, Map.of("example.com", "5"));
+        // Start well after the bucket was created, so it is full
+        long now = System.nanoTime() + SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, throttle.tryAcquire("example.com", now));
+        }
+        long wait = throttle.tryAcquire("example.com", now);
+        assertTrue(wait > 0 && wait <= SECOND / 5, "wait " + wait);
+        
+        // Refused sends do not use up the bucket; one interval later one more goes
+        assertEquals(0, throttle.tryAcquire("example.com", now + wait));
+        assertTrue(throttle.tryAcquire("example.com", now + wait) > 0);
+        assertEquals(0, throttle.tryAcquire("example.com", now + wait + SECOND / 5));
+    }
+    
+    @Test
+    void rateOfOneAllowsNoBurst() {
+        DomainThrottle throttle = new DomainThrottle(null, Map.of("example.com", "1"));
+        long now = System.nanoTime() + SECOND;
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+        assertEquals(SECOND, throttle.tryAcquire("example.com", now));
+        assertEquals(1, throttle.tryAcquire("example.com", now + SECOND - 1));
+        assertEquals(0, throttle.tryAcquire("example.com", now + SECOND));
+    }
+    
+    @Test
+    void limitsSendsInFlight() {
+        DomainThrottle throttle = new DomainThrottle("0/2", Collections.emptyMap());
+        long now = System.nanoTime();
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+        assertTrue(throttle.tryAcquire("example.com", now) > 0);
+        assertEquals(2, throttle.getInFlight("example.com"));
+        // Other domains have buckets of their own
+        assertEquals(0, throttle.tryAcquire("example.org", now));
+        
+        throttle.release("example.com");
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+    }
+    
+    @Test
+    void priorityAcquireCountsAgainstTheLimits() {
+        DomainThrottle throttle = new DomainThrottle("0/1", Collections.emptyMap());
+        long now = System.nanoTime();
+        throttle.acquire("example.com", now);
+        throttle.acquire("example.com", now);
+        assertEquals(2, throttle.getInFlight("example.com"));
+        assertTrue(throttle.tryAcquire("example.com", now) > 0);
+        throttle.release("example.com");
+        throttle.release("example.com");
+        // Never below zero
+        throttle.release("example.com");
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+    }
+    
+    @Test
+    void unlimitedDomainsAreNotTracked() {
+        DomainThrottle throttle = new DomainThrottle(null, Map.of("example.com", "0"));
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, throttle.tryAcquire("example.com", now));
+            assertEquals(0, throttle.tryAcquire("example.org", now));
+        }
+        assertEquals(0, throttle.tryAcquire(null, now));
+        assertEquals(0, throttle.getInFlight("example.com"));
+    }
+    
+    @Test
+    void switchesExistingBucketsToANewLimit() {
+        DomainThrottle throttle = new DomainThrottle("0/1", Collections.emptyMap());
+        long now = System.nanoTime();
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+        assertTrue(throttle.tryAcquire("example.com", now) > 0);
+        
+        throttle.setLimit("Example.COM", "0/2");
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+        assertEquals(Map.of("example.com", "0/2"), throttle.getLimits());
+        
+        throttle.setLimit("example.com", "");
+        throttle.setDefaultLimit(null);
+        assertNull(throttle.getDefaultLimit());
+        assertEquals(0, throttle.tryAcquire("example.com", now));
+    }
+    
+    @Test
+    void parsesLimits() {
+        assertEquals("20/10", DomainThrottle.parseLimit(" 20 / 10 ").toString());
+        assertEquals("2.5/0", DomainThrottle.parseLimit("2.5").toString());
+        assertThrows(IllegalArgumentException.class, () -> DomainThrottle.parseLimit("fast"));
+        assertThrows(IllegalArgumentException.class, () -> DomainThrottle.parseLimit("-1"));
+        assertThrows(IllegalArgumentException.class, () -> DomainThrottle.parseLimit("1/2/3"));
+        assertThrows(IllegalArgumentException.class, () -> DomainThrottle.parseLimit("NaN"));
+    }
+    
+    @Test
+    void findsTheDomainOfAnAddress() {
+        assertEquals("example.com", DomainThrottle.domainOf("Alice@Example.COM"));
+        assertNull(DomainThrottle.domainOf("alice"));
+        assertNull(DomainThrottle.domainOf("alice@"));
+    }
+}
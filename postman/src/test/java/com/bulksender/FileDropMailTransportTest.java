@@ -0,0 +1,61 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileDropMailTransportTest {
+    @TempDir
+    Path directory;
+    
+    private final Session session = Session.getInstance(new Properties());
+    
+    @Test
+    void publishesFullBatchesAndTheRestOnClose() throws Exception {
+        FileDropMailTransport transport = new FileDropMailTransport(directory, 2);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(250, transport.deliver(message("user" + i + "@example.com")));
+        }
+        // Two full batches are published right away, the fifth file waits
+        assertEquals(4, transport.getCommittedCount());
+        transport.close();
+        
+        assertEquals(5, transport.getCommittedCount());
+        List<Path> files = files();
+        assertEquals(5, files.size());
+        for (Path file : files) {
+            assertTrue(file.toString().endsWith(".eml"));
+            try (InputStream in = Files.newInputStream(file)) {
+                MimeMessage parsed = new MimeMessage(session, in);
+                assertEquals("Test", parsed.getSubject());
+            }
+        }
+    }
+    
+    private List<Path> files() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+    
+    private MimeMessage message(String recipient) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress(recipient));
+        message.setSubject("Test");
+        message.setText("Hello");
+        return message;
+    }
+}
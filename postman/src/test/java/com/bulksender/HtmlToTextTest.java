@@ -0,0 +1,46 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+import org.junit.jupiter.api.Test;
+
+class HtmlToTextTest {
+    
+    @Test
+    void turnsBlocksIntoParagraphsAndLines() {
+        String html = "<html><head><title>Title</title><style>p { color: red }</style></head><body>"
+                + "<h1>Hello</h1><p>First   line\nwraps</p><p>Second<br>line</p></body></html>";
+        assertEquals("Hello\n\nFirst line wraps\n\nSecond\nline", HtmlToText.convert(html));
+    }
+    
+    @Test
+    void numbersAndBulletsListItems() {
+        assertEquals("* One\n* Two\n\n1. A\n2. B",
+                HtmlToText.convert("<ul><li>One</li><li>Two</li></ul><ol><li>A</li><li>B</li></ol>"));
+    }
+    
+    @Test
+    void keepsLinkTargetsAndDecodesEntities() {
+        assertEquals("See our site (https://example.com/x) & été € A",
+                HtmlToText.convert("<p>See <a href=\"https://example.com/x\">our site</a> "
+                        + "&amp; &eacute;t&eacute; &#8364; &#x41;</p>"));
+    }
+    
+    @Test
+    void keepsPreformattedTextAndDropsCommentsAndScripts() {
+        assertEquals("  keep\n   this\n\ntail",
+                HtmlToText.convert("<pre>  keep\n   this</pre><!-- gone --><script>alert(1)</script>tail"));
+    }
+    
+    @Test
+    void convertsFromAStreamLikeFromAString() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            html.append("<p>Paragraph ").append(i).append("</p>");
+        }
+        StringBuilder text = new StringBuilder();
+        HtmlToText.convert(new StringReader(html.toString()), text);
+        assertEquals(HtmlToText.convert(html.toString()), text.toString());
+    }
+}
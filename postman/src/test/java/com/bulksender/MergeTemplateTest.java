@@ -0,0 +1,58 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MergeTemplateTest {
+    @TempDir
+    Path directory;
+    
+    private RecipientTable table;
+    
+    @BeforeEach
+    void loadTable() throws Exception {
+        Path file = directory.resolve("people.csv");
+        Files.write(file, ("email,First Name,company\n"
+                + "anna@example.com,Anna,Smith & Sons\n"
+                + "bob@example.com,Bob,<Acme>\n").getBytes(StandardCharsets.UTF_8));
+        table = RecipientTable.load(file.toString());
+    }
+    
+    @Test
+    void fillsInEachRowsValues() {
+        MergeTemplate template = MergeTemplate.compile("Hi {{ first  name }}, from {{company}}!", table, false);
+        assertTrue(template.hasPlaceholders());
+        assertEquals("Hi Anna, from Smith & Sons!", template.render(table, 0));
+        assertEquals("Hi Bob, from <Acme>!", template.render(table, 1));
+    }
+    
+    @Test
+    void escapesValuesForHtml() {
+        MergeTemplate template = MergeTemplate.compile("<p>{{company}}</p>", table, true);
+        assertEquals("<p>Smith &amp; Sons</p>", template.render(table, 0));
+        assertEquals("<p>&lt;Acme&gt;</p>", template.render(table, 1));
+    }
+    
+    @Test
+    void leavesBracesThatAreNotPlaceholders() {
+        MergeTemplate template = MergeTemplate.compile("a {{x\ny}} b {{{email}}", table, false);
+        assertEquals("a {{x\ny}} b {{{email}}", template.render(table, 0));
+        assertFalse(MergeTemplate.compile("No placeholders", table, false).hasPlaceholders());
+    }
+    
+    @Test
+    void rejectsUnknownColumns() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> MergeTemplate.compile("{{surname}}", table, false));
+        assertTrue(e.getMessage().contains("surname"));
+    }
+}
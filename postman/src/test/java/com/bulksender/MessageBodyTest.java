@@ -0,0 +1,78 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+
+class MessageBodyTest {
+    private final Session session = Session.getInstance(new Properties());
+    
+    @Test
+    void htmlBodyHasATextAlternative() throws Exception {
+        String html = "<p>Grüße &amp; welcome</p>";
+        MimeMessage parsed = roundTrip(MessageBody.html(html));
+        
+        assertTrue(parsed.isMimeType("multipart/alternative"));
+        Multipart parts = (Multipart) parsed.getContent();
+        assertEquals(2, parts.getCount());
+        assertTrue(parts.getBodyPart(0).isMimeType("text/plain"));
+        assertEquals("Grüße & welcome", ((String) parts.getBodyPart(0).getContent()).trim());
+        assertTrue(parts.getBodyPart(1).isMimeType("text/html"));
+        assertEquals(html, ((String) parts.getBodyPart(1).getContent()).trim());
+    }
+    
+    @Test
+    void plainTextBodyIsASinglePart() throws Exception {
+        MimeMessage parsed = roundTrip(MessageBody.plainText("<p>Hello</p>"));
+        assertTrue(parsed.isMimeType("text/plain"));
+        assertEquals("Hello", ((String) parsed.getContent()).trim());
+    }
+    
+    @Test
+    void preEncodedMessagesStillHonourLaterHeaders() throws Exception {
+        MessageBody body = MessageBody.html("<p>Hi</p>");
+        MimeMessage message = address(body.createMessage(session));
+        MessageBody.preEncode(message);
+        MimeMessage parsed = parse(message);
+        assertEquals("Test", parsed.getSubject());
+        
+        message.setSubject("Changed");
+        assertEquals("Changed", parse(message).getSubject());
+    }
+    
+    @Test
+    void matchesOnlyTheSameSourceAndMode() {
+        String html = "<p>Hi</p>";
+        MessageBody body = MessageBody.html(html);
+        assertTrue(body.matches(html, true));
+        assertFalse(body.matches(html, false));
+        assertFalse(body.matches("<p>Other</p>", true));
+        assertFalse(MessageBody.rendered(html, "Hi").matches(html, true));
+    }
+    
+    private MimeMessage roundTrip(MessageBody body) throws Exception {
+        return parse(address(body.createMessage(session)));
+    }
+    
+    private static MimeMessage address(MimeMessage message) throws Exception {
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress("alice@example.com"));
+        message.setSubject("Test");
+        return message;
+    }
+    
+    private MimeMessage parse(MimeMessage message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        return new MimeMessage(session, new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,105 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Draining an outbox end to end, through the file-drop and memory transports.
+ */
+class OutboxSenderTest {
+    private static final long TIMEOUT_MILLIS = 30_000;
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void dropsEveryMessageAsAFileAndAcknowledgesIt() throws Exception {
+        Path outbox = directory.resolve("outbox");
+        Path pickup = directory.resolve("pickup");
+        int count = OutboxSender.WINDOW_SIZE + 44;
+        enqueue(outbox, count);
+        
+        EmailSender emailSender = new EmailSender();
+        emailSender.initialize(SmtpStub.config(directory, "transport=file", "transport.file.dir=" + pickup,
+                                               "transport.file.sync.batch=16"));
+        OutboxSpool spool = new OutboxSpool(outbox.toString());
+        try {
+            drain(spool, emailSender, count);
+            assertEquals(0, spool.getDepth());
+        } finally {
+            spool.close();
+            emailSender.close();
+        }
+        try (Stream<Path> files = Files.list(pickup)) {
+            assertEquals(count, files.filter(p -> p.toString().endsWith(".eml")).count());
+        }
+    }
+    
+    @Test
+    void failsTheMessagesOfAMissingCampaignAndCarriesOn() throws Exception {
+        Path outbox = directory.resolve("outbox");
+        OutboxSpool writer = new OutboxSpool(outbox.toString());
+        try {
+            writer.openWriter();
+            // Never stored, like a campaign file that was deleted
+            writer.append(42, "lost@example.com");
+            long campaignId = writer.createCampaign("Subject", "Body").getId();
+            writer.append(campaignId, "a@example.com");
+            writer.append(campaignId, "b@example.com");
+        } finally {
+            writer.close();
+        }
+        
+        EmailSender emailSender = new EmailSender();
+        emailSender.initialize(SmtpStub.config(directory, "transport=memory"));
+        OutboxSpool spool = new OutboxSpool(outbox.toString());
+        try {
+            OutboxSender sender = drain(spool, emailSender, 3);
+            assertEquals(2, sender.getSentCount());
+            assertEquals(1, sender.getFailedCount());
+            assertEquals(0, spool.getDepth());
+            assertEquals(2, ((MemoryMailTransport) emailSender.getTransport()).getMessageCount());
+        } finally {
+            spool.close();
+            emailSender.close();
+        }
+    }
+    
+    private static void enqueue(Path outbox, int count) throws Exception {
+        OutboxSpool spool = new OutboxSpool(outbox.toString());
+        try {
+            spool.openWriter();
+            long campaignId = spool.createCampaign("Hello {{email}}", "<p>Body</p>").getId();
+            for (int i = 0; i < count; i++) {
+                spool.append(campaignId, "user" + i + "@example.com");
+            }
+        } finally {
+            spool.close();
+        }
+    }
+    
+    /**
+     * Runs a sender until it has finished the given number of messages, then stops it.
+     */
+    private static OutboxSender drain(OutboxSpool spool, EmailSender emailSender, int count) throws Exception {
+        OutboxSender sender = new OutboxSender(spool, emailSender);
+        Thread thread = new Thread(sender, "outbox-sender-test");
+        thread.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sender.getSentCount() + sender.getFailedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        sender.stop();
+        thread.join(TIMEOUT_MILLIS);
+        assertFalse(thread.isAlive());
+        assertTrue(sender.getSentCount() + sender.getFailedCount() >= count, "drain timed out");
+        return sender;
+    }
+}
@@ -0,0 +1,120 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboxSpoolTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void replaysUnacknowledgedMessagesAfterReopening() throws Exception {
+        long campaignId;
+        OutboxSpool spool = new OutboxSpool(directory.toString());
+        try {
+            spool.openWriter();
+            campaignId = spool.createCampaign("Subject", "<p>Body</p>").getId();
+            spool.append(campaignId, "a@example.com");
+            spool.append(campaignId, "b@example.com");
+            spool.append(campaignId, "c@example.com");
+            spool.flush();
+            assertEquals(3, spool.getDepth());
+            
+            OutboxSpool.Entry first = spool.poll();
+            assertEquals("a@example.com", first.getRecipient());
+            assertEquals(campaignId, first.getCampaignId());
+            assertEquals("b@example.com", spool.poll().getRecipient());
+            // Only the first one is done
+            spool.acknowledge(first);
+            assertEquals(2, spool.getDepth());
+        } finally {
+            spool.close();
+        }
+        
+        OutboxSpool reopened = new OutboxSpool(directory.toString());
+        try {
+            assertEquals(2, reopened.getDepth());
+            OutboxSpool.Entry second = reopened.poll();
+            assertEquals("b@example.com", second.getRecipient());
+            OutboxSpool.Entry third = reopened.poll();
+            assertEquals("c@example.com", third.getRecipient());
+            assertNull(reopened.poll());
+            
+            assertEquals("Subject", reopened.loadCampaign(campaignId).getSubject());
+            reopened.acknowledge(third);
+            assertEquals(0, reopened.getDepth());
+            assertEquals(third.getNextOffset(), reopened.getAckedOffset());
+        } finally {
+            reopened.close();
+        }
+    }
+    
+    @Test
+    void readerSeesMessagesAppendedLater() throws Exception {
+        OutboxSpool writer = new OutboxSpool(directory.toString());
+        OutboxSpool reader = new OutboxSpool(directory.toString());
+        try {
+            writer.openWriter();
+            assertNull(reader.poll());
+            writer.append(1, "a@example.com");
+            writer.flush();
+            assertEquals("a@example.com", reader.poll().getRecipient());
+            assertNull(reader.poll());
+            writer.append(1, "b@example.com");
+            writer.flush();
+            assertEquals("b@example.com", reader.poll().getRecipient());
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+    
+    @Test
+    void dropsARecordCutShortByACrash() throws Exception {
+        OutboxSpool spool = new OutboxSpool(directory.toString());
+        try {
+            spool.openWriter();
+            spool.append(1, "a@example.com");
+            spool.append(1, "b@example.com");
+        } finally {
+            spool.close();
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(p -> p.getFileName().toString().endsWith(".seg")).findFirst().get();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(bytes, bytes.length - 3));
+        
+        OutboxSpool reopened = new OutboxSpool(directory.toString());
+        try {
+            reopened.openWriter();
+            assertEquals(1, reopened.getDepth());
+            reopened.append(1, "c@example.com");
+            reopened.flush();
+            assertEquals("a@example.com", reopened.poll().getRecipient());
+            assertEquals("c@example.com", reopened.poll().getRecipient());
+            assertNull(reopened.poll());
+        } finally {
+            reopened.close();
+        }
+    }
+    
+    @Test
+    void appendingNeedsTheWriter() throws Exception {
+        OutboxSpool spool = new OutboxSpool(directory.toString());
+        try {
+            assertThrows(IllegalStateException.class, () -> spool.append(1, "a@example.com"));
+        } finally {
+            spool.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutcomeLogTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void writesOneJsonLinePerOutcome() throws Exception {
+        Path file = directory.resolve("outcomes.jsonl");
+        OutcomeLog log = new OutcomeLog(file.toString(), 16, OutcomeLog.OverflowPolicy.BLOCK);
+        log.record("a@example.com", true, 250, 1_500_000, null);
+        log.record("b\"\n@example.com", false, 550, 2_000, "No such\tuser");
+        log.close();
+        
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\"recipient\":\"a@example.com\",\"status\":\"sent\",\"code\":250,\"latencyMicros\":1500"));
+        assertTrue(lines.get(1).contains("\"recipient\":\"b\\\"\\n@example.com\",\"status\":\"failed\",\"code\":550"));
+        assertTrue(lines.get(1).contains("\"error\":\"No such\\tuser\""));
+        assertEquals(2, log.getWrittenCount());
+        assertEquals(0, log.getDroppedCount());
+    }
+    
+    @Test
+    void parsesPolicyNamesRegardlessOfCase() {
+        assertEquals(OutcomeLog.OverflowPolicy.DROP_OLDEST, OutcomeLog.OverflowPolicy.parse(" drop-oldest "));
+        assertEquals(OutcomeLog.OverflowPolicy.BLOCK, OutcomeLog.OverflowPolicy.parse("Block"));
+    }
+    
+    @Test
+    void blockingSendersDropOnceTheWriterHasStopped() throws Exception {
+        OutcomeLog log = new OutcomeLog(directory.resolve("outcomes.jsonl").toString(), 1,
+                OutcomeLog.OverflowPolicy.BLOCK);
+        log.close();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            for (int i = 0; i < 10; i++) {
+                log.record("user" + i + "@example.com", true, 250, 0, null);
+            }
+        });
+        assertEquals(10, log.getDroppedCount());
+    }
+    
+    @Test
+    void blockingSendersDropOnceTheWriterHasFailed() throws Exception {
+        Path full = Paths.get("/dev/full");
+        assumeTrue(Files.isWritable(full));
+        OutcomeLog log = new OutcomeLog(full.toString(), 1, OutcomeLog.OverflowPolicy.BLOCK);
+        try {
+            // The first batch fails to write and stops the writer; later ones must not park forever
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                for (int i = 0; i < 100; i++) {
+                    log.record("user" + i + "@example.com", true, 250, 0, null);
+                }
+            });
+            assertEquals(0, log.getWrittenCount());
+            assertTrue(log.getDroppedCount() > 0);
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutcomeStoreTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void storesAndQueriesOutcomesByCampaignAndReplyCode() throws Exception {
+        OutcomeStore store = new OutcomeStore(directory);
+        try {
+            store.record("before@example.com", true, 250, 1000, 1);
+            store.startCampaign(3);
+            store.record("a@example.com", true, 250, 2_000_000, 1);
+            store.record("b@example.com", false, 550, 3_000_000, 2);
+            store.record("c@example.com", false, 550, 4_000_000, 1);
+            store.endCampaign();
+        } finally {
+            store.close();
+        }
+        
+        OutcomeStore.Reader reader = new OutcomeStore.Reader(directory);
+        assertEquals(1, reader.getCampaigns().size());
+        OutcomeStore.Reader.CampaignEntry campaign = reader.getCampaigns().get(0);
+        assertEquals(1, campaign.getId());
+        assertEquals(3, campaign.getTotal());
+        assertEquals(4, reader.getRecordCount());
+        
+        List<Long> rejected = new ArrayList<>();
+        assertEquals(2, reader.query(1, 550, outcome -> {
+            assertFalse(outcome.isSent());
+            rejected.add(outcome.getRecipientHash());
+        }));
+        assertEquals(List.of(OutcomeStore.hashOf("b@example.com"), OutcomeStore.hashOf("c@example.com")), rejected);
+        
+        List<Integer> attempts = new ArrayList<>();
+        assertEquals(1, reader.query(OutcomeStore.NO_CAMPAIGN, OutcomeStore.ANY, outcome -> {
+            assertTrue(outcome.isSent());
+            attempts.add(outcome.getAttempts());
+        }));
+        assertEquals(List.of(1), attempts);
+        assertEquals(Map.of(250, 1L, 550, 2L), reader.countByReplyCode(1));
+        assertEquals(Map.of(250, 2L, 550, 2L), reader.countByReplyCode(OutcomeStore.ANY));
+    }
+    
+    @Test
+    void sealsFullSegmentsAndKeepsAppending() throws Exception {
+        OutcomeStore store = new OutcomeStore(directory, 4);
+        try {
+            store.startCampaign(10);
+            for (int i = 0; i < 10; i++) {
+                store.record("user" + i + "@example.com", i % 2 == 0, i % 2 == 0 ? 250 : 450, 1000, 1);
+            }
+            store.endCampaign();
+        } finally {
+            store.close();
+        }
+        
+        for (int number = 1; number <= 3; number++) {
+            assertTrue(Files.exists(index(number)), "segment " + number + " is sealed");
+        }
+        assertFalse(Files.exists(data(4)));
+        
+        OutcomeStore.Reader reader = new OutcomeStore.Reader(directory);
+        assertEquals(10, reader.getRecordCount());
+        List<Long> deferred = new ArrayList<>();
+        assertEquals(5, reader.query(1, 450, outcome -> deferred.add(outcome.getRecipientHash())));
+        assertEquals(OutcomeStore.hashOf("user1@example.com"), deferred.get(0));
+        assertEquals(OutcomeStore.hashOf("user9@example.com"), deferred.get(4));
+    }
+    
+    @Test
+    void dropsARecordCutShortByACrash() throws Exception {
+        OutcomeStore store = new OutcomeStore(directory);
+        try {
+            store.record("a@example.com", true, 250, 1000, 1);
+            store.record("b@example.com", true, 250, 1000, 1);
+        } finally {
+            store.close();
+        }
+        // A crash while appending: the segment was never sealed and ends mid-record
+        Files.delete(index(1));
+        Files.write(data(1), new byte[5], StandardOpenOption.APPEND);
+        
+        OutcomeStore reopened = new OutcomeStore(directory);
+        try {
+            reopened.record("c@example.com", false, 550, 1000, 1);
+        } finally {
+            reopened.close();
+        }
+        
+        OutcomeStore.Reader reader = new OutcomeStore.Reader(directory);
+        assertEquals(3, reader.getRecordCount());
+        List<Long> rejected = new ArrayList<>();
+        reader.query(OutcomeStore.ANY, 550, outcome -> rejected.add(outcome.getRecipientHash()));
+        assertEquals(List.of(OutcomeStore.hashOf("c@example.com")), rejected);
+    }
+    
+    @Test
+    void sealsASegmentWhoseSealWasCutShort() throws Exception {
+        OutcomeStore store = new OutcomeStore(directory, 2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                store.record("user" + i + "@example.com", true, 250, 1000, 1);
+            }
+        } finally {
+            store.close();
+        }
+        // A crash while the first segment was being sealed
+        Files.delete(index(1));
+        Files.write(index(1).resolveSibling(index(1).getFileName() + ".tmp"), new byte[7]);
+        
+        new OutcomeStore(directory, 2).close();
+        
+        assertTrue(Files.exists(index(1)));
+        OutcomeStore.Reader reader = new OutcomeStore.Reader(directory);
+        assertEquals(5, reader.getRecordCount());
+        assertEquals(5, reader.query(OutcomeStore.ANY, 250, outcome -> { }));
+    }
+    
+    @Test
+    void refusesASecondWriter() throws Exception {
+        OutcomeStore store = new OutcomeStore(directory);
+        try {
+            assertThrows(IOException.class, () -> new OutcomeStore(directory));
+        } finally {
+            store.close();
+        }
+    }
+    
+    private Path data(int number) {
+        return directory.resolve(String.format("segment-%08d.out", number));
+    }
+    
+    private Path index(int number) {
+        return directory.resolve(String.format("segment-%08d.idx", number));
+    }
+}
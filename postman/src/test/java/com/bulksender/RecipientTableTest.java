@@ -0,0 +1,87 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RecipientTableTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void readsQuotedCsvFieldsAndFindsTheEmailColumn() throws Exception {
+        RecipientTable table = load("people.csv",
+                "﻿name,Email,note\n"
+                + "\"Smith, Anna\", anna@example.com ,\"said \"\"hi\"\"\"\n"
+                + "# a comment\n"
+                + "\n"
+                + "Bob,bob@example.com,\"two\nlines\"\n"
+                + "Nobody,,no address\n");
+        
+        assertEquals(Arrays.asList("name", "Email", "note"), table.getColumnNames());
+        assertEquals(2, table.getRowCount());
+        assertEquals("anna@example.com", table.getEmail(0));
+        assertEquals("Smith, Anna", table.get(0, 0));
+        assertEquals("said \"hi\"", table.get(0, 2));
+        assertEquals("two\nlines", table.get(1, table.getColumnIndex("NOTE")));
+        assertEquals(-1, table.getColumnIndex("missing"));
+    }
+    
+    @Test
+    void detectsTheDelimiter() throws Exception {
+        RecipientTable semicolons = load("people.csv", "email;city\na@example.com;Köln\n");
+        assertEquals("Köln", semicolons.get(0, 1));
+        RecipientTable tabs = load("people.tsv", "email\tcity, state\na@example.com\tAustin, TX\n");
+        assertEquals("Austin, TX", tabs.get(0, 1));
+    }
+    
+    @Test
+    void keepsValuesWhenAColumnChangesStorage() throws Exception {
+        StringBuilder csv = new StringBuilder("email,id,plan,score\n");
+        for (int i = 0; i < 5000; i++) {
+            csv.append("user").append(i).append("@example.com,")
+               .append(i * 7).append(',')
+               .append(i % 3 == 0 ? "pro" : "free").append(',')
+               // Starts out numeric, then a value that is not
+               .append(i == 4999 ? "n/a" : String.valueOf(-i)).append('\n');
+        }
+        RecipientTable table = load("big.csv", csv.toString());
+        
+        assertEquals(5000, table.getRowCount());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("user" + i + "@example.com", table.getEmail(i));
+            assertEquals(String.valueOf(i * 7), table.get(i, 1));
+            assertEquals(i % 3 == 0 ? "pro" : "free", table.get(i, 2));
+            assertEquals(i == 4999 ? "n/a" : String.valueOf(-i), table.get(i, 3));
+        }
+    }
+    
+    @Test
+    void keepsNumbersThatAreNotCanonicalAsText() throws Exception {
+        RecipientTable table = load("zip.csv", "email,zip\na@example.com,01234\nb@example.com,+5\n");
+        assertEquals("01234", table.get(0, 1));
+        assertEquals("+5", table.get(1, 1));
+    }
+    
+    @Test
+    void recognisesTableFilesAndRejectsMissingOnes() {
+        assertTrue(RecipientTable.isTableFile("list.CSV"));
+        assertFalse(RecipientTable.isTableFile("list.txt"));
+        assertThrows(IOException.class, () -> RecipientTable.load(directory.resolve("none.csv").toString()));
+    }
+    
+    private RecipientTable load(String name, String content) throws IOException {
+        Path file = directory.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return RecipientTable.load(file.toString());
+    }
+}
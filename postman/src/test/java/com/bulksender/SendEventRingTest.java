@@ -0,0 +1,107 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class SendEventRingTest {
+    
+    @Test
+    void deliversEveryEventInOrderToEachListener() throws Exception {
+        SendEventRing ring = new SendEventRing(16);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        ring.addListener(first);
+        ring.addListener(second);
+        
+        ring.publishRun(SendEvent.Type.RUN_STARTED, 3, 0);
+        ring.publishMessage(SendEvent.Type.MESSAGE_SENT, "a@example.com", 250, 1000, 1, null);
+        ring.publishMessage(SendEvent.Type.MESSAGE_FAILED, "b@example.com", 550, 2000, 1, "No such user");
+        ring.publishRun(SendEvent.Type.RUN_COMPLETED, 3, 1);
+        ring.close();
+        
+        List<String> expected = List.of("RUN_STARTED 0", "MESSAGE_SENT a@example.com 250",
+                "MESSAGE_FAILED b@example.com 550 No such user", "RUN_COMPLETED 1");
+        assertEquals(expected, first.events);
+        assertEquals(expected, second.events);
+        assertEquals(4, ring.getPublishedCount());
+    }
+    
+    @Test
+    void aListenerThatFallsBehindLosesEventsWithoutStallingPublishers() throws Exception {
+        SendEventRing ring = new SendEventRing(8);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AtomicLong seen = new AtomicLong();
+        AtomicLong lost = new AtomicLong();
+        ring.addListener(new SendEventListener() {
+            @Override
+            public void onEvent(SendEvent event) {
+                if (seen.incrementAndGet() == 1) {
+                    blocked.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            
+            @Override
+            public void onEventsLost(long count) {
+                lost.addAndGet(count);
+            }
+        });
+        
+        ring.publishMessage(SendEvent.Type.MESSAGE_SENT, "first@example.com", 250, 0, 1, null);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        // Publishing runs ahead of the stuck listener by far more than one ring
+        for (int i = 0; i < 100; i++) {
+            ring.publishMessage(SendEvent.Type.MESSAGE_SENT, "user" + i + "@example.com", 250, 0, 1, null);
+        }
+        resume.countDown();
+        ring.close();
+        
+        assertEquals(101, ring.getPublishedCount());
+        assertTrue(lost.get() > 0);
+        assertEquals(101, seen.get() + lost.get());
+    }
+    
+    @Test
+    void aFailingListenerKeepsReceivingEvents() throws Exception {
+        SendEventRing ring = new SendEventRing(16);
+        AtomicLong seen = new AtomicLong();
+        ring.addListener(event -> {
+            seen.incrementAndGet();
+            throw new IllegalStateException("listener bug");
+        });
+        for (int i = 0; i < 5; i++) {
+            ring.publishMessage(SendEvent.Type.MESSAGE_SENT, "user" + i + "@example.com", 250, 0, 1, null);
+        }
+        ring.close();
+        assertEquals(5, seen.get());
+    }
+    
+    private static class Recorder implements SendEventListener {
+        final List<String> events = new ArrayList<>();
+        
+        @Override
+        public void onEvent(SendEvent event) {
+            switch (event.getType()) {
+                case RUN_STARTED:
+                case RUN_COMPLETED:
+                    events.add(event.getType() + " " + event.getSuccessCount());
+                    break;
+                default:
+                    events.add(event.getType() + " " + event.getRecipient() + " " + event.getReplyCode()
+                            + (event.getError() == null ? "" : " " + event.getError()));
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+
+class SendLanesTest {
+    
+    @Test
+    void weightsThePriorityLaneWhileBothAreBusy() throws Exception {
+        SendLanes lanes = new SendLanes(new AdaptiveConcurrencyLimit(1, 1), null, 1, 4, 0, 0);
+        StringBuffer order = new StringBuffer();
+        CountDownLatch gate = new CountDownLatch(1);
+        try {
+            // Hold the only worker until both lanes are filled
+            lanes.submit(SendLanes.Lane.PRIORITY, null, () -> await(gate));
+            for (int i = 0; i < 8; i++) {
+                lanes.submit(SendLanes.Lane.PRIORITY, null, () -> order.append('P'));
+            }
+            lanes.submit(SendLanes.Lane.BULK, null, () -> order.append('B'));
+            lanes.submit(SendLanes.Lane.BULK, null, () -> order.append('B'));
+            gate.countDown();
+        } finally {
+            lanes.close();
+        }
+        // One bulk message in every five, wherever the round starts
+        assertEquals(10, order.length());
+        assertEquals(1, order.substring(0, 5).chars().filter(c -> c == 'B').count());
+        assertEquals(1, order.substring(5).chars().filter(c -> c == 'B').count());
+    }
+    
+    @Test
+    void keepsSlotsFreeForPriorityMessagesDuringACampaign() throws Exception {
+        SendLanes lanes = new SendLanes(new AdaptiveConcurrencyLimit(4, 4), null, 4, 4, 0.25, 0);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch priorityDone = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 6; i++) {
+                lanes.submit(SendLanes.Lane.BULK, null, () -> await(gate));
+            }
+            waitFor(() -> lanes.getRunningCount(SendLanes.Lane.BULK) == 3);
+            
+            lanes.submit(SendLanes.Lane.PRIORITY, null, priorityDone::countDown);
+            assertTrue(priorityDone.await(5, TimeUnit.SECONDS));
+            // The bulk lane never took the reserved slot
+            assertEquals(3, lanes.getRunningCount(SendLanes.Lane.BULK));
+        } finally {
+            gate.countDown();
+            lanes.close();
+        }
+        assertEquals(6, lanes.getDispatchedCount(SendLanes.Lane.BULK));
+    }
+    
+    @Test
+    void pausedBulkLaneStillSendsPriorityMessages() throws Exception {
+        SendLanes lanes = new SendLanes(new AdaptiveConcurrencyLimit(2, 2), null, 2, 4, 0, 0);
+        AtomicInteger bulk = new AtomicInteger();
+        CountDownLatch priorityDone = new CountDownLatch(1);
+        try {
+            lanes.pauseBulk();
+            assertTrue(lanes.isBulkPaused());
+            lanes.submit(SendLanes.Lane.BULK, null, bulk::incrementAndGet);
+            lanes.submit(SendLanes.Lane.PRIORITY, null, priorityDone::countDown);
+            assertTrue(priorityDone.await(5, TimeUnit.SECONDS));
+            assertEquals(0, bulk.get());
+            assertEquals(1, lanes.getQueuedCount(SendLanes.Lane.BULK));
+            
+            lanes.resumeBulk();
+            waitFor(() -> bulk.get() == 1);
+        } finally {
+            lanes.close();
+        }
+    }
+    
+    @Test
+    void closeRunsQueuedTasksAndRefusesNewOnes() throws Exception {
+        SendLanes lanes = new SendLanes(new AdaptiveConcurrencyLimit(1, 1), null, 1, 4, 0, 0);
+        AtomicInteger ran = new AtomicInteger();
+        lanes.pauseBulk();
+        lanes.submit(SendLanes.Lane.BULK, null, ran::incrementAndGet);
+        lanes.submit(SendLanes.Lane.PRIORITY, null, ran::incrementAndGet);
+        lanes.close();
+        
+        assertEquals(2, ran.get());
+        assertFalse(lanes.isBulkPaused());
+        boolean refused = false;
+        try {
+            lanes.submit(SendLanes.Lane.PRIORITY, null, ran::incrementAndGet);
+        } catch (IllegalStateException e) {
+            refused = true;
+        }
+        assertTrue(refused);
+    }
+    
+    @Test
+    void throttledDomainDoesNotHoldUpOthersEvenWithAFullSetAside() throws Exception {
+        DomainThrottle throttle = new DomainThrottle(null, Map.of("slow.example", "0/1"));
+        SendLanes lanes = new SendLanes(new AdaptiveConcurrencyLimit(2, 2), throttle, 2, 4, 0, 0);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger fast = new AtomicInteger();
+        AtomicInteger slow = new AtomicInteger();
+        try {
+            // Takes the slow domain's only slot until the end of the test
+            lanes.submit(SendLanes.Lane.BULK, "slow.example", () -> await(gate));
+            waitFor(() -> throttle.getInFlight("slow.example") == 1);
+            int setAsideCapacity = 2 * 64;
+            for (int i = 0; i < setAsideCapacity; i++) {
+                lanes.submit(SendLanes.Lane.BULK, "slow.example", slow::incrementAndGet);
+            }
+            waitFor(() -> lanes.getSetAsideCount() == setAsideCapacity);
+            
+            // Slow tasks now pile up in the queue, but the ones behind them still go
+            for (int i = 0; i < 3; i++) {
+                lanes.submit(SendLanes.Lane.BULK, "slow.example", slow::incrementAndGet);
+                lanes.submit(SendLanes.Lane.BULK, "fast.example", fast::incrementAndGet);
+            }
+            waitFor(() -> fast.get() == 3);
+            assertEquals(0, slow.get());
+            assertEquals(3, lanes.getQueuedCount(SendLanes.Lane.BULK));
+        } finally {
+            gate.countDown();
+            lanes.close();
+        }
+        assertEquals(2 * 64 + 3, slow.get());
+    }
+    
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(5);
+        }
+    }
+}
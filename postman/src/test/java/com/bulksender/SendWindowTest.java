@@ -0,0 +1,51 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import org.junit.jupiter.api.Test;
+
+class SendWindowTest {
+    private static final ZoneId ZONE = ZoneId.of("Europe/Berlin");
+    private final SendWindow window = new SendWindow(LocalTime.of(9, 0), LocalTime.of(8, 0), LocalTime.of(18, 0));
+    
+    @Test
+    void waitsForThePreferredTimeLaterToday() {
+        Instant now = at(6, 30);
+        assertEquals(at(9, 0), window.nextSendTime(ZONE, now));
+        assertFalse(window.isOpen(ZONE, now));
+    }
+    
+    @Test
+    void sendsAtOnceWhileTheWindowIsOpen() {
+        Instant now = at(12, 0);
+        assertEquals(now, window.nextSendTime(ZONE, now));
+        assertTrue(window.isOpen(ZONE, now));
+    }
+    
+    @Test
+    void movesToTheNextDayOnceTheWindowHasClosed() {
+        Instant now = at(18, 0);
+        assertFalse(window.isOpen(ZONE, now));
+        assertEquals(at(9, 0).plusSeconds(24 * 3600), window.nextSendTime(ZONE, now));
+    }
+    
+    @Test
+    void evaluatesTheWindowInTheRecipientsZone() {
+        // 12:00 in Berlin is 03:00 in Los Angeles
+        ZoneId losAngeles = ZoneId.of("America/Los_Angeles");
+        Instant now = at(12, 0);
+        assertFalse(window.isOpen(losAngeles, now));
+        assertEquals(ZonedDateTime.of(2024, 3, 6, 9, 0, 0, 0, losAngeles).toInstant(),
+                window.nextSendTime(losAngeles, now));
+    }
+    
+    private static Instant at(int hour, int minute) {
+        return ZonedDateTime.of(2024, 3, 6, hour, minute, 0, 0, ZONE).toInstant();
+    }
+}
@@ -0,0 +1,142 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SentLedgerTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void remembersAddressesAcrossRuns() throws Exception {
+        SentLedger ledger = new SentLedger(directory, "daily");
+        try {
+            assertEquals(0, ledger.size());
+            ledger.record("a@example.com");
+            ledger.record("b@example.com");
+            assertEquals(2, ledger.getRecordedCount());
+            // Only earlier runs count
+            assertFalse(ledger.contains("a@example.com"));
+        } finally {
+            ledger.close();
+        }
+        
+        SentLedger second = new SentLedger(directory, "daily");
+        try {
+            assertEquals(2, second.size());
+            assertTrue(second.contains("a@example.com"));
+            assertTrue(second.contains("B@Example.com"));
+            assertFalse(second.contains("c@example.com"));
+            second.record("c@example.com");
+            second.record("a@example.com");
+        } finally {
+            second.close();
+        }
+        
+        SentLedger third = new SentLedger(directory, "daily");
+        try {
+            assertEquals(3, third.size());
+            assertTrue(third.contains("c@example.com"));
+        } finally {
+            third.close();
+        }
+        // Merging replaces the previous generation
+        assertFalse(Files.exists(directory.resolve("daily-00000000.sent")));
+        assertTrue(Files.exists(directory.resolve("daily-00000001.sent")));
+    }
+    
+    @Test
+    void mergesTheJournalOfAnUnfinishedRun() throws Exception {
+        new SentLedger(directory, "daily").close();
+        // A run that stopped while writing its journal: the last hash is cut short
+        ByteBuffer journal = ByteBuffer.allocate(2 * Long.BYTES);
+        journal.putLong(SuppressionList.hash("a@example.com")).putLong(SuppressionList.hash("b@example.com"));
+        Files.write(directory.resolve("daily.journal"), Arrays.copyOf(journal.array(), Long.BYTES + 3));
+        
+        SentLedger ledger = new SentLedger(directory, "daily");
+        try {
+            assertEquals(1, ledger.size());
+            assertTrue(ledger.contains("a@example.com"));
+            assertFalse(ledger.contains("b@example.com"));
+        } finally {
+            ledger.close();
+        }
+        assertEquals(0, Files.size(directory.resolve("daily.journal")));
+    }
+    
+    @Test
+    void ignoresAMergeCutShortByACrash() throws Exception {
+        SentLedger ledger = new SentLedger(directory, "daily");
+        try {
+            ledger.record("a@example.com");
+        } finally {
+            ledger.close();
+        }
+        Files.write(directory.resolve("daily-00000001.sent.tmp"), new byte[11]);
+        
+        SentLedger reopened = new SentLedger(directory, "daily");
+        try {
+            assertEquals(1, reopened.size());
+            reopened.record("b@example.com");
+        } finally {
+            reopened.close();
+        }
+        
+        SentLedger merged = new SentLedger(directory, "daily");
+        try {
+            assertEquals(2, merged.size());
+            assertTrue(merged.contains("a@example.com"));
+            assertTrue(merged.contains("b@example.com"));
+        } finally {
+            merged.close();
+        }
+        assertFalse(Files.exists(directory.resolve("daily-00000001.sent.tmp")));
+    }
+    
+    @Test
+    void rejectsATruncatedLedger() throws Exception {
+        SentLedger ledger = new SentLedger(directory, "daily");
+        try {
+            ledger.record("a@example.com");
+            ledger.record("b@example.com");
+        } finally {
+            ledger.close();
+        }
+        Path file = directory.resolve("daily-00000000.sent");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+        
+        assertThrows(IOException.class, () -> new SentLedger(directory, "daily"));
+    }
+    
+    @Test
+    void keepsCampaignsApartAndAllowsOneRunPerCampaign() throws Exception {
+        SentLedger daily = new SentLedger(directory, "daily");
+        SentLedger weekly = new SentLedger(directory, "weekly");
+        try {
+            assertThrows(IOException.class, () -> new SentLedger(directory, "daily"));
+            daily.record("a@example.com");
+        } finally {
+            weekly.close();
+            daily.close();
+        }
+        
+        SentLedger reopened = new SentLedger(directory, "weekly");
+        try {
+            assertFalse(reopened.contains("a@example.com"));
+        } finally {
+            reopened.close();
+        }
+        assertThrows(IllegalArgumentException.class, () -> new SentLedger(directory, "../daily"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.mail.Authenticator;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Routing of messages across relays, against local SMTP stand-ins.
+ */
+class SmtpMailTransportTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void deliversThroughASingleRelay() throws Exception {
+        try (SmtpStub relay = new SmtpStub()) {
+            SmtpMailTransport transport = transport("smtp.relays=" + relay.relay());
+            try {
+                assertEquals(250, transport.deliver(message("alice@example.com")));
+                assertEquals(250, transport.deliver(message("bob@example.com")));
+                assertEquals(1, transport.getLastAttempts());
+            } finally {
+                transport.close();
+            }
+            assertEquals(2, relay.getMessageCount());
+            // The pooled connection is reused for the second message
+            assertEquals(1, relay.getConnectionCount());
+        }
+    }
+    
+    @Test
+    void movesMessagesOffADeadRelayAndEjectsIt() throws Exception {
+        try (SmtpStub live = new SmtpStub()) {
+            SmtpMailTransport transport = transport(
+                    "smtp.relays=127.0.0.1:" + SmtpStub.deadPort() + "," + live.relay());
+            try {
+                SmtpRelay dead = transport.getRelays().get(0);
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(250, transport.deliver(message("user" + i + "@example.com")));
+                    assertEquals(2, transport.getLastAttempts());
+                }
+                assertFalse(dead.isHealthy());
+                
+                // Once ejected, the dead relay is no longer tried first
+                assertEquals(250, transport.deliver(message("user3@example.com")));
+                assertEquals(1, transport.getLastAttempts());
+            } finally {
+                transport.close();
+            }
+            assertEquals(4, live.getMessageCount());
+        }
+    }
+    
+    @Test
+    void movesMessagesOffARelayAnswering421() throws Exception {
+        try (SmtpStub busy = new SmtpStub(421); SmtpStub live = new SmtpStub()) {
+            SmtpMailTransport transport = transport("smtp.relays=" + busy.relay() + "," + live.relay());
+            try {
+                assertEquals(250, transport.deliver(message("alice@example.com")));
+                assertEquals(2, transport.getLastAttempts());
+            } finally {
+                transport.close();
+            }
+            assertTrue(busy.getConnectionCount() > 0);
+            assertEquals(0, busy.getMessageCount());
+            assertEquals(1, live.getMessageCount());
+        }
+    }
+    
+    @Test
+    void doesNotRerouteAPermanentRejection() throws Exception {
+        try (SmtpStub first = new SmtpStub(); SmtpStub second = new SmtpStub()) {
+            SmtpMailTransport transport = transport("smtp.relays=" + first.relay() + "," + second.relay());
+            try {
+                MessagingException e = assertThrows(MessagingException.class,
+                        () -> transport.deliver(message("bad@example.com")));
+                assertEquals(550, SmtpMailTransport.replyCodeOf(e));
+                assertEquals(1, transport.getLastAttempts());
+            } finally {
+                transport.close();
+            }
+            assertEquals(0, first.getMessageCount() + second.getMessageCount());
+        }
+    }
+    
+    @Test
+    void failsWhenNoRelayTakesTheMessage() throws Exception {
+        SmtpMailTransport transport = transport(
+                "smtp.relays=127.0.0.1:" + SmtpStub.deadPort() + ",127.0.0.1:" + SmtpStub.deadPort());
+        try {
+            assertThrows(MessagingException.class, () -> transport.deliver(message("alice@example.com")));
+            assertEquals(2, transport.getLastAttempts());
+        } finally {
+            transport.close();
+        }
+    }
+    
+    @Test
+    void releasesTheRelayWhenThePoolIsClosed() throws Exception {
+        try (SmtpStub relay = new SmtpStub()) {
+            SmtpMailTransport transport = transport("smtp.relays=" + relay.relay());
+            transport.close();
+            assertThrows(IllegalStateException.class, () -> transport.deliver(message("alice@example.com")));
+            assertEquals(0, transport.getRelays().get(0).getOutstanding());
+        }
+    }
+    
+    private SmtpMailTransport transport(String... settings) throws IOException {
+        EmailConfig config = SmtpStub.config(directory, settings);
+        Authenticator authenticator = new Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(config.getSenderEmail(), config.getSenderPassword());
+            }
+        };
+        return new SmtpMailTransport(new RelayBalancer(config, authenticator), new AdaptiveConcurrencyLimit(1, 4));
+    }
+    
+    private static MimeMessage message(String recipient) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress(recipient));
+        message.setSubject("Test");
+        message.setText("Hello");
+        return message;
+    }
+}
@@ -0,0 +1,58 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The SMTP probe, against local SMTP stand-ins.
+ */
+class SmtpProbeTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void timesEachStepOfAPlainConnection() throws Exception {
+        try (SmtpStub relay = new SmtpStub()) {
+            SmtpProbe.Result result = new SmtpProbe(SmtpStub.config(directory, "send.rate=50"), "127.0.0.1",
+                                                    relay.getPort()).run(3);
+            assertEquals(3, result.getSamples());
+            assertEquals(3, relay.getConnectionCount());
+            assertTrue(result.getExtensions().contains("AUTH PLAIN LOGIN"));
+            assertTrue(result.wasTimed(SmtpProbe.Step.CONNECT));
+            assertTrue(result.wasTimed(SmtpProbe.Step.AUTH));
+            assertTrue(result.wasTimed(SmtpProbe.Step.ROUND_TRIP));
+            // TLS is off in the test configuration
+            assertFalse(result.wasTimed(SmtpProbe.Step.STARTTLS));
+            // A local relay is fast enough for the configured rate on one connection
+            assertEquals(1, result.getRecommendedConnections());
+            assertEquals(50, result.getRecommendedRate());
+            // Nothing is sent
+            assertEquals(0, relay.getMessageCount());
+        }
+    }
+    
+    @Test
+    void failsOnARefusedGreeting() throws Exception {
+        try (SmtpStub relay = new SmtpStub(421)) {
+            SmtpProbe probe = new SmtpProbe(SmtpStub.config(directory), "127.0.0.1", relay.getPort());
+            assertThrows(IOException.class, () -> probe.run(1));
+        }
+    }
+    
+    @Test
+    void requiresStartTlsWhenTlsIsEnabled() throws Exception {
+        try (SmtpStub relay = new SmtpStub()) {
+            SmtpProbe probe = new SmtpProbe(SmtpStub.config(directory, "smtp.tls.enable=true"), "127.0.0.1",
+                                            relay.getPort());
+            IOException e = assertThrows(IOException.class, () -> probe.run(1));
+            assertTrue(e.getMessage().contains("STARTTLS"));
+        }
+    }
+}
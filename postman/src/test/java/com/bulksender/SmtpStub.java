@@ -0,0 +1,175 @@
+package com.bulksender;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal SMTP server on a local port, standing in for a relay.
+ * 
+ * It offers AUTH PLAIN LOGIN and accepts any credentials, rejects RCPT TO
+ * addresses containing "bad" with 550 and counts the messages it accepts.
+ * A stub created with a greeting code other than 220 answers every
+ * connection with that code and hangs up, like an overloaded relay.
+ */
+class SmtpStub implements Closeable {
+    private final ServerSocket server;
+    private final int greetingCode;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger messages = new AtomicInteger();
+    
+    /**
+     * Starts a stub that accepts mail.
+     * 
+     * @throws IOException If no local port can be opened
+     */
+    SmtpStub() throws IOException {
+        this(220);
+    }
+    
+    /**
+     * Starts a stub with the given greeting.
+     * 
+     * @param greetingCode 220 to accept mail, or a code such as 421 to refuse every connection
+     * @throws IOException If no local port can be opened
+     */
+    SmtpStub(int greetingCode) throws IOException {
+        this.greetingCode = greetingCode;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "smtp-stub-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+    
+    /**
+     * Returns a local port that nothing listens on.
+     * 
+     * @return Port number
+     * @throws IOException If no local port can be opened
+     */
+    static int deadPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+    
+    /**
+     * Writes a configuration file with test credentials, TLS off and the
+     * given extra settings, and loads it.
+     * 
+     * @param directory Directory for the file
+     * @param lines Extra "key=value" settings
+     * @return The loaded configuration
+     * @throws IOException If the file cannot be written
+     */
+    static EmailConfig config(Path directory, String... lines) throws IOException {
+        StringBuilder text = new StringBuilder("sender.email=sender@example.com\n")
+                .append("sender.password=secret\n")
+                .append("smtp.tls.enable=false\n");
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        Path file = Files.createTempFile(directory, "config", ".properties");
+        Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+        return EmailConfig.loadConfig(file.toString());
+    }
+    
+    int getPort() {
+        return server.getLocalPort();
+    }
+    
+    /**
+     * Returns this stub as a relay specification.
+     * 
+     * @return "127.0.0.1:port"
+     */
+    String relay() {
+        return "127.0.0.1:" + getPort();
+    }
+    
+    int getConnectionCount() {
+        return connections.get();
+    }
+    
+    int getMessageCount() {
+        return messages.get();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+    
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread handler = new Thread(() -> handle(socket), "smtp-stub-session");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+    
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                                                                          StandardCharsets.US_ASCII))) {
+            OutputStream out = s.getOutputStream();
+            if (greetingCode != 220) {
+                reply(out, greetingCode + " Service not available, closing transmission channel");
+                return;
+            }
+            reply(out, "220 stub ESMTP");
+            boolean data = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (data) {
+                    if (line.equals(".")) {
+                        data = false;
+                        reply(out, "250 OK queued as " + messages.incrementAndGet());
+                    }
+                    continue;
+                }
+                String command = line.toUpperCase(Locale.ROOT);
+                if (command.startsWith("EHLO")) {
+                    reply(out, "250-stub\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+                } else if (command.startsWith("HELO")) {
+                    reply(out, "250 stub");
+                } else if (command.startsWith("AUTH")) {
+                    reply(out, "235 Authenticated");
+                } else if (command.startsWith("RCPT")) {
+                    reply(out, line.contains("bad") ? "550 No such user" : "250 OK");
+                } else if (command.equals("DATA")) {
+                    data = true;
+                    reply(out, "354 Go ahead");
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // The client hung up
+        }
+    }
+    
+    private static void reply(OutputStream out, String text) throws IOException {
+        out.write((text + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,107 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SuppressionListTest {
+    @TempDir
+    Path directory;
+    
+    @Test
+    void keepsAddressesAcrossRestartsAndCompaction() throws Exception {
+        try (SuppressionList list = new SuppressionList(directory)) {
+            list.add("Alice@Example.com ");
+            list.add("bob@example.com");
+            assertTrue(list.contains("alice@example.com"));
+            assertFalse(list.contains("carol@example.com"));
+        }
+        
+        try (SuppressionList list = new SuppressionList(directory)) {
+            // Read back from the journal
+            assertTrue(list.contains("ALICE@example.com"));
+            list.compact();
+            assertEquals(0, Files.size(directory.resolve(SuppressionList.JOURNAL_FILE)));
+            list.add("carol@example.com");
+        }
+        
+        try (SuppressionList list = new SuppressionList(directory)) {
+            assertTrue(list.contains("alice@example.com"));
+            assertTrue(list.contains("bob@example.com"));
+            assertTrue(list.contains("carol@example.com"));
+            assertEquals(3, list.size());
+        }
+        assertEquals(Arrays.asList("suppression-00000000.idx", "suppression.log"), files());
+    }
+    
+    @Test
+    void buildsAnIndexFromAPlainList() throws Exception {
+        Path text = directory.resolve("unsubscribed.txt");
+        Files.write(text, "# unsubscribes\na@example.com\nA@example.com\n\nb@example.com\n"
+                .getBytes(StandardCharsets.UTF_8));
+        Path listDirectory = directory.resolve("list");
+        assertEquals(2, SuppressionList.build(text, listDirectory));
+        
+        try (SuppressionList list = new SuppressionList(listDirectory)) {
+            assertTrue(list.contains("a@example.com"));
+            assertTrue(list.contains("b@example.com"));
+            assertFalse(list.contains("c@example.com"));
+        }
+    }
+    
+    @Test
+    void picksUpACompactionByAnotherInstance() throws Exception {
+        try (SuppressionList reader = new SuppressionList(directory);
+             SuppressionList compactor = new SuppressionList(directory)) {
+            reader.add("first@example.com");
+            reader.refresh();
+            
+            compactor.refresh();
+            compactor.compact();
+            // The journal regrows past the reader's old read position
+            SuppressionList.append(directory, "late@example.com");
+            
+            reader.refresh();
+            assertTrue(reader.contains("first@example.com"));
+            assertTrue(reader.contains("late@example.com"));
+            assertEquals(2, reader.size());
+        }
+    }
+    
+    @Test
+    void ignoresAnIndexLeftHalfWrittenByACrash() throws Exception {
+        try (SuppressionList list = new SuppressionList(directory)) {
+            list.add("alice@example.com");
+            list.compact();
+            list.add("bob@example.com");
+        }
+        // A compaction that died before its rename
+        Files.write(directory.resolve("suppression-00000001.idx.tmp"), new byte[] {1, 2, 3});
+        
+        try (SuppressionList list = new SuppressionList(directory)) {
+            assertTrue(list.contains("alice@example.com"));
+            assertTrue(list.contains("bob@example.com"));
+            list.compact();
+        }
+        assertEquals(Arrays.asList("suppression-00000001.idx", "suppression.log"), files());
+        try (SuppressionList list = new SuppressionList(directory)) {
+            assertEquals(2, list.size());
+        }
+    }
+    
+    private List<String> files() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
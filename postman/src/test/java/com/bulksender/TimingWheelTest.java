@@ -0,0 +1,77 @@
+package com.bulksender;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    private static final long TICK = 10;
+    private static final long START = 1_000_000;
+    
+    @Test
+    void releasesTimersAtTheirTickOnEveryLevel() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, START);
+        // Level 0 covers 256 ticks, level 1 256 * 64, level 2 256 * 64 * 64
+        assertTrue(wheel.add("level0", START + 5 * TICK));
+        assertTrue(wheel.add("level1", START + 300 * TICK));
+        assertTrue(wheel.add("level2", START + 20_000 * TICK));
+        assertEquals(3, wheel.size());
+        
+        List<String> released = new ArrayList<>();
+        assertEquals(0, wheel.advanceTo(START + 4 * TICK, released::add));
+        assertEquals(1, wheel.advanceTo(START + 5 * TICK, released::add));
+        assertEquals(Arrays.asList("level0"), released);
+        
+        // Cascaded from level 1, but not released a tick early
+        assertEquals(0, wheel.advanceTo(START + 300 * TICK - 1, released::add));
+        assertEquals(1, wheel.advanceTo(START + 300 * TICK, released::add));
+        
+        assertEquals(0, wheel.advanceTo(START + 19_999 * TICK, released::add));
+        assertEquals(1, wheel.advanceTo(START + 20_000 * TICK, released::add));
+        assertEquals(Arrays.asList("level0", "level1", "level2"), released);
+        assertEquals(0, wheel.size());
+    }
+    
+    @Test
+    void releasesInDueOrderWhenAdvancingFarAtOnce() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(TICK, START);
+        int[] offsets = {70_000, 3, 512, 257, 16_385, 256, 1};
+        for (int offset : offsets) {
+            wheel.add(offset, START + offset * TICK);
+        }
+        
+        List<Integer> released = new ArrayList<>();
+        assertEquals(offsets.length, wheel.advanceTo(START + 100_000 * TICK, released::add));
+        assertEquals(Arrays.asList(1, 3, 256, 257, 512, 16_385, 70_000), released);
+    }
+    
+    @Test
+    void keepsTimersAddedWhileAdvancing() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, START);
+        wheel.add("first", START + 2 * TICK);
+        List<String> released = new ArrayList<>();
+        wheel.advanceTo(START + 2 * TICK, released::add);
+        // Relative to the wheel's new time, this lands on level 1
+        assertTrue(wheel.add("second", START + 2 * TICK + 1_000 * TICK));
+        wheel.advanceTo(START + 1_001 * TICK, released::add);
+        assertEquals(Arrays.asList("first"), released);
+        wheel.advanceTo(START + 1_002 * TICK, released::add);
+        assertEquals(Arrays.asList("first", "second"), released);
+    }
+    
+    @Test
+    void rejectsDueAndOutOfRangeTimes() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, START);
+        assertFalse(wheel.add("now", START));
+        assertFalse(wheel.add("past", START - TICK));
+        long range = 1L << (8 + 6 + 6 + 6);
+        assertThrows(IllegalArgumentException.class, () -> wheel.add("far", START + range * TICK));
+        assertTrue(wheel.add("last", START + (range - 1) * TICK));
+    }
+}